@@ -22,9 +22,11 @@ import com.beust.jcommander.Parameter;
 import com.google.inject.Injector;
 
 import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.reader.AisDirectoryReader;
 import dk.dma.ais.reader.AisReader;
 import dk.dma.ais.reader.AisReaders;
 import dk.dma.commons.app.AbstractCommandLineTool;
+import java.util.Date;
 import java.util.function.Consumer;
 
 /**
@@ -45,12 +47,34 @@ public abstract class AbstractCommandLineDirectoryReader extends AbstractCommand
 
     private AisReader aisDirectoryReader;
 
+    /**
+     * Returns the inclusive start of the time interval to read, or null if there is no lower bound. Files with a time
+     * or block index are only read from the part covering the interval.
+     */
+    protected Date getIntervalStart() {
+        return null;
+    }
+
+    /**
+     * Returns the exclusive end of the time interval to read, or null if there is no upper bound.
+     */
+    protected Date getIntervalEnd() {
+        return null;
+    }
+
     /* (non-Javadoc)
      * @see dk.dma.commons.app.AbstractDmaApplication#run(com.google.inject.Injector)
      */
     @Override
     protected void run(Injector injector) throws Exception {
-        aisDirectoryReader = AisReaders.createDirectoryReader(directory, pattern, true);
+        AisDirectoryReader reader = AisReaders.createDirectoryReader(directory, pattern, true);
+        Date start = getIntervalStart();
+        Date end = getIntervalEnd();
+        if (start != null || end != null) {
+            reader.setInterval(start == null ? Long.MIN_VALUE : start.getTime(),
+                    end == null ? Long.MAX_VALUE : end.getTime());
+        }
+        aisDirectoryReader = reader;
         aisDirectoryReader.registerPacketHandler(this);
         aisDirectoryReader.start();
         aisDirectoryReader.join();
@@ -75,6 +75,18 @@ public final class AisGapsToCSV extends AbstractCommandLineDirectoryReader {
     }
 
     private final AtomicInteger count = new AtomicInteger();
+
+    /** {@inheritDoc} */
+    @Override
+    protected Date getIntervalStart() {
+        return start;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected Date getIntervalEnd() {
+        return stop;
+    }
     
     /*
      * (non-Javadoc)
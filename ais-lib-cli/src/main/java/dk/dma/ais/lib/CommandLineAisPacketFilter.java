@@ -23,6 +23,7 @@ import com.beust.jcommander.Parameter;
 
 import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketReader;
 
 /**
  * This class provides common functionality for filtering {@link AisPacket AIS packets}.
@@ -53,6 +54,12 @@ public class CommandLineAisPacketFilter implements Predicate<AisPacket> {
     /** {@inheritDoc} */
     @Override
     public boolean test(AisPacket element) {
+        if (start != null || stop != null) {
+            long timestamp = element.getBestTimestamp();
+            if (start != null && timestamp < start.getTime() || stop != null && timestamp >= stop.getTime()) {
+                return false;
+            }
+        }
         AisMessage m = element.tryGetAisMessage();
         if (m == null) {
             // We can probably only handle source filtering?
@@ -64,7 +71,41 @@ public class CommandLineAisPacketFilter implements Predicate<AisPacket> {
         return true;
     }
 
-    public static Predicate<AisPacket> timestampFilter(long start, long end) {
-        return null;
+    /**
+     * Returns the inclusive start of the time interval, or null if there is no lower bound. Readers can use it
+     * together with {@link #getStop()} to only read the part of indexed files covering the interval, see
+     * {@link AisPacketReader#createFromFile(java.nio.file.Path, long, long, boolean)}.
+     *
+     * @return the inclusive start of the time interval
+     */
+    public Date getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the exclusive end of the time interval, or null if there is no upper bound.
+     *
+     * @return the exclusive end of the time interval
+     */
+    public Date getStop() {
+        return stop;
+    }
+
+    /**
+     * Returns a filter accepting packets with a timestamp in the interval {@code [start, end)}. To avoid reading the
+     * parts of a file outside of the interval, open the file using
+     * {@link AisPacketReader#createFromFile(java.nio.file.Path, long, long, boolean)}.
+     *
+     * @param start
+     *            the inclusive start of the interval in milliseconds since the epoch
+     * @param end
+     *            the exclusive end of the interval in milliseconds since the epoch
+     * @return a filter accepting packets in the interval
+     */
+    public static Predicate<AisPacket> timestampFilter(final long start, final long end) {
+        return p -> {
+            long timestamp = p.getBestTimestamp();
+            return timestamp >= start && timestamp < end;
+        };
     }
 }
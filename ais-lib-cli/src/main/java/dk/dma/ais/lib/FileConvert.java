@@ -21,15 +21,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +36,11 @@ import org.slf4j.LoggerFactory;
 import com.beust.jcommander.Parameter;
 import com.google.inject.Injector;
 
+import dk.dma.ais.archive.BlockGzipOutputStream;
+import dk.dma.ais.archive.ColumnarArchiveReader;
+import dk.dma.ais.archive.FileSummary;
+import dk.dma.ais.archive.TimeIndexOutputStream;
+import dk.dma.ais.archive.TimeIndexedOutput;
 import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.packet.AisPacketOutputSinkJsonObject;
 import dk.dma.ais.packet.AisPacketOutputSinks;
@@ -45,10 +49,10 @@ import dk.dma.ais.packet.AisPacketStream;
 import dk.dma.ais.packet.AisPacketStream.Subscription;
 import dk.dma.commons.app.AbstractCommandLineTool;
 import dk.dma.commons.util.io.OutputStreamSink;
-import dk.dma.enav.util.function.EConsumer;
 
 /**
- * Converts a set of files into another sink format
+ * Converts a set of files into another sink format, using a {@link FileConvertPipeline} so that reading, parsing,
+ * formatting and writing run in parallel. The output is the same as when converting the files one by one.
  *
  * @author Jens Tuxen
  *
@@ -58,7 +62,7 @@ public class FileConvert extends AbstractCommandLineTool {
     /** The logger. */
     static final Logger LOG = LoggerFactory.getLogger(FileConvert.class);
 
-    @Parameter(required = true, description = "files to import...")
+    @Parameter(required = true, description = "files to import, files ending with .aisc are read as columnar archives...")
     List<String> sources;
 
     /** Where files should be moved to after having been processed. */
@@ -69,15 +73,33 @@ public class FileConvert extends AbstractCommandLineTool {
     @Parameter(names = "-keepStructure", required = false, description = "Whether to keep path structure")
     boolean keepFileStructure = true;
 
-    @Parameter(names = "-fileEnding", required = false, description = "File ending")
+    @Parameter(names = "-fileEnding", required = false, description = "File ending, output is gzip compressed in indexed blocks if it ends with .gz, sentence output is time indexed")
     String fileEnding = ".txt";
 
-    @Parameter(names = "-outputFormat", required = false, description = "Output formats: [OUTPUT_TO_TEXT, OUTPUT_PREFIXED_SENTENCES, OUTPUT_TO_HTML, table]")
+    @Parameter(names = "-blockSize", required = false, description = "Uncompressed size of each gzip block, when writing gzip output")
+    int blockSize = BlockGzipOutputStream.DEFAULT_BLOCK_SIZE;
+
+    @Parameter(names = "-outputFormat", required = false, description = "Output formats: [OUTPUT_TO_TEXT, OUTPUT_PREFIXED_SENTENCES, OUTPUT_TO_HTML, table, columnar]")
     String outputSinkFormat = "OUTPUT_PREFIXED_SENTENCES";
 
     @Parameter(names = "-columns", required = false, description = "Optional columns, required with -outputFormat table. use ; as delimiter. Example: -columns mmsi;time;lat;lon")
     String columns;
 
+    @Parameter(names = "-merge", required = false, description = "Write all files, in the order given, to one output with this name in the base-path")
+    String mergeTo;
+
+    @Parameter(names = "-readThreads", required = false, description = "Number of threads reading and decompressing files")
+    int readThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = "-parseThreads", required = false, description = "Number of threads parsing messages")
+    int parseThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = "-formatThreads", required = false, description = "Number of threads formatting output, a merged output is formatted by one thread")
+    int formatThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = "-writeThreads", required = false, description = "Number of threads compressing and writing output, a merged output is written by one thread")
+    int writeThreads = Runtime.getRuntime().availableProcessors();
+
     /**
      * getOutputSinks
      *
@@ -94,71 +116,116 @@ public class FileConvert extends AbstractCommandLineTool {
         return methods;
     }
 
+    /**
+     * Returns whether or not the output format writes each packet as sentences when it is processed. Only such output
+     * can be time indexed.
+     */
+    boolean isSentenceFormat() {
+        switch (outputSinkFormat.toLowerCase()) {
+        case "raw":
+        case "output_to_text":
+        case "output_prefixed_sentences":
+            return true;
+        default:
+            return false;
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void run(Injector injector) throws Exception {
-
-        // final long start = System.currentTimeMillis();
-        final AtomicInteger count = new AtomicInteger();
-
-        final EConsumer<String> consumer = new EConsumer<String>() {
-
-            @Override
-            public void accept(String s) throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException,
-                    SecurityException, IOException, InterruptedException {
-                Path path = Paths.get(s);
-                LOG.debug("Started processing file " + path);
-
+        List<FileConvertPipeline.Input> inputs = new ArrayList<>();
+        FileConvertPipeline.Output merged = null;
+        if (mergeTo != null) {
+            Path endPath = Paths.get(convertTo);
+            new File(endPath.toString()).mkdirs();
+            merged = createOutput(Paths.get(endPath.toString(), mergeTo + fileEnding));
+        }
+        for (final String s : sources) {
+            Path path = Paths.get(s);
+            FileConvertPipeline.Output output = merged;
+            if (output == null) {
                 Path endPath;
                 if (keepFileStructure) {
                     Path relative;
                     relative = path;
                     endPath = Paths.get(Paths.get(convertTo).toString(), relative.toString());
-                    new File(endPath.toString()).mkdirs();
                 } else {
                     endPath = Paths.get(convertTo);
                 }
+                output = createOutput(Paths.get(endPath.toString(), path.getFileName().toString() + fileEnding));
+            }
+            inputs.add(new FileConvertPipeline.Input(s, () -> openSource(s), output));
+        }
 
-                Path filePath = Paths.get(endPath.toString(), path.getFileName().toString() + fileEnding);
+        new FileConvertPipeline(readThreads, parseThreads, formatThreads, writeThreads).convert(inputs);
+    }
 
+    /** Returns the output writing to the specified file in the chosen format. */
+    private FileConvertPipeline.Output createOutput(final Path filePath) throws Exception {
+        OutputStreamSink<AisPacket> sink = AisPacketOutputSinks.getOutputSink(outputSinkFormat, columns);
+        FileSummary.Builder summary = null;
+        if (isSentenceFormat()) {
+            sink = TimeIndexedOutput.indexingSink(sink);
+            // Writes a summary next to the output allowing directory readers to skip the file
+            summary = new FileSummary.Builder();
+            sink = FileSummary.summarizingSink(sink, summary);
+        }
+        sink.closeWhenFooterWritten();
+        final FileSummary.Builder s = summary;
+        return new FileConvertPipeline.Output(sink) {
+            @Override
+            OutputStream open() throws IOException {
                 LOG.debug("Output File: " + filePath.toString());
-
-                final OutputStream fos = new FileOutputStream(filePath.toString()); // 2
-
-                final OutputStreamSink<AisPacket> sink = AisPacketOutputSinks.getOutputSink(outputSinkFormat, columns);
-                sink.closeWhenFooterWritten();
-
-                AisPacketReader apis = AisPacketReader.createFromFile(path, false);
-
-                apis.writeTo(fos, sink);
-                apis.close();
-                fos.close();
+                new File(filePath.getParent().toString()).mkdirs();
+                if (fileEnding.endsWith(".gz")) {
+                    // Independently compressed blocks with a block index allows for parallel and seekable reading
+                    return new BlockGzipOutputStream(filePath, blockSize, Deflater.DEFAULT_COMPRESSION);
+                } else if (isSentenceFormat()) {
+                    // Writes a time index next to the output allowing readers to seek to a time interval
+                    return new TimeIndexOutputStream(filePath);
+                } else {
+                    return new FileOutputStream(filePath.toString()); // 2
+                }
             }
 
+            @Override
+            void closed() throws IOException {
+                if (s != null) {
+                    s.build(Files.size(filePath)).write(FileSummary.summaryFileFor(filePath));
+                }
+            }
         };
+    }
 
-        /*
-         * Creates a pool of executors, 4 threads. Each thread will open a file using an aispacket reader, 10000 files can be
-         * submitted to the queue, afterwards the calling thread will execute the job instead.
-         */
-        ThreadPoolExecutor threadpoolexecutor = new ThreadPoolExecutor(4, 4, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
-                10000), new ThreadPoolExecutor.CallerRunsPolicy());
-        for (final String s : sources) {
-            threadpoolexecutor.execute(() -> {
-                try {
-                    consumer.accept(s);
-                } catch (Exception e) {
-                    e.printStackTrace();
+    /** Opens the packets of the specified file, which is read as a columnar archive if it is one. */
+    private static FileConvertPipeline.PacketSource openSource(String s) throws IOException {
+        Path path = Paths.get(s);
+        LOG.debug("Started processing file " + path);
+        if (ColumnarArchiveReader.isArchive(s)) {
+            final ColumnarArchiveReader reader = ColumnarArchiveReader.open(path);
+            return new FileConvertPipeline.PacketSource() {
+                public AisPacket readPacket() throws IOException {
+                    return reader.readPacket();
                 }
 
-            });
+                public void close() throws IOException {
+                    reader.close();
+                }
+            };
         }
+        final AisPacketReader reader = AisPacketReader.createFromFile(path, false);
+        return new FileConvertPipeline.PacketSource() {
+            public AisPacket readPacket() throws IOException {
+                return reader.readPacket();
+            }
 
-        threadpoolexecutor.shutdown();
-        threadpoolexecutor.awaitTermination(999, TimeUnit.DAYS);
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
     }
 
-
     public static void main(String[] args) throws Exception {
         FileConvert fc = new FileConvert();
         fc.execute(args);
@@ -0,0 +1,420 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.lib;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.ais.archive.TimeIndexedOutput;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * Converts a list of inputs to one or more outputs in stages, each run by its own number of threads:
+ * <ol>
+ * <li>read, which reads and decompresses the inputs into batches of packets,</li>
+ * <li>parse, which decodes the messages of a batch,</li>
+ * <li>format, which writes the batches in order through the {@link OutputStreamSink} of the output into memory,</li>
+ * <li>write, which writes the formatted data in order to the output, compressing it if the output does.</li>
+ * </ol>
+ * The stages take the inputs in the order they are given, so the oldest input not yet converted is always being worked
+ * on by all stages, and the queues between the stages are bounded, so memory is bounded by the number of threads. The
+ * output is byte for byte the same as when converting each input sequentially, including any time index, as the
+ * record boundaries signalled by {@link TimeIndexedOutput#indexingSink(OutputStreamSink)} are replayed on the output.
+ * <p>
+ * Several inputs may share one output, in which case the output gets a single header and footer and packets are
+ * counted across the inputs. The format and write stages of a shared output work on one input at a time.
+ */
+@ThreadSafe
+final class FileConvertPipeline {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(FileConvertPipeline.class);
+
+    /** The number of packets in a batch. */
+    static final int BATCH_SIZE = 1000;
+
+    /** The number of batches between two stages of an input. */
+    static final int QUEUE_SIZE = 8;
+
+    private final int readThreads;
+
+    private final int parseThreads;
+
+    private final int formatThreads;
+
+    private final int writeThreads;
+
+    /**
+     * Creates a new pipeline.
+     *
+     * @param readThreads
+     *            the number of threads reading inputs
+     * @param parseThreads
+     *            the number of threads decoding messages
+     * @param formatThreads
+     *            the number of threads formatting packets
+     * @param writeThreads
+     *            the number of threads writing outputs
+     */
+    FileConvertPipeline(int readThreads, int parseThreads, int formatThreads, int writeThreads) {
+        if (readThreads < 1 || parseThreads < 1 || formatThreads < 1 || writeThreads < 1) {
+            throw new IllegalArgumentException("There must be at least one thread per stage");
+        }
+        this.readThreads = readThreads;
+        this.parseThreads = parseThreads;
+        this.formatThreads = formatThreads;
+        this.writeThreads = writeThreads;
+    }
+
+    /**
+     * Converts the specified inputs, returning when all are converted. An input that fails is logged, the packets
+     * read before the failure are written.
+     *
+     * @param inputs
+     *            the inputs in the order to convert them
+     * @throws InterruptedException
+     *             if interrupted while waiting for the conversion
+     */
+    void convert(List<Input> inputs) throws InterruptedException {
+        List<Job> jobs = new ArrayList<>();
+        Output previous = null;
+        for (Input input : inputs) {
+            Job job = new Job(input);
+            job.first = input.output != previous;
+            if (job.first && !jobs.isEmpty()) {
+                jobs.get(jobs.size() - 1).last = true;
+            }
+            jobs.add(job);
+            previous = input.output;
+        }
+        if (!jobs.isEmpty()) {
+            jobs.get(jobs.size() - 1).last = true;
+        }
+        boolean shared = jobs.stream().anyMatch(j -> !j.first || !j.last);
+        ExecutorService parsers = Executors.newFixedThreadPool(parseThreads);
+        ConcurrentLinkedQueue<Job> reading = new ConcurrentLinkedQueue<>(jobs);
+        ConcurrentLinkedQueue<Job> formatting = new ConcurrentLinkedQueue<>(jobs);
+        ConcurrentLinkedQueue<Job> writing = new ConcurrentLinkedQueue<>(jobs);
+        List<Thread> threads = new ArrayList<>();
+        // The jobs of a shared output must be formatted and written one at a time
+        for (int i = 0; i < readThreads; i++) {
+            threads.add(new Thread(() -> forEach(reading, j -> j.read(parsers)), "FileConvert reader " + i));
+        }
+        for (int i = 0; i < (shared ? 1 : formatThreads); i++) {
+            threads.add(new Thread(() -> forEach(formatting, Job::format), "FileConvert formatter " + i));
+        }
+        for (int i = 0; i < (shared ? 1 : writeThreads); i++) {
+            threads.add(new Thread(() -> forEach(writing, Job::write), "FileConvert writer " + i));
+        }
+        threads.forEach(Thread::start);
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } finally {
+            parsers.shutdown();
+        }
+    }
+
+    private static void forEach(ConcurrentLinkedQueue<Job> jobs, Consumer<Job> stage) {
+        for (Job job = jobs.poll(); job != null; job = jobs.poll()) {
+            stage.accept(job);
+        }
+    }
+
+    /** Reads the packets of an input. */
+    interface PacketSource extends AutoCloseable {
+
+        /** Returns the next packet, or null if there are no more packets. */
+        AisPacket readPacket() throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /** Opens a source or an output. */
+    interface Opener<T> {
+        T open() throws IOException;
+    }
+
+    /** An input to convert. */
+    @ThreadSafe
+    static final class Input {
+
+        final String name;
+
+        final Opener<PacketSource> source;
+
+        final Output output;
+
+        /**
+         * @param name
+         *            the name of the input, used when logging
+         * @param source
+         *            opens the packets of the input
+         * @param output
+         *            the output to write to, consecutive inputs may share an output
+         */
+        Input(String name, Opener<PacketSource> source, Output output) {
+            this.name = requireNonNull(name);
+            this.source = requireNonNull(source);
+            this.output = requireNonNull(output);
+        }
+    }
+
+    /** An output, which is opened before its first input is written and closed after its last. */
+    @NotThreadSafe
+    abstract static class Output {
+
+        final OutputStreamSink<AisPacket> sink;
+
+        /** The number of packets formatted. */
+        long count;
+
+        /** The stream when open. */
+        OutputStream stream;
+
+        /**
+         * @param sink
+         *            the sink formatting the packets
+         */
+        Output(OutputStreamSink<AisPacket> sink) {
+            this.sink = requireNonNull(sink);
+        }
+
+        /** Opens the stream to write to. */
+        abstract OutputStream open() throws IOException;
+
+        /** Called when the stream has been closed. */
+        void closed() throws IOException {}
+    }
+
+    /** A part of the formatted output, with the record boundaries to signal to the output. */
+    static final class Chunk extends ByteArrayOutputStream implements TimeIndexedOutput {
+
+        private long[] records = new long[32];
+
+        private int recordCount;
+
+        Chunk(int size) {
+            super(size);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void endRecord(long timestamp) {
+            if (recordCount * 2 == records.length) {
+                records = Arrays.copyOf(records, records.length * 2);
+            }
+            records[recordCount * 2] = count;
+            records[recordCount * 2 + 1] = timestamp;
+            recordCount++;
+        }
+
+        /** Writes the chunk to the specified stream, signalling the record boundaries if it is time indexed. */
+        void replay(OutputStream os) throws IOException {
+            if (!(os instanceof TimeIndexedOutput)) {
+                os.write(buf, 0, count);
+                return;
+            }
+            int written = 0;
+            for (int i = 0; i < recordCount; i++) {
+                int end = (int) records[i * 2];
+                os.write(buf, written, end - written);
+                written = end;
+                ((TimeIndexedOutput) os).endRecord(records[i * 2 + 1]);
+            }
+            os.write(buf, written, count - written);
+        }
+    }
+
+    /** The conversion of one input, passing batches and chunks between the stages. */
+    static final class Job {
+
+        /** Marks the end of the batches of an input. */
+        private static final Future<AisPacket[]> END_OF_BATCHES = CompletableFuture.completedFuture(null);
+
+        /** Marks the end of the chunks of an input. */
+        private static final Chunk END_OF_CHUNKS = new Chunk(0);
+
+        final Input input;
+
+        /** Whether or not this is the first input of the output. */
+        boolean first;
+
+        /** Whether or not this is the last input of the output. */
+        boolean last;
+
+        private final BlockingQueue<Future<AisPacket[]>> batches = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        /** Whether or not a stage has failed, only the first failure is logged. */
+        @GuardedBy("this")
+        private boolean failed;
+
+        Job(Input input) {
+            this.input = input;
+        }
+
+        /** Reads the input in batches, handing each batch to the parsers. */
+        void read(ExecutorService parsers) {
+            try (PacketSource source = input.source.open()) {
+                AisPacket[] batch = new AisPacket[BATCH_SIZE];
+                int n = 0;
+                for (AisPacket p = source.readPacket(); p != null; p = source.readPacket()) {
+                    batch[n++] = p;
+                    if (n == BATCH_SIZE) {
+                        parse(parsers, batch, n);
+                        n = 0;
+                    }
+                }
+                if (n > 0) {
+                    parse(parsers, batch, n);
+                }
+            } catch (Exception e) {
+                fail(e);
+            } finally {
+                putUninterruptibly(batches, END_OF_BATCHES);
+            }
+        }
+
+        private void parse(ExecutorService parsers, AisPacket[] batch, int n) throws InterruptedException {
+            final AisPacket[] packets = Arrays.copyOf(batch, n);
+            batches.put(parsers.submit(() -> {
+                for (AisPacket p : packets) {
+                    p.tryGetAisMessage();
+                }
+                return packets;
+            }));
+        }
+
+        /** Formats the batches of the input through the sink of the output. */
+        void format() {
+            Output output = input.output;
+            boolean ended = false;
+            try {
+                if (first) {
+                    Chunk c = new Chunk(256);
+                    output.sink.header(c);
+                    chunks.put(c);
+                }
+                for (Future<AisPacket[]> f = batches.take(); f != END_OF_BATCHES; f = batches.take()) {
+                    AisPacket[] packets = f.get();
+                    Chunk c = new Chunk(packets.length * 128);
+                    for (AisPacket p : packets) {
+                        output.sink.process(c, p, ++output.count);
+                    }
+                    chunks.put(c);
+                }
+                ended = true;
+                if (last) {
+                    Chunk c = new Chunk(256);
+                    output.sink.footer(c, output.count);
+                    chunks.put(c);
+                }
+            } catch (Exception e) {
+                fail(e);
+                if (!ended) {
+                    // Let the reader finish
+                    drain(batches, END_OF_BATCHES);
+                }
+            } finally {
+                putUninterruptibly(chunks, END_OF_CHUNKS);
+            }
+        }
+
+        /** Writes the chunks of the input to the output. */
+        void write() {
+            Output output = input.output;
+            try {
+                if (first) {
+                    output.stream = output.open();
+                }
+                for (Chunk c = chunks.take(); c != END_OF_CHUNKS; c = chunks.take()) {
+                    if (output.stream != null) {
+                        c.replay(output.stream);
+                    }
+                }
+            } catch (Exception e) {
+                fail(e);
+                drain(chunks, END_OF_CHUNKS);
+            } finally {
+                if (last && output.stream != null) {
+                    try {
+                        output.stream.close();
+                        output.closed();
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                    output.stream = null;
+                }
+            }
+        }
+
+        private synchronized void fail(Exception e) {
+            if (!failed) {
+                failed = true;
+                LOG.error("Failed to convert " + input.name, e);
+            }
+        }
+
+        /** Takes elements until the specified end marker. */
+        private static <T> void drain(BlockingQueue<T> queue, T end) {
+            try {
+                while (queue.take() != end) {}
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static <T> void putUninterruptibly(BlockingQueue<T> queue, T element) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(element);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
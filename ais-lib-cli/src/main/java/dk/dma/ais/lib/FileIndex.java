@@ -0,0 +1,75 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.lib;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.beust.jcommander.Parameter;
+import com.google.inject.Injector;
+
+import dk.dma.ais.archive.BlockGzipIndex;
+import dk.dma.ais.archive.FileSummary;
+import dk.dma.ais.archive.TimeIndex;
+import dk.dma.commons.app.AbstractCommandLineTool;
+
+/**
+ * Writes a time index and a {@link FileSummary} next to each of a set of text dumps, allowing readers to seek directly
+ * to a time interval and to skip dumps that cannot contain packets of interest.
+ */
+public class FileIndex extends AbstractCommandLineTool {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(FileIndex.class);
+
+    @Parameter(required = true, description = "files to index...")
+    List<String> sources;
+
+    @Parameter(names = "-interval", required = false, description = "The time covered by each index entry in seconds")
+    long interval = TimeIndex.DEFAULT_INTERVAL / 1000;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void run(Injector injector) throws Exception {
+        for (String s : sources) {
+            Path path = Paths.get(s);
+            long start = System.currentTimeMillis();
+            FileSummary summary = FileSummary.build(path);
+            summary.write(FileSummary.summaryFileFor(path));
+            LOG.info("Summarized " + path + " in " + (System.currentTimeMillis() - start) + " ms, "
+                    + summary.getNumberOfPackets() + " packets");
+            if (s.endsWith(".gz")) {
+                if (BlockGzipIndex.readIndexOf(path) == null) {
+                    LOG.warn("Cannot index gzip file " + path
+                            + ", convert it using fileconvert -fileEnding .gz to create an indexed gzip file");
+                }
+                continue;
+            }
+            start = System.currentTimeMillis();
+            TimeIndex index = TimeIndex.build(path, interval * 1000);
+            index.write(TimeIndex.indexFileFor(path));
+            LOG.info("Indexed " + path + " in " + (System.currentTimeMillis() - start) + " ms, "
+                    + index.getChunks().size() + " entries");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new FileIndex().execute(args);
+    }
+}
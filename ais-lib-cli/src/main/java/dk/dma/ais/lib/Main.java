@@ -31,6 +31,7 @@ public class Main {
         c.add(AisFilter.class, "filter", "Command line tool to do various AIS reading, filtering and writing");
         c.add(AisBusLauncher.class, "aisbus", "AisBus launcher application");
         c.add(FileConvert.class, "fileconvert", "converts a list of aisfiles into a different format");
+        c.add(FileIndex.class, "aisindex", "writes a time index next to text dumps for fast seeking to a time interval");
         c.add(AisGapsToCSV.class, "aisgapstocsv", "finds timegaps in a directory of aisdata and outputs a csv file with utc timestamps per every second of missing data");
         c.invoke(args);
     }
@@ -0,0 +1,129 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import net.jcip.annotations.Immutable;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.ais.packet.AisPacketTags.SourceType;
+import dk.dma.enav.model.Country;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * A position report read from the decoded columns of a columnar archive, without parsing the NMEA sentences.
+ */
+@Immutable
+public final class ArchivedPosition {
+
+    private final long timestamp;
+
+    private final int mmsi;
+
+    private final int msgId;
+
+    private final double latitude;
+
+    private final double longitude;
+
+    private final int sog;
+
+    private final int cog;
+
+    /** The source tags, shared between positions and never modified. */
+    private final AisPacketTags source;
+
+    ArchivedPosition(long timestamp, int mmsi, int msgId, double latitude, double longitude, int sog, int cog,
+            AisPacketTags source) {
+        this.timestamp = timestamp;
+        this.mmsi = mmsi;
+        this.msgId = msgId;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.sog = sog;
+        this.cog = cog;
+        this.source = source;
+    }
+
+    /** Returns the timestamp of the packet, or -1 if the packet has no timestamp. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** Returns the MMSI number of the target. */
+    public int getMmsi() {
+        return mmsi;
+    }
+
+    /** Returns the message type. */
+    public int getMsgId() {
+        return msgId;
+    }
+
+    /** Returns the latitude in degrees. */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /** Returns the longitude in degrees. */
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /** Returns the position. */
+    public Position getPosition() {
+        return Position.create(latitude, longitude);
+    }
+
+    /** Returns whether or not the message contains speed and course over ground. */
+    public boolean hasSogCog() {
+        return sog >= 0;
+    }
+
+    /** Returns the speed over ground in 1/10 knots, or -1 if not contained in the message. */
+    public int getSog() {
+        return sog;
+    }
+
+    /** Returns the course over ground in 1/10 degrees, or -1 if not contained in the message. */
+    public int getCog() {
+        return cog;
+    }
+
+    /** Returns the source identifier tag, or null if the packet was not tagged with one. */
+    public String getSourceId() {
+        return source.getSourceId();
+    }
+
+    /** Returns the source base station tag, or null if the packet was not tagged with one. */
+    public Integer getSourceBs() {
+        return source.getSourceBs();
+    }
+
+    /** Returns the source country tag, or null if the packet was not tagged with one. */
+    public Country getSourceCountry() {
+        return source.getSourceCountry();
+    }
+
+    /** Returns the source type tag, or null if the packet was not tagged with one. */
+    public SourceType getSourceType() {
+        return source.getSourceType();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "ArchivedPosition [timestamp=" + timestamp + ", mmsi=" + mmsi + ", msgId=" + msgId + ", latitude="
+                + latitude + ", longitude=" + longitude + ", sog=" + sog + ", cog=" + cog + "]";
+    }
+}
@@ -0,0 +1,269 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * The offset index of a file written by {@link BlockGzipOutputStream}. The index is stored in a sidecar file next to
+ * the gzip file (see {@link #indexFileFor(Path)}) and lists the position of every independently decompressible block
+ * together with the time range of the packets stored in it.
+ */
+@Immutable
+public final class BlockGzipIndex {
+
+    /** The suffix appended to the name of the gzip file to get the name of the index file. */
+    public static final String SUFFIX = ".gzi";
+
+    /** Magic header of index files ('AGZI'). */
+    static final int MAGIC = 0x41475A49;
+
+    /** The current version of the index file format. */
+    static final int VERSION = 1;
+
+    /** The blocks of the file, in file order. */
+    private final List<Block> blocks;
+
+    BlockGzipIndex(List<Block> blocks) {
+        this.blocks = Collections.unmodifiableList(new ArrayList<>(blocks));
+    }
+
+    /**
+     * Returns the blocks of the file in file order.
+     *
+     * @return the blocks of the file in file order
+     */
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Returns the index of the first block that may contain packets with a timestamp at or after the specified time.
+     * Returns the number of blocks if no such block exists.
+     *
+     * @param start
+     *            the inclusive start time in milliseconds since the epoch
+     * @return the index of the first block to read
+     */
+    public int firstBlock(long start) {
+        for (int i = 0; i < blocks.size(); i++) {
+            Block b = blocks.get(i);
+            if (!b.hasTimestamps() || b.getMaxTimestamp() >= start) {
+                return i;
+            }
+        }
+        return blocks.size();
+    }
+
+    /**
+     * Returns the index after the last block that may contain packets with a timestamp before the specified time.
+     * Returns 0 if no such block exists.
+     *
+     * @param end
+     *            the exclusive end time in milliseconds since the epoch
+     * @return the index after the last block to read
+     */
+    public int endBlock(long end) {
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            Block b = blocks.get(i);
+            if (!b.hasTimestamps() || b.getMinTimestamp() < end) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the total number of uncompressed bytes in the file.
+     *
+     * @return the total number of uncompressed bytes in the file
+     */
+    public long getUncompressedSize() {
+        return blocks.isEmpty() ? 0 : blocks.get(blocks.size() - 1).getUncompressedEnd();
+    }
+
+    /**
+     * Writes this index to the specified file. The index is first written to a temporary file which is then moved in
+     * place, so readers never see a partially written index.
+     *
+     * @param indexFile
+     *            the file to write to
+     * @throws IOException
+     *             if the index could not be written
+     */
+    public void write(Path indexFile) throws IOException {
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tmp);
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(blocks.size());
+            for (Block b : blocks) {
+                dos.writeLong(b.compressedOffset);
+                dos.writeInt(b.compressedLength);
+                dos.writeLong(b.uncompressedOffset);
+                dos.writeInt(b.uncompressedLength);
+                dos.writeLong(b.minTimestamp);
+                dos.writeLong(b.maxTimestamp);
+                dos.writeInt(b.packets);
+            }
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the index sidecar file of the specified gzip file.
+     *
+     * @param gzipFile
+     *            the gzip file
+     * @return the index sidecar file
+     */
+    public static Path indexFileFor(Path gzipFile) {
+        return gzipFile.resolveSibling(gzipFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Reads the index of the specified gzip file if it has one.
+     *
+     * @param gzipFile
+     *            the gzip file
+     * @return the index of the file, or null if the file has no index sidecar
+     * @throws IOException
+     *             if the index exists but could not be read
+     */
+    public static BlockGzipIndex readIndexOf(Path gzipFile) throws IOException {
+        Path indexFile = indexFileFor(requireNonNull(gzipFile));
+        return Files.exists(indexFile) ? read(indexFile) : null;
+    }
+
+    /**
+     * Reads an index file.
+     *
+     * @param indexFile
+     *            the index file to read
+     * @return the index
+     * @throws IOException
+     *             if the file could not be read or is not a valid index file
+     */
+    public static BlockGzipIndex read(Path indexFile) throws IOException {
+        try (InputStream is = Files.newInputStream(indexFile);
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(is))) {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Not a block gzip index file: " + indexFile);
+            }
+            int version = dis.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported block gzip index version " + version + " in " + indexFile);
+            }
+            int count = dis.readInt();
+            List<Block> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                blocks.add(new Block(dis.readLong(), dis.readInt(), dis.readLong(), dis.readInt(), dis.readLong(),
+                        dis.readLong(), dis.readInt()));
+            }
+            return new BlockGzipIndex(blocks);
+        }
+    }
+
+    /** A single gzip member of a block gzip file. */
+    @Immutable
+    public static final class Block {
+
+        final long compressedOffset;
+
+        final int compressedLength;
+
+        final long uncompressedOffset;
+
+        final int uncompressedLength;
+
+        final long minTimestamp;
+
+        final long maxTimestamp;
+
+        final int packets;
+
+        Block(long compressedOffset, int compressedLength, long uncompressedOffset, int uncompressedLength,
+                long minTimestamp, long maxTimestamp, int packets) {
+            this.compressedOffset = compressedOffset;
+            this.compressedLength = compressedLength;
+            this.uncompressedOffset = uncompressedOffset;
+            this.uncompressedLength = uncompressedLength;
+            this.minTimestamp = minTimestamp;
+            this.maxTimestamp = maxTimestamp;
+            this.packets = packets;
+        }
+
+        /** Returns the offset of the gzip member in the compressed file. */
+        public long getCompressedOffset() {
+            return compressedOffset;
+        }
+
+        /** Returns the size of the gzip member in the compressed file. */
+        public int getCompressedLength() {
+            return compressedLength;
+        }
+
+        /** Returns the offset of the first byte of this block in the uncompressed data. */
+        public long getUncompressedOffset() {
+            return uncompressedOffset;
+        }
+
+        /** Returns the number of uncompressed bytes in this block. */
+        public int getUncompressedLength() {
+            return uncompressedLength;
+        }
+
+        long getUncompressedEnd() {
+            return uncompressedOffset + uncompressedLength;
+        }
+
+        /** Returns the smallest packet timestamp in this block, only valid if {@link #hasTimestamps()}. */
+        public long getMinTimestamp() {
+            return minTimestamp;
+        }
+
+        /** Returns the largest packet timestamp in this block, only valid if {@link #hasTimestamps()}. */
+        public long getMaxTimestamp() {
+            return maxTimestamp;
+        }
+
+        /** Returns the number of packets that was written to this block, or 0 if packets were not tracked. */
+        public int getNumberOfPackets() {
+            return packets;
+        }
+
+        /** Returns whether or not the time range of this block is known. */
+        public boolean hasTimestamps() {
+            return minTimestamp <= maxTimestamp;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * An input stream that reads files written by {@link BlockGzipOutputStream}. Blocks are decompressed in parallel by an
+ * executor while the consumer reads the decompressed data in file order. A range of blocks, for example the blocks
+ * covering a time interval, can be read without touching the rest of the file.
+ */
+@NotThreadSafe
+public class BlockGzipInputStream extends InputStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /** The channel used for positional reads of compressed blocks, safe for concurrent use. */
+    private final FileChannel channel;
+
+    /** The blocks of the file. */
+    private final List<BlockGzipIndex.Block> blocks;
+
+    /** The index after the last block to read. */
+    private final int end;
+
+    /** The executor decompressing blocks. */
+    private final Executor executor;
+
+    /** The maximum number of blocks being decompressed ahead of the reader. */
+    private final int readAhead;
+
+    /** Blocks that have been submitted for decompression, in file order. */
+    private final ArrayDeque<FutureTask<byte[]>> pending = new ArrayDeque<>();
+
+    /** The index of the next block to submit for decompression. */
+    private int next;
+
+    /** The block currently being read. */
+    private byte[] current = EMPTY;
+
+    /** The read position in the current block. */
+    private int pos;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a new stream reading the blocks {@code [fromBlock, toBlock)} of the specified file.
+     *
+     * @param file
+     *            the block gzip file
+     * @param index
+     *            the index of the file
+     * @param fromBlock
+     *            the index of the first block to read
+     * @param toBlock
+     *            the index after the last block to read
+     * @param executor
+     *            the executor to decompress blocks with
+     * @param readAhead
+     *            the maximum number of blocks to decompress ahead of the reader
+     * @throws IOException
+     *             if the file could not be opened
+     */
+    public BlockGzipInputStream(Path file, BlockGzipIndex index, int fromBlock, int toBlock, Executor executor,
+            int readAhead) throws IOException {
+        this.blocks = index.getBlocks();
+        if (fromBlock < 0 || toBlock > blocks.size() || fromBlock > toBlock) {
+            throw new IndexOutOfBoundsException("fromBlock = " + fromBlock + ", toBlock = " + toBlock
+                    + ", number of blocks = " + blocks.size());
+        }
+        if (readAhead < 1) {
+            throw new IllegalArgumentException("readAhead must be positive, was " + readAhead);
+        }
+        this.executor = requireNonNull(executor);
+        this.readAhead = readAhead;
+        this.next = fromBlock;
+        this.end = toBlock;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    /**
+     * Creates a new stream reading all blocks of the specified file using the common fork join pool.
+     *
+     * @param file
+     *            the block gzip file
+     * @param index
+     *            the index of the file
+     * @throws IOException
+     *             if the file could not be opened
+     */
+    public BlockGzipInputStream(Path file, BlockGzipIndex index) throws IOException {
+        this(file, index, 0, index.getBlocks().size(), ForkJoinPool.commonPool(), defaultReadAhead());
+    }
+
+    static int defaultReadAhead() {
+        return Math.max(2, 2 * ForkJoinPool.commonPool().getParallelism());
+    }
+
+    /**
+     * Opens a gzip file for reading. If the file has a block index sidecar, the blocks are decompressed in parallel.
+     * Otherwise the file is read with a plain {@link GZIPInputStream}.
+     *
+     * @param file
+     *            the gzip file to read
+     * @return an input stream of the decompressed data
+     * @throws IOException
+     *             if the file could not be opened
+     */
+    public static InputStream open(Path file) throws IOException {
+        BlockGzipIndex index = BlockGzipIndex.readIndexOf(file);
+        if (index == null) {
+            return new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        }
+        return new BlockGzipInputStream(file, index);
+    }
+
+    /**
+     * Opens the blocks of a block gzip file that may contain packets with a timestamp in the interval
+     * {@code [start, end)}. The stream may contain packets outside of the interval, since only whole blocks are read.
+     *
+     * @param file
+     *            the block gzip file
+     * @param index
+     *            the index of the file
+     * @param start
+     *            the inclusive start of the interval in milliseconds since the epoch
+     * @param end
+     *            the exclusive end of the interval in milliseconds since the epoch
+     * @return an input stream of the decompressed blocks
+     * @throws IOException
+     *             if the file could not be opened
+     */
+    public static BlockGzipInputStream open(Path file, BlockGzipIndex index, long start, long end) throws IOException {
+        int from = index.firstBlock(start);
+        int to = Math.max(from, index.endBlock(end));
+        return new BlockGzipInputStream(file, index, from, to, ForkJoinPool.commonPool(), defaultReadAhead());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() throws IOException {
+        if (pos == current.length && !nextBlock()) {
+            return -1;
+        }
+        return current[pos++] & 0xff;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == current.length && !nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int available() {
+        return current.length - pos;
+    }
+
+    /** Moves to the next decompressed block, returns false if there are no more blocks. */
+    private boolean nextBlock() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        do {
+            while (pending.size() < readAhead && next < end) {
+                FutureTask<byte[]> f = new FutureTask<>(new Decompressor(blocks.get(next++)));
+                pending.add(f);
+                executor.execute(f);
+            }
+            FutureTask<byte[]> f = pending.poll();
+            if (f == null) {
+                return false;
+            }
+            try {
+                current = f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+            pos = 0;
+        } while (current.length == 0);
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            for (FutureTask<byte[]> f : pending) {
+                f.cancel(false);
+            }
+            pending.clear();
+            current = EMPTY;
+            pos = 0;
+            channel.close();
+        }
+    }
+
+    /** Reads and inflates a single block. */
+    class Decompressor implements Callable<byte[]> {
+
+        private final BlockGzipIndex.Block block;
+
+        Decompressor(BlockGzipIndex.Block block) {
+            this.block = block;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public byte[] call() throws IOException {
+            if (closed) {
+                return EMPTY;
+            }
+            ByteBuffer bb = ByteBuffer.allocate(block.compressedLength);
+            long position = block.compressedOffset;
+            while (bb.hasRemaining()) {
+                int n = channel.read(bb, position);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of file, truncated block at offset " + block.compressedOffset);
+                }
+                position += n;
+            }
+            byte[] in = bb.array();
+            int headerLength = BlockGzipOutputStream.GZIP_HEADER.length;
+            if (in.length < headerLength + BlockGzipOutputStream.GZIP_TRAILER_SIZE || (in[0] & 0xff) != 0x1f
+                    || (in[1] & 0xff) != 0x8b || in[3] != 0) {
+                throw new IOException("Not a block gzip member at offset " + block.compressedOffset);
+            }
+            byte[] out = new byte[block.uncompressedLength];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(in, headerLength, in.length - headerLength - BlockGzipOutputStream.GZIP_TRAILER_SIZE);
+                int n = 0;
+                while (n < out.length && !inflater.finished()) {
+                    int r = inflater.inflate(out, n, out.length - n);
+                    if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += r;
+                }
+                if (n != out.length) {
+                    throw new IOException("Corrupt block at offset " + block.compressedOffset + ", expected "
+                            + out.length + " bytes, got " + n);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block at offset " + block.compressedOffset, e);
+            } finally {
+                inflater.end();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(out, 0, out.length);
+            int t = in.length - BlockGzipOutputStream.GZIP_TRAILER_SIZE;
+            int expected = (in[t] & 0xff) | (in[t + 1] & 0xff) << 8 | (in[t + 2] & 0xff) << 16 | (in[t + 3] & 0xff) << 24;
+            if ((int) crc.getValue() != expected) {
+                throw new IOException("CRC mismatch in block at offset " + block.compressedOffset);
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * An output stream that writes gzip files consisting of a sequence of independently compressed gzip members (blocks).
+ * The result is a valid multi-member gzip file that can be read by any gzip reader. In addition an offset index is
+ * written to a sidecar file when the stream is closed, allowing {@link BlockGzipInputStream} to decompress blocks in
+ * parallel and to seek directly to the blocks covering a given time interval.
+ * <p>
+ * Blocks are only cut at record boundaries signalled through {@link #endRecord(long)}, so every block starts with a
+ * complete packet. Use {@link TimeIndexedOutput#indexingSink} to have the boundaries signalled automatically.
+ */
+@NotThreadSafe
+public class BlockGzipOutputStream extends OutputStream implements TimeIndexedOutput {
+
+    /** The default number of uncompressed bytes in each block. */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /** The fixed gzip member header, no optional fields, unknown OS. */
+    static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    /** The size of the gzip member trailer (CRC32 and ISIZE). */
+    static final int GZIP_TRAILER_SIZE = 8;
+
+    /** The stream we write compressed blocks to. */
+    private final OutputStream out;
+
+    /** The file to write the index to when closed, or null if no index should be written. */
+    private final Path indexFile;
+
+    /** The target number of uncompressed bytes in each block. */
+    private final int blockSize;
+
+    private final Deflater deflater;
+
+    private final CRC32 crc = new CRC32();
+
+    /** The blocks written so far. */
+    private final List<BlockGzipIndex.Block> blocks = new ArrayList<>();
+
+    /** Uncompressed data of the current block. */
+    private byte[] buf;
+
+    private int count;
+
+    /** Buffer for compressed output. */
+    private byte[] compressed;
+
+    private long compressedOffset;
+
+    private long uncompressedOffset;
+
+    private long minTimestamp = Long.MAX_VALUE;
+
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    private int packets;
+
+    /** Whether or not the writer signals record boundaries. If not, blocks are cut whenever the buffer is full. */
+    private boolean recordAware;
+
+    private boolean closed;
+
+    /**
+     * Creates a new stream writing to the specified file with the default block size. The index is written to
+     * {@link BlockGzipIndex#indexFileFor(Path)} when the stream is closed.
+     *
+     * @param file
+     *            the file to write
+     * @throws IOException
+     *             if the file could not be opened
+     */
+    public BlockGzipOutputStream(Path file) throws IOException {
+        this(file, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a new stream writing to the specified file.
+     *
+     * @param file
+     *            the file to write
+     * @param blockSize
+     *            the number of uncompressed bytes to collect before a block is written
+     * @param level
+     *            the deflate compression level
+     * @throws IOException
+     *             if the file could not be opened
+     */
+    public BlockGzipOutputStream(Path file, int blockSize, int level) throws IOException {
+        this(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024), BlockGzipIndex.indexFileFor(file),
+                blockSize, level);
+    }
+
+    /**
+     * Creates a new stream writing to the specified output stream.
+     *
+     * @param out
+     *            the stream to write compressed data to
+     * @param indexFile
+     *            the file to write the block index to on close, or null to not write an index
+     * @param blockSize
+     *            the number of uncompressed bytes to collect before a block is written
+     * @param level
+     *            the deflate compression level
+     */
+    public BlockGzipOutputStream(OutputStream out, Path indexFile, int blockSize, int level) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive, was " + blockSize);
+        }
+        this.out = requireNonNull(out);
+        this.indexFile = indexFile;
+        this.blockSize = blockSize;
+        this.deflater = new Deflater(level, true);
+        this.buf = new byte[blockSize + 1024];
+        this.compressed = new byte[blockSize / 2 + 1024];
+    }
+
+    /**
+     * Signals that a complete record (packet) with the specified timestamp has been written. If the current block has
+     * reached the block size it is compressed and written.
+     *
+     * @param timestamp
+     *            the timestamp of the record, or a negative value if it has none
+     * @throws IOException
+     *             if the block could not be written
+     */
+    @Override
+    public void endRecord(long timestamp) throws IOException {
+        recordAware = true;
+        packets++;
+        if (timestamp >= 0) {
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+        }
+        if (count >= blockSize) {
+            writeBlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(int b) throws IOException {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (!recordAware && count > 0 && count + len > blockSize) {
+            writeBlock();
+        }
+        if (count + len > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + len));
+        }
+    }
+
+    /** Compresses the current buffer as a single gzip member and writes it to the underlying stream. */
+    private void writeBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        crc.reset();
+        crc.update(buf, 0, count);
+        deflater.reset();
+        deflater.setInput(buf, 0, count);
+        deflater.finish();
+
+        int len = GZIP_HEADER.length;
+        System.arraycopy(GZIP_HEADER, 0, compressed, 0, len);
+        while (!deflater.finished()) {
+            if (len == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            len += deflater.deflate(compressed, len, compressed.length - len);
+        }
+        if (len + GZIP_TRAILER_SIZE > compressed.length) {
+            compressed = Arrays.copyOf(compressed, len + GZIP_TRAILER_SIZE);
+        }
+        len = writeIntLE(compressed, len, (int) crc.getValue());
+        len = writeIntLE(compressed, len, count);
+        out.write(compressed, 0, len);
+
+        blocks.add(new BlockGzipIndex.Block(compressedOffset, len, uncompressedOffset, count, minTimestamp,
+                maxTimestamp, packets));
+        compressedOffset += len;
+        uncompressedOffset += count;
+        count = 0;
+        packets = 0;
+        minTimestamp = Long.MAX_VALUE;
+        maxTimestamp = Long.MIN_VALUE;
+    }
+
+    private static int writeIntLE(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+        return off + 4;
+    }
+
+    /**
+     * Returns the index of the blocks that have been written so far.
+     *
+     * @return the index of the blocks that have been written so far
+     */
+    public BlockGzipIndex getIndex() {
+        return new BlockGzipIndex(blocks);
+    }
+
+    /**
+     * Flushes the underlying stream. Buffered data that does not yet make up a full block is not written, as that would
+     * create small blocks.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Writes the last block and the index file and closes the underlying stream. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            writeBlock();
+            out.close();
+            if (indexFile != null) {
+                getIndex().write(indexFile);
+            }
+        } finally {
+            closed = true;
+            deflater.end();
+        }
+    }
+}
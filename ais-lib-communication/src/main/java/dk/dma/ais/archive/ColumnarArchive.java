@@ -0,0 +1,136 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants and encoding helpers shared by {@link ColumnarArchiveOutputSink} and {@link ColumnarArchiveReader}.
+ * <p>
+ * A columnar archive starts with a magic number and a version, followed by a sequence of blocks and a terminating
+ * block with zero packets. Each block consists of:
+ * <ul>
+ * <li>the number of packets in the block and the block statistics (see {@link ColumnarArchiveBlockStatistics})</li>
+ * <li>the length of the column section, and the compressed and uncompressed length of the text section</li>
+ * <li>the column section: a source tag dictionary followed by the timestamp, MMSI, message type, source, latitude,
+ * longitude, SOG, COG and text length columns. Numbers are varint encoded, timestamps, MMSI numbers and positions as
+ * zigzag encoded deltas from the previous value in the block</li>
+ * <li>the text section: the raw sentences of all packets, deflated</li>
+ * </ul>
+ * Position only scans decode the column section and skip the text section.
+ */
+final class ColumnarArchive {
+
+    /** Magic header of columnar archive files ('AISC'). */
+    static final int MAGIC = 0x41495343;
+
+    /** The current version of the archive format. */
+    static final int VERSION = 1;
+
+    /** Flag set in the message type column if the packet has a position. */
+    static final int FLAG_POSITION = 1;
+
+    /** Flag set in the message type column if the packet has speed and course over ground. */
+    static final int FLAG_SOG_COG = 2;
+
+    /** The number of flag bits in the message type column. */
+    static final int FLAG_BITS = 2;
+
+    /** Positions are stored in 1/10000 minute, the resolution of position reports. */
+    static final double POSITION_RESOLUTION = 600000.0;
+
+    private ColumnarArchive() {}
+
+    static int toFixed(double degrees) {
+        return (int) Math.round(degrees * POSITION_RESOLUTION);
+    }
+
+    static double fromFixed(int fixed) {
+        return fixed / POSITION_RESOLUTION;
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    static void writeZigZag(ByteArrayOutputStream out, long v) {
+        writeVarLong(out, (v << 1) ^ (v >> 63));
+    }
+
+    static void writeString(ByteArrayOutputStream out, String s) {
+        if (s == null) {
+            writeVarLong(out, 0);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, b.length + 1);
+            out.write(b, 0, b.length);
+        }
+    }
+
+    /** Decodes values from a byte array written with the encoding methods of {@link ColumnarArchive}. */
+    static final class Decoder {
+
+        private final byte[] buf;
+
+        private int pos;
+
+        Decoder(byte[] buf) {
+            this.buf = buf;
+        }
+
+        long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos == buf.length) {
+                    throw new IOException("Truncated column data");
+                }
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint in column data");
+        }
+
+        int readVarInt() throws IOException {
+            return (int) readVarLong();
+        }
+
+        long readZigZag() throws IOException {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        String readString() throws IOException {
+            int len = readVarInt() - 1;
+            if (len < 0) {
+                return null;
+            }
+            if (len > buf.length - pos) {
+                throw new IOException("Truncated column data");
+            }
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+}
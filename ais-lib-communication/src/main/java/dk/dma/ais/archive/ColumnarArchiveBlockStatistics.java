@@ -0,0 +1,238 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.Predicate;
+
+import net.jcip.annotations.Immutable;
+import dk.dma.ais.packet.AisPacketFilterConstraints;
+import dk.dma.enav.model.geometry.BoundingBox;
+
+/**
+ * Minimum and maximum values of a block in a columnar archive. Readers use the statistics to skip blocks that cannot
+ * contain any packets of interest without decoding them.
+ */
+@Immutable
+public final class ColumnarArchiveBlockStatistics {
+
+    private final int packets;
+
+    private final int positions;
+
+    private final long minTimestamp;
+
+    private final long maxTimestamp;
+
+    private final int minMmsi;
+
+    private final int maxMmsi;
+
+    /** Latitudes and longitudes in 1/10000 minute. */
+    private final int minLat, maxLat, minLon, maxLon;
+
+    ColumnarArchiveBlockStatistics(int packets, int positions, long minTimestamp, long maxTimestamp, int minMmsi,
+            int maxMmsi, int minLat, int maxLat, int minLon, int maxLon) {
+        this.packets = packets;
+        this.positions = positions;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+        this.minMmsi = minMmsi;
+        this.maxMmsi = maxMmsi;
+        this.minLat = minLat;
+        this.maxLat = maxLat;
+        this.minLon = minLon;
+        this.maxLon = maxLon;
+    }
+
+    void write(DataOutputStream dos) throws IOException {
+        dos.writeInt(positions);
+        dos.writeLong(minTimestamp);
+        dos.writeLong(maxTimestamp);
+        dos.writeInt(minMmsi);
+        dos.writeInt(maxMmsi);
+        dos.writeInt(minLat);
+        dos.writeInt(maxLat);
+        dos.writeInt(minLon);
+        dos.writeInt(maxLon);
+    }
+
+    static ColumnarArchiveBlockStatistics read(DataInputStream dis, int packets) throws IOException {
+        return new ColumnarArchiveBlockStatistics(packets, dis.readInt(), dis.readLong(), dis.readLong(), dis.readInt(),
+                dis.readInt(), dis.readInt(), dis.readInt(), dis.readInt(), dis.readInt());
+    }
+
+    /** Returns the number of packets in the block. */
+    public int getNumberOfPackets() {
+        return packets;
+    }
+
+    /** Returns the number of packets in the block with a valid position. */
+    public int getNumberOfPositions() {
+        return positions;
+    }
+
+    /** Returns the smallest timestamp in the block, only valid if {@link #hasTimestamps()}. */
+    public long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    /** Returns the largest timestamp in the block, only valid if {@link #hasTimestamps()}. */
+    public long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    /** Returns whether or not any packet in the block has a timestamp. */
+    public boolean hasTimestamps() {
+        return minTimestamp <= maxTimestamp;
+    }
+
+    /** Returns the smallest MMSI number of a decodable message in the block. */
+    public int getMinMmsi() {
+        return minMmsi;
+    }
+
+    /** Returns the largest MMSI number of a decodable message in the block. */
+    public int getMaxMmsi() {
+        return maxMmsi;
+    }
+
+    /** Returns the smallest latitude in the block, only valid if the block has positions. */
+    public double getMinLatitude() {
+        return ColumnarArchive.fromFixed(minLat);
+    }
+
+    /** Returns the largest latitude in the block, only valid if the block has positions. */
+    public double getMaxLatitude() {
+        return ColumnarArchive.fromFixed(maxLat);
+    }
+
+    /** Returns the smallest longitude in the block, only valid if the block has positions. */
+    public double getMinLongitude() {
+        return ColumnarArchive.fromFixed(minLon);
+    }
+
+    /** Returns the largest longitude in the block, only valid if the block has positions. */
+    public double getMaxLongitude() {
+        return ColumnarArchive.fromFixed(maxLon);
+    }
+
+    /**
+     * Returns whether or not the block may contain packets with a timestamp in the interval {@code [start, end)}.
+     * Blocks without any timestamps are always included.
+     *
+     * @param start
+     *            the inclusive start of the interval in milliseconds since the epoch
+     * @param end
+     *            the exclusive end of the interval in milliseconds since the epoch
+     * @return whether or not the block may contain packets in the interval
+     */
+    public boolean mayContainTime(long start, long end) {
+        return !hasTimestamps() || maxTimestamp >= start && minTimestamp < end;
+    }
+
+    /**
+     * Returns whether or not the block may contain messages from the specified MMSI number.
+     *
+     * @param mmsi
+     *            the MMSI number
+     * @return whether or not the block may contain messages from the MMSI number
+     */
+    public boolean mayContainMmsi(int mmsi) {
+        return mmsi >= minMmsi && mmsi <= maxMmsi;
+    }
+
+    /**
+     * Returns whether or not the block may contain positions within the specified bounding box.
+     *
+     * @param bbox
+     *            the bounding box
+     * @return whether or not the block may contain positions within the bounding box
+     */
+    public boolean mayContainPositionWithin(BoundingBox bbox) {
+        return positions > 0 && ColumnarArchive.toFixed(bbox.getMinLat()) <= maxLat
+                && ColumnarArchive.toFixed(bbox.getMaxLat()) >= minLat
+                && ColumnarArchive.toFixed(bbox.getMinLon()) <= maxLon
+                && ColumnarArchive.toFixed(bbox.getMaxLon()) >= minLon;
+    }
+
+    /**
+     * Returns a block filter accepting blocks that may contain packets with a timestamp in the interval
+     * {@code [start, end)}.
+     *
+     * @param start
+     *            the inclusive start of the interval in milliseconds since the epoch
+     * @param end
+     *            the exclusive end of the interval in milliseconds since the epoch
+     * @return the block filter
+     */
+    public static Predicate<ColumnarArchiveBlockStatistics> timeFilter(long start, long end) {
+        return s -> s.mayContainTime(start, end);
+    }
+
+    /**
+     * Returns a block filter accepting blocks that may contain positions within the specified bounding box.
+     *
+     * @param bbox
+     *            the bounding box
+     * @return the block filter
+     */
+    public static Predicate<ColumnarArchiveBlockStatistics> positionFilter(BoundingBox bbox) {
+        return s -> s.mayContainPositionWithin(bbox);
+    }
+
+    /**
+     * Returns a block filter accepting blocks that may contain packets satisfying the specified constraints.
+     *
+     * @param constraints
+     *            the constraints, for example of an expression filter
+     * @return the block filter
+     * @see dk.dma.ais.packet.AisPacketFilters#analyseExpressionFilter(String)
+     */
+    public static Predicate<ColumnarArchiveBlockStatistics> filterFor(AisPacketFilterConstraints constraints) {
+        if (constraints.isUnsatisfiable()) {
+            return s -> false;
+        }
+        Predicate<ColumnarArchiveBlockStatistics> p = s -> true;
+        if (constraints.hasTimeConstraint()) {
+            p = p.and(timeFilter(constraints.getStart(), constraints.getEnd()));
+        }
+        int[] mmsi = constraints.getMmsi();
+        if (mmsi != null) {
+            p = p.and(s -> {
+                for (int m : mmsi) {
+                    if (s.mayContainMmsi(m)) {
+                        return true;
+                    }
+                }
+                return false;
+            });
+        }
+        if (constraints.getArea() != null) {
+            p = p.and(positionFilter(constraints.getArea()));
+        }
+        return p;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "ColumnarArchiveBlockStatistics [packets=" + packets + ", positions=" + positions + ", minTimestamp="
+                + minTimestamp + ", maxTimestamp=" + maxTimestamp + ", minMmsi=" + minMmsi + ", maxMmsi=" + maxMmsi
+                + "]";
+    }
+}
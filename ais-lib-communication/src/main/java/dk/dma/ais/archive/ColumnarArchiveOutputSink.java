@@ -0,0 +1,313 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import net.jcip.annotations.NotThreadSafe;
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.message.IPositionMessage;
+import dk.dma.ais.message.IVesselPositionMessage;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * A sink that writes packets in the columnar archive format read by {@link ColumnarArchiveReader}. Besides the raw
+ * sentences the archive stores the timestamp, MMSI number, message type, position, speed and course over ground and
+ * source tags of every packet in separate delta and varint encoded columns, together with per block statistics.
+ * <p>
+ * Packets are buffered until a block is full, so a sink instance can only write to a single output stream at a time.
+ * The last block is written by {@link #footer(OutputStream, long)}, which also releases the native memory of the
+ * deflater until the sink is used again.
+ */
+@NotThreadSafe
+public class ColumnarArchiveOutputSink extends OutputStreamSink<AisPacket> {
+
+    /** The suffix of columnar archive files. */
+    public static final String SUFFIX = ".aisc";
+
+    /** The default number of packets in each block. */
+    public static final int DEFAULT_BLOCK_SIZE = 8192;
+
+    private final int blockSize;
+
+    private final int level;
+
+    /** The deflater of the raw sentences, created on the first block after the footer ended the previous one. */
+    private Deflater deflater;
+
+    private int size;
+
+    private final long[] timestamps;
+
+    private final int[] mmsis;
+
+    private final int[] types;
+
+    private final int[] sources;
+
+    private final int[] lats;
+
+    private final int[] lons;
+
+    private final int[] sogs;
+
+    private final int[] cogs;
+
+    private final int[] lengths;
+
+    private int positions;
+
+    private int sogCogs;
+
+    /** The uncompressed raw sentences of the current block. */
+    private final ByteArrayOutputStream text = new ByteArrayOutputStream();
+
+    /** Maps source tags to their index in the source dictionary of the current block. */
+    private final Map<List<Object>, Integer> sourceIndex = new HashMap<>();
+
+    private final List<List<Object>> sourceDictionary = new ArrayList<>();
+
+    private long minTimestamp, maxTimestamp;
+
+    private int minMmsi, maxMmsi, minLat, maxLat, minLon, maxLon;
+
+    /** Creates a new sink with the default block size. */
+    public ColumnarArchiveOutputSink() {
+        this(DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a new sink.
+     *
+     * @param blockSize
+     *            the number of packets in each block
+     * @param level
+     *            the deflate compression level used for the raw sentences
+     */
+    public ColumnarArchiveOutputSink(int blockSize, int level) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive, was " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.level = level;
+        timestamps = new long[blockSize];
+        mmsis = new int[blockSize];
+        types = new int[blockSize];
+        sources = new int[blockSize];
+        lats = new int[blockSize];
+        lons = new int[blockSize];
+        sogs = new int[blockSize];
+        cogs = new int[blockSize];
+        lengths = new int[blockSize];
+        reset();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void header(OutputStream stream) throws IOException {
+        DataOutputStream dos = new DataOutputStream(stream);
+        dos.writeInt(ColumnarArchive.MAGIC);
+        dos.writeInt(ColumnarArchive.VERSION);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void process(OutputStream stream, AisPacket packet, long count) throws IOException {
+        int i = size++;
+        long timestamp = packet.getBestTimestamp();
+        timestamps[i] = timestamp;
+        if (timestamp >= 0) {
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+        }
+
+        AisMessage m = packet.tryGetAisMessage();
+        int type = 0;
+        if (m != null) {
+            int mmsi = m.getUserId();
+            mmsis[i] = mmsi;
+            minMmsi = Math.min(minMmsi, mmsi);
+            maxMmsi = Math.max(maxMmsi, mmsi);
+            type = m.getMsgId() << ColumnarArchive.FLAG_BITS;
+            if (m instanceof IPositionMessage) {
+                AisPosition pos = ((IPositionMessage) m).getPos();
+                if (pos != null && pos.getGeoLocation() != null) {
+                    type |= ColumnarArchive.FLAG_POSITION;
+                    int lat = ColumnarArchive.toFixed(pos.getLatitudeDouble());
+                    int lon = ColumnarArchive.toFixed(pos.getLongitudeDouble());
+                    lats[positions] = lat;
+                    lons[positions++] = lon;
+                    minLat = Math.min(minLat, lat);
+                    maxLat = Math.max(maxLat, lat);
+                    minLon = Math.min(minLon, lon);
+                    maxLon = Math.max(maxLon, lon);
+                }
+            }
+            if (m instanceof IVesselPositionMessage) {
+                type |= ColumnarArchive.FLAG_SOG_COG;
+                sogs[sogCogs] = ((IVesselPositionMessage) m).getSog();
+                cogs[sogCogs++] = ((IVesselPositionMessage) m).getCog();
+            }
+        } else {
+            mmsis[i] = 0;
+        }
+        types[i] = type;
+        sources[i] = sourceIndexOf(packet.getTags());
+
+        byte[] raw = packet.getStringMessage().getBytes(StandardCharsets.US_ASCII);
+        lengths[i] = raw.length;
+        text.write(raw, 0, raw.length);
+
+        if (size == blockSize) {
+            writeBlock(stream);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void footer(OutputStream stream, long count) throws IOException {
+        writeBlock(stream);
+        new DataOutputStream(stream).writeInt(0); // end of archive marker
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    /** Returns the index of the specified tags in the source dictionary, adding them if needed. 0 means no tags. */
+    private int sourceIndexOf(AisPacketTags tags) {
+        if (tags == null || tags.getSourceId() == null && tags.getSourceBs() == null
+                && tags.getSourceCountry() == null && tags.getSourceType() == null) {
+            return 0;
+        }
+        List<Object> key = Arrays.asList(tags.getSourceId(), tags.getSourceBs(),
+                tags.getSourceCountry() == null ? null : tags.getSourceCountry().getThreeLetter(),
+                tags.getSourceType());
+        Integer index = sourceIndex.get(key);
+        if (index == null) {
+            sourceDictionary.add(key);
+            index = sourceDictionary.size();
+            sourceIndex.put(key, index);
+        }
+        return index;
+    }
+
+    private void writeBlock(OutputStream stream) throws IOException {
+        if (size == 0) {
+            return;
+        }
+        ByteArrayOutputStream columns = new ByteArrayOutputStream(size * 12);
+        ColumnarArchive.writeVarLong(columns, sourceDictionary.size());
+        for (List<Object> source : sourceDictionary) {
+            ColumnarArchive.writeString(columns, (String) source.get(0));
+            Integer sourceBs = (Integer) source.get(1);
+            ColumnarArchive.writeVarLong(columns, sourceBs == null ? 0 : (sourceBs & 0xFFFFFFFFL) + 1);
+            ColumnarArchive.writeString(columns, (String) source.get(2));
+            AisPacketTags.SourceType sourceType = (AisPacketTags.SourceType) source.get(3);
+            ColumnarArchive.writeVarLong(columns, sourceType == null ? 0 : sourceType.ordinal() + 1);
+        }
+        long prevTimestamp = 0;
+        for (int i = 0; i < size; i++) {
+            ColumnarArchive.writeZigZag(columns, timestamps[i] - prevTimestamp);
+            prevTimestamp = timestamps[i];
+        }
+        int prevMmsi = 0;
+        for (int i = 0; i < size; i++) {
+            ColumnarArchive.writeZigZag(columns, mmsis[i] - prevMmsi);
+            prevMmsi = mmsis[i];
+        }
+        for (int i = 0; i < size; i++) {
+            ColumnarArchive.writeVarLong(columns, types[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            ColumnarArchive.writeVarLong(columns, sources[i]);
+        }
+        writeDeltas(columns, lats, positions);
+        writeDeltas(columns, lons, positions);
+        for (int i = 0; i < sogCogs; i++) {
+            ColumnarArchive.writeVarLong(columns, sogs[i]);
+        }
+        for (int i = 0; i < sogCogs; i++) {
+            ColumnarArchive.writeVarLong(columns, cogs[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            ColumnarArchive.writeVarLong(columns, lengths[i]);
+        }
+
+        byte[] compressed = deflate(text.toByteArray());
+
+        DataOutputStream dos = new DataOutputStream(stream);
+        dos.writeInt(size);
+        new ColumnarArchiveBlockStatistics(size, positions, minTimestamp, maxTimestamp, minMmsi, maxMmsi, minLat,
+                maxLat, minLon, maxLon).write(dos);
+        dos.writeInt(columns.size());
+        dos.writeInt(compressed.length);
+        dos.writeInt(text.size());
+        columns.writeTo(dos);
+        dos.write(compressed);
+        dos.flush();
+        reset();
+    }
+
+    private static void writeDeltas(ByteArrayOutputStream out, int[] values, int count) {
+        int prev = 0;
+        for (int i = 0; i < count; i++) {
+            ColumnarArchive.writeZigZag(out, values[i] - prev);
+            prev = values[i];
+        }
+    }
+
+    private byte[] deflate(byte[] data) {
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            bos.write(buf, 0, n);
+        }
+        return bos.toByteArray();
+    }
+
+    private void reset() {
+        size = 0;
+        positions = 0;
+        sogCogs = 0;
+        text.reset();
+        sourceIndex.clear();
+        sourceDictionary.clear();
+        minTimestamp = Long.MAX_VALUE;
+        maxTimestamp = Long.MIN_VALUE;
+        minMmsi = minLat = minLon = Integer.MAX_VALUE;
+        maxMmsi = maxLat = maxLon = Integer.MIN_VALUE;
+    }
+}
@@ -0,0 +1,442 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import net.jcip.annotations.NotThreadSafe;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.commons.util.io.OutputStreamSink;
+import dk.dma.enav.model.Country;
+
+/**
+ * Reads archives written by {@link ColumnarArchiveOutputSink}. Packets can be read as {@link AisPacket}s, or as
+ * {@link ArchivedPosition}s which are created from the decoded columns without inflating or parsing the NMEA
+ * sentences. Blocks rejected by the block filter are skipped without being decoded.
+ */
+@NotThreadSafe
+public class ColumnarArchiveReader implements AutoCloseable {
+
+    private static final Predicate<ColumnarArchiveBlockStatistics> ALL_BLOCKS = s -> true;
+
+    private final DataInputStream in;
+
+    private final Predicate<? super ColumnarArchiveBlockStatistics> blockFilter;
+
+    /** The current block, or null if no block has been read yet or the end has been reached. */
+    private Block block;
+
+    /** The index of the next packet to read in the current block. */
+    private int next;
+
+    /** The index of the next position to read in the current block. */
+    private int nextPosition;
+
+    /** The index of the next speed and course to read in the current block. */
+    private int nextSogCog;
+
+    private boolean endOfArchive;
+
+    private long blocksRead;
+
+    private long blocksSkipped;
+
+    /**
+     * Creates a new reader of all blocks in the specified stream.
+     *
+     * @param stream
+     *            the stream to read from
+     * @throws IOException
+     *             if the stream could not be read or is not a columnar archive
+     */
+    public ColumnarArchiveReader(InputStream stream) throws IOException {
+        this(stream, ALL_BLOCKS);
+    }
+
+    /**
+     * Creates a new reader that only reads blocks accepted by the specified block filter.
+     *
+     * @param stream
+     *            the stream to read from
+     * @param blockFilter
+     *            the filter deciding which blocks to read based on their statistics
+     * @throws IOException
+     *             if the stream could not be read or is not a columnar archive
+     */
+    public ColumnarArchiveReader(InputStream stream, Predicate<? super ColumnarArchiveBlockStatistics> blockFilter)
+            throws IOException {
+        this.in = new DataInputStream(requireNonNull(stream));
+        this.blockFilter = requireNonNull(blockFilter);
+        if (in.readInt() != ColumnarArchive.MAGIC) {
+            throw new IOException("Not a columnar AIS archive");
+        }
+        int version = in.readInt();
+        if (version != ColumnarArchive.VERSION) {
+            throw new IOException("Unsupported columnar AIS archive version " + version);
+        }
+    }
+
+    /**
+     * Opens the specified archive file.
+     *
+     * @param file
+     *            the file to read
+     * @return a reader of the file
+     * @throws IOException
+     *             if the file could not be opened
+     */
+    public static ColumnarArchiveReader open(Path file) throws IOException {
+        return open(file, ALL_BLOCKS);
+    }
+
+    /**
+     * Opens the specified archive file, only reading blocks accepted by the specified block filter.
+     *
+     * @param file
+     *            the file to read
+     * @param blockFilter
+     *            the filter deciding which blocks to read based on their statistics
+     * @return a reader of the file
+     * @throws IOException
+     *             if the file could not be opened
+     */
+    public static ColumnarArchiveReader open(Path file, Predicate<? super ColumnarArchiveBlockStatistics> blockFilter)
+            throws IOException {
+        InputStream is = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+        try {
+            return new ColumnarArchiveReader(is, blockFilter);
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether or not the specified file name has the suffix of columnar archive files.
+     *
+     * @param fileName
+     *            the file name
+     * @return whether or not the file name has the suffix of columnar archive files
+     */
+    public static boolean isArchive(String fileName) {
+        return fileName.endsWith(ColumnarArchiveOutputSink.SUFFIX);
+    }
+
+    /**
+     * Reads the next packet.
+     *
+     * @return the next packet, or null if the end of the archive has been reached
+     * @throws IOException
+     *             if the archive could not be read
+     */
+    public AisPacket readPacket() throws IOException {
+        if (!ensureBlock()) {
+            return null;
+        }
+        int i = next++;
+        if ((block.types[i] & ColumnarArchive.FLAG_POSITION) != 0) {
+            nextPosition++;
+        }
+        if ((block.types[i] & ColumnarArchive.FLAG_SOG_COG) != 0) {
+            nextSogCog++;
+        }
+        byte[] text = block.text();
+        return AisPacket.from(new String(text, block.offsets[i], block.offsets[i + 1] - block.offsets[i],
+                StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Reads the next packet with a valid position, skipping any packets without one. The NMEA sentences are not
+     * parsed.
+     *
+     * @return the next position, or null if the end of the archive has been reached
+     * @throws IOException
+     *             if the archive could not be read
+     */
+    public ArchivedPosition readPosition() throws IOException {
+        while (ensureBlock()) {
+            int i = next++;
+            int type = block.types[i];
+            int sog = -1;
+            int cog = -1;
+            if ((type & ColumnarArchive.FLAG_SOG_COG) != 0) {
+                sog = block.sogs[nextSogCog];
+                cog = block.cogs[nextSogCog++];
+            }
+            if ((type & ColumnarArchive.FLAG_POSITION) != 0) {
+                int p = nextPosition++;
+                return new ArchivedPosition(block.timestamps[i], block.mmsis[i], type >>> ColumnarArchive.FLAG_BITS,
+                        ColumnarArchive.fromFixed(block.lats[p]), ColumnarArchive.fromFixed(block.lons[p]), sog, cog,
+                        block.dictionary[block.sources[i]]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads all remaining positions.
+     *
+     * @param consumer
+     *            the consumer to pass the positions to
+     * @throws IOException
+     *             if the archive could not be read
+     */
+    public void forEachPosition(Consumer<? super ArchivedPosition> consumer) throws IOException {
+        requireNonNull(consumer);
+        for (ArchivedPosition p = readPosition(); p != null; p = readPosition()) {
+            consumer.accept(p);
+        }
+    }
+
+    /**
+     * Writes the reminder of packets to the output stream using the specified sink
+     *
+     * @param os
+     *            the output stream to write to
+     * @param sink
+     *            the sink to write to
+     * @throws IOException
+     *             if the a packet could not be written
+     */
+    public void writeTo(OutputStream os, OutputStreamSink<AisPacket> sink) throws IOException {
+        sink.header(os);
+        long count = 0;
+        for (AisPacket p = readPacket(); p != null; p = readPacket()) {
+            sink.process(os, p, ++count);
+        }
+        sink.footer(os, count);
+    }
+
+    /** Returns the number of blocks that has been read. */
+    public long getNumberOfBlocksRead() {
+        return blocksRead;
+    }
+
+    /** Returns the number of blocks that has been skipped by the block filter. */
+    public long getNumberOfBlocksSkipped() {
+        return blocksSkipped;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        block = null;
+        endOfArchive = true;
+        in.close();
+    }
+
+    /** Makes sure the current block has more packets, returns false if the end of the archive has been reached. */
+    private boolean ensureBlock() throws IOException {
+        while (block == null || next == block.stats.getNumberOfPackets()) {
+            block = null;
+            if (endOfArchive) {
+                return false;
+            }
+            int packets;
+            try {
+                packets = in.readInt();
+            } catch (EOFException e) {
+                packets = 0; // tolerate archives without the end marker
+            }
+            if (packets <= 0) {
+                endOfArchive = true;
+                return false;
+            }
+            ColumnarArchiveBlockStatistics stats = ColumnarArchiveBlockStatistics.read(in, packets);
+            int columnsLength = in.readInt();
+            int compressedLength = in.readInt();
+            int textLength = in.readInt();
+            if (blockFilter.test(stats)) {
+                byte[] columns = new byte[columnsLength];
+                in.readFully(columns);
+                byte[] compressed = new byte[compressedLength];
+                in.readFully(compressed);
+                block = new Block(stats, columns, compressed, textLength);
+                next = nextPosition = nextSogCog = 0;
+                blocksRead++;
+            } else {
+                skipFully((long) columnsLength + compressedLength);
+                blocksSkipped++;
+            }
+        }
+        return true;
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException("Unexpected end of columnar archive");
+            }
+            n -= skipped;
+        }
+    }
+
+    /** A decoded block. The raw sentences are only inflated if needed. */
+    static final class Block {
+
+        final ColumnarArchiveBlockStatistics stats;
+
+        final AisPacketTags[] dictionary;
+
+        final long[] timestamps;
+
+        final int[] mmsis;
+
+        final int[] types;
+
+        final int[] sources;
+
+        final int[] lats;
+
+        final int[] lons;
+
+        final int[] sogs;
+
+        final int[] cogs;
+
+        /** The offsets of the raw sentences in the text, with an additional element for the end of the last one. */
+        final int[] offsets;
+
+        private byte[] compressed;
+
+        private final int textLength;
+
+        private byte[] text;
+
+        Block(ColumnarArchiveBlockStatistics stats, byte[] columns, byte[] compressed, int textLength)
+                throws IOException {
+            this.stats = stats;
+            this.compressed = compressed;
+            this.textLength = textLength;
+            int size = stats.getNumberOfPackets();
+            ColumnarArchive.Decoder d = new ColumnarArchive.Decoder(columns);
+
+            int dictionarySize = d.readVarInt();
+            dictionary = new AisPacketTags[dictionarySize + 1];
+            dictionary[0] = new AisPacketTags();
+            for (int i = 1; i <= dictionarySize; i++) {
+                AisPacketTags tags = new AisPacketTags();
+                tags.setSourceId(d.readString());
+                long sourceBs = d.readVarLong();
+                tags.setSourceBs(sourceBs == 0 ? null : (int) (sourceBs - 1));
+                String country = d.readString();
+                tags.setSourceCountry(country == null ? null : Country.getByCode(country));
+                int sourceType = d.readVarInt();
+                tags.setSourceType(sourceType == 0 ? null : AisPacketTags.SourceType.values()[sourceType - 1]);
+                dictionary[i] = tags;
+            }
+
+            timestamps = new long[size];
+            long prevTimestamp = 0;
+            for (int i = 0; i < size; i++) {
+                timestamps[i] = prevTimestamp += d.readZigZag();
+            }
+            mmsis = new int[size];
+            int prevMmsi = 0;
+            for (int i = 0; i < size; i++) {
+                mmsis[i] = prevMmsi += (int) d.readZigZag();
+            }
+            types = new int[size];
+            int sogCogs = 0;
+            for (int i = 0; i < size; i++) {
+                types[i] = d.readVarInt();
+                if ((types[i] & ColumnarArchive.FLAG_SOG_COG) != 0) {
+                    sogCogs++;
+                }
+            }
+            sources = new int[size];
+            for (int i = 0; i < size; i++) {
+                int s = d.readVarInt();
+                if (s < 0 || s > dictionarySize) {
+                    throw new IOException("Invalid source index " + s + " in columnar archive");
+                }
+                sources[i] = s;
+            }
+            int positions = stats.getNumberOfPositions();
+            lats = readDeltas(d, positions);
+            lons = readDeltas(d, positions);
+            sogs = new int[sogCogs];
+            for (int i = 0; i < sogCogs; i++) {
+                sogs[i] = d.readVarInt();
+            }
+            cogs = new int[sogCogs];
+            for (int i = 0; i < sogCogs; i++) {
+                cogs[i] = d.readVarInt();
+            }
+            offsets = new int[size + 1];
+            for (int i = 0; i < size; i++) {
+                offsets[i + 1] = offsets[i] + d.readVarInt();
+            }
+            if (offsets[size] != textLength) {
+                throw new IOException("Corrupt columnar archive block, text length mismatch");
+            }
+        }
+
+        private static int[] readDeltas(ColumnarArchive.Decoder d, int count) throws IOException {
+            int[] values = new int[count];
+            int prev = 0;
+            for (int i = 0; i < count; i++) {
+                values[i] = prev += (int) d.readZigZag();
+            }
+            return values;
+        }
+
+        /** Returns the raw sentences of the block, inflating them on first use. */
+        byte[] text() throws IOException {
+            if (text == null) {
+                byte[] out = new byte[textLength];
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(compressed);
+                    int n = 0;
+                    while (n < out.length) {
+                        int r = inflater.inflate(out, n, out.length - n);
+                        if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        n += r;
+                    }
+                    if (n != out.length) {
+                        throw new IOException("Corrupt columnar archive block, expected " + out.length
+                                + " bytes of text, got " + n);
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt columnar archive block", e);
+                } finally {
+                    inflater.end();
+                }
+                text = out;
+                compressed = null;
+            }
+            return text;
+        }
+    }
+}
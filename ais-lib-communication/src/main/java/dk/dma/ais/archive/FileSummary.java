@@ -0,0 +1,598 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.message.IPositionMessage;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketFilterConstraints;
+import dk.dma.ais.packet.AisPacketReader;
+import dk.dma.commons.util.io.OutputStreamSink;
+import dk.dma.enav.model.geometry.BoundingBox;
+
+/**
+ * A summary of the packets in a dump, stored in a sidecar file next to the dump (see {@link #summaryFileFor(Path)}).
+ * The summary holds the time range, a bloom filter of the MMSI numbers, the set of message types and source ids and
+ * the bounding box of the positions in the dump. Readers use it to skip files that cannot contain any packets of
+ * interest, see {@link dk.dma.ais.reader.AisDirectoryReader#setSummaryFilter(Predicate)}.
+ * <p>
+ * The {@code mayContain} methods never return false for values in the dump, but may return true for values not in the
+ * dump.
+ */
+@Immutable
+public final class FileSummary {
+
+    /** The suffix appended to the name of the dump to get the name of the summary file. */
+    public static final String SUFFIX = ".asum";
+
+    /** Magic header of summary files ('ASUM'). */
+    static final int MAGIC = 0x4153554D;
+
+    /** The current version of the summary file format. */
+    static final int VERSION = 1;
+
+    /** The maximum number of source ids stored, if a dump has more all source ids may match. */
+    static final int MAX_SOURCE_IDS = 1024;
+
+    /** The number of bloom filter bits per MMSI number, giving a false positive rate of about 1%. */
+    static final int BITS_PER_MMSI = 10;
+
+    /** The number of hash functions of the bloom filter. */
+    static final int HASHES = 7;
+
+    /** The size of the dump when it was summarized. */
+    private final long length;
+
+    private final long packets;
+
+    private final long minTimestamp;
+
+    private final long maxTimestamp;
+
+    /** Bit i is set if the dump contains messages of type i. */
+    private final long messageTypes;
+
+    /** The source ids in the dump, or null if the dump had too many to store. */
+    private final Set<String> sourceIds;
+
+    private final long positions;
+
+    private final double minLat, maxLat, minLon, maxLon;
+
+    /** The bloom filter of MMSI numbers, the length is a power of two. */
+    private final long[] mmsiBloom;
+
+    FileSummary(long length, long packets, long minTimestamp, long maxTimestamp, long messageTypes,
+            Set<String> sourceIds, long positions, double minLat, double maxLat, double minLon, double maxLon,
+            long[] mmsiBloom) {
+        this.length = length;
+        this.packets = packets;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+        this.messageTypes = messageTypes;
+        this.sourceIds = sourceIds == null ? null : Collections.unmodifiableSet(new TreeSet<>(sourceIds));
+        this.positions = positions;
+        this.minLat = minLat;
+        this.maxLat = maxLat;
+        this.minLon = minLon;
+        this.maxLon = maxLon;
+        this.mmsiBloom = mmsiBloom;
+    }
+
+    /** Returns the size of the dump when it was summarized. */
+    public long getLength() {
+        return length;
+    }
+
+    /** Returns the number of packets in the dump. */
+    public long getNumberOfPackets() {
+        return packets;
+    }
+
+    /** Returns the smallest timestamp in the dump, only valid if {@link #hasTimestamps()}. */
+    public long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    /** Returns the largest timestamp in the dump, only valid if {@link #hasTimestamps()}. */
+    public long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    /** Returns whether or not any packet in the dump has a timestamp. */
+    public boolean hasTimestamps() {
+        return minTimestamp <= maxTimestamp;
+    }
+
+    /** Returns the source ids in the dump, or null if the dump has too many source ids to be stored. */
+    public Set<String> getSourceIds() {
+        return sourceIds;
+    }
+
+    /**
+     * Returns whether or not the dump may contain packets with a timestamp in the interval {@code [start, end)}.
+     *
+     * @param start
+     *            the inclusive start of the interval in milliseconds since the epoch
+     * @param end
+     *            the exclusive end of the interval in milliseconds since the epoch
+     * @return whether or not the dump may contain packets in the interval
+     */
+    public boolean mayContainTime(long start, long end) {
+        return maxTimestamp >= start && minTimestamp < end;
+    }
+
+    /**
+     * Returns whether or not the dump may contain messages from the specified MMSI number.
+     *
+     * @param mmsi
+     *            the MMSI number
+     * @return whether or not the dump may contain messages from the MMSI number
+     */
+    public boolean mayContainMmsi(int mmsi) {
+        if (mmsiBloom.length == 0) {
+            return false;
+        }
+        long h = hash(mmsi);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        int mask = mmsiBloom.length * 64 - 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((mmsiBloom[bit >>> 6] & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether or not the dump may contain messages of the specified type.
+     *
+     * @param messageType
+     *            the message type
+     * @return whether or not the dump may contain messages of the type
+     */
+    public boolean mayContainMessageType(int messageType) {
+        return messageType < 0 || messageType > 63 || (messageTypes & 1L << messageType) != 0;
+    }
+
+    /**
+     * Returns whether or not the dump may contain packets from the specified source id.
+     *
+     * @param sourceId
+     *            the source id
+     * @return whether or not the dump may contain packets from the source id
+     */
+    public boolean mayContainSourceId(String sourceId) {
+        return sourceIds == null || sourceIds.contains(sourceId);
+    }
+
+    /**
+     * Returns whether or not the dump may contain positions within the specified bounding box.
+     *
+     * @param bbox
+     *            the bounding box
+     * @return whether or not the dump may contain positions within the bounding box
+     */
+    public boolean mayContainPositionWithin(BoundingBox bbox) {
+        return positions > 0 && bbox.getMinLat() <= maxLat && bbox.getMaxLat() >= minLat
+                && bbox.getMinLon() <= maxLon && bbox.getMaxLon() >= minLon;
+    }
+
+    /**
+     * Returns a summary filter accepting dumps that may contain messages from any of the specified MMSI numbers.
+     *
+     * @param mmsi
+     *            the MMSI numbers
+     * @return the summary filter
+     */
+    public static Predicate<FileSummary> mmsiFilter(final int... mmsi) {
+        requireNonNull(mmsi);
+        return s -> {
+            for (int m : mmsi) {
+                if (s.mayContainMmsi(m)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * Returns a summary filter accepting dumps that may contain messages of any of the specified types.
+     *
+     * @param messageTypes
+     *            the message types
+     * @return the summary filter
+     */
+    public static Predicate<FileSummary> messageTypeFilter(final int... messageTypes) {
+        requireNonNull(messageTypes);
+        return s -> {
+            for (int t : messageTypes) {
+                if (s.mayContainMessageType(t)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * Returns a summary filter accepting dumps that may contain packets from any of the specified source ids.
+     *
+     * @param sourceIds
+     *            the source ids
+     * @return the summary filter
+     */
+    public static Predicate<FileSummary> sourceIdFilter(final String... sourceIds) {
+        requireNonNull(sourceIds);
+        return s -> {
+            for (String id : sourceIds) {
+                if (s.mayContainSourceId(id)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * Returns a summary filter accepting dumps that may contain positions within the specified bounding box.
+     *
+     * @param bbox
+     *            the bounding box
+     * @return the summary filter
+     */
+    public static Predicate<FileSummary> positionFilter(final BoundingBox bbox) {
+        requireNonNull(bbox);
+        return s -> s.mayContainPositionWithin(bbox);
+    }
+
+    /**
+     * Returns a summary filter accepting dumps that may contain packets with a timestamp in the interval
+     * {@code [start, end)}.
+     *
+     * @param start
+     *            the inclusive start of the interval in milliseconds since the epoch
+     * @param end
+     *            the exclusive end of the interval in milliseconds since the epoch
+     * @return the summary filter
+     */
+    public static Predicate<FileSummary> timeFilter(final long start, final long end) {
+        return s -> s.mayContainTime(start, end);
+    }
+
+    /**
+     * Returns a summary filter accepting dumps that may contain packets satisfying the specified constraints.
+     *
+     * @param constraints
+     *            the constraints, for example of an expression filter
+     * @return the summary filter
+     * @see dk.dma.ais.packet.AisPacketFilters#analyseExpressionFilter(String)
+     */
+    public static Predicate<FileSummary> filterFor(AisPacketFilterConstraints constraints) {
+        requireNonNull(constraints);
+        if (constraints.isUnsatisfiable()) {
+            return s -> false;
+        }
+        Predicate<FileSummary> p = s -> true;
+        if (constraints.hasTimeConstraint()) {
+            long start = constraints.getStart();
+            long end = constraints.getEnd();
+            p = p.and(s -> !s.hasTimestamps() || s.mayContainTime(start, end));
+        }
+        if (constraints.getMmsi() != null) {
+            p = p.and(mmsiFilter(constraints.getMmsi()));
+        }
+        if (constraints.getMessageIds() != null) {
+            p = p.and(messageTypeFilter(constraints.getMessageIds()));
+        }
+        if (constraints.getSourceIds() != null) {
+            p = p.and(sourceIdFilter(constraints.getSourceIds()));
+        }
+        if (constraints.getArea() != null) {
+            p = p.and(positionFilter(constraints.getArea()));
+        }
+        return p;
+    }
+
+    /** A 64 bit mix of the MMSI number (the finalizer of MurmurHash3). */
+    static long hash(int mmsi) {
+        long h = mmsi * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Writes this summary to the specified file. The summary is first written to a temporary file which is then moved
+     * in place, so readers never see a partially written summary.
+     *
+     * @param summaryFile
+     *            the file to write to
+     * @throws IOException
+     *             if the summary could not be written
+     */
+    public void write(Path summaryFile) throws IOException {
+        Path tmp = summaryFile.resolveSibling(summaryFile.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tmp);
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(length);
+            dos.writeLong(packets);
+            dos.writeLong(minTimestamp);
+            dos.writeLong(maxTimestamp);
+            dos.writeLong(messageTypes);
+            if (sourceIds == null) {
+                dos.writeInt(-1);
+            } else {
+                dos.writeInt(sourceIds.size());
+                for (String s : sourceIds) {
+                    dos.writeUTF(s);
+                }
+            }
+            dos.writeLong(positions);
+            dos.writeDouble(minLat);
+            dos.writeDouble(maxLat);
+            dos.writeDouble(minLon);
+            dos.writeDouble(maxLon);
+            dos.writeInt(mmsiBloom.length);
+            for (long l : mmsiBloom) {
+                dos.writeLong(l);
+            }
+        }
+        Files.move(tmp, summaryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the summary sidecar file of the specified dump.
+     *
+     * @param file
+     *            the dump
+     * @return the summary sidecar file
+     */
+    public static Path summaryFileFor(Path file) {
+        return file.resolveSibling(file.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Reads the summary of the specified dump if it has an up to date one.
+     *
+     * @param file
+     *            the dump
+     * @return the summary of the dump, or null if the dump has no summary or the dump has changed since it was
+     *         summarized
+     * @throws IOException
+     *             if the summary exists but could not be read
+     */
+    public static FileSummary readSummaryOf(Path file) throws IOException {
+        Path summaryFile = summaryFileFor(requireNonNull(file));
+        if (!Files.exists(summaryFile)) {
+            return null;
+        }
+        FileSummary summary = read(summaryFile);
+        return summary.length == Files.size(file) ? summary : null;
+    }
+
+    /**
+     * Reads a summary file.
+     *
+     * @param summaryFile
+     *            the summary file to read
+     * @return the summary
+     * @throws IOException
+     *             if the file could not be read or is not a valid summary file
+     */
+    public static FileSummary read(Path summaryFile) throws IOException {
+        try (InputStream is = Files.newInputStream(summaryFile);
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(is))) {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Not a summary file: " + summaryFile);
+            }
+            int version = dis.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported summary version " + version + " in " + summaryFile);
+            }
+            long length = dis.readLong();
+            long packets = dis.readLong();
+            long minTimestamp = dis.readLong();
+            long maxTimestamp = dis.readLong();
+            long messageTypes = dis.readLong();
+            int sourceIdCount = dis.readInt();
+            Set<String> sourceIds = null;
+            if (sourceIdCount >= 0) {
+                sourceIds = new HashSet<>();
+                for (int i = 0; i < sourceIdCount; i++) {
+                    sourceIds.add(dis.readUTF());
+                }
+            }
+            long positions = dis.readLong();
+            double minLat = dis.readDouble();
+            double maxLat = dis.readDouble();
+            double minLon = dis.readDouble();
+            double maxLon = dis.readDouble();
+            long[] bloom = new long[dis.readInt()];
+            for (int i = 0; i < bloom.length; i++) {
+                bloom[i] = dis.readLong();
+            }
+            return new FileSummary(length, packets, minTimestamp, maxTimestamp, messageTypes, sourceIds, positions,
+                    minLat, maxLat, minLon, maxLon, bloom);
+        }
+    }
+
+    /**
+     * Creates a summary of an existing dump by reading it.
+     *
+     * @param file
+     *            the dump to summarize
+     * @return the summary
+     * @throws IOException
+     *             if the dump could not be read
+     */
+    public static FileSummary build(Path file) throws IOException {
+        Builder b = new Builder();
+        try (AisPacketReader r = AisPacketReader.createFromFile(file, false)) {
+            for (AisPacket p = r.readPacket(); p != null; p = r.readPacket()) {
+                b.add(p);
+            }
+        }
+        return b.build(Files.size(file));
+    }
+
+    /**
+     * Wraps the specified sink so that every packet processed is also added to the specified summary builder.
+     *
+     * @param sink
+     *            the sink to wrap
+     * @param builder
+     *            the builder to add packets to
+     * @return the wrapped sink
+     */
+    public static OutputStreamSink<AisPacket> summarizingSink(final OutputStreamSink<AisPacket> sink,
+            final Builder builder) {
+        requireNonNull(sink);
+        requireNonNull(builder);
+        return new OutputStreamSink<AisPacket>() {
+            @Override
+            public void header(OutputStream stream) throws IOException {
+                sink.header(stream);
+            }
+
+            @Override
+            public void process(OutputStream stream, AisPacket message, long count) throws IOException {
+                sink.process(stream, message, count);
+                builder.add(message);
+            }
+
+            @Override
+            public void footer(OutputStream stream, long count) throws IOException {
+                sink.footer(stream, count);
+            }
+        };
+    }
+
+    /** Collects the summary of a sequence of packets. */
+    @NotThreadSafe
+    public static final class Builder {
+
+        private long packets;
+
+        private long minTimestamp = Long.MAX_VALUE;
+
+        private long maxTimestamp = Long.MIN_VALUE;
+
+        private long messageTypes;
+
+        private Set<String> sourceIds = new HashSet<>();
+
+        private long positions;
+
+        private double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+
+        private double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+
+        private final Set<Integer> mmsis = new HashSet<>();
+
+        /**
+         * Adds a packet to the summary.
+         *
+         * @param packet
+         *            the packet to add
+         */
+        public void add(AisPacket packet) {
+            packets++;
+            long timestamp = packet.getBestTimestamp();
+            if (timestamp >= 0) {
+                minTimestamp = Math.min(minTimestamp, timestamp);
+                maxTimestamp = Math.max(maxTimestamp, timestamp);
+            }
+            if (sourceIds != null) {
+                String sourceId = packet.getTags().getSourceId();
+                if (sourceId != null && sourceIds.add(sourceId) && sourceIds.size() > MAX_SOURCE_IDS) {
+                    sourceIds = null;
+                }
+            }
+            AisMessage m = packet.tryGetAisMessage();
+            if (m != null) {
+                mmsis.add(m.getUserId());
+                if (m.getMsgId() >= 0 && m.getMsgId() < 64) {
+                    messageTypes |= 1L << m.getMsgId();
+                }
+                if (m instanceof IPositionMessage) {
+                    AisPosition pos = ((IPositionMessage) m).getPos();
+                    if (pos != null && pos.getGeoLocation() != null) {
+                        positions++;
+                        double lat = pos.getLatitudeDouble();
+                        double lon = pos.getLongitudeDouble();
+                        minLat = Math.min(minLat, lat);
+                        maxLat = Math.max(maxLat, lat);
+                        minLon = Math.min(minLon, lon);
+                        maxLon = Math.max(maxLon, lon);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Creates the summary.
+         *
+         * @param length
+         *            the size of the summarized dump
+         * @return the summary
+         */
+        public FileSummary build(long length) {
+            long bits = Math.max(64, Long.highestOneBit(Math.max(1, mmsis.size() * (long) BITS_PER_MMSI) - 1) << 1);
+            long[] bloom = new long[mmsis.isEmpty() ? 0 : (int) (bits / 64)];
+            int mask = (int) bits - 1;
+            for (int mmsi : mmsis) {
+                long h = hash(mmsi);
+                int h1 = (int) h;
+                int h2 = (int) (h >>> 32);
+                for (int i = 0; i < HASHES; i++) {
+                    int bit = (h1 + i * h2) & mask;
+                    bloom[bit >>> 6] |= 1L << bit;
+                }
+            }
+            return new FileSummary(length, packets, minTimestamp, maxTimestamp, messageTypes, sourceIds, positions,
+                    minLat, maxLat, minLon, maxLon, bloom);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketParser;
+import dk.dma.ais.sentence.SentenceException;
+
+/**
+ * A time index of an uncompressed text dump. The index is stored in a sidecar file next to the dump (see
+ * {@link #indexFileFor(Path)}) and divides the dump into chunks of packets, each covering a regular time interval.
+ * For every chunk the byte offset of its first packet and the time range of its packets is stored, allowing readers to
+ * seek directly to the part of the dump covering a time interval.
+ * <p>
+ * Gzip compressed dumps are indexed by {@link BlockGzipIndex} instead, see {@link #openInterval(Path, long, long)}.
+ */
+@Immutable
+public final class TimeIndex {
+
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(TimeIndex.class);
+
+    /** The suffix appended to the name of the dump to get the name of the index file. */
+    public static final String SUFFIX = ".tix";
+
+    /** The default time covered by each chunk, 1 minute. */
+    public static final long DEFAULT_INTERVAL = 60 * 1000;
+
+    /** Magic header of index files ('ATIX'). */
+    static final int MAGIC = 0x41544958;
+
+    /** The current version of the index file format. */
+    static final int VERSION = 1;
+
+    /** The chunks of the dump, in file order. */
+    private final List<Chunk> chunks;
+
+    /** The size of the dump when it was indexed. */
+    private final long length;
+
+    TimeIndex(List<Chunk> chunks, long length) {
+        this.chunks = Collections.unmodifiableList(new ArrayList<>(chunks));
+        this.length = length;
+    }
+
+    /**
+     * Returns the chunks of the dump in file order.
+     *
+     * @return the chunks of the dump in file order
+     */
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * Returns the size of the dump when it was indexed.
+     *
+     * @return the size of the dump when it was indexed
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the offset of the first chunk that may contain packets with a timestamp at or after the specified time.
+     *
+     * @param start
+     *            the inclusive start time in milliseconds since the epoch
+     * @return the offset to start reading from
+     */
+    public long startOffset(long start) {
+        for (Chunk c : chunks) {
+            if (!c.hasTimestamps() || c.maxTimestamp >= start) {
+                return c.offset;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the offset after the last chunk that may contain packets with a timestamp before the specified time. If
+     * the last chunk may contain such packets, {@link Long#MAX_VALUE} is returned, as data appended to the dump after
+     * it was indexed must also be read.
+     *
+     * @param end
+     *            the exclusive end time in milliseconds since the epoch
+     * @return the offset to stop reading at
+     */
+    public long endOffset(long end) {
+        for (int i = chunks.size() - 1; i >= 0; i--) {
+            Chunk c = chunks.get(i);
+            if (!c.hasTimestamps() || c.minTimestamp < end) {
+                return i == chunks.size() - 1 ? Long.MAX_VALUE : chunks.get(i + 1).offset;
+            }
+        }
+        return chunks.isEmpty() ? Long.MAX_VALUE : chunks.get(0).offset;
+    }
+
+    /**
+     * Writes this index to the specified file. The index is first written to a temporary file which is then moved in
+     * place, so readers never see a partially written index.
+     *
+     * @param indexFile
+     *            the file to write to
+     * @throws IOException
+     *             if the index could not be written
+     */
+    public void write(Path indexFile) throws IOException {
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tmp);
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(length);
+            dos.writeInt(chunks.size());
+            for (Chunk c : chunks) {
+                dos.writeLong(c.offset);
+                dos.writeLong(c.minTimestamp);
+                dos.writeLong(c.maxTimestamp);
+                dos.writeInt(c.packets);
+            }
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the index sidecar file of the specified dump.
+     *
+     * @param file
+     *            the dump
+     * @return the index sidecar file
+     */
+    public static Path indexFileFor(Path file) {
+        return file.resolveSibling(file.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Reads the index of the specified dump if it has one.
+     *
+     * @param file
+     *            the dump
+     * @return the index of the dump, or null if the dump has no index sidecar
+     * @throws IOException
+     *             if the index exists but could not be read
+     */
+    public static TimeIndex readIndexOf(Path file) throws IOException {
+        Path indexFile = indexFileFor(requireNonNull(file));
+        return Files.exists(indexFile) ? read(indexFile) : null;
+    }
+
+    /**
+     * Reads an index file.
+     *
+     * @param indexFile
+     *            the index file to read
+     * @return the index
+     * @throws IOException
+     *             if the file could not be read or is not a valid index file
+     */
+    public static TimeIndex read(Path indexFile) throws IOException {
+        try (InputStream is = Files.newInputStream(indexFile);
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(is))) {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Not a time index file: " + indexFile);
+            }
+            int version = dis.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported time index version " + version + " in " + indexFile);
+            }
+            long length = dis.readLong();
+            int count = dis.readInt();
+            List<Chunk> chunks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                chunks.add(new Chunk(dis.readLong(), dis.readLong(), dis.readLong(), dis.readInt()));
+            }
+            return new TimeIndex(chunks, length);
+        }
+    }
+
+    /**
+     * Creates an index of an existing uncompressed dump by reading it.
+     *
+     * @param file
+     *            the dump to index
+     * @param interval
+     *            the time covered by each chunk in milliseconds
+     * @return the index
+     * @throws IOException
+     *             if the dump could not be read
+     */
+    public static TimeIndex build(Path file, long interval) throws IOException {
+        Builder b = new Builder(interval);
+        AisPacketParser parser = new AisPacketParser();
+        byte[] line = new byte[256];
+        int len = 0;
+        long offset = 0;
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream is = Files.newInputStream(file)) {
+            for (int n = is.read(buf); n >= 0; n = is.read(buf)) {
+                for (int i = 0; i < n; i++) {
+                    offset++;
+                    byte c = buf[i];
+                    if (c != '\n') {
+                        if (len == line.length) {
+                            line = Arrays.copyOf(line, len * 2);
+                        }
+                        line[len++] = c;
+                        continue;
+                    }
+                    if (len > 0 && line[len - 1] == '\r') {
+                        len--;
+                    }
+                    AisPacket p = null;
+                    try {
+                        p = parser.readLine(new String(line, 0, len, StandardCharsets.US_ASCII));
+                    } catch (SentenceException e) {
+                        LOG.debug("Sentence error while indexing " + file + ": " + e.getMessage());
+                    }
+                    len = 0;
+                    if (p != null) {
+                        b.endRecord(offset, p.getBestTimestamp());
+                    }
+                }
+            }
+        }
+        return b.build(offset);
+    }
+
+    /**
+     * Opens the part of a dump that may contain packets with a timestamp in the interval {@code [start, end)}, using
+     * the time index of an uncompressed dump or the block index of a gzip compressed dump. The stream may contain
+     * packets outside of the interval, since only whole chunks or blocks are read.
+     *
+     * @param file
+     *            the dump
+     * @param start
+     *            the inclusive start of the interval in milliseconds since the epoch
+     * @param end
+     *            the exclusive end of the interval in milliseconds since the epoch
+     * @return an input stream of the uncompressed data, or null if the dump has no usable index
+     * @throws IOException
+     *             if the dump or its index could not be read
+     */
+    public static InputStream openInterval(Path file, long start, long end) throws IOException {
+        if (file.getFileName().toString().endsWith(".gz")) {
+            BlockGzipIndex index = BlockGzipIndex.readIndexOf(file);
+            return index == null ? null : BlockGzipInputStream.open(file, index, start, end);
+        }
+        TimeIndex index = readIndexOf(file);
+        if (index == null) {
+            return null;
+        } else if (Files.size(file) < index.length) {
+            LOG.warn("Ignoring stale time index of " + file + ", the file is smaller than when it was indexed");
+            return null;
+        }
+        long from = index.startOffset(start);
+        long to = Math.max(from, index.endOffset(end));
+        return new BufferedInputStream(new RangeInputStream(FileChannel.open(file, StandardOpenOption.READ), from, to),
+                64 * 1024);
+    }
+
+    /** A range of packets in the dump covering a time interval. */
+    @Immutable
+    public static final class Chunk {
+
+        final long offset;
+
+        final long minTimestamp;
+
+        final long maxTimestamp;
+
+        final int packets;
+
+        Chunk(long offset, long minTimestamp, long maxTimestamp, int packets) {
+            this.offset = offset;
+            this.minTimestamp = minTimestamp;
+            this.maxTimestamp = maxTimestamp;
+            this.packets = packets;
+        }
+
+        /** Returns the offset of the first packet of the chunk in the dump. */
+        public long getOffset() {
+            return offset;
+        }
+
+        /** Returns the smallest packet timestamp in this chunk, only valid if {@link #hasTimestamps()}. */
+        public long getMinTimestamp() {
+            return minTimestamp;
+        }
+
+        /** Returns the largest packet timestamp in this chunk, only valid if {@link #hasTimestamps()}. */
+        public long getMaxTimestamp() {
+            return maxTimestamp;
+        }
+
+        /** Returns the number of packets in this chunk. */
+        public int getNumberOfPackets() {
+            return packets;
+        }
+
+        /** Returns whether or not the time range of this chunk is known. */
+        public boolean hasTimestamps() {
+            return minTimestamp <= maxTimestamp;
+        }
+    }
+
+    /** Collects chunks from a sequence of records. A new chunk is started when the interval of the current is passed. */
+    @NotThreadSafe
+    static final class Builder {
+
+        private final long interval;
+
+        private final List<Chunk> chunks = new ArrayList<>();
+
+        private long chunkOffset;
+
+        private long minTimestamp = Long.MAX_VALUE;
+
+        private long maxTimestamp = Long.MIN_VALUE;
+
+        private long firstTimestamp = -1;
+
+        private int packets;
+
+        Builder(long interval) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("interval must be positive, was " + interval);
+            }
+            this.interval = interval;
+        }
+
+        /**
+         * Adds a record.
+         *
+         * @param endOffset
+         *            the offset after the last byte of the record
+         * @param timestamp
+         *            the timestamp of the record, or a negative value if it has none
+         */
+        void endRecord(long endOffset, long timestamp) {
+            packets++;
+            if (timestamp >= 0) {
+                minTimestamp = Math.min(minTimestamp, timestamp);
+                maxTimestamp = Math.max(maxTimestamp, timestamp);
+                if (firstTimestamp < 0) {
+                    firstTimestamp = timestamp;
+                } else if (timestamp - firstTimestamp >= interval) {
+                    endChunk(endOffset);
+                }
+            }
+        }
+
+        private void endChunk(long endOffset) {
+            chunks.add(new Chunk(chunkOffset, minTimestamp, maxTimestamp, packets));
+            chunkOffset = endOffset;
+            minTimestamp = Long.MAX_VALUE;
+            maxTimestamp = Long.MIN_VALUE;
+            firstTimestamp = -1;
+            packets = 0;
+        }
+
+        TimeIndex build(long length) {
+            if (packets > 0) {
+                endChunk(length);
+            }
+            return new TimeIndex(chunks, length);
+        }
+    }
+
+    /** An input stream reading a byte range of a file channel. */
+    static final class RangeInputStream extends InputStream {
+
+        private final FileChannel channel;
+
+        private long position;
+
+        private final long end;
+
+        RangeInputStream(FileChannel channel, long position, long end) {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
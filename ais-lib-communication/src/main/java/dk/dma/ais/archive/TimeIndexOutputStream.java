@@ -0,0 +1,101 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * An output stream that writes an uncompressed dump and builds its {@link TimeIndex} while writing. The index is
+ * written to {@link TimeIndex#indexFileFor(Path)} when the stream is closed. Record boundaries must be signalled
+ * through {@link #endRecord(long)}, for example by using {@link TimeIndexedOutput#indexingSink}.
+ */
+@NotThreadSafe
+public class TimeIndexOutputStream extends FilterOutputStream implements TimeIndexedOutput {
+
+    /** The file to write the index to when closed. */
+    private final Path indexFile;
+
+    private final TimeIndex.Builder builder;
+
+    /** The number of bytes written so far. */
+    private long position;
+
+    private boolean closed;
+
+    /**
+     * Creates a new stream writing to the specified file with the default index interval.
+     *
+     * @param file
+     *            the file to write
+     * @throws IOException
+     *             if the file could not be opened
+     */
+    public TimeIndexOutputStream(Path file) throws IOException {
+        this(file, TimeIndex.DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Creates a new stream writing to the specified file.
+     *
+     * @param file
+     *            the file to write
+     * @param interval
+     *            the time covered by each chunk of the index in milliseconds
+     * @throws IOException
+     *             if the file could not be opened
+     */
+    public TimeIndexOutputStream(Path file, long interval) throws IOException {
+        super(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+        this.indexFile = TimeIndex.indexFileFor(file);
+        this.builder = new TimeIndex.Builder(interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void endRecord(long timestamp) {
+        builder.endRecord(position, timestamp);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        position++;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        position += len;
+    }
+
+    /** Closes the underlying stream and writes the index file. */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.close();
+            builder.build(position).write(indexFile);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * An output stream that maintains a time index of the records written to it, such as {@link BlockGzipOutputStream}
+ * and {@link TimeIndexOutputStream}.
+ */
+public interface TimeIndexedOutput {
+
+    /**
+     * Signals that a complete record (packet) with the specified timestamp has been written.
+     *
+     * @param timestamp
+     *            the timestamp of the record, or a negative value if it has none
+     * @throws IOException
+     *             if the data written so far could not be flushed
+     */
+    void endRecord(long timestamp) throws IOException;
+
+    /**
+     * Wraps the specified sink so that record boundaries and packet timestamps are signalled to the output stream if it
+     * is a {@link TimeIndexedOutput}. For any other output stream the returned sink behaves as the specified sink.
+     * <p>
+     * The wrapped sink must write each packet when it is processed, and not buffer them, otherwise the index will not
+     * match the data.
+     *
+     * @param sink
+     *            the sink to wrap
+     * @return the wrapped sink
+     */
+    static OutputStreamSink<AisPacket> indexingSink(final OutputStreamSink<AisPacket> sink) {
+        requireNonNull(sink);
+        return new OutputStreamSink<AisPacket>() {
+            @Override
+            public void header(OutputStream stream) throws IOException {
+                sink.header(stream);
+            }
+
+            @Override
+            public void process(OutputStream stream, AisPacket message, long count) throws IOException {
+                sink.process(stream, message, count);
+                if (stream instanceof TimeIndexedOutput) {
+                    ((TimeIndexedOutput) stream).endRecord(message.getBestTimestamp());
+                }
+            }
+
+            @Override
+            public void footer(OutputStream stream, long count) throws IOException {
+                sink.footer(stream, count);
+            }
+        };
+    }
+}
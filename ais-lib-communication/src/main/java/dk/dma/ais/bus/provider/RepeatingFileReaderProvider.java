@@ -17,6 +17,7 @@ package dk.dma.ais.bus.provider;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 
@@ -35,6 +36,11 @@ import java.util.function.Consumer;
 
 /**
  * Provider that reads repeatedly from the same file
+ * <p>
+ * If an interval is given, only the packets with a timestamp in the interval are read, and only the part of the file
+ * covering the interval if the file has a time or block index sidecar, see
+ * {@link AisPacketReader#createFromFile(java.nio.file.Path, long, long, boolean)}. Whether such a file is compressed is
+ * then decided by its '.gz' suffix.
  */
 @ThreadSafe
 public class RepeatingFileReaderProvider extends AisBusProvider implements Consumer<AisPacket>, Runnable {
@@ -48,9 +54,34 @@ public class RepeatingFileReaderProvider extends AisBusProvider implements Consu
     private final String filename;
     private final boolean gzip;
 
+    /** The inclusive start of the interval to read, {@link Long#MIN_VALUE} if there is no lower bound. */
+    private final long start;
+
+    /** The exclusive end of the interval to read, {@link Long#MAX_VALUE} if there is no upper bound. */
+    private final long end;
+
     public RepeatingFileReaderProvider(String filename, boolean gzip) {
+        this(filename, gzip, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a provider that repeatedly reads the packets of the file with a timestamp in the interval
+     * {@code [start, end)}.
+     *
+     * @param filename
+     *            the name of the file
+     * @param gzip
+     *            whether the file is compressed, if the whole file is read
+     * @param start
+     *            the inclusive start of the interval in milliseconds since the epoch
+     * @param end
+     *            the exclusive end of the interval in milliseconds since the epoch
+     */
+    public RepeatingFileReaderProvider(String filename, boolean gzip, long start, long end) {
         this.filename = filename;
         this.gzip = gzip;
+        this.start = start;
+        this.end = end;
     }
 
     @Override
@@ -84,6 +115,20 @@ public class RepeatingFileReaderProvider extends AisBusProvider implements Consu
     public void run() {
         InputStream stream;
         while (true) {
+            if (start != Long.MIN_VALUE || end != Long.MAX_VALUE) {
+                try (AisPacketReader r = AisPacketReader.createFromFile(Paths.get(filename), start, end, false)) {
+                    r.forEachRemaining(this);
+                } catch (IOException e) {
+                    if (!getThread().isInterrupted()) {
+                        LOG.error("Failed to read interval: " + e.getMessage());
+                    }
+                    return;
+                }
+                if (!resetAndPause()) {
+                    return;
+                }
+                continue;
+            }
             try {
                 stream = new FileInputStream(filename);
                 if (gzip) {
@@ -105,21 +150,28 @@ public class RepeatingFileReaderProvider extends AisBusProvider implements Consu
                 stream.close();
             } catch (IOException e) {}
 
-            // Special handling for possible replay transformers that needs to be reset
-            for (IAisPacketTransformer transformer : getPacketTransformers()) {
-                if (transformer instanceof ReplayTransformer) {
-                    ((ReplayTransformer) transformer).reset();
-                }
-            }
-
-            try {
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
+            if (!resetAndPause()) {
                 return;
             }
+        }
 
+    }
+
+    /** Resets the replay transformers and pauses before the file is read again, returns false if interrupted. */
+    private boolean resetAndPause() {
+        // Special handling for possible replay transformers that needs to be reset
+        for (IAisPacketTransformer transformer : getPacketTransformers()) {
+            if (transformer instanceof ReplayTransformer) {
+                ((ReplayTransformer) transformer).reset();
+            }
         }
 
+        try {
+            Thread.sleep(2000);
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return true;
     }
 
     /**
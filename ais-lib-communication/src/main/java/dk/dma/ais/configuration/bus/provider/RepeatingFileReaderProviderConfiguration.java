@@ -14,6 +14,8 @@
  */
 package dk.dma.ais.configuration.bus.provider;
 
+import java.util.Date;
+
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlTransient;
 
@@ -25,6 +27,8 @@ public class RepeatingFileReaderProviderConfiguration extends AisBusProviderConf
 
     private String filename;
     private boolean gzip;
+    private Date start;
+    private Date end;
 
     public RepeatingFileReaderProviderConfiguration() {
 
@@ -46,10 +50,29 @@ public class RepeatingFileReaderProviderConfiguration extends AisBusProviderConf
         this.gzip = gzip;
     }
 
+    /** Returns the inclusive start of the interval of packets to replay, or null to replay from the first packet. */
+    public Date getStart() {
+        return start;
+    }
+
+    public void setStart(Date start) {
+        this.start = start;
+    }
+
+    /** Returns the exclusive end of the interval of packets to replay, or null to replay until the last packet. */
+    public Date getEnd() {
+        return end;
+    }
+
+    public void setEnd(Date end) {
+        this.end = end;
+    }
+
     @Override
     @XmlTransient
     public AisBusComponent getInstance() {
-        RepeatingFileReaderProvider provider = new RepeatingFileReaderProvider(filename, gzip);
+        RepeatingFileReaderProvider provider = new RepeatingFileReaderProvider(filename, gzip,
+                start == null ? Long.MIN_VALUE : start.getTime(), end == null ? Long.MAX_VALUE : end.getTime());
         return super.configure(provider);
     }
 
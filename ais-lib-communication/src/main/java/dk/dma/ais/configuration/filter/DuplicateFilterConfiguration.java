@@ -28,6 +28,11 @@ public class DuplicateFilterConfiguration extends FilterConfiguration {
      */
     private long windowSize = 10000;
 
+    /**
+     * Whether or not to compare six bit strings with the same fingerprint
+     */
+    private boolean exactCompare;
+
     public DuplicateFilterConfiguration() {
 
     }
@@ -39,11 +44,19 @@ public class DuplicateFilterConfiguration extends FilterConfiguration {
     public void setWindowSize(long windowSize) {
         this.windowSize = windowSize;
     }
+
+    public boolean isExactCompare() {
+        return exactCompare;
+    }
+
+    public void setExactCompare(boolean exactCompare) {
+        this.exactCompare = exactCompare;
+    }
     
     @Override
     @XmlTransient
     public IPacketFilter getInstance() {
-        return new DuplicateFilter(windowSize);
+        return new DuplicateFilter(windowSize, exactCompare);
     }
 
 }
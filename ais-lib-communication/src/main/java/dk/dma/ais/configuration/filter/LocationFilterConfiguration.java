@@ -24,6 +24,7 @@ import javax.xml.bind.annotation.XmlTransient;
 import dk.dma.ais.configuration.filter.geometry.GeometryConfiguration;
 import dk.dma.ais.filter.IPacketFilter;
 import dk.dma.ais.filter.LocationFilter;
+import dk.dma.enav.model.geometry.Area;
 
 @XmlRootElement
 public class LocationFilterConfiguration extends FilterConfiguration {
@@ -48,7 +49,12 @@ public class LocationFilterConfiguration extends FilterConfiguration {
     public IPacketFilter getInstance() {
         LocationFilter locFilter = new LocationFilter();
         for (GeometryConfiguration geo : geometries) {
-            locFilter.addFilterGeometry(geo.getPredicate());
+            Area area = geo.getArea();
+            if (area != null) {
+                locFilter.addFilterGeometry(area);
+            } else {
+                locFilter.addFilterGeometry(geo.getPredicate());
+            }
         }
         return locFilter;
     }
@@ -63,7 +63,14 @@ public class CircleGeometryConfiguration extends GeometryConfiguration {
     @Override
     @XmlTransient
     public Predicate<? super Position> getPredicate() {
-        return e -> new Circle(lat, lon, radius, CoordinateSystem.GEODETIC).contains(e);
+        Circle circle = getArea();
+        return e -> circle.contains(e);
+    }
+
+    @Override
+    @XmlTransient
+    public Circle getArea() {
+        return new Circle(lat, lon, radius, CoordinateSystem.GEODETIC);
     }
 
 }
@@ -15,7 +15,9 @@
 package dk.dma.ais.configuration.filter.geometry;
 
 import javax.xml.bind.annotation.XmlSeeAlso;
+import javax.xml.bind.annotation.XmlTransient;
 
+import dk.dma.enav.model.geometry.Area;
 import dk.dma.enav.model.geometry.Position;
 import java.util.function.Predicate;
 
@@ -24,4 +26,14 @@ public abstract class GeometryConfiguration {
 
     public abstract Predicate<? super Position> getPredicate();
 
+    /**
+     * Returns the geometry as an area, which unlike a predicate can be indexed by its bounding box.
+     *
+     * @return the area, or null if the geometry is not an area
+     */
+    @XmlTransient
+    public Area getArea() {
+        return null;
+    }
+
 }
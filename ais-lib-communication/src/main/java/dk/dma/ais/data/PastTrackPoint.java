@@ -46,6 +46,14 @@ public class PastTrackPoint implements Serializable, Comparable<PastTrackPoint>
         }
     }
 
+    public PastTrackPoint(long time, double lat, double lon, double cog, double sog) {
+        this.lat = lat;
+        this.lon = lon;
+        this.cog = cog;
+        this.sog = sog;
+        this.time = time;
+    }
+
     public boolean isDead(int ttl) {
         int elapsed = (int) ((System.currentTimeMillis() - time) / 1000);
         return elapsed > ttl;
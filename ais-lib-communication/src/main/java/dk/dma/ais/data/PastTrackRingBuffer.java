@@ -0,0 +1,247 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.data;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * Class to hold track of a vessel target in primitive arrays used as a ring buffer, instead of an object per point.
+ * Times are kept in milliseconds relative to a base time, positions in 1/10,000,000 degrees and course and speed in
+ * tenths, as they are received. A point takes 16 bytes.
+ * <p>
+ * Points not newer than the newest point are ignored. As in {@link PastTrackSortedSet}, the newest point is removed
+ * when a new point is within the minimum distance of the point before it, so the track always ends at the newest
+ * position. Points can be read without copying through {@link #cursor()}.
+ */
+public class PastTrackRingBuffer implements IPastTrack, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Positions are kept in 1/10,000,000 degrees. */
+    private static final double SCALE = 10_000_000;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The time that the times of the points are relative to. */
+    private long base;
+
+    private int[] times = new int[0];
+    private int[] lats = new int[0];
+    private int[] lons = new int[0];
+    private short[] cogs = new short[0];
+    private short[] sogs = new short[0];
+
+    /** The slot of the oldest point. */
+    private int head;
+
+    /** The number of points. */
+    private int size;
+
+    /** Incremented whenever the points change, to detect cursors used across changes. */
+    private transient int modCount;
+
+    public void addPosition(AisVesselPosition vesselPosition, int minDist) {
+        if (vesselPosition == null || vesselPosition.getPos() == null) {
+            return;
+        }
+
+        // Get the timestamp of this message
+        if (vesselPosition.getSourceTimestamp() == null) {
+            // Will not allow generating past track for reports without
+            // timestamp
+            return;
+        }
+
+        Position pos = vesselPosition.getPos();
+        long time = vesselPosition.getSourceTimestamp().getTime();
+
+        // No previous points allowed
+        if (size > 0 && time <= getTime(size - 1)) {
+            return;
+        }
+
+        // Remove the newest point until the minimum distance to the point before it is satisfied
+        if (minDist > 0) {
+            while (size >= 2 && pos.rhumbLineDistanceTo(getPosition(size - 2)) < minDist) {
+                size--;
+            }
+        }
+
+        if (size == 0) {
+            base = time;
+        } else if (time - base > Integer.MAX_VALUE) {
+            rebase(time);
+        }
+        if (size == times.length) {
+            resize(Math.max(INITIAL_CAPACITY, times.length * 2));
+        }
+        int i = slot(size++);
+        times[i] = (int) (time - base);
+        lats[i] = (int) Math.round(pos.getLatitude() * SCALE);
+        lons[i] = (int) Math.round(pos.getLongitude() * SCALE);
+        cogs[i] = (short) (vesselPosition.getCog() == null ? 0 : Math.round(vesselPosition.getCog() * 10));
+        sogs[i] = (short) (vesselPosition.getSog() == null ? 0 : Math.round(vesselPosition.getSog() * 10));
+        modCount++;
+    }
+
+    public void cleanup(int ttl) {
+        long now = System.currentTimeMillis();
+        while (size > 0 && (int) ((now - getTime(0)) / 1000) > ttl) {
+            head = slot(1);
+            size--;
+            modCount++;
+        }
+        if (times.length > INITIAL_CAPACITY && size < times.length / 4) {
+            resize(times.length / 2);
+        }
+    }
+
+    public List<PastTrackPoint> getPoints() {
+        List<PastTrackPoint> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int s = slot(i);
+            list.add(new PastTrackPoint(base + times[s], lats[s] / SCALE, lons[s] / SCALE, cogs[s] / 10.0,
+                    sogs[s] / 10.0));
+        }
+        return list;
+    }
+
+    /**
+     * Returns the number of points.
+     *
+     * @return the number of points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a cursor over the points, the oldest first. The cursor reads the arrays of the track, so the track must
+     * not be changed while it is used.
+     *
+     * @return a cursor over the points
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    private int slot(int index) {
+        int i = head + index;
+        return i < times.length ? i : i - times.length;
+    }
+
+    private long getTime(int index) {
+        return base + times[slot(index)];
+    }
+
+    private Position getPosition(int index) {
+        int s = slot(index);
+        return Position.create(lats[s] / SCALE, lons[s] / SCALE);
+    }
+
+    /**
+     * Makes the times relative to the oldest point, removing points that are too old for the specified time to be
+     * relative to the oldest point.
+     */
+    private void rebase(long time) {
+        while (size > 0 && time - getTime(0) > Integer.MAX_VALUE) {
+            head = slot(1);
+            size--;
+        }
+        long newBase = size == 0 ? time : getTime(0);
+        for (int i = 0; i < size; i++) {
+            int s = slot(i);
+            times[s] = (int) (base + times[s] - newBase);
+        }
+        base = newBase;
+    }
+
+    /** Moves the points to arrays of the specified capacity, with the oldest point first. */
+    private void resize(int capacity) {
+        // The points move to other slots, so cursors must fail
+        modCount++;
+        int first = Math.min(size, times.length - head);
+        times = unwrap(times, new int[capacity], first);
+        lats = unwrap(lats, new int[capacity], first);
+        lons = unwrap(lons, new int[capacity], first);
+        cogs = unwrap(cogs, new short[capacity], first);
+        sogs = unwrap(sogs, new short[capacity], first);
+        head = 0;
+    }
+
+    /** Copies the points from the head of an array, where the first points are before the end of the array. */
+    private <T> T unwrap(T from, T to, int first) {
+        System.arraycopy(from, head, to, 0, first);
+        System.arraycopy(from, 0, to, first, size - first);
+        return to;
+    }
+
+    /**
+     * Reads the points of the track one at a time, without creating objects.
+     */
+    public final class Cursor {
+
+        private final int expectedModCount = modCount;
+
+        /** The index of the current point, -1 before the first point. */
+        private int index = -1;
+
+        private int slot;
+
+        private Cursor() {}
+
+        /**
+         * Moves to the next point.
+         *
+         * @return true if there is a next point, false if there are no more points
+         * @throws ConcurrentModificationException
+         *             if the track has changed since the cursor was created
+         */
+        public boolean next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            } else if (index + 1 >= size) {
+                return false;
+            }
+            slot = slot(++index);
+            return true;
+        }
+
+        public long getTime() {
+            return base + times[slot];
+        }
+
+        public double getLat() {
+            return lats[slot] / SCALE;
+        }
+
+        public double getLon() {
+            return lons[slot] / SCALE;
+        }
+
+        public double getCog() {
+            return cogs[slot] / 10.0;
+        }
+
+        public double getSog() {
+            return sogs[slot] / 10.0;
+        }
+    }
+}
@@ -14,9 +14,6 @@
  */
 package dk.dma.ais.filter;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 import net.jcip.annotations.ThreadSafe;
 import dk.dma.ais.message.AisMessage;
 
@@ -42,12 +39,12 @@ public class DownSampleFilter extends MessageFilterBase {
     /**
      * Map from MMSI to last time a pos report was received
      */
-    private final Map<Integer, Long> posReceived = new ConcurrentHashMap<>();
+    private final SampleTimeMap posReceived = new SampleTimeMap();
 
     /**
      * Map from MMSI to last time a static report was received
      */
-    private final Map<Integer, Long> statReceived = new ConcurrentHashMap<>();
+    private final SampleTimeMap statReceived = new SampleTimeMap();
 
     /**
      * Empty contructor
@@ -91,29 +88,11 @@ public class DownSampleFilter extends MessageFilterBase {
             return false;
         }
 
-        Long now = System.currentTimeMillis();
-        Long lastReceived = null;
-
-        // Get last received
-        Map<Integer, Long> receiveSet = posReport ? posReceived : statReceived;
-        lastReceived = receiveSet.get(message.getUserId());
-        if (lastReceived == null) {
-            lastReceived = 0L;
-        }
-
-        // Elapsed in seconds
-        double elapsed = (now - lastReceived) / 1000.0;
-
-        // Sample message
-        if (elapsed < samplingRate) {
-            return true;
-        }
-
-        // Mark new received time
-        receiveSet.put(message.getUserId(), now);
+        long now = System.currentTimeMillis();
 
-        // Do not filter
-        return false;
+        // Sample message, marking new received time if not filtered
+        SampleTimeMap receiveSet = posReport ? posReceived : statReceived;
+        return receiveSet.isSampled(message.getUserId(), now, samplingRate * 1000);
     }
 
     /**
@@ -135,4 +114,22 @@ public class DownSampleFilter extends MessageFilterBase {
         this.samplingRate = samplingRate;
     }
 
+    /**
+     * Get the number of MMSI numbers currently remembered for position and static reports
+     * 
+     * @return
+     */
+    public int getNumberOfEntries() {
+        return posReceived.size() + statReceived.size();
+    }
+
+    /**
+     * Get the number of MMSI numbers forgotten because no report was received within the sampling rate
+     * 
+     * @return
+     */
+    public long getNumberOfEvictions() {
+        return posReceived.getEvictions() + statReceived.getEvictions();
+    }
+
 }
@@ -14,12 +14,6 @@
  */
 package dk.dma.ais.filter;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-
-import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import dk.dma.ais.message.AisMessage;
 
@@ -29,145 +23,96 @@ import dk.dma.ais.message.AisMessage;
  * The doublet filter works by only allowing the same message through once in a time window. The six bit string of the message is
  * used as unique identifier.
  * 
+ * The six bit strings are remembered by a 64-bit fingerprint in a bounded time wheel, see {@link DuplicateWindow}. With exact
+ * comparison enabled the six bit strings are also compared, so two different messages with the same fingerprint are never
+ * mistaken for doublets.
+ * 
  */
 @ThreadSafe
 public class DuplicateFilter extends MessageFilterBase {
 
     /**
-     * Number of message receptions between cleanups
+     * The received six bit strings, a default window size of 10 seconds is used
      */
-    private static final long MAX_CLEANUP_AGE = 10000;
+    private final DuplicateWindow window;
 
-    /**
-     * A TreeMap is used with raw six bit string as key. compareTo is used which is rather effective for differing messages. Using
-     * HashMap can result in wrong filtering as two strings can produce the same hash code.
-     */
-    @GuardedBy("this")
-    private final Map<DoubletEntry, Long> sixbitReceived = new TreeMap<>();
+    public DuplicateFilter() {
+        this(10000);
+    }
 
     /**
-     * A default window size of 10 seconds is used
+     * Constructor given window size
+     * 
+     * @param window
+     *            size in milliseconds
      */
-    private volatile long windowSize = 10000;
+    public DuplicateFilter(long windowSize) {
+        this(windowSize, false);
+    }
 
     /**
-     * Number of message receptions since last cleanup
+     * Constructor given window size and whether or not to compare six bit strings exactly
+     * 
+     * @param windowSize
+     *            size in milliseconds
+     * @param exactCompare
+     *            whether or not to compare six bit strings with the same fingerprint
      */
-    private volatile long cleanupAge;
-
-    public DuplicateFilter() {
+    public DuplicateFilter(long windowSize, boolean exactCompare) {
+        this(windowSize, DuplicateWindow.DEFAULT_MAX_ENTRIES, exactCompare);
     }
 
     /**
-     * Constructor given window size
+     * Constructor given window size, maximum number of remembered messages and whether or not to compare six bit
+     * strings exactly
      * 
-     * @param window
+     * @param windowSize
      *            size in milliseconds
+     * @param maxEntries
+     *            the maximum number of messages remembered
+     * @param exactCompare
+     *            whether or not to compare six bit strings with the same fingerprint
      */
-    public DuplicateFilter(long windowSize) {
-        this.windowSize = windowSize;
+    public DuplicateFilter(long windowSize, int maxEntries, boolean exactCompare) {
+        this.window = new DuplicateWindow(windowSize, maxEntries, exactCompare);
     }
 
     @Override
-    public synchronized boolean rejectedByFilter(AisMessage message) {
-        // Get time now
-        Long now = System.currentTimeMillis();
-
-        // Make new entry
-        DoubletEntry newEntry = new DoubletEntry(message.getVdm().getSixbitString(), now);
-
-        // Try to find matching received
-        Long lastReceived = sixbitReceived.get(newEntry);
-        if (lastReceived == null) {
-            lastReceived = 0L;
-        }
-
-        // Elapsed in msecs
-        long elapsed = now - lastReceived;
-
-        if (elapsed < windowSize) {
-            // Doublet within window
-            // System.out.println("Doublet: " + newEntry.getSixbit() +
-            // " elapsed: " + elapsed);
-            return true;
-        }
-
-        // Save message in map
-        sixbitReceived.put(newEntry, now);
-
-        // Update message reception count
-        cleanupAge++;
-
-        // Do cleanup for every 1.000 inserts/updates
-        if (cleanupAge >= MAX_CLEANUP_AGE) {
-            List<DoubletEntry> oldEntries = new ArrayList<>(sixbitReceived.size());
-            // Iterate through all elements
-            for (DoubletEntry entry : sixbitReceived.keySet()) {
-                if (now - entry.getReceived() > windowSize) {
-                    oldEntries.add(entry);
-                }
-            }
-            for (DoubletEntry oldEntry : oldEntries) {
-                sixbitReceived.remove(oldEntry);
-            }
-            cleanupAge = 0;
-        }
-
-        // Send message
-        return false;
+    public boolean rejectedByFilter(AisMessage message) {
+        return window.isDuplicate(message.getVdm().getSixbitString(), System.currentTimeMillis());
     }
 
     public long getWindowSize() {
-        return windowSize;
+        return window.getWindowSize();
     }
 
+    /**
+     * Sets the size of the window in milliseconds. The payloads remembered within the new window are kept.
+     *
+     * @param windowSize
+     *            the size of the window in milliseconds
+     */
     public void setWindowSize(long windowSize) {
-        this.windowSize = windowSize;
+        window.setWindowSize(windowSize);
+    }
+
+    public boolean isExactCompare() {
+        return window.isExact();
     }
 
     /**
-     * An entry class with sixbit string and reception date
+     * Returns the number of messages currently remembered, including expired messages not yet cleared
      */
-    public class DoubletEntry implements Comparable<DoubletEntry> {
-
-        private String sixbit;
-        private long received;
-
-        public DoubletEntry(String sixbit, long received) {
-            this.sixbit = sixbit;
-            this.received = received;
-        }
-
-        /**
-         * Comparison is done only on six bit string
-         */
-        @Override
-        public int compareTo(DoubletEntry doubletEntry) {
-            return sixbit.compareTo(doubletEntry.sixbit);
-        }
-
-        public long getReceived() {
-            return received;
-        }
-
-        public String getSixbit() {
-            return sixbit;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            DoubletEntry e = (DoubletEntry)obj;
-            if (e == null || e.sixbit == null) {
-                return false;
-            }
-            return sixbit.equals(((DoubletEntry) obj).sixbit);
-        }
-
-        @Override
-        public int hashCode() {
-            return sixbit.hashCode();
-        }
+    public int getNumberOfEntries() {
+        return window.size();
+    }
 
+    /**
+     * Returns the number of accepted messages that could not be remembered because the maximum number of entries was
+     * reached
+     */
+    public long getOverflows() {
+        return window.getOverflows();
     }
 
 }
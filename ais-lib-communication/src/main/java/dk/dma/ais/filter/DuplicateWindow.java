@@ -0,0 +1,371 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.filter;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Remembers the payloads seen within a time window, used by {@link DuplicateFilter} and {@link ReplayDuplicateFilter}.
+ * <p>
+ * Payloads are keyed on a 64-bit fingerprint. The fingerprints are split into independently locked stripes, and each
+ * stripe is a time wheel of {@value #GENERATIONS} open addressing tables, each holding the payloads accepted during
+ * one tick of the wheel. A tick is a third of the window, so when the wheel turns the table of the oldest tick only
+ * holds entries older than the window and is cleared in one go, instead of scanning all entries for old ones. When
+ * the size of the window changes, the entries still within the new window are moved into a wheel with the new tick.
+ * <p>
+ * The number of entries is bounded. If the table of the current tick is full, accepted payloads are not remembered
+ * and may let a duplicate through, which is counted by {@link #getOverflows()}. Two different payloads with the same
+ * fingerprint are treated as duplicates unless exact comparison is enabled, in which case the payloads are kept and
+ * compared as well.
+ */
+@ThreadSafe
+final class DuplicateWindow {
+
+    /** The default maximum number of entries remembered. */
+    static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+
+    /** The number of tables in the time wheel of each stripe. */
+    static final int GENERATIONS = 4;
+
+    /** The number of stripes, must be a power of two. */
+    private static final int STRIPES = 16;
+
+    /** The initial capacity of each table. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /** Whether or not to compare the payloads of entries with the same fingerprint. */
+    private final boolean exact;
+
+    private volatile long windowSize;
+
+    /**
+     * Creates a new window.
+     *
+     * @param windowSize
+     *            the size of the window in milliseconds
+     * @param maxEntries
+     *            the maximum number of entries remembered
+     * @param exact
+     *            whether or not to compare payloads with the same fingerprint
+     */
+    DuplicateWindow(long windowSize, int maxEntries, boolean exact) {
+        if (maxEntries < STRIPES * GENERATIONS) {
+            throw new IllegalArgumentException("maxEntries must be at least " + STRIPES * GENERATIONS);
+        }
+        this.windowSize = windowSize;
+        this.exact = exact;
+        // Tables are at most half full, so each table has twice the capacity of the entries it holds
+        int maxCapacity = Integer.highestOneBit(maxEntries / (STRIPES * GENERATIONS) * 2 - 1) << 1;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(exact, maxCapacity);
+        }
+    }
+
+    long getWindowSize() {
+        return windowSize;
+    }
+
+    void setWindowSize(long windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Returns whether or not the specified payload has been accepted within the window before the specified time. If
+     * not, the payload is accepted and remembered at the specified time.
+     *
+     * @param payload
+     *            the payload
+     * @param now
+     *            the current time in milliseconds
+     * @return true if the payload is a duplicate, otherwise false
+     */
+    boolean isDuplicate(String payload, long now) {
+        long fingerprint = fingerprint(payload);
+        Stripe s = stripes[(int) (fingerprint >>> 60) & STRIPES - 1];
+        synchronized (s) {
+            return s.isDuplicate(fingerprint, exact ? payload : null, now, windowSize);
+        }
+    }
+
+    /**
+     * Returns the number of entries currently remembered. Stripes turn their wheel when accessed, so this includes
+     * expired entries of stripes that have not been accessed since they expired.
+     */
+    int size() {
+        int size = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                for (Table t : s.tables) {
+                    size += t.size;
+                }
+            }
+        }
+        return size;
+    }
+
+    /** Returns the number of accepted payloads that could not be remembered because the window was full. */
+    long getOverflows() {
+        long overflows = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                overflows += s.overflows;
+            }
+        }
+        return overflows;
+    }
+
+    /** Returns a 64-bit fingerprint of the specified payload, never 0. */
+    static long fingerprint(String payload) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < payload.length(); i++) {
+            h = (h ^ payload.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    /** A time wheel of tables. */
+    static final class Stripe {
+
+        @GuardedBy("this")
+        final Table[] tables = new Table[GENERATIONS];
+
+        /** The index of the table of the current tick. */
+        @GuardedBy("this")
+        private int current;
+
+        /** The start of the current tick. */
+        @GuardedBy("this")
+        private long tickStart = Long.MIN_VALUE;
+
+        /** The length of a tick, derived from the size of the window. */
+        @GuardedBy("this")
+        private long tick;
+
+        /** The size of the window the tick is derived from. */
+        @GuardedBy("this")
+        private long windowSize = -1;
+
+        @GuardedBy("this")
+        long overflows;
+
+        Stripe(boolean exact, int maxCapacity) {
+            for (int i = 0; i < GENERATIONS; i++) {
+                tables[i] = new Table(exact, maxCapacity);
+            }
+        }
+
+        boolean isDuplicate(long fingerprint, String payload, long now, long windowSize) {
+            advance(now, windowSize);
+            // The newest entry decides, older entries of the same payload are even older
+            for (int i = 0; i < GENERATIONS; i++) {
+                long received = tables[(current - i + GENERATIONS) % GENERATIONS].get(fingerprint, payload);
+                if (received != Long.MIN_VALUE) {
+                    if (now - received < windowSize) {
+                        return true;
+                    }
+                    break;
+                }
+            }
+            if (!tables[current].put(fingerprint, payload, now)) {
+                overflows++;
+            }
+            return false;
+        }
+
+        /** Turns the wheel to the tick of the specified time, clearing the tables of expired ticks. */
+        private void advance(long now, long windowSize) {
+            // Start over if time goes back more than a window, as when a replay restarts
+            if (this.windowSize < 0 || now - tickStart < -windowSize) {
+                for (Table t : tables) {
+                    t.clear();
+                }
+                start(now, windowSize);
+                return;
+            } else if (windowSize != this.windowSize) {
+                rewheel(now, windowSize);
+                return;
+            }
+            long elapsed = now - tickStart;
+            if (elapsed >= tick) {
+                long ticks = elapsed / tick;
+                for (int i = 0; i < Math.min(ticks, GENERATIONS); i++) {
+                    current = (current + 1) % GENERATIONS;
+                    tables[current].clear();
+                }
+                tickStart += ticks * tick;
+            }
+        }
+
+        /** Starts the wheel with the tick of the specified window at the specified time. */
+        private void start(long now, long windowSize) {
+            this.windowSize = windowSize;
+            this.tick = Math.max(1, (windowSize + GENERATIONS - 2) / (GENERATIONS - 1));
+            this.tickStart = now;
+        }
+
+        /**
+         * Moves the entries within the specified window into the tables of their ticks in a wheel with the tick of that
+         * window, starting at the specified time.
+         */
+        private void rewheel(long now, long windowSize) {
+            int n = 0;
+            for (Table t : tables) {
+                n += t.size;
+            }
+            long[] fingerprints = new long[n];
+            long[] received = new long[n];
+            String[] payloads = new String[n];
+            n = 0;
+            // Oldest table first, so the newest time of a payload is put last
+            for (int i = 1; i <= GENERATIONS; i++) {
+                Table t = tables[(current + i) % GENERATIONS];
+                for (int j = 0; j < t.fingerprints.length; j++) {
+                    if (t.fingerprints[j] != 0) {
+                        fingerprints[n] = t.fingerprints[j];
+                        received[n] = t.received[j];
+                        payloads[n++] = t.payloads == null ? null : t.payloads[j];
+                    }
+                }
+                t.clear();
+            }
+            start(now, windowSize);
+            for (int i = 0; i < n; i++) {
+                if (now - received[i] < windowSize) {
+                    // At most GENERATIONS - 1 ticks back, as the ticks of the wheel cover the window
+                    int ticksBack = (int) Math.max(0, (now - received[i] + tick - 1) / tick);
+                    if (!tables[(current - ticksBack + GENERATIONS) % GENERATIONS].put(fingerprints[i], payloads[i],
+                            received[i])) {
+                        overflows++;
+                    }
+                }
+            }
+        }
+    }
+
+    /** An open addressing table of fingerprints and the time they were received. */
+    static final class Table {
+
+        private final int maxCapacity;
+
+        private long[] fingerprints;
+
+        private long[] received;
+
+        /** The payloads, or null if payloads are not compared. */
+        private String[] payloads;
+
+        int size;
+
+        Table(boolean exact, int maxCapacity) {
+            int capacity = Math.min(INITIAL_CAPACITY, maxCapacity);
+            this.maxCapacity = maxCapacity;
+            this.fingerprints = new long[capacity];
+            this.received = new long[capacity];
+            this.payloads = exact ? new String[capacity] : null;
+        }
+
+        /** Returns the time the payload was received, or {@link Long#MIN_VALUE} if not in the table. */
+        long get(long fingerprint, String payload) {
+            int mask = fingerprints.length - 1;
+            for (int i = (int) fingerprint & mask;; i = i + 1 & mask) {
+                long f = fingerprints[i];
+                if (f == 0) {
+                    return Long.MIN_VALUE;
+                } else if (f == fingerprint && (payloads == null || payloads[i].equals(payload))) {
+                    return received[i];
+                }
+            }
+        }
+
+        /** Records the time the payload was received, returns false if the table is full. */
+        boolean put(long fingerprint, String payload, long now) {
+            int mask = fingerprints.length - 1;
+            int i = (int) fingerprint & mask;
+            for (long f; (f = fingerprints[i]) != 0; i = i + 1 & mask) {
+                if (f == fingerprint && (payloads == null || payloads[i].equals(payload))) {
+                    received[i] = now;
+                    return true;
+                }
+            }
+            if (size >= fingerprints.length >> 1) {
+                if (fingerprints.length >= maxCapacity) {
+                    return false;
+                }
+                resize(fingerprints.length << 1);
+                return put(fingerprint, payload, now);
+            }
+            fingerprints[i] = fingerprint;
+            received[i] = now;
+            if (payloads != null) {
+                payloads[i] = payload;
+            }
+            size++;
+            return true;
+        }
+
+        /** Removes all entries, shrinking the table if the last tick used little of it. */
+        void clear() {
+            if (size < fingerprints.length >> 3 && fingerprints.length > INITIAL_CAPACITY) {
+                fingerprints = new long[fingerprints.length >> 1];
+                received = new long[fingerprints.length];
+                payloads = payloads == null ? null : new String[fingerprints.length];
+            } else if (size > 0) {
+                Arrays.fill(fingerprints, 0);
+                if (payloads != null) {
+                    Arrays.fill(payloads, null);
+                }
+            }
+            size = 0;
+        }
+
+        private void resize(int capacity) {
+            long[] oldFingerprints = fingerprints;
+            long[] oldReceived = received;
+            String[] oldPayloads = payloads;
+            fingerprints = new long[capacity];
+            received = new long[capacity];
+            payloads = oldPayloads == null ? null : new String[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldFingerprints.length; j++) {
+                long f = oldFingerprints[j];
+                if (f != 0) {
+                    int i = (int) f & mask;
+                    while (fingerprints[i] != 0) {
+                        i = i + 1 & mask;
+                    }
+                    fingerprints[i] = f;
+                    received[i] = oldReceived[j];
+                    if (payloads != null) {
+                        payloads[i] = oldPayloads[j];
+                    }
+                }
+            }
+        }
+    }
+}
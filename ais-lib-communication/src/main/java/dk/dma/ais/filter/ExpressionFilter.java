@@ -31,6 +31,16 @@ public class ExpressionFilter implements IPacketFilter {
         this.predicate = AisPacketFilters.parseExpressionFilter(filter);
     }
 
+    /**
+     * Returns whether the expression has terms on targets, in which case the filter must be given the packets in
+     * order from a single thread.
+     *
+     * @return true if the result for a packet depends on the packets before it
+     */
+    public boolean isStateful() {
+        return AisPacketFilters.isStatefulExpressionFilter(predicate);
+    }
+
     @Override
     public boolean rejectedByFilter(AisPacket packet) {
         return !predicate.test(packet);
@@ -14,10 +14,13 @@
  */
 package dk.dma.ais.filter;
 
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.message.IPositionMessage;
 import dk.dma.ais.packet.AisPacket;
-import dk.dma.ais.packet.AisPacketFilters;
+import dk.dma.ais.packet.AreaIndex;
 import dk.dma.enav.model.geometry.BoundingBox;
-import java.util.function.Predicate;
+import dk.dma.enav.model.geometry.Position;
 
 import java.util.List;
 
@@ -25,28 +28,20 @@ import java.util.List;
  * The GeoMaskFilter is instantiated with a number of BoundingBoxes. It is a stateless filter, which ensures,
  * that if an AisPacket passed to the filter is positively known to origin from inside one of these bounding
  * boxes, then it is rejected.
+ * <p>
+ * The bounding boxes are kept in an {@link AreaIndex}, so the cost of filtering a packet does not grow with the
+ * number of bounding boxes.
  *
  * @author Thomas Borg Salling <tbsalling@tbsalling.dk>
  */
 public class GeoMaskFilter implements IPacketFilter {
 
-    final Predicate<AisPacket> blocked;
+    final AreaIndex blocked;
     final List<BoundingBox> suppressedBoundingBoxes;
 
     public GeoMaskFilter(List<BoundingBox> suppressedBoundingBoxes) {
         this.suppressedBoundingBoxes = suppressedBoundingBoxes;
-
-        Predicate<AisPacket> oredPredicates = null;
-
-        for (BoundingBox bbox : suppressedBoundingBoxes) {
-            if (oredPredicates == null) {
-                oredPredicates = AisPacketFilters.filterOnMessagePositionWithin(bbox);
-            } else {
-                oredPredicates = oredPredicates.or(AisPacketFilters.filterOnMessagePositionWithin(bbox));
-            }
-        }
-
-        this.blocked = oredPredicates;
+        this.blocked = AreaIndex.create(suppressedBoundingBoxes);
     }
 
     public List<BoundingBox> getSuppressedBoundingBoxes() {
@@ -55,6 +50,14 @@ public class GeoMaskFilter implements IPacketFilter {
 
     @Override
     public boolean rejectedByFilter(AisPacket aisPacket) {
-        return blocked.test(aisPacket);
+        AisMessage message = aisPacket.tryGetAisMessage();
+        if (message instanceof IPositionMessage) {
+            AisPosition pos = ((IPositionMessage) message).getPos();
+            if (pos != null) {
+                Position p = pos.getGeoLocation();
+                return p != null && blocked.test(p);
+            }
+        }
+        return false;
     }
 }
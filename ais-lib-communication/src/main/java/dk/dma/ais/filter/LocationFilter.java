@@ -14,19 +14,27 @@
  */
 package dk.dma.ais.filter;
 
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
+import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.message.IPositionMessage;
+import dk.dma.ais.packet.AreaIndex;
+import dk.dma.enav.model.geometry.Area;
 import dk.dma.enav.model.geometry.Position;
 import java.util.function.Predicate;
 
 /**
  * Simple filtering based on the location of targets. Filtered on a list of geometries.
+ * <p>
+ * Geometries added as areas are kept in an {@link AreaIndex}, so only the areas near the location of a target are
+ * tested. Other geometries are tested for every message.
  */
 @ThreadSafe
 public class LocationFilter extends MessageFilterBase {
@@ -37,13 +45,26 @@ public class LocationFilter extends MessageFilterBase {
     private Map<Integer, Position> posMap = new ConcurrentHashMap<>();
 
     /**
-     * List of geometries
+     * List of areas
+     */
+    @GuardedBy("this")
+    private final List<Area> areas = new ArrayList<>();
+
+    /**
+     * List of geometries that are not areas
+     */
+    @GuardedBy("this")
+    private final List<Predicate<? super Position>> geomtries = new ArrayList<>();
+
+    /**
+     * Index of all areas and geometries, null if there are none
      */
-    private List<Predicate<? super Position>> geomtries = new CopyOnWriteArrayList<>();
+    private volatile AreaIndex index;
 
     @Override
     public boolean rejectedByFilter(AisMessage message) {
-        if (geomtries.size() == 0) {
+        AreaIndex index = this.index;
+        if (index == null) {
             return false;
         }
 
@@ -60,17 +81,17 @@ public class LocationFilter extends MessageFilterBase {
             return true;
         }
 
-        for (Predicate<? super Position> geometry : geomtries) {
-            if (geometry.test(loc)) {
-                return false;
-            }
-        }
+        return !index.test(loc);
+    }
 
-        return true;
+    public synchronized void addFilterGeometry(Predicate<? super Position> geometry) {
+        geomtries.add(requireNonNull(geometry));
+        index = AreaIndex.create(areas, geomtries);
     }
 
-    public void addFilterGeometry(Predicate<? super Position> geometry) {
-        geomtries.add(geometry);
+    public synchronized void addFilterGeometry(Area area) {
+        areas.add(requireNonNull(area));
+        index = AreaIndex.create(areas, geomtries);
     }
 
 }
@@ -20,9 +20,6 @@ import dk.dma.ais.message.IPositionMessage;
 import dk.dma.ais.packet.AisPacket;
 import net.jcip.annotations.ThreadSafe;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
  * A down sampling filter.
  * <p/>
@@ -47,12 +44,12 @@ public class ReplayDownSampleFilter implements IPacketFilter {
     /**
      * Map from MMSI to last time a pos report was received
      */
-    private final Map<Integer, Long> posReceived = new ConcurrentHashMap<>();
+    private final SampleTimeMap posReceived = new SampleTimeMap();
 
     /**
      * Map from MMSI to last time a static report was received
      */
-    private final Map<Integer, Long> statReceived = new ConcurrentHashMap<>();
+    private final SampleTimeMap statReceived = new SampleTimeMap();
 
     /**
      * Empty contructor
@@ -99,28 +96,10 @@ public class ReplayDownSampleFilter implements IPacketFilter {
         }
 
         long now = packet.getBestTimestamp();
-        Long lastReceived = null;
-
-        // Get last received
-        Map<Integer, Long> receiveSet = posReport ? posReceived : statReceived;
-        lastReceived = receiveSet.get(message.getUserId());
-        if (lastReceived == null) {
-            lastReceived = 0L;
-        }
-
-        // Elapsed in seconds
-        double elapsed = (now - lastReceived) / 1000.0;
-
-        // Sample message
-        if (elapsed < samplingRate) {
-            return true;
-        }
-
-        // Mark new received time
-        receiveSet.put(message.getUserId(), now);
 
-        // Do not filter
-        return false;
+        // Sample message, marking new received time if not filtered
+        SampleTimeMap receiveSet = posReport ? posReceived : statReceived;
+        return receiveSet.isSampled(message.getUserId(), now, samplingRate * 1000);
     }
 
     /**
@@ -142,4 +121,22 @@ public class ReplayDownSampleFilter implements IPacketFilter {
         this.samplingRate = samplingRate;
     }
 
+    /**
+     * Get the number of MMSI numbers currently remembered for position and static reports
+     * 
+     * @return
+     */
+    public int getNumberOfEntries() {
+        return posReceived.size() + statReceived.size();
+    }
+
+    /**
+     * Get the number of MMSI numbers forgotten because no report was received within the sampling rate
+     * 
+     * @return
+     */
+    public long getNumberOfEvictions() {
+        return posReceived.getEvictions() + statReceived.getEvictions();
+    }
+
 }
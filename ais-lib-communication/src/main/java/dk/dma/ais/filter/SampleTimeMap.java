@@ -0,0 +1,212 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.filter;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A concurrent map from MMSI number to the time a message was last sampled, used by {@link DownSampleFilter} and
+ * {@link ReplayDownSampleFilter}.
+ * <p>
+ * Keys and times are kept in primitive arrays of independently locked stripes, using open addressing with linear
+ * probing, so sampling a message does not box or allocate. An entry older than the sampling interval no longer
+ * affects sampling, so such entries are evicted when a stripe has not been swept for an interval. Memory is therefore
+ * bounded by the number of distinct MMSI numbers seen within an interval, not by all MMSI numbers ever seen.
+ */
+@ThreadSafe
+final class SampleTimeMap {
+
+    /** The number of stripes, must be a power of two. */
+    private static final int STRIPES = 16;
+
+    /** The initial capacity of each stripe. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Marks free slots, not a valid MMSI number. */
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    SampleTimeMap() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Returns whether or not a message from the specified MMSI number was sampled less than the specified interval
+     * before the specified time. If not, the message is sampled at the specified time.
+     *
+     * @param mmsi
+     *            the MMSI number
+     * @param now
+     *            the current time in milliseconds
+     * @param interval
+     *            the sampling interval in milliseconds
+     * @return true if the message should be down sampled, otherwise false
+     */
+    boolean isSampled(int mmsi, long now, long interval) {
+        if (mmsi == FREE) {
+            throw new IllegalArgumentException("Invalid MMSI number " + mmsi);
+        }
+        if (interval <= 0) {
+            return false;
+        }
+        int hash = hash(mmsi);
+        Stripe s = stripes[hash >>> 28 & STRIPES - 1];
+        synchronized (s) {
+            return s.isSampled(mmsi, hash, now, interval);
+        }
+    }
+
+    /** Returns the number of entries in the map. */
+    int size() {
+        int size = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                size += s.size;
+            }
+        }
+        return size;
+    }
+
+    /** Returns the number of entries evicted since the map was created. */
+    long getEvictions() {
+        long evictions = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                evictions += s.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    private static int hash(int mmsi) {
+        int h = mmsi * 0x9E3779B9;
+        return h ^ h >>> 16;
+    }
+
+    /** An open addressing table of MMSI numbers and sample times. */
+    static final class Stripe {
+
+        @GuardedBy("this")
+        private int[] keys = newKeys(INITIAL_CAPACITY);
+
+        @GuardedBy("this")
+        private long[] times = new long[INITIAL_CAPACITY];
+
+        @GuardedBy("this")
+        int size;
+
+        @GuardedBy("this")
+        long evictions;
+
+        /** The time the stripe was last swept for old entries. */
+        @GuardedBy("this")
+        private long lastSweep = Long.MIN_VALUE;
+
+        boolean isSampled(int mmsi, int hash, long now, long interval) {
+            if (lastSweep == Long.MIN_VALUE || now < lastSweep) {
+                lastSweep = now;
+            } else if (now - lastSweep >= interval) {
+                sweep(now - interval);
+                lastSweep = now;
+            }
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            for (int k; (k = keys[i]) != FREE; i = i + 1 & mask) {
+                if (k == mmsi) {
+                    if (now - times[i] < interval) {
+                        return true;
+                    }
+                    times[i] = now;
+                    return false;
+                }
+            }
+            keys[i] = mmsi;
+            times[i] = now;
+            if (++size > keys.length >> 1) {
+                resize(keys.length << 1);
+            }
+            return false;
+        }
+
+        /** Removes all entries sampled before the specified time. */
+        private void sweep(long time) {
+            int mask = keys.length - 1;
+            int start = 0;
+            while (keys[start] != FREE) {
+                start++; // at most half full, so there is a free slot
+            }
+            // Starting at a free slot no cluster is split by the scan, and removed entries are filled by backward shift
+            for (int n = 0, i = start + 1 & mask; n < keys.length;) {
+                if (keys[i] != FREE && times[i] <= time) {
+                    remove(i);
+                    evictions++;
+                } else {
+                    i = i + 1 & mask;
+                    n++;
+                }
+            }
+            if (size < keys.length >> 3 && keys.length > INITIAL_CAPACITY) {
+                resize(keys.length >> 1);
+            }
+        }
+
+        /** Removes the entry at the specified slot, moving later entries of the cluster back. */
+        private void remove(int slot) {
+            int mask = keys.length - 1;
+            int free = slot;
+            for (int i = slot + 1 & mask; keys[i] != FREE; i = i + 1 & mask) {
+                int home = hash(keys[i]) & mask;
+                // Move the entry to the free slot unless its home slot is cyclically within (free, i]
+                if ((i - home & mask) >= (i - free & mask)) {
+                    keys[free] = keys[i];
+                    times[free] = times[i];
+                    free = i;
+                }
+            }
+            keys[free] = FREE;
+            size--;
+        }
+
+        private void resize(int capacity) {
+            int[] oldKeys = keys;
+            long[] oldTimes = times;
+            keys = newKeys(capacity);
+            times = new long[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != FREE) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (keys[i] != FREE) {
+                        i = i + 1 & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    times[i] = oldTimes[j];
+                }
+            }
+        }
+
+        private static int[] newKeys(int capacity) {
+            int[] keys = new int[capacity];
+            Arrays.fill(keys, FREE);
+            return keys;
+        }
+    }
+}
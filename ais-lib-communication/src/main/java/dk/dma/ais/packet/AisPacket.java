@@ -45,6 +45,8 @@ public class AisPacket implements Comparable<AisPacket> {
     private transient Vdm vdm;
     private transient AisPacketTags tags;
     private AisMessage message;
+    /** Whether decoding the message has failed, so filters do not attempt it again for every term. */
+    private transient boolean invalidMessage;
     private volatile long timestamp = Long.MIN_VALUE;
 
     private AisPacket(String stringMessage) {
@@ -129,9 +131,13 @@ public class AisPacket implements Comparable<AisPacket> {
 
     // TODO fizx
     public AisMessage tryGetAisMessage() {
+        if (invalidMessage) {
+            return null;
+        }
         try {
             return getAisMessage();
         } catch (AisMessageException | SixbitException ignore) {
+            invalidMessage = true;
             return null;
         }
     }
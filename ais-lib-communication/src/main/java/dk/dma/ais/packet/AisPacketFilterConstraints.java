@@ -0,0 +1,331 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import net.jcip.annotations.Immutable;
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.message.IPositionMessage;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * The analysable form of an expression filter, see {@link AisPacketFilters#analyseExpressionFilter(String)}. The
+ * constraints are a conjunction of a time interval, a set of MMSI numbers, a set of message ids, a set of source ids
+ * and a bounding box of positions, each of which may be absent. Every packet accepted by the filter satisfies the
+ * constraints, so readers and archives with summary metadata can use them to skip data that cannot match. The time
+ * interval applies to {@link AisPacket#getTimestamp()}, as the date predicates of the filter do, so a packet without a
+ * timestamp does not satisfy a time constraint.
+ * <p>
+ * The parts of the filter that are not represented exactly by the constraints are kept in the
+ * {@link #getResidual() residual}, such that a packet is accepted by the filter if and only if it satisfies both the
+ * constraints and the residual.
+ */
+@Immutable
+public final class AisPacketFilterConstraints {
+
+    /** Ranges of MMSI numbers or message ids larger than this are not expanded into sets. */
+    static final int MAX_RANGE_EXPANSION = 1024;
+
+    /** Constraints that accept every packet. */
+    static final AisPacketFilterConstraints UNCONSTRAINED = new AisPacketFilterConstraints(Long.MIN_VALUE,
+            Long.MAX_VALUE, null, null, null, null, null);
+
+    /** The inclusive start of the time interval. */
+    private final long start;
+
+    /** The exclusive end of the time interval. */
+    private final long end;
+
+    /** The sorted MMSI numbers, or null if not constrained. */
+    private final int[] mmsi;
+
+    /** The sorted message ids, or null if not constrained. */
+    private final int[] messageIds;
+
+    /** The sorted source ids, or null if not constrained. */
+    private final String[] sourceIds;
+
+    /** The bounding box of positions, or null if not constrained. */
+    private final BoundingBox area;
+
+    /** The part of the filter not represented by the constraints, or null if there is none. */
+    private final Predicate<AisPacket> residual;
+
+    AisPacketFilterConstraints(long start, long end, int[] mmsi, int[] messageIds, String[] sourceIds,
+            BoundingBox area, Predicate<AisPacket> residual) {
+        this.start = start;
+        this.end = end;
+        this.mmsi = mmsi;
+        this.messageIds = messageIds;
+        this.sourceIds = sourceIds;
+        this.area = area;
+        this.residual = residual;
+    }
+
+    /** Returns the inclusive start of the time interval, {@link Long#MIN_VALUE} if there is no lower bound. */
+    public long getStart() {
+        return start;
+    }
+
+    /** Returns the exclusive end of the time interval, {@link Long#MAX_VALUE} if there is no upper bound. */
+    public long getEnd() {
+        return end;
+    }
+
+    /** Returns whether or not the time of packets is constrained. */
+    public boolean hasTimeConstraint() {
+        return start != Long.MIN_VALUE || end != Long.MAX_VALUE;
+    }
+
+    /** Returns the MMSI numbers packets must be from, or null if not constrained. */
+    public int[] getMmsi() {
+        return mmsi == null ? null : mmsi.clone();
+    }
+
+    /** Returns the message ids packets must have, or null if not constrained. */
+    public int[] getMessageIds() {
+        return messageIds == null ? null : messageIds.clone();
+    }
+
+    /** Returns the source ids packets must have, or null if not constrained. */
+    public String[] getSourceIds() {
+        return sourceIds == null ? null : sourceIds.clone();
+    }
+
+    /** Returns the bounding box positions of packets must be within, or null if not constrained. */
+    public BoundingBox getArea() {
+        return area;
+    }
+
+    /**
+     * Returns the part of the filter not represented by the constraints. Packets known to satisfy the constraints
+     * only need to be tested against the residual.
+     *
+     * @return the residual filter
+     */
+    public Predicate<AisPacket> getResidual() {
+        return residual == null ? p -> true : residual;
+    }
+
+    /** Returns whether or not the filter is fully represented by the constraints. */
+    public boolean isExact() {
+        return residual == null;
+    }
+
+    /** Returns whether or not no packet can satisfy the constraints. */
+    public boolean isUnsatisfiable() {
+        return start >= end || mmsi != null && mmsi.length == 0 || messageIds != null && messageIds.length == 0
+                || sourceIds != null && sourceIds.length == 0;
+    }
+
+    /**
+     * Returns whether or not the specified packet satisfies the constraints, ignoring the residual.
+     *
+     * @param packet
+     *            the packet to test
+     * @return whether or not the packet satisfies the constraints
+     */
+    public boolean test(AisPacket packet) {
+        if (isUnsatisfiable()) {
+            return false;
+        }
+        if (hasTimeConstraint()) {
+            // The same timestamp as the m.year predicates the interval is derived from
+            Date timestamp = packet.getTimestamp();
+            if (timestamp == null || timestamp.getTime() < start || timestamp.getTime() >= end) {
+                return false;
+            }
+        }
+        if (sourceIds != null) {
+            String sourceId = packet.getTags().getSourceId();
+            if (sourceId == null || Arrays.binarySearch(sourceIds, sourceId) < 0) {
+                return false;
+            }
+        }
+        if (mmsi != null || messageIds != null || area != null) {
+            AisMessage m = packet.tryGetAisMessage();
+            if (m == null || mmsi != null && Arrays.binarySearch(mmsi, m.getUserId()) < 0 || messageIds != null
+                    && Arrays.binarySearch(messageIds, m.getMsgId()) < 0) {
+                return false;
+            }
+            if (area != null) {
+                if (!(m instanceof IPositionMessage)) {
+                    return false;
+                }
+                AisPosition pos = ((IPositionMessage) m).getPos();
+                Position p = pos == null ? null : pos.getGeoLocation();
+                if (p == null || !area.contains(p)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a predicate equivalent to the analysed filter, testing the constraints before the residual.
+     *
+     * @return a predicate equivalent to the analysed filter
+     */
+    public Predicate<AisPacket> toPredicate() {
+        if (residual == null) {
+            return this::test;
+        }
+        return p -> test(p) && residual.test(p);
+    }
+
+    /** Returns constraints satisfied by packets satisfying both this and the specified constraints. */
+    AisPacketFilterConstraints and(AisPacketFilterConstraints other) {
+        Predicate<AisPacket> r = residual == null ? other.residual : other.residual == null ? residual : residual
+                .and(other.residual);
+        BoundingBox a = area == null ? other.area : other.area == null ? area : intersect(area, other.area);
+        long s = Math.max(start, other.start);
+        long e = Math.min(end, other.end);
+        if (area != null && other.area != null && a == null) {
+            // No position can be in both areas
+            e = s;
+        }
+        return new AisPacketFilterConstraints(s, e, intersect(mmsi, other.mmsi), intersect(messageIds,
+                other.messageIds), intersect(sourceIds, other.sourceIds), a, r);
+    }
+
+    /**
+     * Returns constraints satisfied by packets satisfying either this or the specified constraints. The constraints
+     * of a disjunction are not exact, so the residual is the specified predicate of the disjunction.
+     */
+    AisPacketFilterConstraints or(AisPacketFilterConstraints other, Predicate<AisPacket> disjunction) {
+        if (isUnsatisfiable()) {
+            return other.withResidual(disjunction);
+        } else if (other.isUnsatisfiable()) {
+            return withResidual(disjunction);
+        }
+        BoundingBox a = area == null || other.area == null ? null : area.include(other.area);
+        return new AisPacketFilterConstraints(Math.min(start, other.start), Math.max(end, other.end), union(mmsi,
+                other.mmsi), union(messageIds, other.messageIds), union(sourceIds, other.sourceIds), a, disjunction);
+    }
+
+    /** Returns these constraints with the specified residual. */
+    AisPacketFilterConstraints withResidual(Predicate<AisPacket> residual) {
+        return new AisPacketFilterConstraints(start, end, mmsi, messageIds, sourceIds, area, residual);
+    }
+
+    /** Returns the intersection of the specified areas, or null if they are disjoint. */
+    private static BoundingBox intersect(BoundingBox a, BoundingBox b) {
+        double minLat = Math.max(a.getMinLat(), b.getMinLat());
+        double maxLat = Math.min(a.getMaxLat(), b.getMaxLat());
+        double minLon = Math.max(a.getMinLon(), b.getMinLon());
+        double maxLon = Math.min(a.getMaxLon(), b.getMaxLon());
+        if (minLat > maxLat || minLon > maxLon) {
+            return null;
+        }
+        return BoundingBox.create(Position.create(minLat, minLon), Position.create(maxLat, maxLon),
+                CoordinateSystem.CARTESIAN);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        return Arrays.stream(a).filter(i -> Arrays.binarySearch(b, i) >= 0).toArray();
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return Arrays.stream(result).sorted().distinct().toArray();
+    }
+
+    private static String[] intersect(String[] a, String[] b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        return Arrays.stream(a).filter(s -> Arrays.binarySearch(b, s) >= 0).toArray(String[]::new);
+    }
+
+    private static String[] union(String[] a, String[] b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        TreeSet<String> result = new TreeSet<>(Arrays.asList(a));
+        result.addAll(Arrays.asList(b));
+        return result.toArray(new String[result.size()]);
+    }
+
+    /** Returns constraints on the MMSI number. */
+    static AisPacketFilterConstraints ofMmsi(int... mmsi) {
+        return new AisPacketFilterConstraints(Long.MIN_VALUE, Long.MAX_VALUE, sorted(mmsi), null, null, null, null);
+    }
+
+    /** Returns constraints on the message id. */
+    static AisPacketFilterConstraints ofMessageIds(int... messageIds) {
+        return new AisPacketFilterConstraints(Long.MIN_VALUE, Long.MAX_VALUE, null, sorted(messageIds), null, null,
+                null);
+    }
+
+    /** Returns constraints on the source id. */
+    static AisPacketFilterConstraints ofSourceIds(String... sourceIds) {
+        String[] s = new TreeSet<>(Arrays.asList(sourceIds)).toArray(new String[0]);
+        return new AisPacketFilterConstraints(Long.MIN_VALUE, Long.MAX_VALUE, null, null, s, null, null);
+    }
+
+    /** Returns constraints on the time of packets. */
+    static AisPacketFilterConstraints ofTime(long start, long end) {
+        return new AisPacketFilterConstraints(start, end, null, null, null, null, null);
+    }
+
+    /** Returns constraints on the position of packets. */
+    static AisPacketFilterConstraints ofArea(BoundingBox area) {
+        return new AisPacketFilterConstraints(Long.MIN_VALUE, Long.MAX_VALUE, null, null, null, requireNonNull(area),
+                null);
+    }
+
+    private static int[] sorted(int[] values) {
+        return Arrays.stream(values).sorted().distinct().toArray();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("AisPacketFilterConstraints [");
+        if (hasTimeConstraint()) {
+            sb.append("time=").append(start).append("..").append(end).append(", ");
+        }
+        if (mmsi != null) {
+            sb.append("mmsi=").append(Arrays.toString(mmsi)).append(", ");
+        }
+        if (messageIds != null) {
+            sb.append("messageIds=").append(Arrays.toString(messageIds)).append(", ");
+        }
+        if (sourceIds != null) {
+            sb.append("sourceIds=").append(Arrays.toString(sourceIds)).append(", ");
+        }
+        if (area != null) {
+            sb.append("area=").append(area).append(", ");
+        }
+        return sb.append("residual=").append(residual).append("]").toString();
+    }
+}
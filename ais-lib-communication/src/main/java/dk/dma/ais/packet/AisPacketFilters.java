@@ -32,6 +32,7 @@ import dk.dma.enav.model.geometry.PositionTime;
 
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.function.Predicate;
 
@@ -187,12 +188,14 @@ public class AisPacketFilters extends AisPacketFiltersBase {
 
     public static Predicate<AisPacket> filterOnMessagePositionWithin(final Area area) {
         requireNonNull(area);
+        // Tests the bounding box of the area before the area itself
+        final AreaIndex index = AreaIndex.create(Collections.singletonList(area));
         return filterOnMessageType(IPositionMessage.class, new Predicate<IPositionMessage>() {
             public boolean test(IPositionMessage element) {
                 AisPosition pos = element.getPos();
                 if (pos != null) {
                     Position p = pos.getGeoLocation();
-                    return p != null && area.contains(p);
+                    return p != null && index.test(p);
                 }
                 return false;
             }
@@ -213,6 +216,7 @@ public class AisPacketFilters extends AisPacketFiltersBase {
 
     public static Predicate<AisPacket> filterRelaxedOnMessagePositionWithin(final Area area) {
         requireNonNull(area);
+        final AreaIndex index = AreaIndex.create(Collections.singletonList(area));
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket packet) {
                 Position position = null;
@@ -220,7 +224,7 @@ public class AisPacketFilters extends AisPacketFiltersBase {
                 if (message instanceof IPositionMessage) {
                     position = ((IPositionMessage) message).getPos().getGeoLocation();
                 }
-                return position == null ? true : area.contains(position);
+                return position == null ? true : index.test(position);
             }
 
             public String toString() {
@@ -582,12 +586,13 @@ public class AisPacketFilters extends AisPacketFiltersBase {
 
     public static Predicate<AisPacket> filterOnMessageNameMatch(String pattern) {
         final String glob = preprocessExpressionString(pattern);
+        final GlobMatcher.PerMmsiCache matcher = new GlobMatcher.PerMmsiCache(GlobMatcher.compile(glob));
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
                 boolean pass = false;
                 AisMessage aisMessage = p.tryGetAisMessage();
                 if (aisMessage instanceof AisStaticCommon) {
-                    pass = matchesGlob(preprocessAisString(((AisStaticCommon) aisMessage).getName()), glob);
+                    pass = matcher.matches(aisMessage.getUserId(), ((AisStaticCommon) aisMessage).getName());
                 }
                 return pass;
             }
@@ -618,12 +623,13 @@ public class AisPacketFilters extends AisPacketFiltersBase {
 
     public static Predicate<AisPacket> filterOnMessageCallsignMatch(String pattern) {
         final String glob = preprocessExpressionString(pattern);
+        final GlobMatcher.PerMmsiCache matcher = new GlobMatcher.PerMmsiCache(GlobMatcher.compile(glob));
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
                 boolean pass = false;
                 AisMessage aisMessage = p.tryGetAisMessage();
                 if (aisMessage instanceof AisStaticCommon) {
-                    pass = matchesGlob(preprocessAisString(((AisStaticCommon) aisMessage).getCallsign()), glob);
+                    pass = matcher.matches(aisMessage.getUserId(), ((AisStaticCommon) aisMessage).getCallsign());
                 }
                 return pass;
             }
@@ -1088,6 +1094,33 @@ public class AisPacketFilters extends AisPacketFiltersBase {
         return AisPacketFiltersExpressionFilterParser.parseExpressionFilter(filter);
     }
 
+    /**
+     * Returns whether a predicate returned by {@link #parseExpressionFilter(String)} has terms on targets
+     * ({@code t.*}). Such a predicate keeps the state of the targets seen, so it is not thread safe and must be given
+     * the packets in the order they are received.
+     *
+     * @param predicate
+     *            the parsed expression filter
+     * @return true if the predicate depends on the packets before the packet tested
+     */
+    public static boolean isStatefulExpressionFilter(Predicate<AisPacket> predicate) {
+        return predicate instanceof ExpressionFilterCompiler.Stateful;
+    }
+
+    /**
+     * Parses an expression filter into its analysable form. The returned constraints can be used to skip files or
+     * blocks that cannot contain matching packets, for example using
+     * {@link dk.dma.ais.archive.FileSummary#filterFor(AisPacketFilterConstraints)}.
+     *
+     * @param filter
+     *            the expression filter
+     * @return the constraints of the filter
+     * @see #parseExpressionFilter(String)
+     */
+    public static AisPacketFilterConstraints analyseExpressionFilter(String filter) {
+        return AisPacketFiltersExpressionFilterParser.analyseExpressionFilter(filter);
+    }
+
     // ---
 
     abstract static class AbstractMessagePredicate implements Predicate<AisPacket> {
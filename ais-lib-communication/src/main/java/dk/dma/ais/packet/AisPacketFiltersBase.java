@@ -186,7 +186,7 @@ public abstract class AisPacketFiltersBase implements FilterPredicateFactory {
      * @return true if the value matches the glob.
      */
     protected static final <T> boolean matchesGlob(T value, String glob) {
-        return value.toString().matches(convertGlobToRegex(glob));
+        return GlobMatcher.compile(glob).matches(value.toString());
     }
 
     /**
@@ -203,7 +203,7 @@ public abstract class AisPacketFiltersBase implements FilterPredicateFactory {
      * @param pattern A glob pattern.
      * @return A regex pattern to recognize the given glob pattern.
      */
-    private static String convertGlobToRegex(String pattern) {
+    static String convertGlobToRegex(String pattern) {
         StringBuilder sb = new StringBuilder(pattern.length());
         int inGroup = 0;
         int inClass = 0;
@@ -20,9 +20,14 @@ import dk.dma.internal.ais.generated.parser.expressionfilter.ExpressionFilterPar
 import dk.dma.internal.ais.generated.parser.expressionfilter.ExpressionFilterParser.OrAndContext;
 import dk.dma.internal.ais.generated.parser.expressionfilter.ExpressionFilterParser.ParensContext;
 import dk.dma.internal.ais.generated.parser.expressionfilter.ExpressionFilterParser.SourceBasestationContext;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
 import org.antlr.v4.runtime.misc.NotNull;
+import org.antlr.v4.runtime.tree.RuleNode;
 
 import java.util.Calendar;
+import java.util.List;
 
 /**
  * @author Kasper Nielsen
@@ -30,7 +35,180 @@ import java.util.Calendar;
 class AisPacketFiltersExpressionFilterParser extends ExpressionFilterParserBase {
 
     static Predicate<AisPacket> parseExpressionFilter(String filter) {
-        return createFilterContext(filter).filterExpression().accept(new ExpressionFilterToPredicateVisitor());
+        return ExpressionFilterCompiler.compile(createFilterContext(filter).filterExpression());
+    }
+
+    static AisPacketFilterConstraints analyseExpressionFilter(String filter) {
+        return createFilterContext(filter).filterExpression().accept(new ExpressionFilterToConstraintsVisitor());
+    }
+
+    /**
+     * Extracts the constraints of an expression that readers can use to skip data. Expressions which cannot be
+     * represented by constraints are kept in the residual.
+     */
+    static class ExpressionFilterToConstraintsVisitor extends ExpressionFilterBaseVisitor<AisPacketFilterConstraints> {
+
+        /** Creates the predicates of the expressions kept in the residual. */
+        private final ExpressionFilterToPredicateVisitor predicates;
+
+        ExpressionFilterToConstraintsVisitor() {
+            this(new ExpressionFilterToPredicateVisitor());
+        }
+
+        ExpressionFilterToConstraintsVisitor(ExpressionFilterToPredicateVisitor predicates) {
+            this.predicates = predicates;
+        }
+
+        /** Expressions without a specific visitor are only represented by their predicate. */
+        @Override
+        public AisPacketFilterConstraints visitChildren(RuleNode node) {
+            return AisPacketFilterConstraints.UNCONSTRAINED.withResidual(predicates.visit(node));
+        }
+
+        @Override
+        public AisPacketFilterConstraints visitOrAnd(OrAndContext ctx) {
+            AisPacketFilterConstraints a = visit(ctx.filterExpression(0));
+            AisPacketFilterConstraints b = visit(ctx.filterExpression(1));
+            return ctx.op.getType() == ExpressionFilterParser.AND ? a.and(b) : a.or(b,
+                    a.toPredicate().or(b.toPredicate()));
+        }
+
+        @Override
+        public AisPacketFilterConstraints visitParens(ParensContext ctx) {
+            return visit(ctx.filterExpression());
+        }
+
+        @Override
+        public AisPacketFilterConstraints visitSourceIdIn(@NotNull ExpressionFilterParser.SourceIdInContext ctx) {
+            if (ctx.notin() != null) {
+                return visitChildren(ctx);
+            }
+            return AisPacketFilterConstraints.ofSourceIds(extractStrings(ctx.stringList().string()));
+        }
+
+        @Override
+        public AisPacketFilterConstraints visitMessageId(@NotNull ExpressionFilterParser.MessageIdContext ctx) {
+            if (!"=".equals(ctx.compareTo().getText())) {
+                return visitChildren(ctx);
+            }
+            return AisPacketFilterConstraints.ofMessageIds(Integer.parseInt(ctx.INT().getText()));
+        }
+
+        @Override
+        public AisPacketFilterConstraints visitMessageIdIn(@NotNull ExpressionFilterParser.MessageIdInContext ctx) {
+            int[] ids = ctx.notin() == null ? extractIntListOrRange(ctx.intList(), ctx.intRange()) : null;
+            return ids == null ? visitChildren(ctx) : AisPacketFilterConstraints.ofMessageIds(ids);
+        }
+
+        @Override
+        public AisPacketFilterConstraints visitMessageMmsi(@NotNull ExpressionFilterParser.MessageMmsiContext ctx) {
+            if (!"=".equals(ctx.compareTo().getText())) {
+                return visitChildren(ctx);
+            }
+            return AisPacketFilterConstraints.ofMmsi(Integer.parseInt(ctx.INT().getText()));
+        }
+
+        @Override
+        public AisPacketFilterConstraints visitMessageMmsiIn(@NotNull ExpressionFilterParser.MessageMmsiInContext ctx) {
+            int[] mmsi = ctx.notin() == null ? extractIntListOrRange(ctx.intList(), ctx.intRange()) : null;
+            return mmsi == null ? visitChildren(ctx) : AisPacketFilterConstraints.ofMmsi(mmsi);
+        }
+
+        @Override
+        public AisPacketFilterConstraints visitMessageTimeYear(@NotNull ExpressionFilterParser.MessageTimeYearContext ctx) {
+            int year = Integer.parseInt(ctx.INT().getText());
+            long start = Long.MIN_VALUE;
+            long end = Long.MAX_VALUE;
+            switch (ctx.compareTo().getText()) {
+            case "=":
+                start = startOfYear(year);
+                end = startOfYear(year + 1);
+                break;
+            case ">":
+                start = startOfYear(year + 1);
+                break;
+            case ">=":
+                start = startOfYear(year);
+                break;
+            case "<":
+                end = startOfYear(year);
+                break;
+            case "<=":
+                end = startOfYear(year + 1);
+                break;
+            default:
+                return visitChildren(ctx);
+            }
+            // The year is evaluated in the default time zone of the predicate, keep it in the residual
+            return AisPacketFilterConstraints.ofTime(start, end).withResidual(predicates.visit(ctx));
+        }
+
+        @Override
+        public AisPacketFilterConstraints visitMessageTimeYearIn(@NotNull ExpressionFilterParser.MessageTimeYearInContext ctx) {
+            if (ctx.notin() != null) {
+                return visitChildren(ctx);
+            }
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            if (ctx.intList() != null) {
+                for (Integer year : extractIntegers(ctx.intList().INT())) {
+                    min = Math.min(min, year);
+                    max = Math.max(max, year);
+                }
+            } else {
+                min = Integer.parseInt(ctx.intRange().INT(0).getText());
+                max = Integer.parseInt(ctx.intRange().INT(1).getText());
+            }
+            if (min > max) {
+                return visitChildren(ctx);
+            }
+            return AisPacketFilterConstraints.ofTime(startOfYear(min), startOfYear(max + 1)).withResidual(
+                    predicates.visit(ctx));
+        }
+
+        @Override
+        public AisPacketFilterConstraints visitMessagePositionInside(@NotNull ExpressionFilterParser.MessagePositionInsideContext ctx) {
+            if (ctx.bbox() == null) {
+                return visitChildren(ctx);
+            }
+            List<ExpressionFilterParser.NumberContext> params = ctx.bbox().number();
+            Position corner1 = Position.create(Float.valueOf(params.get(0).getText()),
+                    Float.valueOf(params.get(1).getText()));
+            Position corner2 = Position.create(Float.valueOf(params.get(2).getText()),
+                    Float.valueOf(params.get(3).getText()));
+            BoundingBox bbox = BoundingBox.create(corner1, corner2, CoordinateSystem.CARTESIAN);
+            return AisPacketFilterConstraints.ofArea(bbox).withResidual(predicates.visit(ctx));
+        }
+
+        /** Returns the values of a list or a small range, or null if the range is too large to expand. */
+        private static int[] extractIntListOrRange(ExpressionFilterParser.IntListContext list,
+                ExpressionFilterParser.IntRangeContext range) {
+            if (list != null) {
+                Integer[] ints = extractIntegers(list.INT());
+                int[] result = new int[ints.length];
+                for (int i = 0; i < ints.length; i++) {
+                    result[i] = ints[i];
+                }
+                return result;
+            }
+            long min = Long.parseLong(range.INT(0).getText());
+            long max = Long.parseLong(range.INT(1).getText());
+            if (max - min >= AisPacketFilterConstraints.MAX_RANGE_EXPANSION) {
+                return null;
+            }
+            int[] result = new int[(int) Math.max(0, max - min + 1)];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = (int) min + i;
+            }
+            return result;
+        }
+
+        private static long startOfYear(int year) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.clear();
+            calendar.set(year, Calendar.JANUARY, 1);
+            return calendar.getTimeInMillis();
+        }
     }
 
     static class ExpressionFilterToPredicateVisitor extends ExpressionFilterBaseVisitor<Predicate<AisPacket>> {
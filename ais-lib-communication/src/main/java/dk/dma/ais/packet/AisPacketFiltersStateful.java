@@ -19,12 +19,16 @@ import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.message.AisMessage5;
 import dk.dma.ais.message.AisPosition;
 import dk.dma.ais.message.AisPositionMessage;
-import dk.dma.ais.tracker.TargetInfo;
-import dk.dma.ais.tracker.TargetTracker;
+import dk.dma.ais.message.AisStaticCommon;
+import dk.dma.ais.message.IVesselPositionMessage;
 import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.Position;
+import net.jcip.annotations.NotThreadSafe;
 import org.apache.commons.lang.ArrayUtils;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 import static java.util.Objects.requireNonNull;
@@ -39,16 +43,55 @@ import static java.util.Objects.requireNonNull;
  * Instead, with this stateful filter, it is possible to generate Predicates which can e.g. filter away AisStaticCommon packages for
  * targets whose position is outside some defined area.
  *
+ * The state is updated once per packet, by the first predicate of this factory that sees the packet, so an expression
+ * with several terms on targets does not update the state once for every term. Predicates of the same factory must
+ * therefore be evaluated on packets in order and from a single thread. Targets that have not been heard from for the
+ * time-to-live of the factory are forgotten.
+ *
  * @author Thomas Borg Salling <tbsalling@tbsalling.dk>
  * @since v2.1
  */
+@NotThreadSafe
 public class AisPacketFiltersStateful extends AisPacketFiltersBase {
 
-    private AisPacketStream aisPacketStream = new AisPacketStreamImpl();
-    private TargetTracker targetTracker = new TargetTracker();
+    /** The default time after which targets that have not been heard from are forgotten. */
+    public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(24);
+
+    /** The state of the targets, keyed on MMSI number. */
+    private final TargetStates targets = new TargetStates();
+
+    /** The time-to-live of targets in milliseconds. */
+    private final long ttl;
+
+    /** The last packet the state was updated with. */
+    private AisPacket lastPacket;
+
+    /** The state of the target of the last packet, or null if the packet could not be decoded. */
+    private TargetState lastTarget;
+
+    /** The newest timestamp seen. */
+    private long clock = Long.MIN_VALUE;
+
+    /** The time of the last eviction of targets. */
+    private long lastEviction = Long.MIN_VALUE;
 
     public AisPacketFiltersStateful() {
-        targetTracker.readFromStream(aisPacketStream);
+        this(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a new factory forgetting targets that have not been heard from for the specified time.
+     *
+     * @param ttl
+     *            the time-to-live of targets
+     * @param unit
+     *            the unit of the time-to-live
+     */
+    public AisPacketFiltersStateful(long ttl, TimeUnit unit) {
+        this.ttl = unit.toMillis(ttl);
+        if (this.ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive, was " + ttl);
+        }
     }
 
     // --- IMO
@@ -65,7 +108,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         final int imo = rhsImo;
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final int lhsImo = getImo(mmsi); // Extract IMO no. - if we know it
                 return lhsImo < 0 ? false : compare(lhsImo, imo, operator);
@@ -84,7 +127,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     public Predicate<AisPacket> filterOnTargetImo(final int min, final int max) {
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final int imo = getImo(mmsi); // Extract IMO no. - if we know it
                 return imo < 0 ? false : inRange(min, max, imo);
@@ -105,7 +148,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         Arrays.sort(list);
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final int imo = getImo(mmsi); // Extract IMO no. - if we know it
                 return imo < 0 ? false : Arrays.binarySearch(list, imo) >= 0;
@@ -131,7 +174,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         final int shiptype = rhsShiptype;
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final int lhsShiptype = getShiptype(mmsi); // Extract shiptype - if we know it
                 return lhsShiptype < 0 ? false : compare(lhsShiptype, shiptype, operator);
@@ -150,7 +193,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     public Predicate<AisPacket> filterOnTargetShiptype(final int min, final int max) {
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final int shiptype = getShiptype(mmsi); // Extract IMO no. - if we know it
                 return shiptype < 0 ? false : inRange(min, max, shiptype);
@@ -171,7 +214,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         Arrays.sort(list);
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final int shiptype = getShiptype(mmsi); // Extract shiptype no. - if we know it
                 return shiptype < 0 ? false : Arrays.binarySearch(list, shiptype) >= 0;
@@ -197,7 +240,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         final int navstat = rhsNavstat;
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final int lhsNavstat = getNavstat(mmsi); // Extract navstat - if we know it
                 return lhsNavstat < 0 ? false : compare(lhsNavstat, navstat, operator);
@@ -216,7 +259,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     public Predicate<AisPacket> filterOnTargetNavigationalStatus(final int min, final int max) {
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final int navstat = getNavstat(mmsi); // Extract IMO no. - if we know it
                 return navstat < 0 ? false : inRange(min, max, navstat);
@@ -237,7 +280,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         Arrays.sort(list);
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final int navstat = getNavstat(mmsi); // Extract navstat no. - if we know it
                 return navstat < 0 ? false : Arrays.binarySearch(list, navstat) >= 0;
@@ -263,7 +306,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         final float rhsSog = sog;
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final float lhsSog = getSog(mmsi); // Extract sog - if we know it
                 return lhsSog != lhsSog /* NaN */? false : compare(lhsSog, rhsSog, operator);
@@ -282,7 +325,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     public Predicate<AisPacket> filterOnTargetSpeedOverGround(final float min, final float max) {
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final float lhsSog = getSog(mmsi); // Extract sog - if we know it
                 return lhsSog != lhsSog /* NaN */? false : inRange(min, max, lhsSog);
@@ -308,7 +351,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         final float rhsCog = cog;
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final float lhsCog = getCog(mmsi); // Extract cog - if we know it
                 return lhsCog != lhsCog /* NaN */? false : compare(lhsCog, rhsCog, operator);
@@ -327,7 +370,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     public Predicate<AisPacket> filterOnTargetCourseOverGround(final float min, final float max) {
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final float lhsCog = getCog(mmsi); // Extract cog - if we know it
                 return lhsCog != lhsCog /* NaN */? false : inRange(min, max, lhsCog);
@@ -353,7 +396,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         final int rhsHdg = hdg;
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final int lhsHdg = getHdg(mmsi); // Extract hdg - if we know it
                 return lhsHdg < 0 ? false : compare(lhsHdg, rhsHdg, operator);
@@ -372,7 +415,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     public Predicate<AisPacket> filterOnTargetTrueHeading(final int min, final int max) {
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final int lhsHdg = getHdg(mmsi); // Extract cog - if we know it
                 return lhsHdg < 0 ? false : inRange(min, max, lhsHdg);
@@ -398,7 +441,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         final float rhsDraught = draught;
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final float lhsDraught = getDraught(mmsi); // Extract draught - if we know it
                 return lhsDraught != lhsDraught /* NaN */? false : compare(lhsDraught, rhsDraught, operator);
@@ -417,7 +460,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     public Predicate<AisPacket> filterOnTargetDraught(final float min, final float max) {
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final float lhsDraught = getDraught(mmsi); // Extract cog - if we know it
                 return lhsDraught != lhsDraught /* NaN */? false : inRange(min, max, lhsDraught);
@@ -443,7 +486,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         final float rhsLat = lat;
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final float lhsLat = getLatitude(mmsi); // Extract lat - if we know it
                 return lhsLat != lhsLat /* NaN */? false : compare(lhsLat, rhsLat, operator);
@@ -462,7 +505,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     public Predicate<AisPacket> filterOnTargetLatitude(final float min, final float max) {
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final float lhsLat = getLatitude(mmsi); // Extract - if we know it
                 return lhsLat != lhsLat /* NaN */? false : inRange(min, max, lhsLat);
@@ -488,7 +531,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
         final float rhsLon = lon;
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final float lhsLon = getLongitude(mmsi); // Extract lon - if we know it
                 return lhsLon != lhsLon /* NaN */? false : compare(lhsLon, rhsLon, operator);
@@ -507,7 +550,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     public Predicate<AisPacket> filterOnTargetLongitude(final float min, final float max) {
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final float lhsLon = getLongitude(mmsi); // Extract cog - if we know it
                 return lhsLon != lhsLon /* NaN */? false : inRange(min, max, lhsLon);
@@ -530,7 +573,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     public Predicate<AisPacket> filterOnTargetName(final CompareToOperator operator, final String rhsName) {
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final String lhsName = getName(mmsi); // Extract - if we know it
                 return lhsName == null ? false : compare(lhsName, rhsName, operator);
@@ -549,12 +592,13 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
      */
 
     public Predicate<AisPacket> filterOnTargetNameMatch(final String pattern) {
-        final String glob = preprocessExpressionString(pattern);
+        final GlobMatcher.PerMmsiCache matcher = new GlobMatcher.PerMmsiCache(GlobMatcher
+                .compile(preprocessExpressionString(pattern)));
         return p -> {
-            aisPacketStream.add(p); // Update state
+            update(p); // Update state, once per packet
             final int mmsi = getMmsi(p); // Get MMSI in question
             final String lhsName = getName(mmsi); // Extract - if we know it
-            return lhsName != null && matchesGlob(preprocessAisString(lhsName), glob);
+            return matcher.matches(mmsi, lhsName);
         };
     }
 
@@ -568,7 +612,7 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     public Predicate<AisPacket> filterOnTargetCallsign(final CompareToOperator operator, final String rhsCallsign) {
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final String lhsCallsign = getCallsign(mmsi); // Extract - if we know it
                 return lhsCallsign == null ? false : compare(lhsCallsign, rhsCallsign, operator);
@@ -587,12 +631,13 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
      */
     public Predicate<AisPacket> filterOnTargetCallsignMatch(final String pattern) {
         final String glob = preprocessExpressionString(pattern);
+        final GlobMatcher.PerMmsiCache matcher = new GlobMatcher.PerMmsiCache(GlobMatcher.compile(glob));
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
                 final String callsign = getCallsign(mmsi); // Extract - if we know it
-                return callsign == null ? false : matchesGlob(preprocessAisString(callsign), glob);
+                return matcher.matches(mmsi, callsign);
             }
 
             public String toString() {
@@ -610,12 +655,13 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
      */
     public Predicate<AisPacket> filterOnTargetPositionWithin(final Area area) {
         requireNonNull(area);
+        final AreaIndex index = AreaIndex.create(Collections.singletonList(area));
         return new Predicate<AisPacket>() {
             public boolean test(AisPacket p) {
-                aisPacketStream.add(p); // Update state
+                update(p); // Update state, once per packet
                 final int mmsi = getMmsi(p); // Get MMSI in question
-                final AisPosition pos = getPosition(mmsi); // Extract - if we know it
-                return (pos == null || pos.getGeoLocation() == null) ? false : area.contains(pos.getGeoLocation());
+                final Position pos = getPosition(mmsi); // Extract - if we know it
+                return pos == null ? false : index.test(pos);
             }
 
             public String toString() {
@@ -638,218 +684,314 @@ public class AisPacketFiltersStateful extends AisPacketFiltersBase {
     }
 
     /**
-     * Use target tracker to extract IMO no. based on mmsi lookup.
-     * 
+     * Updates the state with the specified packet, unless it is the packet the state was last updated with.
+     *
+     * @param p
+     *            the packet
+     */
+    private void update(AisPacket p) {
+        if (p == lastPacket) {
+            return;
+        }
+        lastPacket = p;
+        lastTarget = null;
+        long timestamp = p.getBestTimestamp();
+        if (timestamp > clock) {
+            clock = timestamp;
+        }
+        AisMessage message = p.tryGetAisMessage();
+        if (message != null) {
+            lastTarget = targets.getOrCreate(message.getUserId());
+            lastTarget.update(message, timestamp, clock);
+        }
+        if (lastEviction == Long.MIN_VALUE) {
+            lastEviction = clock;
+        } else if (clock - lastEviction >= ttl) {
+            targets.removeOlderThan(clock - ttl);
+            lastEviction = clock;
+        }
+    }
+
+    /** Returns the number of targets currently remembered. */
+    int getNumberOfTargets() {
+        return targets.size;
+    }
+
+    /**
+     * Returns the state of the target with the specified MMSI number, or null if it is not known.
+     *
+     * @param mmsi
+     * @return
+     */
+    private TargetState getTarget(int mmsi) {
+        TargetState t = lastTarget;
+        return t != null && t.mmsi == mmsi ? t : targets.get(mmsi);
+    }
+
+    /**
+     * Extract IMO no. based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
     private int getImo(int mmsi) {
-        int imo = -1;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket[] staticPackets = target.getStaticPackets();
-            if (staticPackets.length > 0 && staticPackets[0].tryGetAisMessage() instanceof AisMessage5) {
-                imo = (int) ((AisMessage5) staticPackets[0].tryGetAisMessage()).getImo();
-            }
-        }
-        return imo;
+        TargetState target = getTarget(mmsi);
+        return target == null ? -1 : target.imo;
     }
 
     /**
-     * Use target tracker to extract speed over ground based on mmsi lookup.
-     * 
+     * Extract speed over ground based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
     private float getSog(int mmsi) {
-        float sog = Float.NaN;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket positionPacket = target.getPositionPacket();
-            if (positionPacket != null && positionPacket.tryGetAisMessage() instanceof AisPositionMessage) {
-                sog = (float) (((AisPositionMessage) positionPacket.tryGetAisMessage()).getSog() / 10.0);
-            }
-        }
-        return sog;
+        TargetState target = getTarget(mmsi);
+        return target == null ? Float.NaN : target.sog;
     }
 
     /**
-     * Use target tracker to extract course over ground based on mmsi lookup.
-     * 
+     * Extract course over ground based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
     private float getCog(int mmsi) {
-        float cog = Float.NaN;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket positionPacket = target.getPositionPacket();
-            if (positionPacket != null && positionPacket.tryGetAisMessage() instanceof AisPositionMessage) {
-                cog = (float) (((AisPositionMessage) positionPacket.tryGetAisMessage()).getCog() / 10.0);
-            }
-        }
-        return cog;
+        TargetState target = getTarget(mmsi);
+        return target == null ? Float.NaN : target.cog;
     }
 
     /**
-     * Use target tracker to extract true heading based on mmsi lookup.
-     * 
+     * Extract true heading based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
     private int getHdg(int mmsi) {
-        int hdg = -1;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket positionPacket = target.getPositionPacket();
-            if (positionPacket != null && positionPacket.tryGetAisMessage() instanceof AisPositionMessage) {
-                hdg = ((AisPositionMessage) positionPacket.tryGetAisMessage()).getTrueHeading();
-            }
-        }
-        return hdg;
+        TargetState target = getTarget(mmsi);
+        return target == null ? -1 : target.hdg;
     }
 
     /**
-     * Use target tracker to extract draught based on mmsi lookup.
-     * 
+     * Extract draught based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
     private float getDraught(int mmsi) {
-        float draught = Float.NaN;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket[] staticPackets = target.getStaticPackets();
-            if (staticPackets.length > 0 && staticPackets[0].tryGetAisMessage() instanceof AisMessage5) {
-                draught = (float) (((AisMessage5) staticPackets[0].tryGetAisMessage()).getDraught() / 10.0);
-            }
-        }
-        return draught;
+        TargetState target = getTarget(mmsi);
+        return target == null ? Float.NaN : target.draught;
     }
 
     /**
-     * Use target tracker to extract latitude based on mmsi lookup.
-     * 
+     * Extract latitude based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
     private float getLatitude(int mmsi) {
-        float lat = Float.NaN;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket positionPacket = target.getPositionPacket();
-            if (positionPacket != null && positionPacket.tryGetAisMessage() instanceof AisPositionMessage) {
-                lat = (float) ((AisPositionMessage) positionPacket.tryGetAisMessage()).getPos().getLatitudeDouble();
-            }
-        }
-        return lat;
+        TargetState target = getTarget(mmsi);
+        return target == null ? Float.NaN : target.lat;
     }
 
     /**
-     * Use target tracker to extract latitude based on mmsi lookup.
-     * 
+     * Extract longitude based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
     private float getLongitude(int mmsi) {
-        float lon = Float.NaN;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket positionPacket = target.getPositionPacket();
-            if (positionPacket != null && positionPacket.tryGetAisMessage() instanceof AisPositionMessage) {
-                lon = (float) ((AisPositionMessage) positionPacket.tryGetAisMessage()).getPos().getLongitudeDouble();
-            }
-        }
-        return lon;
+        TargetState target = getTarget(mmsi);
+        return target == null ? Float.NaN : target.lon;
     }
 
     /**
-     * Use target tracker to extract position based on mmsi lookup.
-     * 
+     * Extract position based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
-    private AisPosition getPosition(int mmsi) {
-        AisPosition pos = null;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket positionPacket = target.getPositionPacket();
-            if (positionPacket != null && positionPacket.tryGetAisMessage() instanceof AisPositionMessage) {
-                pos = ((AisPositionMessage) positionPacket.tryGetAisMessage()).getPos();
-            }
-        }
-        return pos;
+    private Position getPosition(int mmsi) {
+        TargetState target = getTarget(mmsi);
+        return target == null ? null : target.position;
     }
 
     /**
-     * Use target tracker to extract shiptype based on mmsi lookup.
-     * 
+     * Extract shiptype based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
     private int getShiptype(int mmsi) {
-        int shiptype = -1;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket[] staticPackets = target.getStaticPackets();
-            if (staticPackets.length > 0 && staticPackets[0].tryGetAisMessage() instanceof AisMessage5) {
-                shiptype = ((AisMessage5) staticPackets[0].tryGetAisMessage()).getShipType();
-            }
-        }
-        return shiptype;
+        TargetState target = getTarget(mmsi);
+        return target == null ? -1 : target.shiptype;
     }
 
     /**
-     * Use target tracker to extract shiptype based on mmsi lookup.
-     * 
+     * Extract navigational status based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
     private int getNavstat(int mmsi) {
-        int navstat = -1;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket positionPacket = target.getPositionPacket();
-            if (positionPacket != null && positionPacket.tryGetAisMessage() instanceof AisPositionMessage) {
-                navstat = ((AisPositionMessage) positionPacket.tryGetAisMessage()).getNavStatus();
-            }
-        }
-        return navstat;
+        TargetState target = getTarget(mmsi);
+        return target == null ? -1 : target.navstat;
     }
 
     /**
-     * Use target tracker to extract ship name based on mmsi lookup.
-     * 
+     * Extract ship name based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
     private String getName(int mmsi) {
-        String name = null;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket[] staticPackets = target.getStaticPackets();
-            if (staticPackets.length > 0 && staticPackets[0].tryGetAisMessage() instanceof AisMessage5) {
-                name = ((AisMessage5) staticPackets[0].tryGetAisMessage()).getName();
-            }
-        }
-        return name;
+        TargetState target = getTarget(mmsi);
+        return target == null ? null : target.name;
     }
 
     /**
-     * Use target tracker to extract ship's callsign based on mmsi lookup.
-     * 
+     * Extract ship's callsign based on mmsi lookup.
+     *
      * @param mmsi
      * @return
      */
     private String getCallsign(int mmsi) {
-        String cs = null;
-        TargetInfo target = targetTracker.getNewest(mmsi);
-        if (target != null) {
-            AisPacket[] staticPackets = target.getStaticPackets();
-            if (staticPackets.length > 0 && staticPackets[0].tryGetAisMessage() instanceof AisMessage5) {
-                cs = ((AisMessage5) staticPackets[0].tryGetAisMessage()).getCallsign();
+        TargetState target = getTarget(mmsi);
+        return target == null ? null : target.callsign;
+    }
+
+    /**
+     * The decoded fields of the newest position report and the newest static report of a target. Fields only present
+     * in class A reports are undefined if the newest report is from another kind of message.
+     */
+    static final class TargetState {
+
+        final int mmsi;
+
+        /** The newest timestamp seen when the target was last heard from. */
+        long lastSeen;
+
+        long positionTimestamp = Long.MIN_VALUE;
+        float sog = Float.NaN, cog = Float.NaN, lat = Float.NaN, lon = Float.NaN;
+        int hdg = -1, navstat = -1;
+        Position position;
+
+        long staticTimestamp = Long.MIN_VALUE;
+        float draught = Float.NaN;
+        int imo = -1, shiptype = -1;
+        String name, callsign;
+
+        TargetState(int mmsi) {
+            this.mmsi = mmsi;
+        }
+
+        void update(AisMessage message, long timestamp, long clock) {
+            lastSeen = clock;
+            if (message instanceof IVesselPositionMessage && timestamp >= positionTimestamp) {
+                positionTimestamp = timestamp;
+                if (message instanceof AisPositionMessage) {
+                    AisPositionMessage m = (AisPositionMessage) message;
+                    AisPosition pos = m.getPos();
+                    sog = (float) (m.getSog() / 10.0);
+                    cog = (float) (m.getCog() / 10.0);
+                    hdg = m.getTrueHeading();
+                    navstat = m.getNavStatus();
+                    lat = (float) pos.getLatitudeDouble();
+                    lon = (float) pos.getLongitudeDouble();
+                    position = pos.getGeoLocation();
+                } else {
+                    sog = cog = lat = lon = Float.NaN;
+                    hdg = navstat = -1;
+                    position = null;
+                }
+            }
+            if (message instanceof AisStaticCommon && timestamp >= staticTimestamp) {
+                staticTimestamp = timestamp;
+                if (message instanceof AisMessage5) {
+                    AisMessage5 m = (AisMessage5) message;
+                    imo = (int) m.getImo();
+                    shiptype = m.getShipType();
+                    draught = (float) (m.getDraught() / 10.0);
+                    name = m.getName();
+                    callsign = m.getCallsign();
+                } else {
+                    imo = shiptype = -1;
+                    draught = Float.NaN;
+                    name = callsign = null;
+                }
             }
         }
-        return cs;
+    }
+
+    /**
+     * An open addressing hash table of target states keyed on MMSI number, so lookups do not box the MMSI number.
+     */
+    static final class TargetStates {
+
+        private int[] keys = new int[64];
+
+        private TargetState[] values = new TargetState[64];
+
+        int size;
+
+        TargetState get(int mmsi) {
+            int mask = keys.length - 1;
+            for (int i = hash(mmsi) & mask;; i = i + 1 & mask) {
+                TargetState t = values[i];
+                if (t == null || keys[i] == mmsi) {
+                    return t;
+                }
+            }
+        }
+
+        TargetState getOrCreate(int mmsi) {
+            int mask = keys.length - 1;
+            int i = hash(mmsi) & mask;
+            for (; values[i] != null; i = i + 1 & mask) {
+                if (keys[i] == mmsi) {
+                    return values[i];
+                }
+            }
+            TargetState t = new TargetState(mmsi);
+            keys[i] = mmsi;
+            values[i] = t;
+            if (++size > keys.length >> 1) {
+                rehash(keys.length << 1, Long.MIN_VALUE);
+            }
+            return t;
+        }
+
+        /** Removes all targets that have not been heard from since the specified time. */
+        void removeOlderThan(long time) {
+            int capacity = keys.length;
+            while (capacity > 64 && size < capacity >> 3) {
+                capacity >>= 1;
+            }
+            rehash(capacity, time);
+        }
+
+        private void rehash(int capacity, long time) {
+            TargetState[] old = values;
+            keys = new int[capacity];
+            values = new TargetState[capacity];
+            size = 0;
+            int mask = capacity - 1;
+            for (TargetState t : old) {
+                if (t != null && t.lastSeen >= time) {
+                    int i = hash(t.mmsi) & mask;
+                    while (values[i] != null) {
+                        i = i + 1 & mask;
+                    }
+                    keys[i] = t.mmsi;
+                    values[i] = t;
+                    size++;
+                }
+            }
+        }
+
+        private static int hash(int mmsi) {
+            int h = mmsi * 0x9E3779B9;
+            return h ^ h >>> 16;
+        }
     }
 }
@@ -25,30 +25,22 @@ import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
+import javax.xml.stream.XMLStreamException;
+
 import net.jcip.annotations.NotThreadSafe;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
-import de.micromata.opengis.kml.v_2_2_0.AltitudeMode;
-import de.micromata.opengis.kml.v_2_2_0.Boundary;
-import de.micromata.opengis.kml.v_2_2_0.Camera;
-import de.micromata.opengis.kml.v_2_2_0.Coordinate;
-import de.micromata.opengis.kml.v_2_2_0.Document;
-import de.micromata.opengis.kml.v_2_2_0.Folder;
-import de.micromata.opengis.kml.v_2_2_0.Kml;
-import de.micromata.opengis.kml.v_2_2_0.LineString;
-import de.micromata.opengis.kml.v_2_2_0.LinearRing;
-import de.micromata.opengis.kml.v_2_2_0.Placemark;
-import de.micromata.opengis.kml.v_2_2_0.Style;
 import dk.dma.ais.message.NavigationalStatus;
 import dk.dma.ais.message.ShipTypeCargo;
 import dk.dma.ais.tracker.ScenarioTracker;
@@ -67,7 +59,14 @@ import dk.dma.enav.util.geometry.Point;
 /**
  * This class receives AisPacket and use them to build a scenario
  *
- * When the sink is closed it dumps the entire target state to the output stream in KML format.
+ * When the sink is closed it writes the entire target state to the output stream in KML format. The KML is streamed
+ * one element at a time, so the size of the output does not add to the memory used by the scenario.
+ *
+ * The tracks are simplified as the packets arrive, dropping the position reports within
+ * {@value #DEFAULT_TRACK_TOLERANCE} meters of the track without them, so the memory used by a long scenario depends on
+ * how the targets move rather than on the number of reports. The tolerance can be changed by
+ * {@link #setTrackTolerance(double, long, TimeUnit)}, and {@link #setKeepEveryReport()} keeps every report as received.
+ * Movements written for each position report, that is without an interpolation step, only show the reports kept.
  *
  * TODO Even though the triggerSnapshot predicate encourages generation of multiple snapshots, only one is currently
  * supported.
@@ -87,10 +86,20 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
         LOG.debug(getClass().getSimpleName() + " created (" + this + ").");
     }
 
+    /** The default maximum distance in meters between a dropped position report and the simplified track. */
+    static final double DEFAULT_TRACK_TOLERANCE = 10;
+
+    /** The default maximum time in minutes between two position reports kept in a simplified track. */
+    static final long DEFAULT_TRACK_MAX_INTERVAL = 10;
+
     /**
      * The tracker which will be used to build the scenario that will be written as KML.
      */
-    private final ScenarioTracker scenarioTracker = new ScenarioTracker();
+    private ScenarioTracker scenarioTracker = new ScenarioTracker(DEFAULT_TRACK_TOLERANCE, DEFAULT_TRACK_MAX_INTERVAL,
+            TimeUnit.MINUTES);
+
+    /** Whether a packet has been passed to the scenarioTracker, after which it can no longer be replaced. */
+    private boolean started;
 
     /**
      * Only AisPackets passing this filter will be passed to the scenarioTracker.
@@ -300,12 +309,49 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
         System.out.println(toString());
     }
 
+    /**
+     * Sets how the tracks are simplified as the packets arrive, see
+     * {@link ScenarioTracker#ScenarioTracker(double, long, TimeUnit)}. Must be called before the first packet is
+     * processed.
+     *
+     * @param tolerance
+     *            the maximum distance in meters between a dropped position report and the simplified track
+     * @param maxInterval
+     *            the maximum time between two position reports kept
+     * @param unit
+     *            the unit of maxInterval
+     * @throws IllegalStateException
+     *             if a packet has been processed
+     */
+    public void setTrackTolerance(double tolerance, long maxInterval, TimeUnit unit) {
+        setScenarioTracker(new ScenarioTracker(tolerance, maxInterval, unit));
+    }
+
+    /**
+     * Keeps every position report in the tracks rather than simplifying them, so the memory used grows with the number
+     * of reports until the sink is closed. Must be called before the first packet is processed.
+     *
+     * @throws IllegalStateException
+     *             if a packet has been processed
+     */
+    public void setKeepEveryReport() {
+        setScenarioTracker(new ScenarioTracker());
+    }
+
+    private void setScenarioTracker(ScenarioTracker scenarioTracker) {
+        if (started) {
+            throw new IllegalStateException("The tracks cannot be changed after the first packet has been processed");
+        }
+        this.scenarioTracker = scenarioTracker;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void process(OutputStream stream, AisPacket packet, long count) throws IOException {
         if (filter.test(packet)) {
+            started = true;
             scenarioTracker.update(packet);
 
             if (isPrimaryTarget.test(packet)) {
@@ -321,8 +367,7 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
     }
 
     public void footer(OutputStream outputStream, long count) throws IOException {
-        Kml kml = createKml();
-        kml.marshal(outputStream);
+        writeKml(outputStream);
     }
 
     public static void main(String[] args) throws IOException {
@@ -382,36 +427,52 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
         }
     };
 
-    protected Kml createKml() throws IOException {
-        Kml kml = new Kml();
-
-        Document document = kml.createAndSetDocument().withOpen(true);
-
-        String docDesc = description.get();
-        if (!isBlank(docDesc)) {
-            document.withDescription(docDesc);
+    /**
+     * Writes the scenario as a KML document to the output stream, one element at a time. The output stream is flushed
+     * but not closed.
+     *
+     * @param outputStream
+     *            the stream to write the document to
+     */
+    protected void writeKml(OutputStream outputStream) throws IOException {
+        try {
+            KmlWriter kml = new KmlWriter(outputStream);
+            kml.startKml();
+            writeKmlDocument(kml);
+            kml.endKml();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
         }
+    }
+
+    private void writeKmlDocument(KmlWriter kml) throws XMLStreamException {
+        kml.start("Document");
 
         String docTitle = title.get();
         if (!isBlank(docTitle)) {
-            document.withName(docTitle);
+            kml.element("name", docTitle);
         }
+        kml.element("open", true);
 
-        Camera camera = document.createAndSetCamera().withAltitude(2000).withHeading(0).withTilt(0)
-                .withAltitudeMode(AltitudeMode.ABSOLUTE);
+        String docDesc = description.get();
+        if (!isBlank(docDesc)) {
+            kml.element("description", docDesc);
+        }
 
-        if (scenarioTracker.boundingBox() != null) {
-            camera.withLatitude(
-                    (scenarioTracker.boundingBox().getMaxLat() + scenarioTracker.boundingBox().getMinLat()) / 2.0)
-                    .withLongitude(
-                            (scenarioTracker.boundingBox().getMaxLon() + scenarioTracker.boundingBox().getMinLon()) / 2.0);
+        BoundingBox bbox = scenarioTracker.boundingBox();
+        kml.start("Camera");
+        if (bbox != null) {
+            kml.element("longitude", (bbox.getMaxLon() + bbox.getMinLon()) / 2.0);
+            kml.element("latitude", (bbox.getMaxLat() + bbox.getMinLat()) / 2.0);
         }
+        kml.element("altitude", 2000.0);
+        kml.element("heading", 0.0);
+        kml.element("tilt", 0.0);
+        kml.element("altitudeMode", "absolute");
+        kml.end();
 
         // Create all ship styles
-        createKmlStyles(document);
-
-        Folder rootFolder = document.createAndAddFolder().withName("Vessel scenario").withOpen(true)
-                .withVisibility(true);
+        writeKmlStyles(kml);
 
         StringBuffer rootFolderName = new StringBuffer();
         Date scenarioBegin = scenarioTracker.scenarioBegin();
@@ -425,14 +486,19 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
         if (scenarioEnd != null) {
             rootFolderName.append(scenarioEnd.toString());
         }
-        rootFolder.withDescription(rootFolderName.toString());
+
+        kml.start("Folder");
+        kml.element("name", "Vessel scenario");
+        kml.element("visibility", true);
+        kml.element("open", true);
+        kml.element("description", rootFolderName.toString());
 
         // Generate bounding box
-        createKmlBoundingBox(rootFolder);
+        writeKmlBoundingBox(kml, bbox);
 
         // Generate situation folder
         if (createSituationFolder && snapshotTimes.size() >= 1) {
-            createKmlSituationFolder(rootFolder, snapshotTimes.iterator().next());
+            writeKmlSituationFolder(kml, snapshotTimes.iterator().next());
 
             if (snapshotTimes.size() > 1) {
                 System.err.println("Only generates KML snapshot folder for first timestamp marked.");
@@ -441,53 +507,75 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
 
         // Generate tracks folder
         if (createTracksFolder) {
-            createKmlTracksFolder(rootFolder, e -> true);
+            writeKmlTracksFolder(kml, e -> true);
         }
 
         // Generate movements folder
         if (createMovementsFolder) {
-            createKmlMovementsAndIconsFolders(rootFolder);
+            writeKmlMovementsAndIconsFolders(kml);
         }
 
-        return kml;
+        kml.end();
+        kml.end();
     }
 
-    private static void createKmlStyles(Document document) {
+    private static void writeKmlStyles(KmlWriter kml) throws XMLStreamException {
         // For colors - http://www.zonums.com/gmaps/kml_color/
-        document.createAndAddStyle().withId("bbox").createAndSetLineStyle().withColor("cccc00b0").withWidth(2.5);
-
-        createStyle(document, KML_STYLE_OTHER_SHIP, 2, "60" + KML_COLOR_OTHER_SHIP, "FF" + KML_COLOR_OTHER_SHIP);
-        createStyle(document, KML_STYLE_PRIMARY_SHIP, 2, "80" + KML_COLOR_PRIMARY_SHIP, "ff" + KML_COLOR_PRIMARY_SHIP);
-        createStyle(document, KML_STYLE_SECONDARY_SHIP, 2, "80" + KML_COLOR_SECONDARY_SHIP, "ff"
+        kml.start("Style", "bbox");
+        kml.start("LineStyle");
+        kml.element("color", "cccc00b0");
+        kml.element("width", 2.5);
+        kml.end();
+        kml.end();
+
+        writeStyle(kml, KML_STYLE_OTHER_SHIP, 2, "60" + KML_COLOR_OTHER_SHIP, "FF" + KML_COLOR_OTHER_SHIP);
+        writeStyle(kml, KML_STYLE_PRIMARY_SHIP, 2, "80" + KML_COLOR_PRIMARY_SHIP, "ff" + KML_COLOR_PRIMARY_SHIP);
+        writeStyle(kml, KML_STYLE_SECONDARY_SHIP, 2, "80" + KML_COLOR_SECONDARY_SHIP, "ff"
                 + KML_COLOR_SECONDARY_SHIP);
-        createStyle(document, KML_STYLE_PRIMARY_SHIP + KML_STYLE_EXTENSION_ESTIMATED_POSITION, 2, "60"
+        writeStyle(kml, KML_STYLE_PRIMARY_SHIP + KML_STYLE_EXTENSION_ESTIMATED_POSITION, 2, "60"
                 + KML_COLOR_PRIMARY_SHIP, "80" + KML_COLOR_PRIMARY_SHIP);
-        createStyle(document, KML_STYLE_SECONDARY_SHIP + KML_STYLE_EXTENSION_ESTIMATED_POSITION, 2, "60"
+        writeStyle(kml, KML_STYLE_SECONDARY_SHIP + KML_STYLE_EXTENSION_ESTIMATED_POSITION, 2, "60"
                 + KML_COLOR_SECONDARY_SHIP, "80" + KML_COLOR_SECONDARY_SHIP);
     }
 
-    private static void createStyle(Document document, String styleName, int width, String lineColor, String polyColor) {
-        Style style = document.createAndAddStyle().withId(styleName);
-        style.createAndSetLineStyle().withWidth(width).withColor(lineColor);
-        style.createAndSetPolyStyle().withColor(polyColor);
+    private static void writeStyle(KmlWriter kml, String styleName, int width, String lineColor, String polyColor)
+            throws XMLStreamException {
+        kml.start("Style", styleName);
+        kml.start("LineStyle");
+        kml.element("color", lineColor);
+        kml.element("width", (double) width);
+        kml.end();
+        kml.start("PolyStyle");
+        kml.element("color", polyColor);
+        kml.end();
+        kml.end();
     }
 
-    private void createKmlBoundingBox(Folder kmlNode) {
-        BoundingBox bbox = scenarioTracker.boundingBox();
-
+    private static void writeKmlBoundingBox(KmlWriter kml, BoundingBox bbox) throws XMLStreamException {
         if (bbox != null) {
-            kmlNode.createAndAddPlacemark().withId("bbox").withStyleUrl("#bbox").withName("Bounding box")
-            .withVisibility(true).createAndSetLinearRing().addToCoordinates(bbox.getMaxLon(), bbox.getMaxLat())
-                    .addToCoordinates(bbox.getMaxLon(), bbox.getMinLat())
-                    .addToCoordinates(bbox.getMinLon(), bbox.getMinLat())
-                    .addToCoordinates(bbox.getMinLon(), bbox.getMaxLat())
-                    .addToCoordinates(bbox.getMaxLon(), bbox.getMaxLat());
+            kml.start("Placemark", "bbox");
+            kml.element("name", "Bounding box");
+            kml.element("visibility", true);
+            kml.element("styleUrl", "#bbox");
+            kml.start("LinearRing");
+            kml.startCoordinates();
+            kml.coordinate(bbox.getMaxLon(), bbox.getMaxLat());
+            kml.coordinate(bbox.getMaxLon(), bbox.getMinLat());
+            kml.coordinate(bbox.getMinLon(), bbox.getMinLat());
+            kml.coordinate(bbox.getMinLon(), bbox.getMaxLat());
+            kml.coordinate(bbox.getMaxLon(), bbox.getMaxLat());
+            kml.end();
+            kml.end();
+            kml.end();
         }
     }
 
-    private void createKmlSituationFolder(Folder kmlNode, long atTime) {
-        Folder situationFolder = kmlNode.createAndAddFolder().withName("Situation")
-                .withDescription(new Date(atTime).toString()).withOpen(false).withVisibility(false);
+    private void writeKmlSituationFolder(KmlWriter kml, long atTime) throws XMLStreamException {
+        kml.start("Folder");
+        kml.element("name", "Situation");
+        kml.element("visibility", false);
+        kml.element("open", false);
+        kml.element("description", new Date(atTime).toString());
 
         BoundingBox bbox = scenarioTracker.boundingBox();
         Set<ScenarioTracker.Target> targets = scenarioTracker.getTargetsHavingPositionUpdates();
@@ -500,12 +588,12 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
         for (ScenarioTracker.Target target : targets) {
             ScenarioTracker.Target.PositionReport estimatedPosition = target.getPositionReportAt(t, 10);
             if (estimatedPosition != null && bbox.contains(estimatedPosition.getPositionTime())) {
-                createKmlShipShapePlacemark(situationFolder, target.getMmsi(), target.getName(), null, null,
+                writeKmlShipShapePlacemark(kml, target.getMmsi(), target.getName(), null, null,
                         estimatedPosition.getLatitude(), estimatedPosition.getLongitude(), estimatedPosition.getCog(),
                         estimatedPosition.getSog(), estimatedPosition.getHeading(), target.getToBow(),
                         target.getToStern(), target.getToPort(), target.getToStarboard(),
                         target.isTagged(KML_STYLE_PRIMARY_SHIP), getStyle(target, false), true);
-                createKmlShipIconPlacemark(situationFolder, target.getShipTypeCargo(),
+                writeKmlShipIconPlacemark(kml, target.getShipTypeCargo(),
                         estimatedPosition.getNavigationalStatus(), null, null, estimatedPosition.getLatitude(),
                         estimatedPosition.getLongitude(), estimatedPosition.getCog(), "<h2>Vessel details</h2>"
                                 + generateHtmlShipDescription(target, estimatedPosition, null, null), true);
@@ -519,72 +607,89 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
                 }
             }
         }
-        createSituationPlacemark(situationFolder, primaryTarget, primaryPositionReport, secondaryTarget,
+        writeSituationPlacemark(kml, primaryTarget, primaryPositionReport, secondaryTarget,
                 secondaryPositionReport);
+        kml.end();
     }
 
-    private void createKmlMovementsAndIconsFolders(Folder kmlNode) {
+    /**
+     * Writes the movements folder and then the icons folder, each holding a folder per target. The targets are
+     * visited once per folder, so each placemark is written as soon as it is created.
+     */
+    private void writeKmlMovementsAndIconsFolders(KmlWriter kml) throws XMLStreamException {
         Set<ScenarioTracker.Target> targets = scenarioTracker.getTargetsHavingPositionUpdates();
 
-        final boolean useInterpolation = movementInterpolationStep.get() != null && movementInterpolationStep.get() > 0;
-
-        Folder movementFolder = kmlNode.createAndAddFolder().withName("Movements").withOpen(false)
-                .withVisibility(false);
+        final Integer step = movementInterpolationStep.get();
+        final boolean useInterpolation = step != null && step > 0;
 
-        Folder iconFolder = kmlNode.createAndAddFolder().withName("Icons").withOpen(false).withVisibility(false);
+        kml.start("Folder");
+        kml.element("name", "Movements");
+        kml.element("visibility", false);
+        kml.element("open", false);
+        for (ScenarioTracker.Target target : targets) {
+            writeKmlTargetMovements(kml, target, useInterpolation ? step : 0, false);
+        }
+        kml.end();
 
+        kml.start("Folder");
+        kml.element("name", "Icons");
+        kml.element("visibility", false);
+        kml.element("open", false);
         for (ScenarioTracker.Target target : targets) {
-            Folder targetShipShapeFolder = movementFolder.createAndAddFolder().withName(target.getName())
-                    .withDescription("Movements for MMSI " + target.getMmsi());
-            Folder targetShipIconFolder = iconFolder.createAndAddFolder().withName(target.getName())
-                    .withDescription("Icons for MMSI " + target.getMmsi());
-            if (useInterpolation) {
-                final long t1 = target.timeOfFirstPositionReport().getTime();
-                final long t2 = target.timeOfLastPositionReport().getTime();
-                final int dt = movementInterpolationStep.get() * 1000;
-                for (long t = t1; t <= t2; t += dt) {
-                    ScenarioTracker.Target.PositionReport positionReport = target.getPositionReportAt(new Date(t),
-                            KML_POSITION_TIMESPAN_SECS);
-                    createKmlShipShapePlacemark(targetShipShapeFolder, target.getMmsi(), target.getName(), t
-                            - (dt - 100), t, positionReport.getLatitude(), positionReport.getLongitude(),
-                            positionReport.getCog(), positionReport.getSog(), positionReport.getHeading(),
-                            target.getToBow(), target.getToStern(), target.getToPort(), target.getToStarboard(), false,
-                            getStyle(target, positionReport.isEstimated()), false);
-                    createKmlShipIconPlacemark(targetShipIconFolder, target.getShipTypeCargo(),
-                            positionReport.getNavigationalStatus(), t - (dt - 100), t, positionReport.getLatitude(),
-                            positionReport.getLongitude(), positionReport.getCog(), "<h2>Vessel details</h2>"
-                                    + generateHtmlShipDescription(target, positionReport, null, null), false);
-                }
-            } else {
-                Set<ScenarioTracker.Target.PositionReport> positionReports = target.getPositionReports();
-
-                ScenarioTracker.Target.PositionReport[] positionReportsArray = positionReports
-                        .toArray(new ScenarioTracker.Target.PositionReport[positionReports.size()]);
-                for (int i = 0; i < positionReportsArray.length; i++) {
-                    ScenarioTracker.Target.PositionReport positionReport = positionReportsArray[i];
-                    ScenarioTracker.Target.PositionReport nextPositionReport = null;
-                    if (i < positionReportsArray.length - 1) {
-                        nextPositionReport = positionReportsArray[i + 1];
-                    }
-
-                    final long maxTimespan = 10000L;
-                    final long timespan = min(nextPositionReport != null ? nextPositionReport.getTimestamp()
-                            - positionReport.getTimestamp() - 1 : maxTimespan, maxTimespan);
-
-                    createKmlShipShapePlacemark(targetShipShapeFolder, target.getMmsi(), target.getName(),
-                            positionReport.getTimestamp(), positionReport.getTimestamp() + timespan,
-                            positionReport.getLatitude(), positionReport.getLongitude(), positionReport.getCog(),
-                            positionReport.getSog(), positionReport.getHeading(), target.getToBow(),
-                            target.getToStern(), target.getToPort(), target.getToStarboard(), false,
-                            getStyle(target, positionReport.isEstimated()), false);
-                    createKmlShipIconPlacemark(targetShipIconFolder, target.getShipTypeCargo(),
-                            positionReport.getNavigationalStatus(), positionReport.getTimestamp(),
-                            positionReport.getTimestamp() + timespan, positionReport.getLatitude(),
-                            positionReport.getLongitude(), positionReport.getCog(), "<h2>Vessel details</h2>"
-                                    + generateHtmlShipDescription(target, positionReport, null, null), false);
-                }
+            writeKmlTargetMovements(kml, target, useInterpolation ? step : 0, true);
+        }
+        kml.end();
+    }
+
+    /**
+     * Writes the folder of ship shapes or of ship icons of a target, interpolated at the specified step in seconds or
+     * at each position report if the step is 0.
+     */
+    private void writeKmlTargetMovements(KmlWriter kml, ScenarioTracker.Target target, int step, boolean icons)
+            throws XMLStreamException {
+        kml.start("Folder");
+        kml.element("name", target.getName());
+        kml.element("description", (icons ? "Icons" : "Movements") + " for MMSI " + target.getMmsi());
+        if (step > 0) {
+            final long t1 = target.timeOfFirstPositionReport().getTime();
+            final long t2 = target.timeOfLastPositionReport().getTime();
+            final int dt = step * 1000;
+            for (long t = t1; t <= t2; t += dt) {
+                ScenarioTracker.Target.PositionReport positionReport = target.getPositionReportAt(new Date(t),
+                        KML_POSITION_TIMESPAN_SECS);
+                writeKmlMovement(kml, target, positionReport, t - (dt - 100), t, icons);
+            }
+        } else {
+            ScenarioTracker.Target.Track track = target.getTrack();
+            for (int i = 0; i < track.size(); i++) {
+                ScenarioTracker.Target.PositionReport positionReport = track.get(i);
+
+                final long maxTimespan = 10000L;
+                final long timespan = min(i < track.size() - 1 ? track.getTimestamp(i + 1)
+                        - positionReport.getTimestamp() - 1 : maxTimespan, maxTimespan);
+
+                writeKmlMovement(kml, target, positionReport, positionReport.getTimestamp(),
+                        positionReport.getTimestamp() + timespan, icons);
             }
         }
+        kml.end();
+    }
+
+    private void writeKmlMovement(KmlWriter kml, ScenarioTracker.Target target,
+            ScenarioTracker.Target.PositionReport positionReport, long timespanBegin, long timespanEnd, boolean icon)
+            throws XMLStreamException {
+        if (icon) {
+            writeKmlShipIconPlacemark(kml, target.getShipTypeCargo(), positionReport.getNavigationalStatus(),
+                    timespanBegin, timespanEnd, positionReport.getLatitude(), positionReport.getLongitude(),
+                    positionReport.getCog(), "<h2>Vessel details</h2>"
+                            + generateHtmlShipDescription(target, positionReport, null, null), false);
+        } else {
+            writeKmlShipShapePlacemark(kml, target.getMmsi(), target.getName(), timespanBegin, timespanEnd,
+                    positionReport.getLatitude(), positionReport.getLongitude(), positionReport.getCog(),
+                    positionReport.getSog(), positionReport.getHeading(), target.getToBow(), target.getToStern(),
+                    target.getToPort(), target.getToStarboard(), false, getStyle(target, positionReport.isEstimated()),
+                    false);
+        }
     }
 
     private String generateHtmlEventDescription() {
@@ -677,91 +782,83 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
         table.append("</td></tr>");
     }
 
-    private void createKmlTracksFolder(Folder kmlNode, Predicate<? super ScenarioTracker.Target> trackFor) {
+    /**
+     * Writes the tracks folder with a folder per kind of ship. The folders are written in the order of their first
+     * target, and the targets are visited once per folder, so each track is written as soon as it is created.
+     */
+    private void writeKmlTracksFolder(KmlWriter kml, Predicate<? super ScenarioTracker.Target> trackFor)
+            throws XMLStreamException {
         Set<ScenarioTracker.Target> targets = scenarioTracker.getTargetsHavingPositionUpdates();
 
-        Folder tracksFolder = kmlNode.createAndAddFolder().withName("Tracks").withOpen(false).withVisibility(false);
-
-        Folder cargoTracksFolder = null;
-        Folder tankersTracksFolder = null;
-        Folder passengerTracksFolder = null;
-        Folder fishingTracksFolder = null;
-        Folder classBTracksFolder = null;
-        Folder otherTracksFolder = null;
-
+        Set<String> folders = new LinkedHashSet<>();
         for (ScenarioTracker.Target target : targets) {
-            if (trackFor.test(target)) {
-                Set<ScenarioTracker.Target.PositionReport> positionReportReports = target.getPositionReports();
-                if (positionReportReports.size() > 0) {
-
-                    Folder folder = null;
-
-                    ShipTypeCargo shipTypeCargo = target.getShipTypeCargo();
-                    if (shipTypeCargo != null) {
-                        ShipTypeCargo.ShipType shipType = shipTypeCargo.getShipType();
-                        switch (shipType) {
-                        case CARGO:
-                            if (cargoTracksFolder == null) {
-                                cargoTracksFolder = tracksFolder.createAndAddFolder().withName("Cargo").withOpen(false)
-                                        .withVisibility(false);
-                            }
-                            folder = cargoTracksFolder;
-                            break;
-                        case TANKER:
-                            if (tankersTracksFolder == null) {
-                                tankersTracksFolder = tracksFolder.createAndAddFolder().withName("Tankers")
-                                        .withOpen(false).withVisibility(false);
-                            }
-                            folder = tankersTracksFolder;
-                            break;
-                        case PASSENGER:
-                            if (passengerTracksFolder == null) {
-                                passengerTracksFolder = tracksFolder.createAndAddFolder().withName("Passenger")
-                                        .withOpen(false).withVisibility(false);
-                            }
-                            folder = passengerTracksFolder;
-                            break;
-                        case FISHING:
-                            if (fishingTracksFolder == null) {
-                                fishingTracksFolder = tracksFolder.createAndAddFolder().withName("Fishing")
-                                        .withOpen(false).withVisibility(false);
-                            }
-                            folder = fishingTracksFolder;
-                            break;
-                        case PLEASURE:
-                        case SAILING:
-                            if (classBTracksFolder == null) {
-                                classBTracksFolder = tracksFolder.createAndAddFolder().withName("Class B")
-                                        .withOpen(false).withVisibility(false);
-                            }
-                            folder = classBTracksFolder;
-                            break;
-                        }
-                    }
-                    if (folder == null) {
-                        if (otherTracksFolder == null) {
-                            otherTracksFolder = tracksFolder.createAndAddFolder().withName("Other").withOpen(false)
-                                    .withVisibility(false);
-                        }
-                        folder = otherTracksFolder;
-                    }
-
-                    Placemark placemark = folder.createAndAddPlacemark().withId(target.getMmsi())
-                            .withName(target.getName());
-
-                    Style style = placemark.createAndAddStyle().withId("_" + target.getName() + "TrackStyle");
-                    style.createAndSetBalloonStyle().withText(
-                            "<h2>Vessel details</h2>" + generateHtmlShipDescription(target, null, null, null));
-
-                    placemark.withStyleUrl(getStyle(target, false));
-
-                    LineString lineString = placemark.createAndSetLineString();
-                    for (ScenarioTracker.Target.PositionReport positionReport : positionReportReports) {
-                        lineString.addToCoordinates(positionReport.getLongitude(), positionReport.getLatitude());
-                    }
+            if (trackFor.test(target) && target.getTrack().size() > 0) {
+                folders.add(getTracksFolderName(target));
+            }
+        }
+
+        kml.start("Folder");
+        kml.element("name", "Tracks");
+        kml.element("visibility", false);
+        kml.element("open", false);
+        for (String folder : folders) {
+            kml.start("Folder");
+            kml.element("name", folder);
+            kml.element("visibility", false);
+            kml.element("open", false);
+            for (ScenarioTracker.Target target : targets) {
+                ScenarioTracker.Target.Track track = target.getTrack();
+                if (trackFor.test(target) && track.size() > 0 && folder.equals(getTracksFolderName(target))) {
+                    writeKmlTrackPlacemark(kml, target, track);
                 }
             }
+            kml.end();
+        }
+        kml.end();
+    }
+
+    private static String getTracksFolderName(ScenarioTracker.Target target) {
+        ShipTypeCargo shipTypeCargo = target.getShipTypeCargo();
+        if (shipTypeCargo != null) {
+            switch (shipTypeCargo.getShipType()) {
+            case CARGO:
+                return "Cargo";
+            case TANKER:
+                return "Tankers";
+            case PASSENGER:
+                return "Passenger";
+            case FISHING:
+                return "Fishing";
+            case PLEASURE:
+            case SAILING:
+                return "Class B";
+            default:
+                break;
+            }
         }
+        return "Other";
+    }
+
+    private void writeKmlTrackPlacemark(KmlWriter kml, ScenarioTracker.Target target,
+            ScenarioTracker.Target.Track track) throws XMLStreamException {
+        kml.start("Placemark", target.getMmsi());
+        kml.element("name", target.getName());
+        kml.element("styleUrl", getStyle(target, false));
+
+        kml.start("Style", "_" + target.getName() + "TrackStyle");
+        kml.start("BalloonStyle");
+        kml.element("text", "<h2>Vessel details</h2>" + generateHtmlShipDescription(target, null, null, null));
+        kml.end();
+        kml.end();
+
+        kml.start("LineString");
+        kml.startCoordinates();
+        for (ScenarioTracker.Target.PositionReport positionReport : track) {
+            kml.coordinate(positionReport.getLongitude(), positionReport.getLatitude());
+        }
+        kml.end();
+        kml.end();
+        kml.end();
     }
 
     private static String getStyle(ScenarioTracker.Target target, boolean estimatedPosition) {
@@ -774,9 +871,10 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
         }
     }
 
-    private void createKmlShipShapePlacemark(Folder targetFolder, String mmsi, String name, Long timespanBegin,
+    private void writeKmlShipShapePlacemark(KmlWriter kml, String mmsi, String name, Long timespanBegin,
             Long timespanEnd, double latitude, double longitude, float cog, float sog, int heading, float toBow,
-            float toStern, float toPort, float toStarboard, boolean safetyZoneEllipse, String style, boolean visible) {
+            float toStern, float toPort, float toStarboard, boolean safetyZoneEllipse, String style, boolean visible)
+            throws XMLStreamException {
         String begin = null;
         String end = null;
         if (timespanBegin != null && timespanEnd != null) {
@@ -786,31 +884,29 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
             end = DATE_FORMAT.format(calendar.getTime());
         }
 
-        Placemark placemarkForShipShape = targetFolder.createAndAddPlacemark().withVisibility(visible).withId(mmsi)
-                .withName(name).withStyleUrl("#" + style);
-
-        if (begin != null && end != null) {
-            placemarkForShipShape.createAndSetTimeSpan().withBegin(begin).withEnd(end);
-        }
-
-        addKmlShipGeometry(placemarkForShipShape, latitude, longitude, heading, toBow, toStern, toPort, toStarboard);
+        kml.start("Placemark", mmsi);
+        kml.element("name", name);
+        kml.element("visibility", visible);
+        kml.timeSpan(begin, end);
+        kml.element("styleUrl", "#" + style);
+        writeKmlShipGeometry(kml, latitude, longitude, heading, toBow, toStern, toPort, toStarboard);
+        kml.end();
 
         if (safetyZoneEllipse) {
-            Placemark placemarkForEllipse = targetFolder.createAndAddPlacemark().withVisibility(visible)
-                    .withId(mmsi + "-ellipse").withName(name + "'s ellipse").withStyleUrl("#" + style);
-
-            if (begin != null && end != null) {
-                placemarkForEllipse.createAndSetTimeSpan().withBegin(begin).withEnd(end);
-            }
-
-            addKmlEllipseGeometry(placemarkForEllipse, latitude, longitude, cog, sog, toStern + toBow, toPort
-                    + toStarboard, toStern, toStarboard);
+            kml.start("Placemark", mmsi + "-ellipse");
+            kml.element("name", name + "'s ellipse");
+            kml.element("visibility", visible);
+            kml.timeSpan(begin, end);
+            kml.element("styleUrl", "#" + style);
+            writeKmlEllipseGeometry(kml, latitude, longitude, cog, sog, toStern + toBow, toPort + toStarboard,
+                    toStern, toStarboard);
+            kml.end();
         }
     }
 
-    private void createKmlShipIconPlacemark(Folder targetFolder, ShipTypeCargo shipTypeCargo,
+    private void writeKmlShipIconPlacemark(KmlWriter kml, ShipTypeCargo shipTypeCargo,
             NavigationalStatus navigationalStatus, Long timespanBegin, Long timespanEnd, double latitude,
-            double longitude, float cog, String description, boolean visible) {
+            double longitude, float cog, String description, boolean visible) throws XMLStreamException {
         String begin = null;
         String end = null;
         if (timespanBegin != null && timespanEnd != null) {
@@ -820,77 +916,94 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
             end = DATE_FORMAT.format(calendar.getTime());
         }
 
-        Placemark placemarkForShipIcon = targetFolder.createAndAddPlacemark().withVisibility(visible)
-                .withDescription("");
-
-        Style style = placemarkForShipIcon.createAndAddStyle().withId("shipIconStyle");
-
-        style.createAndSetBalloonStyle().withText(description);
-
-        style.createAndSetIconStyle().withScale(1.0).withHeading((int) cog).createAndSetIcon()
-                .withHref(iconHrefSupplier.apply(shipTypeCargo, navigationalStatus));
-
-        placemarkForShipIcon.createAndSetPoint()
-                .withCoordinates(Lists.newArrayList(new Coordinate(longitude, latitude)))
-                .withAltitudeMode(AltitudeMode.CLAMP_TO_GROUND);
-
-        if (begin != null && end != null) {
-            placemarkForShipIcon.createAndSetTimeSpan().withBegin(begin).withEnd(end);
-        }
+        kml.start("Placemark");
+        kml.element("visibility", visible);
+        kml.element("description", "");
+        kml.timeSpan(begin, end);
+
+        kml.start("Style", "shipIconStyle");
+        kml.start("IconStyle");
+        kml.element("scale", 1.0);
+        kml.element("heading", (double) (int) cog);
+        kml.start("Icon");
+        kml.element("href", iconHrefSupplier.apply(shipTypeCargo, navigationalStatus));
+        kml.end();
+        kml.end();
+        kml.start("BalloonStyle");
+        kml.element("text", description);
+        kml.end();
+        kml.end();
+
+        writeKmlPoint(kml, latitude, longitude);
+        kml.end();
     }
 
-    private void createSituationPlacemark(Folder targetFolder, ScenarioTracker.Target primaryTarget,
+    private void writeSituationPlacemark(KmlWriter kml, ScenarioTracker.Target primaryTarget,
             ScenarioTracker.Target.PositionReport primaryPositionReport, ScenarioTracker.Target secondaryTarget,
-            ScenarioTracker.Target.PositionReport secondaryPositionReport) {
-
-        Placemark placemarkForSituationIcon = targetFolder.createAndAddPlacemark().withDescription(
-                snapshotDescriptionSupplier.get());
-
-        Style style = placemarkForSituationIcon.createAndAddStyle().withId("situationIconStyle");
-
-        style.createAndSetBalloonStyle().withText(
+            ScenarioTracker.Target.PositionReport secondaryPositionReport) throws XMLStreamException {
+
+        kml.start("Placemark");
+        kml.element("description", snapshotDescriptionSupplier.get());
+
+        kml.start("Style", "situationIconStyle");
+        kml.start("IconStyle");
+        kml.element("scale", 1.0);
+        kml.start("Icon");
+        kml.element("href", "http://maps.google.com/mapfiles/kml/pal3/icon33.png");
+        kml.end();
+        kml.end();
+        kml.start("BalloonStyle");
+        kml.element("text",
                 "<h2>Situation</h2>"
                         + generateHtmlEventDescription()
                         + "<h2>Involved vessels</h2>"
                         + generateHtmlShipDescription(primaryTarget, primaryPositionReport, secondaryTarget,
                                 secondaryPositionReport));
+        kml.end();
+        kml.end();
 
-        style.createAndSetIconStyle().withScale(1.0).createAndSetIcon()
-        .withHref("http://maps.google.com/mapfiles/kml/pal3/icon33.png");
+        writeKmlPoint(kml, primaryPositionReport.getLatitude(), primaryPositionReport.getLongitude());
+        kml.end();
+    }
 
-        placemarkForSituationIcon
-        .createAndSetPoint()
-                .withCoordinates(
-                Lists.newArrayList(new Coordinate(primaryPositionReport.getLongitude(), primaryPositionReport
-                        .getLatitude()))).withAltitudeMode(AltitudeMode.CLAMP_TO_GROUND);
+    private static void writeKmlPoint(KmlWriter kml, double latitude, double longitude) throws XMLStreamException {
+        kml.start("Point");
+        kml.element("altitudeMode", "clampToGround");
+        kml.startCoordinates();
+        kml.coordinate(longitude, latitude);
+        kml.end();
+        kml.end();
     }
 
     /**
      * Create a KML geometry to symbolize a safety zone ellipses.
      */
-    private static void addKmlEllipseGeometry(Placemark placemark, double latitude, double longitude, float cog,
-            float sog, float loa, float beam, float dimStern, float dimStarbord) {
+    private static void writeKmlEllipseGeometry(KmlWriter kml, double latitude, double longitude, float cog,
+            float sog, float loa, float beam, float dimStern, float dimStarbord) throws XMLStreamException {
         Position p = Position.create(latitude, longitude);
         Ellipse safetyZone = safetyZone(p, p, cog, sog, loa, beam, dimStern, dimStarbord);
 
         List<Position> perimeter = safetyZone.samplePerimeter(64);
 
         // Convert points into geographic coordinates and a KML geometry
-        LinearRing shipGeometry = placemark.createAndSetLinearRing().withAltitudeMode(AltitudeMode.CLAMP_TO_GROUND);
-
+        kml.start("LinearRing");
+        kml.element("altitudeMode", "clampToGround");
+        kml.startCoordinates();
         for (Position position : perimeter) {
-            shipGeometry.addToCoordinates(position.getLongitude(), position.getLatitude());
+            kml.coordinate(position.getLongitude(), position.getLatitude());
         }
         // Close linear ring
-        shipGeometry.addToCoordinates(perimeter.get(0).getLongitude(), perimeter.get(0).getLatitude());
+        kml.coordinate(perimeter.get(0).getLongitude(), perimeter.get(0).getLatitude());
+        kml.end();
+        kml.end();
     }
 
     /**
      * Create a KML geometry to symbolize a ship at the given position, at the given heading and with the given
      * dimensions.
      *
-     * @param placemark
-     *            Parent node
+     * @param kml
+     *            The writer of the parent placemark
      * @param lat
      *            Ship's positional latitude in degrees.
      * @param lon
@@ -905,10 +1018,10 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
      *            Distance in meters from ship's position reference to port side at maximum beam.
      * @param toStarbord
      *            Distance in meters from ship's position reference to starboard side at maximum beam.
-     * @return
      */
-    private static void addKmlShipGeometry(Placemark placemark, double lat, double lon, float heading,
-            float toBow /* A */, float toStern /* B */, float toPort /* C */, float toStarbord /* D */) {
+    private static void writeKmlShipGeometry(KmlWriter kml, double lat, double lon, float heading,
+            float toBow /* A */, float toStern /* B */, float toPort /* C */, float toStarbord /* D */)
+            throws XMLStreamException {
         // If the ship dimensions are not found then create a small ship
         if (toBow < 0 || toStern < 0) {
             toBow = 20;
@@ -939,15 +1052,19 @@ class AisPacketKMLOutputSink extends OutputStreamSink<AisPacket> {
         }
 
         // Convert ship coordinates into geographic coordinates and a KML geometry
-        LinearRing shipGeometry = placemark.createAndSetLinearRing().withAltitudeMode(AltitudeMode.CLAMP_TO_GROUND);
-
         CoordinateConverter coordinateConverter = new CoordinateConverter(lon, lat);
-        Boundary boundary = placemark.createAndSetPolygon().createAndSetOuterBoundaryIs();
-
-        boundary.setLinearRing(shipGeometry);
+        kml.start("Polygon");
+        kml.start("outerBoundaryIs");
+        kml.start("LinearRing");
+        kml.element("altitudeMode", "clampToGround");
+        kml.startCoordinates();
         for (Point point : points) {
-            shipGeometry.addToCoordinates(coordinateConverter.x2Lon(point.getX(), point.getY()),
+            kml.coordinate(coordinateConverter.x2Lon(point.getX(), point.getY()),
                     coordinateConverter.y2Lat(point.getX(), point.getY()));
         }
+        kml.end();
+        kml.end();
+        kml.end();
+        kml.end();
     }
 }
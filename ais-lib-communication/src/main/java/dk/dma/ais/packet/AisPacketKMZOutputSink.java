@@ -107,7 +107,7 @@ class AisPacketKMZOutputSink extends AisPacketKMLOutputSink {
     public void footer(OutputStream outputStream, long count) throws IOException {
         try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(outputStream))) { // http://goo.gl/UFb41j
             zos.putNextEntry(new ZipEntry("doc.kml"));
-            createKml().marshal(zos);
+            writeKml(zos);
             zos.putNextEntry(new ZipEntry("icons/vessel_blue.png"));
             zos.write(VESSEL_BLUE_PNG);
             zos.putNextEntry(new ZipEntry("icons/vessel_blue_moored.png"));
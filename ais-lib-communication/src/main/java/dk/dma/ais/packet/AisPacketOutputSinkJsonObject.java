@@ -21,18 +21,17 @@ import static java.util.Objects.requireNonNull;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.text.DecimalFormat;
 
 import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.message.AisPositionMessage;
 import dk.dma.ais.message.AisStaticCommon;
-import dk.dma.ais.message.ShipTypeCargo;
 import dk.dma.commons.util.io.IoUtil;
 import dk.dma.commons.util.io.OutputStreamSink;
 import dk.dma.enav.model.geometry.Position;
 
 /**
- * Transform AisPackets into json objects with only specific columns
+ * Transform AisPackets into json objects with only specific columns. The columns are resolved once and each row is
+ * written through a reusable buffer, so a sink should only be used by one thread at a time.
  * @author Jens Tuxen
  *
  */
@@ -41,14 +40,20 @@ public class AisPacketOutputSinkJsonObject extends OutputStreamSink<AisPacket> {
     /** The column we are writing. */
     private final String[] columns;
     
+    /** The columns we are writing, resolved from their names. */
+    private final Column[] resolvedColumns;
+    
     final byte[] separator;
     
-    private DecimalFormat df = new DecimalFormat("###.#####");
+    /** The buffer each row is written to. */
+    private final JsonWriter w = new JsonWriter();
     
     private boolean first = true;
     
     public static final String ALLCOLUMNS = "mmsi;timestamp;lat;lon;sog;cog;name;dimBow;dimPort;dimStarboard;dimStern;shipType;shipCargo;callsign;targetType";
 
+    private static final byte[] ROW_SEPARATOR = JsonWriter.ascii(",\n");
+
     private String objectName;
     
     public AisPacketOutputSinkJsonObject(String format) {
@@ -57,6 +62,10 @@ public class AisPacketOutputSinkJsonObject extends OutputStreamSink<AisPacket> {
     
     public AisPacketOutputSinkJsonObject(String format, String separator, String objectName) {
        columns = format.split(separator);
+       resolvedColumns = new Column[columns.length];
+       for (int i = 0; i < columns.length; i++) {
+           resolvedColumns[i] = Column.of(columns[i]);
+       }
        this.objectName = objectName;
        this.separator = requireNonNull(separator).getBytes(StandardCharsets.US_ASCII);
     }
@@ -67,20 +76,18 @@ public class AisPacketOutputSinkJsonObject extends OutputStreamSink<AisPacket> {
      
         AisMessage m = message.tryGetAisMessage();
         if (m != null) {
-            StringBuilder sb = new StringBuilder();
+            w.reset();
             if (!first) {
-                sb.append(",\n");
+                w.append(ROW_SEPARATOR);
             }
             first = false;
             
             
-            sb.append('[');
+            w.append('[');
             
             AisStaticCommon common = null;
-            ShipTypeCargo stc = null;
             if (m instanceof AisStaticCommon) {
                 common = (AisStaticCommon)m;
-                stc = new ShipTypeCargo(common.getShipType());
             }
             
             AisPositionMessage im = null;
@@ -89,131 +96,126 @@ public class AisPacketOutputSinkJsonObject extends OutputStreamSink<AisPacket> {
                 im = (AisPositionMessage)m;
             }
             
-            for (int i= 0; i< columns.length; i++) {
-                String c = columns[i];
-                
-                switch(c) {
-                case "mmsi":
-                    sb.append('\"').append(m.getUserId()).append('\"');
+            for (int i= 0; i< resolvedColumns.length; i++) {
+                switch(resolvedColumns[i]) {
+                case MMSI:
+                    w.append('\"').append(m.getUserId()).append('\"');
                     break;
-                case "lat":
+                case LAT:
                     if (im != null && pos != null) {
-                        sb.append(df.format(pos.getLatitude()));
-
+                        w.append(pos.getLatitude(), AisPacketOutputSinks.JSON_POSITION_DECIMALS);
                     } else {
-                        sb.append("null");   
+                        w.appendNull();
                     }
                     break;
-                case "lon":
+                case LON:
                     if (im != null && pos != null) {
-                        sb.append(df.format(pos.getLongitude()));
+                        w.append(pos.getLongitude(), AisPacketOutputSinks.JSON_POSITION_DECIMALS);
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }
                     break;
-                case "targetType":
-                    sb.append('\"').append(m.getTargetType().toString()).append("\"");
+                case TARGET_TYPE:
+                    w.append(m.getTargetType());
                     break;
-                case "sog":
+                case SOG:
                     if (im != null) {
-                        sb.append(im.getSog());
+                        w.append(im.getSog());
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }
                     break;
-                case "cog":
+                case COG:
                     if (im != null) {
-                        sb.append(im.getCog());
-                        
+                        w.append(im.getCog());
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }
                     break;
-                case "trueHeading":
+                case TRUE_HEADING:
                     if (im != null) {
-                        sb.append(im.getTrueHeading());
-                        break;
+                        w.append(im.getTrueHeading());
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }
-                case "timestamp":
-                    sb.append(message.getBestTimestamp());
                     break;
-                case "name":
+                case TIMESTAMP:
+                    w.append(message.getBestTimestamp());
+                    break;
+                case NAME:
                     if (common != null) {
-                        sb.append("\"").append(AisMessage.trimText(common.getName())).append("\"");
+                        w.appendText(common.getName());
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }
                     break;
-                case "dimBow":
+                case DIM_BOW:
                     if (common != null) {
-                        sb.append(common.getDimBow());
+                        w.append(common.getDimBow());
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }
                     break;
-                case "dimPort":
+                case DIM_PORT:
                     if (common != null) {
-                        sb.append(common.getDimPort());
+                        w.append(common.getDimPort());
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }
                     break;
-                case "dimStarboard":
+                case DIM_STARBOARD:
                     if (common != null) {
-                        sb.append(common.getDimStarboard());
+                        w.append(common.getDimStarboard());
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }
                     break;
-                case "dimStern":
+                case DIM_STERN:
                     if (common != null) {
-                        sb.append(common.getDimStern());
-                        
+                        w.append(common.getDimStern());
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }
                     break;                    
-                case "shipType":
-                    if (stc != null) {
-                        sb.append('\"').append(stc.getShipType().toString()).append("\"");
+                case SHIP_TYPE:
+                    if (common != null) {
+                        w.appendShipType(common.getShipType());
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }
                     break;
-                case "shipCargo":
-                    if (stc != null) {
-                        sb.append('\"').append(stc.getShipCargo().toString()).append("\"");
+                case SHIP_CARGO:
+                    if (common != null) {
+                        w.appendCargoType(common.getShipType());
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }             
                     break;
-                case "callsign":
+                case CALLSIGN:
                     if (common != null) {
-                        sb.append("\"").append(AisMessage.trimText(common.getCallsign())).append("\"");
+                        w.appendText(common.getCallsign());
                     } else {
-                        sb.append("null");
+                        w.appendNull();
                     }
                     break;
                 default:
-                    sb.append("null");
+                    w.appendNull();
                 }
                 
                 
-                if (i < (columns.length-1)) {
-                    sb.append(',');
+                if (i < (resolvedColumns.length-1)) {
+                    w.append(',');
                 }
             }
             
-            sb.append("]");
+            w.append(']');
             
-            IoUtil.writeAscii(sb, stream);
+            w.writeTo(stream);
         }
     }
     
     
-
+    
     /** {@inheritDoc} */
     @Override
     public void header(OutputStream stream) throws IOException {
@@ -240,6 +242,52 @@ public class AisPacketOutputSinkJsonObject extends OutputStreamSink<AisPacket> {
     public void footer(OutputStream stream, long count) throws IOException {
         writeAscii("]\n}}", stream);
     }
+
+    /** The columns that can be written. */
+    private enum Column {
+        MMSI, TIMESTAMP, LAT, LON, SOG, COG, TRUE_HEADING, NAME, DIM_BOW, DIM_PORT, DIM_STARBOARD, DIM_STERN, SHIP_TYPE,
+        SHIP_CARGO, CALLSIGN, TARGET_TYPE, UNKNOWN;
+
+        /** Returns the column of the specified name, or UNKNOWN which is written as null. */
+        static Column of(String name) {
+            switch (name) {
+            case "mmsi":
+                return MMSI;
+            case "timestamp":
+                return TIMESTAMP;
+            case "lat":
+                return LAT;
+            case "lon":
+                return LON;
+            case "sog":
+                return SOG;
+            case "cog":
+                return COG;
+            case "trueHeading":
+                return TRUE_HEADING;
+            case "name":
+                return NAME;
+            case "dimBow":
+                return DIM_BOW;
+            case "dimPort":
+                return DIM_PORT;
+            case "dimStarboard":
+                return DIM_STARBOARD;
+            case "dimStern":
+                return DIM_STERN;
+            case "shipType":
+                return SHIP_TYPE;
+            case "shipCargo":
+                return SHIP_CARGO;
+            case "callsign":
+                return CALLSIGN;
+            case "targetType":
+                return TARGET_TYPE;
+            default:
+                return UNKNOWN;
+            }
+        }
+    }
     
     
     
@@ -14,6 +14,7 @@
  */
 package dk.dma.ais.packet;
 
+import dk.dma.ais.archive.ColumnarArchiveOutputSink;
 import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.message.AisPositionMessage;
 import dk.dma.ais.message.AisStaticCommon;
@@ -32,13 +33,13 @@ import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 import static dk.dma.commons.util.io.IoUtil.writeAscii;
 
@@ -56,12 +57,43 @@ public class AisPacketOutputSinks {
         }
     };
 
-    static final ThreadLocal<DecimalFormat> POSITION_FORMATTER = new ThreadLocal<DecimalFormat>() {
-        protected DecimalFormat initialValue() {
-            return new DecimalFormat("###.#####");
+    /** A thread local JSON writer for the sinks that are shared between threads. */
+    static final ThreadLocal<JsonWriter> JSON_WRITER = new ThreadLocal<JsonWriter>() {
+        protected JsonWriter initialValue() {
+            return new JsonWriter();
         }
     };
 
+    /** The number of decimals of positions written as JSON. */
+    static final int JSON_POSITION_DECIMALS = 5;
+
+    private static final byte[] PAST_TRACK_POINT_END = JsonWriter.ascii("  },");
+    private static final byte[] PAST_TRACK_TIMESTAMP = JsonWriter.ascii("\n  \"point\": {\n    \"timestamp\": ");
+    private static final byte[] PAST_TRACK_LON = JsonWriter.ascii(",\n    \"lon\": ");
+    private static final byte[] PAST_TRACK_LAT = JsonWriter.ascii(",\n    \"lat\": ");
+    private static final byte[] PAST_TRACK_SOG = JsonWriter.ascii(",\n    \"sog\": ");
+    private static final byte[] PAST_TRACK_COG = JsonWriter.ascii(",\n    \"cog\": ");
+    private static final byte[] PAST_TRACK_HEADING = JsonWriter.ascii(",\n    \"heading\": ");
+
+    private static final byte[] JSON_MMSI = JsonWriter.ascii("{\"mmsi\":");
+    private static final byte[] JSON_MSG_ID = JsonWriter.ascii(",\"msgId\":");
+    private static final byte[] JSON_LAT = JsonWriter.ascii(",\"lat\":");
+    private static final byte[] JSON_LON = JsonWriter.ascii(",\"lon\":");
+    private static final byte[] JSON_SOG = JsonWriter.ascii(",\"sog\":");
+    private static final byte[] JSON_COG = JsonWriter.ascii(",\"cog\":");
+    private static final byte[] JSON_TRUE_HEADING = JsonWriter.ascii(",\"trueHeading\":");
+    private static final byte[] JSON_TARGET_TYPE = JsonWriter.ascii(",\"targetType\":");
+    private static final byte[] JSON_NAME = JsonWriter.ascii(",\"name\":");
+    private static final byte[] JSON_DIM_BOW = JsonWriter.ascii(",\"dimBow\":");
+    private static final byte[] JSON_DIM_PORT = JsonWriter.ascii(",\"dimPort\":");
+    private static final byte[] JSON_DIM_STARBOARD = JsonWriter.ascii(",\"dimStarboard\":");
+    private static final byte[] JSON_DIM_STERN = JsonWriter.ascii(",\"dimStern\":");
+    private static final byte[] JSON_SHIP_TYPE = JsonWriter.ascii(",\"shipType\":");
+    private static final byte[] JSON_CARGO = JsonWriter.ascii(",\"cargo\":");
+    private static final byte[] JSON_CALLSIGN = JsonWriter.ascii(",\"callsign\":");
+    private static final byte[] JSON_TIMESTAMP = JsonWriter.ascii(",\"timestamp\":");
+    private static final byte[] JSON_END = JsonWriter.ascii("}\r\n");
+
     /** A sink that writes an ais packet to an output stream. Using the default multi-line format. */
     public static final OutputStreamSink<AisPacket> OUTPUT_TO_TEXT = new OutputStreamSink<AisPacket>() {
         @Override
@@ -80,24 +112,22 @@ public class AisPacketOutputSinks {
 
         @Override
         public void process(OutputStream stream, AisPacket p, long count) throws IOException {
-            DecimalFormat df = POSITION_FORMATTER.get();
             AisMessage m = p.tryGetAisMessage();
             if (m instanceof IVesselPositionMessage) {
                 IVesselPositionMessage im = (IVesselPositionMessage) m;
                 Position pos = m.getValidPosition();
 
-                StringBuilder sb = new StringBuilder();
+                JsonWriter w = JSON_WRITER.get().reset();
                 if (count > 1) {
-                    sb.append("  },");
+                    w.append(PAST_TRACK_POINT_END);
                 }
-                sb.append("\n  \"point\": {\n");
-                sb.append("    \"timestamp\": ").append(p.getBestTimestamp()).append(",\n");
-                sb.append("    \"lon\": ").append(df.format(pos.getLongitude())).append(",\n");
-                sb.append("    \"lat\": ").append(df.format(pos.getLatitude())).append(",\n");
-                sb.append("    \"sog\": ").append(im.getSog()).append(",\n");
-                sb.append("    \"cog\": ").append(im.getCog()).append(",\n");
-                sb.append("    \"heading\": ").append(im.getTrueHeading()).append("\n");
-                writeAscii(sb, stream);
+                w.append(PAST_TRACK_TIMESTAMP).append(p.getBestTimestamp());
+                w.append(PAST_TRACK_LON).append(pos.getLongitude(), JSON_POSITION_DECIMALS);
+                w.append(PAST_TRACK_LAT).append(pos.getLatitude(), JSON_POSITION_DECIMALS);
+                w.append(PAST_TRACK_SOG).append(im.getSog());
+                w.append(PAST_TRACK_COG).append(im.getCog());
+                w.append(PAST_TRACK_HEADING).append(im.getTrueHeading()).append('\n');
+                w.writeTo(stream);
             }
         }
 
@@ -118,11 +148,14 @@ public class AisPacketOutputSinks {
     };
     
     /**
-     * A sink that writes ais messages as JSON to an output stream. Each Line is a valid json object.
+     * A sink that writes ais messages as JSON to an output stream. Each Line is a valid json object. Each sink has its
+     * own buffer that the lines are written to, so a sink should only be used by one thread at a time.
      */
     public static OutputStreamSink<AisPacket> jsonMessageSink() {
         return new OutputStreamSink<AisPacket>() {
 
+            private final JsonWriter w = new JsonWriter();
+
             @Override
             public void process(OutputStream stream, AisPacket p, long count) throws IOException {
                 
@@ -132,50 +165,43 @@ public class AisPacketOutputSinks {
                     return;
                 }
                 
-                StringBuilder sb = new StringBuilder();
-                
-                sb.append("{");
-                sb.append("\"mmsi\":").append(m.getUserId()).append(',');
-                sb.append("\"msgId\":").append(m.getMsgId()).append(',');
+                w.reset();
+                w.append(JSON_MMSI).append(m.getUserId());
+                w.append(JSON_MSG_ID).append(m.getMsgId());
                 
                 Position pos = m.getValidPosition();
                 if (pos != null) {
-                    DecimalFormat df = POSITION_FORMATTER.get();
-                    sb.append("\"lat\":").append(df.format(pos.getLatitude())).append(',');
-                    sb.append("\"lon\":").append(df.format(pos.getLongitude())).append(',');
+                    w.append(JSON_LAT).append(pos.getLatitude(), JSON_POSITION_DECIMALS);
+                    w.append(JSON_LON).append(pos.getLongitude(), JSON_POSITION_DECIMALS);
                 }
                 
                 if (m instanceof AisPositionMessage) {
                     AisPositionMessage im = (AisPositionMessage)m; 
-                    sb.append("\"sog\":").append(im.getSog()).append(',');
-                    sb.append("\"cog\":").append(im.getCog()).append(',');
-                    sb.append("\"trueHeading\":").append(im.getTrueHeading()).append(',');     
+                    w.append(JSON_SOG).append(im.getSog());
+                    w.append(JSON_COG).append(im.getCog());
+                    w.append(JSON_TRUE_HEADING).append(im.getTrueHeading());
                 }
                 
                 if (m.getTargetType() != null) {
-                    sb.append("\"targetType\":").append('\"').append(m.getTargetType().toString()).append("\",");
+                    w.append(JSON_TARGET_TYPE).append(m.getTargetType());
                 }
                 
-                
-                
                 if (m instanceof AisStaticCommon) {
                     AisStaticCommon asm = (AisStaticCommon)m;
                     
-                    sb.append("\"name\":").append('\"').append(AisMessage.trimText(asm.getName())).append("\",");
-                    sb.append("\"dimBow\":").append(asm.getDimBow()).append(',');
-                    sb.append("\"dimPort\":").append(asm.getDimPort()).append(",");
-                    sb.append("\"dimStarboard\":").append(asm.getDimStarboard()).append(",");
-                    sb.append("\"dimStern\":").append(asm.getDimStern()).append(",");
-                    ShipTypeCargo stc = new ShipTypeCargo(asm.getShipType());
-                    sb.append("\"shipType\":\"").append(stc.getShipType().toString()).append("\",");
-                    sb.append("\"cargo\":\"").append(stc.getShipCargo().toString()).append("\",");
-                    sb.append("\"callsign\":\"").append(AisMessage.trimText(asm.getCallsign())).append("\",");
-                    
+                    w.append(JSON_NAME).appendText(asm.getName());
+                    w.append(JSON_DIM_BOW).append(asm.getDimBow());
+                    w.append(JSON_DIM_PORT).append(asm.getDimPort());
+                    w.append(JSON_DIM_STARBOARD).append(asm.getDimStarboard());
+                    w.append(JSON_DIM_STERN).append(asm.getDimStern());
+                    w.append(JSON_SHIP_TYPE).appendShipType(asm.getShipType());
+                    w.append(JSON_CARGO).appendCargoType(asm.getShipType());
+                    w.append(JSON_CALLSIGN).appendText(asm.getCallsign());
                 }
                 
-                sb.append("\"timestamp\":").append(p.getBestTimestamp()).append("}\r\n");
+                w.append(JSON_TIMESTAMP).append(p.getBestTimestamp()).append(JSON_END);
                 
-                writeAscii(sb, stream);            
+                w.writeTo(stream);
             }
     
             /** {@inheritDoc} */
@@ -301,6 +327,46 @@ public class AisPacketOutputSinks {
         return new AisPacketKMLOutputSink(filter, createSituationFolder, createMovementsFolder, createTracksFolder, isPrimaryTarget, isSecondaryTarget, triggerSnapshot, snapshotDescriptionSupplier, movementInterpolationStep, supplyTitle, supplyDescription, iconHrefSupplier);
     }
 
+    /**
+     * Sets how a sink created by one of the newKmlSink or newKmzSink methods simplifies the tracks of the targets. By
+     * default position reports within 10 meters of the track without them are dropped.
+     *
+     * @param sink
+     *            the KML or KMZ sink, before any packet has been processed
+     * @param tolerance
+     *            the maximum distance in meters between a dropped position report and the simplified track
+     * @param maxInterval
+     *            the maximum time between two position reports kept
+     * @param unit
+     *            the unit of maxInterval
+     * @return the sink
+     */
+    public static OutputStreamSink<AisPacket> setKmlTrackTolerance(OutputStreamSink<AisPacket> sink, double tolerance,
+            long maxInterval, TimeUnit unit) {
+        kmlSink(sink).setTrackTolerance(tolerance, maxInterval, unit);
+        return sink;
+    }
+
+    /**
+     * Makes a sink created by one of the newKmlSink or newKmzSink methods keep every position report of the targets
+     * until it is closed, rather than simplifying their tracks.
+     *
+     * @param sink
+     *            the KML or KMZ sink, before any packet has been processed
+     * @return the sink
+     */
+    public static OutputStreamSink<AisPacket> setKmlKeepEveryReport(OutputStreamSink<AisPacket> sink) {
+        kmlSink(sink).setKeepEveryReport();
+        return sink;
+    }
+
+    private static AisPacketKMLOutputSink kmlSink(OutputStreamSink<AisPacket> sink) {
+        if (!(sink instanceof AisPacketKMLOutputSink)) {
+            throw new IllegalArgumentException("Not a KML or KMZ sink: " + sink);
+        }
+        return (AisPacketKMLOutputSink) sink;
+    }
+
     public static OutputStreamSink<AisPacket> newKmzSink() {
         return new AisPacketKMZOutputSink();
     }
@@ -340,6 +406,8 @@ public class AisPacketOutputSinks {
             }
         case "json":
             return AisPacketOutputSinks.jsonMessageSink();
+        case "columnar":
+            return new ColumnarArchiveOutputSink();
 
         default: // reflection
             return (OutputStreamSink<AisPacket>) AisPacketOutputSinks.class.getField(params[0]).get(null);
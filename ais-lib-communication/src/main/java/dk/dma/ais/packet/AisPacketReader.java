@@ -38,6 +38,8 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.AbstractIterator;
 
+import dk.dma.ais.archive.BlockGzipInputStream;
+import dk.dma.ais.archive.TimeIndex;
 import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.sentence.Abk;
 import dk.dma.ais.sentence.SentenceException;
@@ -83,6 +85,12 @@ public class AisPacketReader implements AutoCloseable, Iterable<AisPacket> {
      */
     final boolean throwExceptions;
 
+    /** The inclusive start of the time interval of packets to return. */
+    private long intervalStart = Long.MIN_VALUE;
+
+    /** The exclusive end of the time interval of packets to return. */
+    private long intervalEnd = Long.MAX_VALUE;
+
     /**
      * Create
      *
@@ -215,7 +223,13 @@ public class AisPacketReader implements AutoCloseable, Iterable<AisPacket> {
      *             if an exception occurred while reading the packet
      */
     public AisPacket readPacket() throws IOException {
-        return readPacket0();
+        AisPacket p = readPacket0();
+        if (intervalStart != Long.MIN_VALUE || intervalEnd != Long.MAX_VALUE) {
+            while (p != null && (p.getBestTimestamp() < intervalStart || p.getBestTimestamp() >= intervalEnd)) {
+                p = readPacket0();
+            }
+        }
+        return p;
     }
 
     /**
@@ -278,7 +292,8 @@ public class AisPacketReader implements AutoCloseable, Iterable<AisPacket> {
 
     /**
      * Creates a new AIS packet reader from the specified file. If the specified file has a '.zip' suffix. The file is
-     * automatically treated as a zip file.
+     * automatically treated as a zip file. If it has a '.gz' suffix it is treated as a gzip file, see
+     * {@link BlockGzipInputStream#open(Path)}.
      *
      * @param p
      *            the path of the file
@@ -289,6 +304,9 @@ public class AisPacketReader implements AutoCloseable, Iterable<AisPacket> {
      *             if the reader failed to be constructed, for example, if the specified file does not exist
      */
     public static AisPacketReader createFromFile(Path p, boolean throwExceptions) throws IOException {
+        if (p.getFileName().toString().endsWith(".gz")) {
+            return new AisPacketReader(BlockGzipInputStream.open(p), throwExceptions);
+        }
         InputStream is = Files.newInputStream(p);
         BufferedInputStream bis = new BufferedInputStream(is);
         if (!p.getFileName().toString().endsWith(".zip")) {
@@ -321,6 +339,33 @@ public class AisPacketReader implements AutoCloseable, Iterable<AisPacket> {
         };
     }
 
+    /**
+     * Creates a new AIS packet reader that returns the packets of the specified file with a timestamp in the interval
+     * {@code [start, end)}. If the file has a time or block index sidecar, see {@link TimeIndex}, only the part of the
+     * file covering the interval is read. Otherwise the whole file is read as by
+     * {@link #createFromFile(Path, boolean)}.
+     *
+     * @param p
+     *            the path of the file
+     * @param start
+     *            the inclusive start of the interval in milliseconds since the epoch
+     * @param end
+     *            the exclusive end of the interval in milliseconds since the epoch
+     * @param throwExceptions
+     *            whether to throw exceptions or just log them
+     * @return a new reader
+     * @throws IOException
+     *             if the reader failed to be constructed, for example, if the specified file does not exist
+     */
+    public static AisPacketReader createFromFile(Path p, long start, long end, boolean throwExceptions)
+            throws IOException {
+        InputStream is = TimeIndex.openInterval(p, start, end);
+        AisPacketReader r = is == null ? createFromFile(p, throwExceptions) : new AisPacketReader(is, throwExceptions);
+        r.intervalStart = start;
+        r.intervalEnd = end;
+        return r;
+    }
+
     /**
      * Writes the reminder of packets to the output stream using the specified sink
      *
@@ -175,6 +175,26 @@ public class AisPacketSource implements Serializable {
                 sourceCountry, sourceType, region);
     }
 
+    /**
+     * Creates a source from its parts, for example when reading it back after it has been stored.
+     *
+     * @param sourceId
+     *            the source identifier, or null
+     * @param sourceBaseStation
+     *            the base station MMSI, or Integer.MIN_VALUE if no base station
+     * @param sourceCountry
+     *            the source country, or null
+     * @param sourceType
+     *            the source type, or null
+     * @param sourceRegion
+     *            the source region, or null
+     * @return the source
+     */
+    public static AisPacketSource create(String sourceId, int sourceBaseStation, Country sourceCountry,
+            SourceType sourceType, String sourceRegion) {
+        return new AisPacketSource(sourceId, sourceBaseStation, sourceCountry, sourceType, sourceRegion);
+    }
+
     public static Predicate<AisPacketSource> createPredicate(String expression) {
         return AisPacketSourceFilters.parseSourceFilter(expression);
     }
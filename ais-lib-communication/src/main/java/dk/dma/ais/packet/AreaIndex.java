@@ -0,0 +1,219 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import net.jcip.annotations.Immutable;
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * A predicate testing whether a position is inside any of a number of areas, using a uniform grid over the bounding
+ * boxes of the areas. Only the areas whose bounding box overlaps the grid cell of the position, and that contain the
+ * position in their bounding box, are tested exactly, so the cost of testing a position is roughly constant no matter
+ * how many areas are indexed.
+ * <p>
+ * Areas without a bounding box, and other geometries given as predicates, cannot be indexed and are tested for every
+ * position.
+ */
+@Immutable
+public final class AreaIndex implements Predicate<Position> {
+
+    /** The maximum number of grid cells along each axis. */
+    static final int MAX_CELLS = 256;
+
+    private static final int[] EMPTY = new int[0];
+
+    /** The areas or geometries to test exactly, null if the bounding box is exact. */
+    private final Predicate<? super Position>[] exact;
+
+    /** The bounding boxes of the areas. */
+    private final double[] minLat, maxLat, minLon, maxLon;
+
+    /** The geometries that are not indexed. */
+    private final Predicate<? super Position>[] unindexed;
+
+    /** The extent of the grid. */
+    private final double gridMinLat, gridMinLon, gridMaxLat, gridMaxLon;
+
+    private final double cellLat, cellLon;
+
+    private final int rows, cols;
+
+    /** The indices of the areas overlapping each cell, row by row. */
+    private final int[][] cells;
+
+    private final String description;
+
+    @SuppressWarnings("unchecked")
+    private AreaIndex(List<Area> areas, List<Predicate<? super Position>> others) {
+        List<Predicate<? super Position>> exact = new ArrayList<>();
+        List<BoundingBox> boxes = new ArrayList<>();
+        List<Predicate<? super Position>> unindexed = new ArrayList<>(others);
+        for (Area a : areas) {
+            BoundingBox b = boundingBoxOf(a);
+            if (b == null) {
+                unindexed.add(a::contains);
+            } else {
+                boxes.add(b);
+                exact.add(a instanceof BoundingBox ? null : (Predicate<Position>) a::contains);
+            }
+        }
+        int n = boxes.size();
+        this.exact = exact.toArray(new Predicate[n]);
+        this.unindexed = unindexed.toArray(new Predicate[unindexed.size()]);
+        minLat = new double[n];
+        maxLat = new double[n];
+        minLon = new double[n];
+        maxLon = new double[n];
+        double gMinLat = Double.POSITIVE_INFINITY, gMaxLat = Double.NEGATIVE_INFINITY;
+        double gMinLon = Double.POSITIVE_INFINITY, gMaxLon = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            BoundingBox b = boxes.get(i);
+            minLat[i] = b.getMinLat();
+            maxLat[i] = b.getMaxLat();
+            minLon[i] = b.getMinLon();
+            maxLon[i] = b.getMaxLon();
+            gMinLat = Math.min(gMinLat, minLat[i]);
+            gMaxLat = Math.max(gMaxLat, maxLat[i]);
+            gMinLon = Math.min(gMinLon, minLon[i]);
+            gMaxLon = Math.max(gMaxLon, maxLon[i]);
+        }
+        gridMinLat = gMinLat;
+        gridMaxLat = gMaxLat;
+        gridMinLon = gMinLon;
+        gridMaxLon = gMaxLon;
+        // About two areas per cell if the areas were evenly spread
+        int size = (int) Math.min(MAX_CELLS, Math.max(1, Math.ceil(Math.sqrt(n / 2.0))));
+        rows = size;
+        cols = size;
+        cellLat = n == 0 || gMaxLat == gMinLat ? 1 : (gMaxLat - gMinLat) / rows;
+        cellLon = n == 0 || gMaxLon == gMinLon ? 1 : (gMaxLon - gMinLon) / cols;
+        int[] counts = new int[rows * cols];
+        for (int i = 0; i < n; i++) {
+            for (int r = row(minLat[i]), r1 = row(maxLat[i]); r <= r1; r++) {
+                for (int c = col(minLon[i]), c1 = col(maxLon[i]); c <= c1; c++) {
+                    counts[r * cols + c]++;
+                }
+            }
+        }
+        int[][] cells = new int[rows * cols][];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = counts[i] == 0 ? EMPTY : new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            for (int r = row(minLat[i]), r1 = row(maxLat[i]); r <= r1; r++) {
+                for (int c = col(minLon[i]), c1 = col(maxLon[i]); c <= c1; c++) {
+                    int cell = r * cols + c;
+                    cells[cell][counts[cell]++] = i;
+                }
+            }
+        }
+        this.cells = cells;
+        description = "areas " + areas + (others.isEmpty() ? "" : " and " + others);
+    }
+
+    /**
+     * Creates an index of the specified areas.
+     *
+     * @param areas
+     *            the areas to index
+     * @return the new index
+     */
+    public static AreaIndex create(Collection<? extends Area> areas) {
+        return create(areas, Collections.<Predicate<? super Position>> emptyList());
+    }
+
+    /**
+     * Creates an index of the specified areas and geometries. The geometries cannot be indexed and are tested for
+     * every position.
+     *
+     * @param areas
+     *            the areas to index
+     * @param geometries
+     *            other geometries
+     * @return the new index
+     */
+    public static AreaIndex create(Collection<? extends Area> areas,
+            Collection<? extends Predicate<? super Position>> geometries) {
+        List<Area> a = new ArrayList<>(areas);
+        a.forEach(e -> requireNonNull(e));
+        return new AreaIndex(a, new ArrayList<>(geometries));
+    }
+
+    /** Returns the bounding box of the specified area, or null if it has none. */
+    private static BoundingBox boundingBoxOf(Area area) {
+        BoundingBox b;
+        try {
+            b = area.getBoundingBox();
+        } catch (RuntimeException e) {
+            return null; // Not all areas can compute their bounding box
+        }
+        if (b == null || !(b.getMinLat() <= b.getMaxLat()) || !(b.getMinLon() <= b.getMaxLon())) {
+            return null;
+        }
+        return b;
+    }
+
+    private int row(double lat) {
+        return Math.min(rows - 1, Math.max(0, (int) ((lat - gridMinLat) / cellLat)));
+    }
+
+    private int col(double lon) {
+        return Math.min(cols - 1, Math.max(0, (int) ((lon - gridMinLon) / cellLon)));
+    }
+
+    /**
+     * Returns whether or not the specified position is inside any of the areas.
+     *
+     * @param position
+     *            the position to test
+     * @return whether or not the position is inside any of the areas
+     */
+    @Override
+    public boolean test(Position position) {
+        double lat = position.getLatitude();
+        double lon = position.getLongitude();
+        if (lat >= gridMinLat && lat <= gridMaxLat && lon >= gridMinLon && lon <= gridMaxLon) {
+            for (int i : cells[row(lat) * cols + col(lon)]) {
+                if (lat >= minLat[i] && lat <= maxLat[i] && lon >= minLon[i] && lon <= maxLon[i]
+                        && (exact[i] == null || exact[i].test(position))) {
+                    return true;
+                }
+            }
+        }
+        for (Predicate<? super Position> p : unindexed) {
+            if (p.test(position)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return description;
+    }
+}
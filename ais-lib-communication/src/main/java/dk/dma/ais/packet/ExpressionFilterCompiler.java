@@ -0,0 +1,330 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import dk.dma.ais.packet.AisPacketFiltersExpressionFilterParser.ExpressionFilterToConstraintsVisitor;
+import dk.dma.ais.packet.AisPacketFiltersExpressionFilterParser.ExpressionFilterToPredicateVisitor;
+import dk.dma.internal.ais.generated.parser.expressionfilter.ExpressionFilterParser;
+import dk.dma.internal.ais.generated.parser.expressionfilter.ExpressionFilterParser.FilterExpressionContext;
+import dk.dma.internal.ais.generated.parser.expressionfilter.ExpressionFilterParser.OrAndContext;
+import dk.dma.internal.ais.generated.parser.expressionfilter.ExpressionFilterParser.ParensContext;
+
+/**
+ * Compiles the parse tree of an expression filter into a single predicate. Chains of conjunctions and disjunctions
+ * are flattened, identical terms are evaluated once, terms that can never match are folded into constants, and the
+ * terms of each conjunction or disjunction are ordered so that cheap checks of the packet header and timestamp run
+ * before checks of decoded message fields and geometry.
+ * <p>
+ * Terms on targets ({@code t.*}) update the state of the filter when evaluated, so conjunctions and disjunctions
+ * containing them keep their original order.
+ */
+final class ExpressionFilterCompiler {
+
+    /** The cost of terms on the source tags of the packet. */
+    static final int COST_SOURCE = 1;
+
+    /** The cost of terms on the timestamp of the packet. */
+    static final int COST_TIME = 2;
+
+    /** The cost of terms on numeric fields of the decoded message. */
+    static final int COST_MESSAGE = 3;
+
+    /** The cost of terms matching strings of the decoded message. */
+    static final int COST_STRING = 5;
+
+    /** The cost of terms on the position of the decoded message. */
+    static final int COST_GEOMETRY = 6;
+
+    /** The cost of terms on the target, which also updates the target state. */
+    static final int COST_TARGET = 10;
+
+    private static final Predicate<AisPacket> FALSE = new Predicate<AisPacket>() {
+        public boolean test(AisPacket p) {
+            return false;
+        }
+
+        public String toString() {
+            return "false";
+        }
+    };
+
+    private final ExpressionFilterToPredicateVisitor predicates = new ExpressionFilterToPredicateVisitor();
+
+    private final ExpressionFilterToConstraintsVisitor constraints = new ExpressionFilterToConstraintsVisitor(
+            predicates);
+
+    private ExpressionFilterCompiler() {}
+
+    /**
+     * Compiles the specified expression into a predicate. If the compiled expression has terms on targets the
+     * predicate is a {@link Stateful}.
+     *
+     * @param ctx
+     *            the expression to compile
+     * @return a predicate equivalent to the expression
+     */
+    static Predicate<AisPacket> compile(FilterExpressionContext ctx) {
+        Node n = new ExpressionFilterCompiler().node(ctx);
+        return n.stateful ? new Stateful(n.compile()) : n.compile();
+    }
+
+    /** Creates the node of the specified expression. */
+    private Node node(FilterExpressionContext ctx) {
+        if (ctx instanceof ParensContext) {
+            return node(((ParensContext) ctx).filterExpression());
+        } else if (ctx instanceof OrAndContext) {
+            OrAndContext c = (OrAndContext) ctx;
+            boolean and = c.op.getType() == ExpressionFilterParser.AND;
+            List<Node> terms = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                Node n = node(c.filterExpression(i));
+                if (n.children != null && n.and == and) {
+                    terms.addAll(n.children);
+                } else {
+                    terms.add(n);
+                }
+            }
+            return Node.of(and, terms);
+        }
+        String field = ctx.getStart().getText();
+        Predicate<AisPacket> p = predicates.visit(ctx);
+        Node n = new Node(ctx.getText(), p, cost(field), field.startsWith("t."));
+        if (field.equals("m.mmsi") || field.equals("m.id") || field.equals("s.id")) {
+            n.constraints = constraints.visit(ctx);
+            if (n.constraints.isUnsatisfiable()) {
+                return Node.constant(false);
+            }
+        }
+        return n;
+    }
+
+    /** Returns the estimated cost of evaluating a term on the specified field. */
+    static int cost(String field) {
+        if (field.startsWith("s.")) {
+            return COST_SOURCE;
+        } else if (field.startsWith("t.")) {
+            return COST_TARGET;
+        }
+        switch (field) {
+        case "m.year":
+        case "m.month":
+        case "m.dom":
+        case "m.dow":
+        case "m.hour":
+        case "m.minute":
+            return COST_TIME;
+        case "m.name":
+        case "m.cs":
+            return COST_STRING;
+        case "m.pos":
+            return COST_GEOMETRY;
+        default:
+            return COST_MESSAGE;
+        }
+    }
+
+    /** A term, conjunction or disjunction of the expression. */
+    static final class Node {
+
+        /** The text of the term, used to find identical terms. */
+        final String text;
+
+        /** The predicate of a term, null for conjunctions and disjunctions. */
+        final Predicate<AisPacket> predicate;
+
+        /** The terms of a conjunction or disjunction, null for terms. */
+        final List<Node> children;
+
+        /** Whether this is a conjunction or a disjunction. */
+        final boolean and;
+
+        final int cost;
+
+        /** Whether evaluating the node updates the state of the filter. */
+        final boolean stateful;
+
+        /** The value of a constant node, null if the node is not constant. */
+        Boolean value;
+
+        /** The constraints of the node, used to detect conjunctions that can never match. */
+        AisPacketFilterConstraints constraints = AisPacketFilterConstraints.UNCONSTRAINED;
+
+        Node(String text, Predicate<AisPacket> predicate, int cost, boolean stateful) {
+            this.text = text;
+            this.predicate = predicate;
+            this.children = null;
+            this.and = false;
+            this.cost = cost;
+            this.stateful = stateful;
+        }
+
+        private Node(List<Node> children, boolean and) {
+            StringBuilder sb = new StringBuilder("(");
+            int cost = 0;
+            boolean stateful = false;
+            for (Node n : children) {
+                sb.append(sb.length() > 1 ? and ? "&" : "|" : "").append(n.text);
+                cost += n.cost;
+                stateful |= n.stateful;
+            }
+            this.text = sb.append(")").toString();
+            this.predicate = null;
+            this.children = children;
+            this.and = and;
+            this.cost = cost;
+            this.stateful = stateful;
+        }
+
+        /** Returns a constant node. */
+        static Node constant(boolean value) {
+            Node n = new Node(Boolean.toString(value), value ? p -> true : FALSE, 0, false);
+            n.value = value;
+            return n;
+        }
+
+        boolean isConstant(boolean value) {
+            return this.value != null && this.value == value;
+        }
+
+        /** Returns the folded conjunction or disjunction of the specified terms. */
+        static Node of(boolean and, List<Node> terms) {
+            Map<String, Node> distinct = new LinkedHashMap<>();
+            AisPacketFilterConstraints c = AisPacketFilterConstraints.UNCONSTRAINED;
+            for (Node n : terms) {
+                if (n.isConstant(!and)) {
+                    // false & x = false, true | x = true
+                    return n;
+                } else if (!n.isConstant(and) && distinct.putIfAbsent(n.text, n) == null && and) {
+                    c = c.and(n.constraints);
+                }
+            }
+            if (distinct.isEmpty()) {
+                return constant(and);
+            } else if (and && c.isUnsatisfiable()) {
+                return constant(false);
+            } else if (distinct.size() == 1) {
+                return distinct.values().iterator().next();
+            }
+            List<Node> children = new ArrayList<>(distinct.values());
+            boolean stateful = false;
+            for (Node n : children) {
+                stateful |= n.stateful;
+            }
+            if (!stateful) {
+                children.sort(Comparator.comparingInt(n -> n.cost));
+            }
+            Node n = new Node(children, and);
+            if (and) {
+                n.constraints = c;
+            }
+            return n;
+        }
+
+        /** Compiles the node into a predicate. */
+        Predicate<AisPacket> compile() {
+            if (predicate != null) {
+                return predicate;
+            }
+            @SuppressWarnings("unchecked")
+            Predicate<AisPacket>[] terms = new Predicate[children.size()];
+            for (int i = 0; i < terms.length; i++) {
+                terms[i] = children.get(i).compile();
+            }
+            return and ? new And(terms) : new Or(terms);
+        }
+    }
+
+    /** A conjunction of predicates evaluated in order. */
+    static final class And implements Predicate<AisPacket> {
+
+        private final Predicate<AisPacket>[] terms;
+
+        And(Predicate<AisPacket>[] terms) {
+            this.terms = terms;
+        }
+
+        public boolean test(AisPacket p) {
+            for (Predicate<AisPacket> t : terms) {
+                if (!t.test(p)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public String toString() {
+            return join(terms, " & ");
+        }
+    }
+
+    /** A disjunction of predicates evaluated in order. */
+    static final class Or implements Predicate<AisPacket> {
+
+        private final Predicate<AisPacket>[] terms;
+
+        Or(Predicate<AisPacket>[] terms) {
+            this.terms = terms;
+        }
+
+        public boolean test(AisPacket p) {
+            for (Predicate<AisPacket> t : terms) {
+                if (t.test(p)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public String toString() {
+            return join(terms, " | ");
+        }
+    }
+
+    /**
+     * A predicate with terms on targets. It updates the state of the targets when evaluated, so it must be evaluated
+     * from a single thread in the order the packets are received.
+     */
+    static final class Stateful implements Predicate<AisPacket> {
+
+        private final Predicate<AisPacket> predicate;
+
+        Stateful(Predicate<AisPacket> predicate) {
+            this.predicate = predicate;
+        }
+
+        public boolean test(AisPacket p) {
+            return predicate.test(p);
+        }
+
+        public String toString() {
+            return predicate.toString();
+        }
+    }
+
+    static String join(Predicate<AisPacket>[] terms, String separator) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < terms.length; i++) {
+            sb.append(i > 0 ? separator : "").append(terms[i]);
+        }
+        return sb.append(")").toString();
+    }
+}
@@ -694,7 +694,7 @@ abstract class ExpressionFilterParserBase {
      * @param ints
      * @return
      */
-    private static Integer[] extractIntegers(List<TerminalNode> ints) {
+    static Integer[] extractIntegers(List<TerminalNode> ints) {
         int n = ints.size();
         Integer[] integers = new Integer[n];
         for (int i = 0; i < n; i++) {
@@ -709,7 +709,7 @@ abstract class ExpressionFilterParserBase {
      * @param strs
      * @return
      */
-    private static String[] extractStrings(List strs) {
+    static String[] extractStrings(List strs) {
         int n = strs.size();
         String[] strings = new String[n];
         for (int i = 0; i < n; i++) {
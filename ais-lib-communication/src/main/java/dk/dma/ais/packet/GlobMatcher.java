@@ -0,0 +1,170 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.regex.Pattern;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A glob pattern compiled once when a filter is created. Globs that are a literal, a prefix ({@code ABC*}), a suffix
+ * ({@code *ABC}) or a substring ({@code *ABC*}) are matched without regular expressions, all other globs are
+ * converted to a precompiled regular expression.
+ */
+@Immutable
+final class GlobMatcher {
+
+    /** The characters with a special meaning in globs, other than {@code *}. */
+    private static final String SPECIAL = "?[]{}\\";
+
+    private static final int LITERAL = 0, PREFIX = 1, SUFFIX = 2, CONTAINS = 3, REGEX = 4;
+
+    private final String glob;
+
+    private final int kind;
+
+    /** The literal part of the glob, if not a regular expression. */
+    private final String literal;
+
+    /** The compiled regular expression, if the glob is not a simple glob. */
+    private final Pattern pattern;
+
+    private GlobMatcher(String glob, int kind, String literal, Pattern pattern) {
+        this.glob = glob;
+        this.kind = kind;
+        this.literal = literal;
+        this.pattern = pattern;
+    }
+
+    /**
+     * Compiles the specified glob.
+     *
+     * @param glob
+     *            the glob to compile
+     * @return the compiled glob
+     */
+    static GlobMatcher compile(String glob) {
+        requireNonNull(glob);
+        boolean leading = glob.startsWith("*");
+        boolean trailing = glob.length() > (leading ? 1 : 0) && glob.endsWith("*");
+        String literal = glob.substring(leading ? 1 : 0, glob.length() - (trailing ? 1 : 0));
+        boolean simple = literal.indexOf('*') < 0;
+        for (int i = 0; simple && i < literal.length(); i++) {
+            simple = SPECIAL.indexOf(literal.charAt(i)) < 0;
+        }
+        if (!simple) {
+            return new GlobMatcher(glob, REGEX, null, Pattern.compile(AisPacketFiltersBase.convertGlobToRegex(glob)));
+        }
+        int kind = leading ? trailing ? CONTAINS : SUFFIX : trailing ? PREFIX : LITERAL;
+        return new GlobMatcher(glob, kind, literal, null);
+    }
+
+    /**
+     * Returns whether or not the specified value matches the glob.
+     *
+     * @param value
+     *            the value to match
+     * @return whether or not the value matches the glob, false if the value is null
+     */
+    boolean matches(String value) {
+        if (value == null) {
+            return false;
+        }
+        switch (kind) {
+        case LITERAL:
+            return value.equals(literal);
+        case PREFIX:
+            return value.startsWith(literal);
+        case SUFFIX:
+            return value.endsWith(literal);
+        case CONTAINS:
+            return value.contains(literal);
+        default:
+            return pattern.matcher(value).matches();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return glob;
+    }
+
+    /**
+     * Caches the result of matching the name or call sign of vessels against a glob, so repeated static messages from
+     * the same vessel are not matched again. The cache is direct mapped on the MMSI number and therefore bounded.
+     */
+    @ThreadSafe
+    static final class PerMmsiCache {
+
+        /** The number of entries in the cache, must be a power of two. */
+        static final int SIZE = 4096;
+
+        private final GlobMatcher matcher;
+
+        /** The cache entries, racy reads and writes of the immutable entries are harmless. */
+        private final Entry[] entries = new Entry[SIZE];
+
+        PerMmsiCache(GlobMatcher matcher) {
+            this.matcher = requireNonNull(matcher);
+        }
+
+        /**
+         * Returns whether or not the specified AIS string of the specified vessel matches the glob. The AIS string is
+         * converted using {@link AisPacketFiltersBase#preprocessAisString(String)} before matching.
+         *
+         * @param mmsi
+         *            the MMSI number of the vessel
+         * @param aisString
+         *            the AIS string, for example the name of the vessel
+         * @return whether or not the string matches the glob
+         */
+        boolean matches(int mmsi, String aisString) {
+            if (aisString == null) {
+                return false;
+            }
+            int index = (mmsi ^ mmsi >>> 16) & SIZE - 1;
+            Entry e = entries[index];
+            if (e != null && e.mmsi == mmsi && e.aisString.equals(aisString)) {
+                return e.result;
+            }
+            boolean result = matcher.matches(AisPacketFiltersBase.preprocessAisString(aisString));
+            entries[index] = new Entry(mmsi, aisString, result);
+            return result;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return matcher.toString();
+        }
+
+        @Immutable
+        static final class Entry {
+            final int mmsi;
+            final String aisString;
+            final boolean result;
+
+            Entry(int mmsi, String aisString, boolean result) {
+                this.mmsi = mmsi;
+                this.aisString = aisString;
+                this.result = result;
+            }
+        }
+    }
+}
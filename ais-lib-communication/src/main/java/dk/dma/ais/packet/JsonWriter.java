@@ -0,0 +1,281 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.message.ShipTypeCargo;
+
+/**
+ * Builds JSON text in a byte buffer that is reused from packet to packet, so writing a packet does not allocate once
+ * the buffer has grown to the size of the largest packet. Numbers are formatted by hand and the names of enums
+ * are kept as bytes. Only ASCII is written, other characters of strings are escaped.
+ */
+@NotThreadSafe
+final class JsonWriter {
+
+    private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+            100000000L, 1000000000L };
+
+    /** How close to a tie a scaled number must be to be rounded exactly. */
+    private static final double TIE_TOLERANCE = 1e-6;
+
+    /** Splits a double into two halves of 26 bits, 2^27 + 1. */
+    private static final double SPLITTER = 134217729.0;
+
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private static final byte[] NULL = ascii("null");
+
+    /** The quoted names of the target types by ordinal. */
+    private static final byte[][] TARGET_TYPES = new byte[AisTargetType.values().length][];
+
+    /** The quoted names of the ship types of the ship type codes. */
+    private static final byte[][] SHIP_TYPES = new byte[256][];
+
+    /** The quoted names of the cargo types of the ship type codes. */
+    private static final byte[][] CARGO_TYPES = new byte[256][];
+
+    static {
+        for (AisTargetType t : AisTargetType.values()) {
+            TARGET_TYPES[t.ordinal()] = ascii('"' + t.name() + '"');
+        }
+        for (int i = 0; i < SHIP_TYPES.length; i++) {
+            ShipTypeCargo stc = new ShipTypeCargo(i);
+            SHIP_TYPES[i] = ascii('"' + stc.getShipType().name() + '"');
+            CARGO_TYPES[i] = ascii('"' + stc.getShipCargo().name() + '"');
+        }
+    }
+
+    private byte[] buffer = new byte[512];
+
+    private int size;
+
+    /** Returns the specified text, which must be ASCII, as bytes. */
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Empties the buffer, keeping its capacity. */
+    JsonWriter reset() {
+        size = 0;
+        return this;
+    }
+
+    /** Returns the number of bytes written since the last reset. */
+    int size() {
+        return size;
+    }
+
+    /** Writes the bytes written since the last reset to the specified stream and resets the buffer. */
+    void writeTo(OutputStream stream) throws IOException {
+        stream.write(buffer, 0, size);
+        size = 0;
+    }
+
+    /** Returns the bytes written since the last reset as a string. */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.US_ASCII);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    /** Appends an ASCII character. */
+    JsonWriter append(char c) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) c;
+        return this;
+    }
+
+    /** Appends bytes, for example of a field name that has been converted by {@link #ascii(String)}. */
+    JsonWriter append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+        return this;
+    }
+
+    /** Appends null. */
+    JsonWriter appendNull() {
+        return append(NULL);
+    }
+
+    /** Appends a number. */
+    JsonWriter append(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                return append(ascii(Long.toString(value)));
+            }
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    /**
+     * Appends a number with at most the specified number of decimals, without trailing zeros and without a decimal
+     * point if there are no decimals, as DecimalFormat does with a pattern such as "###.#####".
+     *
+     * @param value
+     *            the number
+     * @param decimals
+     *            the maximum number of decimals, at most 9
+     * @return this writer
+     */
+    JsonWriter append(double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return appendNull();
+        } else if (Math.abs(value) >= 1e9) {
+            return append(ascii(Double.toString(value)));
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        double abs = Math.abs(value);
+        double product = abs * scale;
+        long scaled = (long) Math.floor(product);
+        if (Math.abs(product - scaled - 0.5) < TIE_TOLERANCE) {
+            // Round values close to a tie as DecimalFormat does, by the exact value of the double
+            int c = compareExactProduct(abs, 2 * scale, 2 * scaled + 1);
+            if (c > 0 || c == 0 && (scaled & 1) == 1) {
+                scaled++;
+            }
+        } else {
+            scaled = Math.round(product);
+        }
+        if (value < 0 && scaled != 0) {
+            append('-');
+        }
+        append(scaled / scale);
+        long fraction = scaled % scale;
+        if (fraction != 0) {
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                decimals--;
+            }
+            append('.');
+            for (int i = decimals - 1; i > 0 && fraction < POWERS_OF_TEN[i]; i--) {
+                append('0');
+            }
+            append(fraction);
+        }
+        return this;
+    }
+
+    /**
+     * Compares the exact product of a and b with c, where the product is computed without rounding by Dekker's
+     * algorithm. The arguments must be small enough for the product not to overflow.
+     */
+    private static int compareExactProduct(double a, double b, double c) {
+        double p = a * b;
+        if (p != c) {
+            return p < c ? -1 : 1;
+        }
+        double as = SPLITTER * a;
+        double ah = as - (as - a);
+        double al = a - ah;
+        double bs = SPLITTER * b;
+        double bh = bs - (bs - b);
+        double bl = b - bh;
+        double error = ah * bh - p + ah * bl + al * bh + al * bl;
+        return error < 0 ? -1 : error > 0 ? 1 : 0;
+    }
+
+    /** Appends a quoted string, or null. */
+    JsonWriter appendString(CharSequence s) {
+        return s == null ? appendNull() : appendString(s, 0, s.length());
+    }
+
+    /**
+     * Appends a text of an AIS message as a quoted string, trimmed as {@link dk.dma.ais.message.AisMessage#trimText}
+     * does without creating the trimmed string. A missing text is written as the string "null", as the JSON sinks
+     * have always written it.
+     */
+    JsonWriter appendText(String text) {
+        if (text == null) {
+            return appendString("null");
+        }
+        int end = text.indexOf('@');
+        if (end < 0) {
+            end = text.length();
+        }
+        int start = 0;
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return appendString(text, start, end);
+    }
+
+    private JsonWriter appendString(CharSequence s, int start, int end) {
+        ensureCapacity(end - start + 2);
+        buffer[size++] = '"';
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                append('\\').append(c);
+            } else if (c < ' ' || c > '~') {
+                append('\\').append('u').append(HEX[c >> 12 & 0xF]).append(HEX[c >> 8 & 0xF])
+                        .append(HEX[c >> 4 & 0xF]).append(HEX[c & 0xF]);
+            } else {
+                append(c);
+            }
+        }
+        return append('"');
+    }
+
+    /** Appends the quoted name of a target type, or null. */
+    JsonWriter append(AisTargetType targetType) {
+        return targetType == null ? appendNull() : append(TARGET_TYPES[targetType.ordinal()]);
+    }
+
+    /** Appends the quoted name of the ship type of a ship type code. */
+    JsonWriter appendShipType(int shipType) {
+        return shipType >= 0 && shipType < SHIP_TYPES.length ? append(SHIP_TYPES[shipType])
+                : appendString(new ShipTypeCargo(shipType).getShipType().name());
+    }
+
+    /** Appends the quoted name of the cargo type of a ship type code. */
+    JsonWriter appendCargoType(int shipType) {
+        return shipType >= 0 && shipType < CARGO_TYPES.length ? append(CARGO_TYPES[shipType])
+                : appendString(new ShipTypeCargo(shipType).getShipCargo().name());
+    }
+
+    private JsonWriter append(byte b) {
+        ensureCapacity(1);
+        buffer[size++] = b;
+        return this;
+    }
+}
@@ -0,0 +1,133 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Writes KML elements to a stream as they are created, so a document of any size can be written without holding it in
+ * memory. Callers are responsible for writing the elements of a feature in the order required by the KML schema.
+ */
+@NotThreadSafe
+final class KmlWriter {
+
+    /** The namespace of KML 2.2. */
+    static final String NAMESPACE = "http://www.opengis.net/kml/2.2";
+
+    private static final XMLOutputFactory FACTORY = XMLOutputFactory.newFactory();
+
+    private final Writer writer;
+
+    private final XMLStreamWriter xml;
+
+    /** Whether the next coordinate is the first of a coordinates element. */
+    private boolean firstCoordinate;
+
+    /**
+     * Creates a new writer. The output stream is not closed by the writer.
+     *
+     * @param outputStream
+     *            the stream to write the document to
+     */
+    KmlWriter(OutputStream outputStream) throws XMLStreamException {
+        writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        xml = FACTORY.createXMLStreamWriter(writer);
+    }
+
+    /** Starts the document with the kml root element. */
+    void startKml() throws XMLStreamException {
+        xml.writeStartDocument("UTF-8", "1.0");
+        xml.writeStartElement("kml");
+        xml.writeDefaultNamespace(NAMESPACE);
+    }
+
+    /** Ends the kml root element and the document and flushes everything written to the output stream. */
+    void endKml() throws XMLStreamException, IOException {
+        xml.writeEndElement();
+        xml.writeEndDocument();
+        xml.flush();
+        writer.flush();
+    }
+
+    /** Starts an element. */
+    void start(String name) throws XMLStreamException {
+        xml.writeStartElement(name);
+    }
+
+    /** Starts an element with an id attribute, unless the id is null. */
+    void start(String name, String id) throws XMLStreamException {
+        xml.writeStartElement(name);
+        if (id != null) {
+            xml.writeAttribute("id", id);
+        }
+    }
+
+    /** Ends the latest element started. */
+    void end() throws XMLStreamException {
+        xml.writeEndElement();
+    }
+
+    /** Writes an element with the specified value as text, unless the value is null. */
+    void element(String name, Object value) throws XMLStreamException {
+        if (value != null) {
+            xml.writeStartElement(name);
+            xml.writeCharacters(value.toString());
+            xml.writeEndElement();
+        }
+    }
+
+    /** Writes an element with a boolean value, which KML represents as 1 or 0. */
+    void element(String name, boolean value) throws XMLStreamException {
+        element(name, value ? "1" : "0");
+    }
+
+    /** Writes a TimeSpan element, unless begin or end is null. */
+    void timeSpan(String begin, String end) throws XMLStreamException {
+        if (begin != null && end != null) {
+            xml.writeStartElement("TimeSpan");
+            element("begin", begin);
+            element("end", end);
+            xml.writeEndElement();
+        }
+    }
+
+    /** Starts a coordinates element. Coordinates are written by {@link #coordinate(double, double)}. */
+    void startCoordinates() throws XMLStreamException {
+        xml.writeStartElement("coordinates");
+        firstCoordinate = true;
+    }
+
+    /** Writes a coordinate of the current coordinates element. */
+    void coordinate(double longitude, double latitude) throws XMLStreamException {
+        if (!firstCoordinate) {
+            xml.writeCharacters(" ");
+        }
+        xml.writeCharacters(Double.toString(longitude));
+        xml.writeCharacters(",");
+        xml.writeCharacters(Double.toString(latitude));
+        firstCoordinate = false;
+    }
+}
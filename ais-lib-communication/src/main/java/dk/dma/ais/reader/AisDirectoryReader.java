@@ -14,8 +14,13 @@
  */
 package dk.dma.ais.reader;
 
+import dk.dma.ais.archive.BlockGzipIndex;
+import dk.dma.ais.archive.FileSummary;
+import dk.dma.ais.archive.TimeIndex;
+import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.sentence.Abk;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,6 +64,18 @@ public class AisDirectoryReader extends AisReader {
     private final Comparator<Path> comparator;
 
     private Long totalNumberOfPacketsToRead;
+
+    /** The inclusive start of the time interval to read. */
+    private volatile long intervalStart = Long.MIN_VALUE;
+
+    /** The exclusive end of the time interval to read. */
+    private volatile long intervalEnd = Long.MAX_VALUE;
+
+    /** Files whose summary is rejected by this filter are skipped, null if no files should be skipped. */
+    private volatile Predicate<? super FileSummary> summaryFilter;
+
+    /** The number of files skipped because of their summary. */
+    private volatile long filesSkipped;
     
     AisDirectoryReader(String dir, String pattern, boolean recursive) throws IOException {
         this(dir, pattern, recursive, null);
@@ -77,12 +94,84 @@ public class AisDirectoryReader extends AisReader {
         this.totalNumberOfPacketsToRead = -1L;
     }    
 
+    /**
+     * Only reads packets with a timestamp in the interval {@code [start, end)}. Files with a time or block index
+     * sidecar are only read from the part of the file covering the interval. Must be called before the reader is
+     * started.
+     * 
+     * @param start
+     *            the inclusive start of the interval in milliseconds since the epoch
+     * @param end
+     *            the exclusive end of the interval in milliseconds since the epoch
+     */
+    public void setInterval(long start, long end) {
+        if (start > end) {
+            throw new IllegalArgumentException("start must be before end, start = " + start + ", end = " + end);
+        }
+        this.intervalStart = start;
+        this.intervalEnd = end;
+    }
+
+    /**
+     * Skips files that have an up to date {@link FileSummary} sidecar which is rejected by the specified filter. Files
+     * without a summary are always read. Must be called before the reader is started.
+     * 
+     * @param summaryFilter
+     *            the filter deciding which summarized files may contain packets of interest
+     * @see FileSummary#mmsiFilter(int...)
+     */
+    public void setSummaryFilter(Predicate<? super FileSummary> summaryFilter) {
+        this.summaryFilter = requireNonNull(summaryFilter);
+    }
+
+    /** Returns the number of files skipped because their summary showed they could not contain packets of interest. */
+    public long getNumberOfFilesSkipped() {
+        return filesSkipped;
+    }
+
+    /** Returns whether or not the specified file may contain packets of interest according to its summary. */
+    private boolean mayMatch(Path file) throws IOException {
+        Predicate<? super FileSummary> filter = summaryFilter;
+        if (filter == null && !hasInterval()) {
+            return true;
+        }
+        FileSummary summary = FileSummary.readSummaryOf(file);
+        if (summary == null) {
+            return true;
+        }
+        if (hasInterval() && summary.hasTimestamps() && !summary.mayContainTime(intervalStart, intervalEnd)) {
+            return false;
+        }
+        return filter == null || filter.test(summary);
+    }
+
+    private boolean hasInterval() {
+        return intervalStart != Long.MIN_VALUE || intervalEnd != Long.MAX_VALUE;
+    }
+
+    @Override
+    protected void distribute(AisPacket packet) {
+        if (hasInterval()) {
+            long timestamp = packet.getBestTimestamp();
+            if (timestamp < intervalStart || timestamp >= intervalEnd) {
+                return;
+            }
+        }
+        super.distribute(packet);
+    }
+
     @Override
     public void run() {
         new MatchingFileIterator(comparator) {
             @Override
             protected void doWithMatchingFile(Path file) throws IOException {
-                try (InputStream in = AisReaders.createFileInputStream(file.toString())) {
+                if (!mayMatch(file)) {
+                    LOG.debug("Skipping file " + file.getFileName().toString() + " according to its summary");
+                    filesSkipped++;
+                    return;
+                }
+                try (InputStream in = hasInterval() ? AisReaders.createFileInputStream(file.toString(),
+                        intervalStart, intervalEnd) : AisReaders.createFileInputStream(file.toString())) {
                     LOG.debug("Reading packets from file " + file.getFileName().toString());
                     readLoop(in);
                     LOG.debug("Completed reading packets from file " + file.getFileName().toString());
@@ -153,6 +242,13 @@ public class AisDirectoryReader extends AisReader {
         return this.totalNumberOfPacketsToRead;
     }
 
+    /** Returns whether or not the specified file is an index sidecar, which should not be read as a dump. */
+    static boolean isIndexFile(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(TimeIndex.SUFFIX) || name.endsWith(BlockGzipIndex.SUFFIX)
+                || name.endsWith(FileSummary.SUFFIX);
+    }
+
     /**
      * Walk through all matching files and hand their InputStream to the doWithInputStreamOfMatchingFile method.
      * 
@@ -186,7 +282,7 @@ public class AisDirectoryReader extends AisReader {
 
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attribs) {
-                    if (matcher.matches(file.getFileName())) {
+                    if (matcher.matches(file.getFileName()) && !isIndexFile(file)) {
                         files.add(file);
                     }
                     return FileVisitResult.CONTINUE;
@@ -20,12 +20,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipInputStream;
 
 import javax.management.JMException;
@@ -36,6 +36,9 @@ import org.apache.commons.lang.StringUtils;
 
 import com.google.common.net.HostAndPort;
 
+import dk.dma.ais.archive.BlockGzipInputStream;
+import dk.dma.ais.archive.TimeIndex;
+
 /**
  * Factory and utility methods for {@link AisReader}, {@link AisTcpReader}, {@link AisUdpReader}, 
  * and {@link AisReaderGroup} classes defined in this package.
@@ -212,10 +215,12 @@ public class AisReaders {
     }
     
     static InputStream createFileInputStream(String filename) throws IOException {
-        InputStream in = new FileInputStream(filename);
         if (filename.endsWith(".gz")) {
-            in = new GZIPInputStream(in);
-        } else if (filename.endsWith(".zip")) {
+            // Uses parallel block decompression if the file has a block index, plain gzip otherwise
+            return BlockGzipInputStream.open(Paths.get(filename));
+        }
+        InputStream in = new FileInputStream(filename);
+        if (filename.endsWith(".zip")) {
             // TODO: currently only reads the first zip entry
             in = new ZipInputStream(in);
             ((ZipInputStream)in).getNextEntry();            
@@ -224,5 +229,16 @@ public class AisReaders {
         
         return in;
     }
-    
+
+    /**
+     * Opens the part of a file that may contain packets with a timestamp in the interval {@code [start, end)}. If the
+     * file has a time or block index only the relevant part of the file is read, otherwise the whole file is read.
+     * 
+     * @see TimeIndex#openInterval(java.nio.file.Path, long, long)
+     */
+    static InputStream createFileInputStream(String filename, long start, long end) throws IOException {
+        InputStream in = TimeIndex.openInterval(Paths.get(filename), start, end);
+        return in == null ? createFileInputStream(filename) : in;
+    }
+
 }
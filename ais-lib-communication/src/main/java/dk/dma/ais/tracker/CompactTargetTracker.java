@@ -0,0 +1,718 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.tracker;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.packet.AisPacketStream;
+import dk.dma.ais.packet.AisPacketStream.Subscription;
+import dk.dma.ais.sentence.Vdm;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * A target tracker that keeps the latest information of every target in primitive columns rather than in a
+ * {@link TargetInfo} per target and source, for tracking a very large number of targets.
+ * <p>
+ * Targets are kept in independently locked stripes. Each stripe maps MMSI numbers to the rows of the target, one per
+ * source, using open addressing with linear probing. The position, timestamps, COG, SOG, heading and navigational
+ * status of a row are kept in arrays, a struct of arrays, along with the other fields of the latest position message,
+ * taking about 60 bytes per row. Static data is kept in a side table shared by all targets, where identical static
+ * messages, for example the same message received from several sources, are kept once.
+ * <p>
+ * The query methods are the same as those of {@link TargetTracker}, returning {@link TargetInfo} instances that are
+ * created when queried. The position packets of these are rebuilt from the columns, see {@link PositionReport}, and
+ * the static packets are those first received with the same content. Positions are kept at the resolution of position
+ * reports, 1/10000 minute.
+ */
+@ThreadSafe
+public class CompactTargetTracker implements Tracker {
+
+    private static final Predicate<? super Object> PREDICATETRUE = e -> true;
+
+    /** The number of stripes, must be a power of two. */
+    private static final int STRIPES = 16;
+
+    /** The initial capacity of each stripe. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Marks free slots, not a valid MMSI number. */
+    private static final int FREE = Integer.MIN_VALUE;
+
+    /** Marks a missing position. */
+    private static final int NO_POSITION = Integer.MIN_VALUE;
+
+    /** Positions are kept in 1/10000 minutes. */
+    private static final double UNITS_PER_DEGREE = 600_000;
+
+    /** The bytes used by the columns of a row, assuming 4 byte references. */
+    static final int ROW_BYTES = 4 + 4 + 4 + 1 + 8 + 4 + 4 + 2 + 2 + 2 + 1 + 8 + 4 + 8 + 4;
+
+    private static final AisTargetType[] TARGET_TYPES = AisTargetType.values();
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /** A single instance of each source, shared by all rows. */
+    private final ConcurrentHashMap<AisPacketSource, AisPacketSource> sources = new ConcurrentHashMap<>();
+
+    private final StaticTable statics = new StaticTable();
+
+    /** AIS messages 24 part 0 waiting for part 1. */
+    private final Msg24PartCache msg24Parts = new Msg24PartCache(Msg24PartCache.DEFAULT_MAX_SIZE,
+            Msg24PartCache.DEFAULT_MAX_AGE);
+
+    /**
+     * Creates a new tracker.
+     */
+    public CompactTargetTracker() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Subscription readFromStream(AisPacketStream stream) {
+        return stream.subscribe(new Consumer<AisPacket>() {
+            public void accept(AisPacket p) {
+                update(p);
+            }
+        });
+    }
+
+    /**
+     * Updates the tracker with the specified packet.
+     *
+     * @param packet
+     *            the packet to update the tracker with
+     */
+    void update(AisPacket packet) {
+        AisMessage message = packet.tryGetAisMessage();
+        Date date = packet.getTimestamp();
+        // We only want to handle messages containing targets data and a valid timestamp
+        if (message != null && date != null) {
+            AisTargetType targetType = message.getTargetType();
+            if (targetType != null) {
+                int mmsi = message.getUserId();
+                AisPacketSource source = AisPacketSource.create(packet);
+                AisPacketSource existing = sources.putIfAbsent(source, source);
+                source = existing == null ? source : existing;
+                Stripe s = stripeOf(mmsi);
+                synchronized (s) {
+                    s.update(packet, message, mmsi, targetType, date.getTime(), source);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tracked targets.
+     *
+     * @return the number of tracked targets
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                size += s.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns an estimate of the number of bytes used for tracking the targets, including the shared static data, but
+     * not the sources and the parts of messages 24 waiting to be paired.
+     *
+     * @return an estimate of the number of bytes used for tracking the targets
+     */
+    public long estimateMemoryUsage() {
+        long bytes = statics.estimateMemoryUsage();
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                bytes += s.estimateMemoryUsage();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the cache of AIS messages 24 part 0 waiting for part 1, for monitoring how parts are paired.
+     *
+     * @return the cache of AIS messages 24 part 0
+     */
+    public Msg24PartCache getMsg24PartCache() {
+        return msg24Parts;
+    }
+
+    /** Returns the number of distinct static messages kept. */
+    int getNumberOfStaticEntries() {
+        return statics.size();
+    }
+
+    public TargetInfo getNewest(int mmsi) {
+        return getNewest(mmsi, PREDICATETRUE);
+    }
+
+    public TargetInfo getNewest(int mmsi, Predicate<? super AisPacketSource> sourcePredicate) {
+        requireNonNull(sourcePredicate);
+        Stripe s = stripeOf(mmsi);
+        synchronized (s) {
+            int slot = s.find(mmsi);
+            return slot < 0 ? null : s.getNewest(s.heads[slot], sourcePredicate);
+        }
+    }
+
+    public Set<AisPacketSource> getAisPacketSources(int mmsi) {
+        Set<AisPacketSource> result = new HashSet<>();
+        Stripe s = stripeOf(mmsi);
+        synchronized (s) {
+            int slot = s.find(mmsi);
+            for (int r = slot < 0 ? -1 : s.heads[slot]; r >= 0; r = s.next[r]) {
+                result.add(s.source[r]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find all targets that matches the specified predicates.
+     *
+     * @param sourcePredicate
+     *            the predicate on sources
+     * @param targetPredicate
+     *            the predicate on targets
+     * @return a map of matching targets
+     */
+    public Map<Integer, TargetInfo> findTargets(Predicate<? super AisPacketSource> sourcePredicate,
+            Predicate<? super TargetInfo> targetPredicate) {
+        requireNonNull(sourcePredicate);
+        requireNonNull(targetPredicate);
+        Map<Integer, TargetInfo> result = new HashMap<>();
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                for (int slot = 0; slot < s.keys.length; slot++) {
+                    if (s.keys[slot] != FREE) {
+                        TargetInfo best = s.getNewest(s.heads[slot], sourcePredicate);
+                        if (best != null && targetPredicate.test(best)) {
+                            result.put(best.mmsi, best);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find all targets (including duplicates from other sources) which matches bipredicate
+     *
+     * @param predicate
+     *            the predicate on sources and targets
+     * @return the matching targets
+     */
+    public Collection<TargetInfo> findTargetsIncludingDuplicates(
+            BiPredicate<? super AisPacketSource, ? super TargetInfo> predicate) {
+        requireNonNull(predicate);
+        Collection<TargetInfo> result = new ArrayList<>();
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                for (int r = 0; r < s.rows; r++) {
+                    if (s.type[r] >= 0) {
+                        TargetInfo ti = s.get(r);
+                        if (predicate.test(s.source[r], ti)) {
+                            result.add(ti);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of tracked targets.
+     *
+     * @param sourcePredicate
+     *            a predicate that can be used on the source
+     * @param targetPredicate
+     *            a predicate that can be used on the target
+     * @return the number of tracked targets
+     */
+    public int countNumberOfTargets(Predicate<? super AisPacketSource> sourcePredicate,
+            Predicate<? super TargetInfo> targetPredicate) {
+        return findTargets(sourcePredicate, targetPredicate).size();
+    }
+
+    public int countNumberOfReports(BiPredicate<? super AisPacketSource, ? super TargetInfo> predicate) {
+        return findTargetsIncludingDuplicates(predicate).size();
+    }
+
+    /**
+     * Removes all targets that are accepted by the specified predicate. Is typically used to remove targets based on
+     * time stamps.
+     *
+     * @param predicate
+     *            the predicate that selects which items to remove
+     */
+    public void removeAll(BiPredicate<? super AisPacketSource, ? super TargetInfo> predicate) {
+        requireNonNull(predicate);
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                for (int r = 0; r < s.rows; r++) {
+                    if (s.type[r] >= 0 && predicate.test(s.source[r], s.get(r))) {
+                        s.remove(r);
+                    }
+                }
+            }
+        }
+    }
+
+    private Stripe stripeOf(int mmsi) {
+        return stripes[hash(mmsi) >>> 28 & STRIPES - 1];
+    }
+
+    private static int hash(int mmsi) {
+        int h = mmsi * 0x9E3779B9;
+        return h ^ h >>> 16;
+    }
+
+    private static int toUnits(double degrees) {
+        return (int) Math.round(degrees * UNITS_PER_DEGREE);
+    }
+
+    /** Returns the number of bytes used by the specified array, assuming 16 byte array headers. */
+    static long arrayBytes(byte[] array) {
+        return array == null ? 0 : 16 + (array.length + 7 & ~7);
+    }
+
+    /** Returns the number of bytes used by the specified string of ASCII characters, including its array. */
+    static long stringBytes(String s) {
+        return s == null ? 0 : 24 + 16 + (s.length() + 7 & ~7);
+    }
+
+    /** The targets of a stripe. */
+    final class Stripe {
+
+        /** The MMSI numbers of the targets, using open addressing. */
+        @GuardedBy("this")
+        int[] keys = newKeys(INITIAL_CAPACITY);
+
+        /** The first row of each target. */
+        @GuardedBy("this")
+        int[] heads = new int[INITIAL_CAPACITY];
+
+        /** The number of targets. */
+        @GuardedBy("this")
+        int size;
+
+        /** The number of rows in use or free. */
+        @GuardedBy("this")
+        int rows;
+
+        /** The first free row, or -1. */
+        @GuardedBy("this")
+        private int firstFree = -1;
+
+        /** The columns of the rows. */
+        @GuardedBy("this")
+        int[] mmsi = new int[0];
+
+        @GuardedBy("this")
+        AisPacketSource[] source = new AisPacketSource[0];
+
+        /** The next row of the same target, or the next free row. */
+        @GuardedBy("this")
+        int[] next = new int[0];
+
+        /** The ordinal of the target type, or -1 if the row is free. */
+        @GuardedBy("this")
+        byte[] type = new byte[0];
+
+        @GuardedBy("this")
+        long[] positionTimestamp = new long[0];
+
+        @GuardedBy("this")
+        int[] lat = new int[0];
+
+        @GuardedBy("this")
+        int[] lon = new int[0];
+
+        @GuardedBy("this")
+        short[] cog = new short[0];
+
+        @GuardedBy("this")
+        short[] sog = new short[0];
+
+        @GuardedBy("this")
+        short[] heading = new short[0];
+
+        @GuardedBy("this")
+        byte[] navStatus = new byte[0];
+
+        /** The other fields of the latest position message, see {@link PositionReport}, or 0 if none. */
+        @GuardedBy("this")
+        long[] positionFields = new long[0];
+
+        /** The name of the latest position message of an AtoN or message 19, see {@link PositionReport}. */
+        @GuardedBy("this")
+        String[] positionName = new String[0];
+
+        @GuardedBy("this")
+        long[] staticTimestamp = new long[0];
+
+        @GuardedBy("this")
+        StaticEntry[] staticEntry = new StaticEntry[0];
+
+        /** The number of bytes used by the names of the position messages. */
+        @GuardedBy("this")
+        long nameBytes;
+
+        void update(AisPacket packet, AisMessage message, int mmsi, AisTargetType targetType, long timestamp,
+                AisPacketSource source) {
+            int slot = find(mmsi);
+            int row = slot < 0 ? -1 : heads[slot];
+            while (row >= 0 && this.source[row] != source) {
+                row = next[row];
+            }
+            TargetInfo existing = row < 0 ? null : get(row);
+            TargetInfo updated = TargetInfo.updateTarget(existing, packet, targetType, timestamp, source, msg24Parts);
+            if (updated == null) {
+                if (row >= 0) {
+                    remove(row);
+                }
+            } else if (updated != existing) {
+                if (row < 0) {
+                    row = add(mmsi, source);
+                }
+                set(row, updated, message);
+            }
+        }
+
+        /** Returns the slot of the specified MMSI number, or -1 if it is not tracked. */
+        int find(int mmsi) {
+            int mask = keys.length - 1;
+            for (int i = hash(mmsi) & mask, k; (k = keys[i]) != FREE; i = i + 1 & mask) {
+                if (k == mmsi) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /** Returns the newest info of the rows starting at the specified row, from the accepted sources. */
+        TargetInfo getNewest(int head, Predicate<? super AisPacketSource> predicate) {
+            TargetInfo best = null;
+            for (int r = head; r >= 0; r = next[r]) {
+                if (predicate.test(source[r])) {
+                    // Take the newest position and static information from one or the other
+                    TargetInfo ti = get(r);
+                    best = best == null ? ti : best.merge(ti);
+                }
+            }
+            return best;
+        }
+
+        /** Returns the info of the specified row. */
+        TargetInfo get(int r) {
+            Position p = lat[r] == NO_POSITION ? null : Position.create(lat[r] / 10000.0 / 60.0,
+                    lon[r] / 10000.0 / 60.0);
+            PositionReport report = positionFields[r] == 0 ? null : new PositionReport(positionFields[r],
+                    positionName[r], source[r]);
+            StaticEntry e = staticEntry[r];
+            return new TargetInfo(mmsi[r], TARGET_TYPES[type[r]], positionTimestamp[r], p, heading[r], cog[r], sog[r],
+                    navStatus[r], null, report, staticTimestamp[r], e == null ? null : e.data1,
+                    e == null ? null : e.data2, e == null ? -1 : e.shipType);
+        }
+
+        /** Sets the columns of the specified row from the specified info, updated by the specified message. */
+        private void set(int r, TargetInfo ti, AisMessage message) {
+            type[r] = (byte) ti.targetType.ordinal();
+            positionTimestamp[r] = ti.positionTimestamp;
+            lat[r] = ti.position == null ? NO_POSITION : toUnits(ti.position.getLatitude());
+            lon[r] = ti.position == null ? NO_POSITION : toUnits(ti.position.getLongitude());
+            // COG, SOG and heading are the raw values of the message, or -1
+            cog[r] = (short) ti.cog;
+            sog[r] = (short) ti.sog;
+            heading[r] = (short) ti.heading;
+            navStatus[r] = ti.navStatus;
+            // The info keeps the report of the row, unless the position is that of the message or there is none
+            if (ti.positionReport == null) {
+                boolean updated = ti.positionPacket != null;
+                positionFields[r] = updated ? PositionReport.fields(message) : 0;
+                setPositionName(r, updated ? PositionReport.name(message) : null);
+            }
+            staticTimestamp[r] = ti.staticTimestamp;
+            StaticEntry old = staticEntry[r];
+            if (old == null ? ti.staticData1 != null : old.data1 != ti.staticData1 || old.data2 != ti.staticData2) {
+                staticEntry[r] = ti.staticData1 == null ? null : statics.acquire(ti.staticData1, ti.staticData2,
+                        ti.staticShipType);
+                if (old != null) {
+                    statics.release(old);
+                }
+            }
+        }
+
+        private void setPositionName(int r, String name) {
+            nameBytes += stringBytes(name) - stringBytes(positionName[r]);
+            positionName[r] = name;
+        }
+
+        /** Adds a new row for the specified MMSI number and source. */
+        private int add(int mmsi, AisPacketSource source) {
+            int r = firstFree;
+            if (r >= 0) {
+                firstFree = next[r];
+            } else {
+                if (rows == type.length) {
+                    grow(Math.max(INITIAL_CAPACITY, rows + (rows >> 1)));
+                }
+                r = rows++;
+            }
+            this.mmsi[r] = mmsi;
+            this.source[r] = source;
+            int mask = keys.length - 1;
+            int i = hash(mmsi) & mask;
+            for (int k; (k = keys[i]) != FREE; i = i + 1 & mask) {
+                if (k == mmsi) {
+                    next[r] = heads[i];
+                    heads[i] = r;
+                    return r;
+                }
+            }
+            keys[i] = mmsi;
+            heads[i] = r;
+            next[r] = -1;
+            if (++size > keys.length >> 1) {
+                resize(keys.length << 1);
+            }
+            return r;
+        }
+
+        /** Removes the specified row. */
+        void remove(int r) {
+            int slot = find(mmsi[r]);
+            if (heads[slot] == r) {
+                if (next[r] < 0) {
+                    removeSlot(slot);
+                } else {
+                    heads[slot] = next[r];
+                }
+            } else {
+                int prev = heads[slot];
+                while (next[prev] != r) {
+                    prev = next[prev];
+                }
+                next[prev] = next[r];
+            }
+            if (staticEntry[r] != null) {
+                statics.release(staticEntry[r]);
+                staticEntry[r] = null;
+            }
+            source[r] = null;
+            setPositionName(r, null);
+            type[r] = -1;
+            next[r] = firstFree;
+            firstFree = r;
+        }
+
+        /** Removes the target at the specified slot, moving later targets of the cluster back. */
+        private void removeSlot(int slot) {
+            int mask = keys.length - 1;
+            int free = slot;
+            for (int i = slot + 1 & mask; keys[i] != FREE; i = i + 1 & mask) {
+                int home = hash(keys[i]) & mask;
+                // Move the target to the free slot unless its home slot is cyclically within (free, i]
+                if ((i - home & mask) >= (i - free & mask)) {
+                    keys[free] = keys[i];
+                    heads[free] = heads[i];
+                    free = i;
+                }
+            }
+            keys[free] = FREE;
+            size--;
+        }
+
+        private void resize(int capacity) {
+            int[] oldKeys = keys;
+            int[] oldHeads = heads;
+            keys = newKeys(capacity);
+            heads = new int[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != FREE) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (keys[i] != FREE) {
+                        i = i + 1 & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    heads[i] = oldHeads[j];
+                }
+            }
+        }
+
+        private void grow(int capacity) {
+            mmsi = Arrays.copyOf(mmsi, capacity);
+            source = Arrays.copyOf(source, capacity);
+            next = Arrays.copyOf(next, capacity);
+            type = Arrays.copyOf(type, capacity);
+            positionTimestamp = Arrays.copyOf(positionTimestamp, capacity);
+            lat = Arrays.copyOf(lat, capacity);
+            lon = Arrays.copyOf(lon, capacity);
+            cog = Arrays.copyOf(cog, capacity);
+            sog = Arrays.copyOf(sog, capacity);
+            heading = Arrays.copyOf(heading, capacity);
+            navStatus = Arrays.copyOf(navStatus, capacity);
+            positionFields = Arrays.copyOf(positionFields, capacity);
+            positionName = Arrays.copyOf(positionName, capacity);
+            staticTimestamp = Arrays.copyOf(staticTimestamp, capacity);
+            staticEntry = Arrays.copyOf(staticEntry, capacity);
+        }
+
+        long estimateMemoryUsage() {
+            return (long) keys.length * 8 + (long) type.length * ROW_BYTES + nameBytes;
+        }
+    }
+
+    private static int[] newKeys(int capacity) {
+        int[] keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        return keys;
+    }
+
+    /**
+     * The static data of one or more rows. Entries are equal if their static messages have the same sixbit payloads,
+     * which are only decoded to tell entries with the same hash apart.
+     */
+    static final class StaticEntry {
+
+        /** The bytes used by an entry besides its packets: the entry itself and its node and slot in the table. */
+        static final int ENTRY_BYTES = 32 + 32 + 8;
+
+        final byte[] data1;
+
+        final byte[] data2;
+
+        final int shipType;
+
+        /** The hash of the sixbit payloads. */
+        private final int hash;
+
+        /** The number of rows referring to the entry. */
+        @GuardedBy("StaticTable.this")
+        int references;
+
+        StaticEntry(byte[] data1, byte[] data2, int shipType) {
+            this.data1 = data1;
+            this.data2 = data2;
+            this.shipType = shipType;
+            this.hash = 31 * payload(data1).hashCode() + (data2 == null ? 0 : payload(data2).hashCode());
+        }
+
+        long estimateMemoryUsage() {
+            return ENTRY_BYTES + arrayBytes(data1) + arrayBytes(data2);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            } else if (!(obj instanceof StaticEntry)) {
+                return false;
+            }
+            StaticEntry e = (StaticEntry) obj;
+            if (hash != e.hash || (data2 == null) != (e.data2 == null)) {
+                return false;
+            } else if (Arrays.equals(data1, e.data1) && Arrays.equals(data2, e.data2)) {
+                return true;
+            }
+            return payload(data1).equals(payload(e.data1))
+                    && (data2 == null || payload(data2).equals(payload(e.data2)));
+        }
+
+        /** Returns the sixbit payload of the specified packet, or the whole packet if it cannot be parsed. */
+        private static String payload(byte[] data) {
+            Vdm vdm = AisPacket.fromByteArray(data).getVdm();
+            return vdm == null ? new String(data, StandardCharsets.US_ASCII) : vdm.getSixbitString();
+        }
+    }
+
+    /** The distinct static data of all targets. */
+    @ThreadSafe
+    static final class StaticTable {
+
+        @GuardedBy("this")
+        private final HashMap<StaticEntry, StaticEntry> entries = new HashMap<>();
+
+        /** The number of bytes used by the entries. */
+        @GuardedBy("this")
+        private long bytes;
+
+        /** Returns the entry of the specified static data, creating it if it does not exist. */
+        StaticEntry acquire(byte[] data1, byte[] data2, int shipType) {
+            StaticEntry e = new StaticEntry(data1, data2, shipType);
+            synchronized (this) {
+                StaticEntry existing = entries.putIfAbsent(e, e);
+                if (existing == null) {
+                    bytes += e.estimateMemoryUsage();
+                } else {
+                    e = existing;
+                }
+                e.references++;
+                return e;
+            }
+        }
+
+        /** Releases a reference to the specified entry, removing it when no longer referred to. */
+        synchronized void release(StaticEntry e) {
+            if (--e.references == 0) {
+                entries.remove(e);
+                bytes -= e.estimateMemoryUsage();
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long estimateMemoryUsage() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.tracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A hierarchical timer wheel of items to expire at a deadline.
+ * <p>
+ * Time is divided into ticks. The wheel has {@value #LEVELS} levels of {@value #SLOTS} slots, where a slot of the
+ * first level holds the items expiring in a single tick, and a slot of each following level holds the items expiring
+ * in {@value #SLOTS} times as many ticks. When the wheel is advanced to the start of the ticks of a slot of a higher
+ * level, the items of the slot are moved down to the lower levels. Scheduling an item and advancing the wheel by a tick
+ * therefore takes constant time, and advancing the wheel only touches the items that expire, and each item at most
+ * once per level.
+ *
+ * @param <T>
+ *            the type of items
+ */
+@ThreadSafe
+final class ExpiryWheel<T> {
+
+    /** The number of bits of a tick selecting the slot of a level. */
+    private static final int BITS = 6;
+
+    /** The number of slots of each level. */
+    static final int SLOTS = 1 << BITS;
+
+    private static final int MASK = SLOTS - 1;
+
+    /** The number of levels. */
+    static final int LEVELS = 4;
+
+    /** The length of a tick in milliseconds. */
+    private final long tickMillis;
+
+    /** The timers of the slots of all levels, null if empty. */
+    @GuardedBy("this")
+    private final Object[] slots = new Object[LEVELS * SLOTS];
+
+    /**
+     * Timers scheduled for ticks before the next tick to process, either because the ticks have been processed or
+     * because the wheel was started at a later tick.
+     */
+    @GuardedBy("this")
+    private ArrayList<Timer<T>> overdue = new ArrayList<>();
+
+    /** The next tick to process, or Long.MIN_VALUE if the wheel has not been used. */
+    @GuardedBy("this")
+    private long current = Long.MIN_VALUE;
+
+    @GuardedBy("this")
+    private int size;
+
+    ExpiryWheel(long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive, was " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * Schedules the specified item to expire at the specified time.
+     *
+     * @param item
+     *            the item
+     * @param deadline
+     *            the time in milliseconds
+     */
+    synchronized void schedule(T item, long deadline) {
+        long tick = Math.floorDiv(deadline, tickMillis);
+        if (current == Long.MIN_VALUE) {
+            current = tick;
+        }
+        insert(new Timer<>(item, tick));
+        size++;
+    }
+
+    /**
+     * Advances the wheel to the specified time, returning the items that have expired. An item may expire up to a tick
+     * before its deadline.
+     *
+     * @param now
+     *            the time in milliseconds
+     * @return the items that have expired
+     */
+    synchronized List<T> advance(long now) {
+        long target = Math.floorDiv(now, tickMillis);
+        List<T> expired = new ArrayList<>();
+        if (!overdue.isEmpty()) {
+            ArrayList<Timer<T>> o = overdue;
+            overdue = new ArrayList<>();
+            for (Timer<T> t : o) {
+                if (t.tick <= target) {
+                    expired.add(t.item);
+                } else {
+                    overdue.add(t);
+                }
+            }
+        }
+        if (current == Long.MIN_VALUE || target < current) {
+            // Nothing scheduled for these ticks
+        } else if (target - current >= 1L << BITS * LEVELS) {
+            // Jumping further than the wheel spans, so take out all timers
+            List<Timer<T>> all = new ArrayList<>();
+            for (int i = 0; i < slots.length; i++) {
+                all.addAll(take(i));
+            }
+            current = target + 1;
+            for (Timer<T> t : all) {
+                if (t.tick <= target) {
+                    expired.add(t.item);
+                } else {
+                    insert(t);
+                }
+            }
+        } else {
+            for (; current <= target; current++) {
+                // Move down the timers of higher levels starting at this tick, highest first
+                int level = 1;
+                while (level < LEVELS && (current & (1L << BITS * level) - 1) == 0) {
+                    level++;
+                }
+                while (--level > 0) {
+                    for (Timer<T> t : take(level * SLOTS + (int) (current >>> BITS * level & MASK))) {
+                        insert(t);
+                    }
+                }
+                for (Timer<T> t : take((int) (current & MASK))) {
+                    expired.add(t.item);
+                }
+            }
+        }
+        size -= expired.size();
+        return expired;
+    }
+
+    /** Returns the number of items scheduled. */
+    synchronized int size() {
+        return size;
+    }
+
+    @GuardedBy("this")
+    private void insert(Timer<T> t) {
+        long delta = t.tick - current;
+        if (delta < 0) {
+            overdue.add(t);
+            return;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << BITS * (level + 1)) {
+            level++;
+        }
+        // Timers beyond the span of the wheel are kept in the last slot to be moved down, and then inserted again
+        long tick = delta >= 1L << BITS * LEVELS ? current + (MASK << BITS * level) : t.tick;
+        add(level * SLOTS + (int) (tick >>> BITS * level & MASK), t);
+    }
+
+    @SuppressWarnings("unchecked")
+    @GuardedBy("this")
+    private void add(int slot, Timer<T> t) {
+        ArrayList<Timer<T>> s = (ArrayList<Timer<T>>) slots[slot];
+        if (s == null) {
+            slots[slot] = s = new ArrayList<>(4);
+        }
+        s.add(t);
+    }
+
+    @SuppressWarnings("unchecked")
+    @GuardedBy("this")
+    private List<Timer<T>> take(int slot) {
+        ArrayList<Timer<T>> s = (ArrayList<Timer<T>>) slots[slot];
+        slots[slot] = null;
+        return s == null ? new ArrayList<>(0) : s;
+    }
+
+    /** An item and the tick it expires at. */
+    static final class Timer<T> {
+        final T item;
+
+        final long tick;
+
+        Timer(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+}
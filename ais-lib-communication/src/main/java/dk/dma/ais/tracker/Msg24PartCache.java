@@ -0,0 +1,223 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.tracker;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import dk.dma.ais.packet.AisPacketSource;
+
+/**
+ * Holds part A (part number 0) of AIS messages 24 by MMSI number and source until part B arrives. Part A is only
+ * paired with a part B received within the maximum age of it, and part A that is never followed by part B is dropped
+ * when the cache is full, oldest first. Ages are measured by the timestamps of the packets, so replayed data expires as
+ * it would have live.
+ * <p>
+ * The age of a part is only compared with the timestamps of packets of the same target and source, so pairing does not
+ * depend on how the packets of different targets are interleaved, for example by the shards of a
+ * {@link TargetTracker}.
+ */
+@ThreadSafe
+public final class Msg24PartCache {
+
+    /** The default maximum number of parts held. */
+    public static final int DEFAULT_MAX_SIZE = 1 << 16;
+
+    /** The default maximum age in milliseconds of a part A paired with a part B. */
+    public static final long DEFAULT_MAX_AGE = 5 * 60 * 1000;
+
+    private final int maxSize;
+
+    private final long maxAge;
+
+    /** The parts in the order they were received. */
+    @GuardedBy("this")
+    private final LinkedHashMap<Key, Part> parts = new LinkedHashMap<>();
+
+    @GuardedBy("this")
+    private long hits;
+
+    @GuardedBy("this")
+    private long misses;
+
+    @GuardedBy("this")
+    private long expirations;
+
+    @GuardedBy("this")
+    private long evictions;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize
+     *            the maximum number of parts held
+     * @param maxAge
+     *            the maximum age in milliseconds of a part A paired with a part B
+     */
+    public Msg24PartCache(int maxSize, long maxAge) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive, was " + maxSize);
+        } else if (maxAge < 0) {
+            throw new IllegalArgumentException("maxAge must not be negative, was " + maxAge);
+        }
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Holds part A of a message 24, replacing any part A held for the same MMSI number and source.
+     *
+     * @param mmsi
+     *            the MMSI number of the target
+     * @param source
+     *            the source of the packet
+     * @param timestamp
+     *            the timestamp of the packet
+     * @param packet
+     *            the packet of part A
+     */
+    synchronized void put(int mmsi, AisPacketSource source, long timestamp, byte[] packet) {
+        Key key = new Key(mmsi, requireNonNull(source));
+        // Remove first, so the part is moved to the end of the received order
+        parts.remove(key);
+        parts.put(key, new Part(timestamp, requireNonNull(packet)));
+        Iterator<Part> i = parts.values().iterator();
+        while (parts.size() > maxSize) {
+            i.next();
+            i.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes and returns part A of a message 24 to pair with part B.
+     *
+     * @param mmsi
+     *            the MMSI number of the target
+     * @param source
+     *            the source of the packet
+     * @param timestamp
+     *            the timestamp of the packet of part B
+     * @return the packet of part A, or null if no part A is held or it is too old
+     */
+    synchronized byte[] remove(int mmsi, AisPacketSource source, long timestamp) {
+        Part p = parts.remove(new Key(mmsi, source));
+        if (p == null) {
+            misses++;
+            return null;
+        } else if (timestamp - p.timestamp > maxAge) {
+            expirations++;
+            return null;
+        }
+        hits++;
+        return p.packet;
+    }
+
+    /**
+     * Returns the number of parts A held.
+     *
+     * @return the number of parts A held
+     */
+    public synchronized int size() {
+        return parts.size();
+    }
+
+    /**
+     * Returns the number of parts B that were paired with a part A.
+     *
+     * @return the number of parts B that were paired with a part A
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of parts B that arrived without a part A.
+     *
+     * @return the number of parts B that arrived without a part A
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of parts A that were too old to be paired with part B.
+     *
+     * @return the number of parts A that were too old to be paired with part B
+     */
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    /**
+     * Returns the number of parts A dropped because the cache was full.
+     *
+     * @return the number of parts A dropped because the cache was full
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized String toString() {
+        return "Msg24PartCache [size=" + parts.size() + ", hits=" + hits + ", misses=" + misses + ", expirations="
+                + expirations + ", evictions=" + evictions + "]";
+    }
+
+    /** The MMSI number and source of a part. */
+    static final class Key {
+        final int mmsi;
+
+        final AisPacketSource source;
+
+        Key(int mmsi, AisPacketSource source) {
+            this.mmsi = mmsi;
+            this.source = source;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int hashCode() {
+            return mmsi * 31 + source.hashCode();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                Key k = (Key) obj;
+                return mmsi == k.mmsi && source.equals(k.source);
+            }
+            return false;
+        }
+    }
+
+    /** A part A and the timestamp of its packet. */
+    static final class Part {
+        final long timestamp;
+
+        final byte[] packet;
+
+        Part(long timestamp, byte[] packet) {
+            this.timestamp = timestamp;
+            this.packet = packet;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.tracker;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import net.jcip.annotations.Immutable;
+import dk.dma.ais.binary.SixbitException;
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisMessage1;
+import dk.dma.ais.message.AisMessage18;
+import dk.dma.ais.message.AisMessage19;
+import dk.dma.ais.message.AisMessage2;
+import dk.dma.ais.message.AisMessage21;
+import dk.dma.ais.message.AisMessage3;
+import dk.dma.ais.message.AisMessage4;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.message.AisPositionMessage;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.ais.sentence.Vdm;
+
+/**
+ * The fields of a position message that are not kept in the fields of {@link TargetInfo}, such as the rate of turn and
+ * the name and dimensions of an AtoN, so the position packet can be rebuilt from the fields of a target rather than
+ * kept. Used by {@link CompactTargetTracker}, which keeps these fields in columns.
+ * <p>
+ * The repeat indicator, the radio status and the spare and regional bits of messages 19 are not kept. The rebuilt
+ * packet has the timestamp, to the second, and the tags of the source in a comment block, but not the other lines of
+ * the original packet.
+ */
+@Immutable
+final class PositionReport implements Serializable {
+
+    /** serialVersionUID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The raw latitude and longitude of a position that is not available. */
+    private static final long NO_LATITUDE = 91 * 600_000L, NO_LONGITUDE = 181 * 600_000L;
+
+    /** The message id in the lowest 6 bits followed by the fields of that message, see {@link #fields(AisMessage)}. */
+    final long fields;
+
+    /** The name of an AtoN including the extension, or of a class B vessel of message 19, otherwise null. */
+    final String name;
+
+    /** The source of the message, for the tags of the packet. */
+    final AisPacketSource source;
+
+    PositionReport(long fields, String name, AisPacketSource source) {
+        this.fields = fields;
+        this.name = name;
+        this.source = requireNonNull(source);
+    }
+
+    /**
+     * Returns the fields of the specified position message that are not kept in the fields of {@link TargetInfo}.
+     *
+     * @param message
+     *            the message
+     * @return the fields of the message, or 0 if the message is not a position message of a tracked target
+     */
+    static long fields(AisMessage message) {
+        Bits b = new Bits(0).put(message.getMsgId(), 6);
+        if (message instanceof AisPositionMessage) {
+            AisPositionMessage m = (AisPositionMessage) message;
+            b.put(m.getRot(), 8).put(m.getPosAcc(), 1).put(m.getUtcSec(), 6).put(m.getSpecialManIndicator(), 2)
+                    .put(m.getRaim(), 1);
+        } else if (message instanceof AisMessage18) {
+            AisMessage18 m = (AisMessage18) message;
+            b.put(m.getPosAcc(), 1).put(m.getUtcSec(), 6).put(m.getClassBUnitFlag(), 1).put(m.getClassBDisplayFlag(), 1)
+                    .put(m.getClassBDscFlag(), 1).put(m.getClassBBandFlag(), 1).put(m.getClassBMsg22Flag(), 1)
+                    .put(m.getModeFlag(), 1).put(m.getRaim(), 1).put(m.getCommStateSelectorFlag(), 1);
+        } else if (message instanceof AisMessage19) {
+            AisMessage19 m = (AisMessage19) message;
+            b.put(m.getPosAcc(), 1).put(m.getUtcSec(), 6).put(m.getShipType(), 8).put(m.getDimBow(), 9)
+                    .put(m.getDimStern(), 9).put(m.getDimPort(), 6).put(m.getDimStarboard(), 6).put(m.getPosType(), 4)
+                    .put(m.getRaimFlag(), 1).put(m.getDte(), 1).put(m.getModeFlag(), 1);
+        } else if (message instanceof AisMessage4) {
+            AisMessage4 m = (AisMessage4) message;
+            b.put(m.getUtcYear(), 14).put(m.getUtcMonth(), 4).put(m.getUtcDay(), 5).put(m.getUtcHour(), 5)
+                    .put(m.getUtcMinute(), 6).put(m.getUtcSecond(), 6).put(m.getPosAcc(), 1).put(m.getPosType(), 4)
+                    .put(m.getTransmissionControl(), 1).put(m.getRaim(), 1);
+        } else if (message instanceof AisMessage21) {
+            AisMessage21 m = (AisMessage21) message;
+            b.put(m.getAtonType(), 5).put(m.getPosAcc(), 1).put(m.getDimBow(), 9).put(m.getDimStern(), 9)
+                    .put(m.getDimPort(), 6).put(m.getDimStarboard(), 6).put(m.getPosType(), 4).put(m.getUtcSec(), 6)
+                    .put(m.getOffPosition(), 1).put(m.getRegional(), 8).put(m.getRaim(), 1).put(m.getVirtual(), 1)
+                    .put(m.getAssigned(), 1);
+        } else {
+            return 0;
+        }
+        return b.value;
+    }
+
+    /**
+     * Returns the name of the specified position message, if it is not kept with the static data of the target.
+     *
+     * @param message
+     *            the message
+     * @return the name of an AtoN including the extension, the name of a message 19, or null
+     */
+    static String name(AisMessage message) {
+        if (message instanceof AisMessage21) {
+            AisMessage21 m = (AisMessage21) message;
+            return m.getNameExt() == null ? m.getName() : m.getName() + m.getNameExt();
+        }
+        return message instanceof AisMessage19 ? ((AisMessage19) message).getName() : null;
+    }
+
+    /**
+     * Rebuilds the position packet of the specified target.
+     *
+     * @param ti
+     *            the target with this report
+     * @return the bytes of the packet
+     */
+    byte[] toByteArray(TargetInfo ti) {
+        AisMessage message = toMessage(ti);
+        AisPacketTags tags = new AisPacketTags();
+        tags.setTimestamp(new Date(ti.positionTimestamp));
+        tags.setSourceId(source.getSourceId());
+        if (source.getSourceBaseStation() != Integer.MIN_VALUE) {
+            tags.setSourceBs(source.getSourceBaseStation());
+        }
+        tags.setSourceCountry(source.getSourceCountry());
+        tags.setSourceType(source.getSourceType());
+        StringBuilder sb = new StringBuilder(tags.getCommentBlock().encode());
+        try {
+            for (String sentence : Vdm.createSentences(message, 0)) {
+                sb.append("\r\n").append(sentence);
+            }
+        } catch (SixbitException e) {
+            // The fields are those of a message that was decoded
+            throw new IllegalStateException(e);
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Returns the position message of the specified target. */
+    private AisMessage toMessage(TargetInfo ti) {
+        Bits b = new Bits(fields);
+        int msgId = b.get(6);
+        AisPosition pos = ti.position == null ? new AisPosition(NO_LATITUDE, NO_LONGITUDE) : new AisPosition(
+                ti.position);
+        AisMessage message;
+        if (msgId == 1 || msgId == 2 || msgId == 3) {
+            AisPositionMessage m = msgId == 1 ? new AisMessage1() : msgId == 2 ? new AisMessage2() : new AisMessage3();
+            m.setNavStatus(ti.navStatus);
+            m.setSog((int) ti.sog);
+            m.setCog((int) ti.cog);
+            m.setTrueHeading(ti.heading);
+            m.setPos(pos);
+            m.setRot(b.get(8));
+            m.setPosAcc(b.get(1));
+            m.setUtcSec(b.get(6));
+            m.setSpecialManIndicator(b.get(2));
+            m.setRaim(b.get(1));
+            message = m;
+        } else if (msgId == 18) {
+            AisMessage18 m = new AisMessage18();
+            m.setSog((int) ti.sog);
+            m.setCog((int) ti.cog);
+            m.setTrueHeading(ti.heading);
+            m.setPos(pos);
+            m.setPosAcc(b.get(1));
+            m.setUtcSec(b.get(6));
+            m.setClassBUnitFlag(b.get(1));
+            m.setClassBDisplayFlag(b.get(1));
+            m.setClassBDscFlag(b.get(1));
+            m.setClassBBandFlag(b.get(1));
+            m.setClassBMsg22Flag(b.get(1));
+            m.setModeFlag(b.get(1));
+            m.setRaim(b.get(1));
+            m.setCommStateSelectorFlag(b.get(1));
+            message = m;
+        } else if (msgId == 19) {
+            AisMessage19 m = new AisMessage19();
+            m.setSog((int) ti.sog);
+            m.setCog((int) ti.cog);
+            m.setTrueHeading(ti.heading);
+            m.setPos(pos);
+            m.setName(name);
+            m.setPosAcc(b.get(1));
+            m.setUtcSec(b.get(6));
+            m.setShipType(b.get(8));
+            m.setDimBow(b.get(9));
+            m.setDimStern(b.get(9));
+            m.setDimPort(b.get(6));
+            m.setDimStarboard(b.get(6));
+            m.setPosType(b.get(4));
+            m.setRaimFlag(b.get(1));
+            m.setDte(b.get(1));
+            m.setModeFlag(b.get(1));
+            message = m;
+        } else if (msgId == 4) {
+            AisMessage4 m = new AisMessage4();
+            m.setPos(pos);
+            m.setUtcYear(b.get(14));
+            m.setUtcMonth(b.get(4));
+            m.setUtcDay(b.get(5));
+            m.setUtcHour(b.get(5));
+            m.setUtcMinute(b.get(6));
+            m.setUtcSecond(b.get(6));
+            m.setPosAcc(b.get(1));
+            m.setPosType(b.get(4));
+            m.setTransmissionControl(b.get(1));
+            m.setRaim(b.get(1));
+            message = m;
+        } else if (msgId == 21) {
+            AisMessage21 m = new AisMessage21();
+            m.setPos(pos);
+            m.setName(name.substring(0, Math.min(20, name.length())));
+            m.setNameExt(name.length() > 20 ? name.substring(20) : null);
+            m.setAtonType(b.get(5));
+            m.setPosAcc(b.get(1));
+            m.setDimBow(b.get(9));
+            m.setDimStern(b.get(9));
+            m.setDimPort(b.get(6));
+            m.setDimStarboard(b.get(6));
+            m.setPosType(b.get(4));
+            m.setUtcSec(b.get(6));
+            m.setOffPosition(b.get(1));
+            m.setRegional(b.get(8));
+            m.setRaim(b.get(1));
+            m.setVirtual(b.get(1));
+            m.setAssigned(b.get(1));
+            message = m;
+        } else {
+            throw new IllegalStateException("Unexpected message id " + msgId);
+        }
+        message.setUserId(ti.mmsi);
+        return message;
+    }
+
+    /** Values of a number of bits packed into a long, starting with the lowest bits. */
+    private static final class Bits {
+
+        long value;
+
+        private int shift;
+
+        Bits(long value) {
+            this.value = value;
+        }
+
+        Bits put(int v, int bits) {
+            value |= (v & (1L << bits) - 1) << shift;
+            shift += bits;
+            return this;
+        }
+
+        int get(int bits) {
+            int v = (int) (value >>> shift & (1L << bits) - 1);
+            shift += bits;
+            return v;
+        }
+    }
+}
@@ -14,6 +14,8 @@
  */
 package dk.dma.ais.tracker;
 
+import static java.util.Objects.requireNonNull;
+
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import dk.dma.ais.binary.SixbitException;
@@ -33,29 +35,84 @@ import dk.dma.enav.model.geometry.CoordinateSystem;
 import dk.dma.enav.model.geometry.Position;
 import dk.dma.enav.model.geometry.PositionTime;
 import java.util.function.Consumer;
+import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.Immutable;
-import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
 import org.apache.commons.lang.StringUtils;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 
 /**
- * This class can process a finite stream of AisPackets, and build a scenario
+ * This class can process a stream of AisPackets, and build a scenario
  * consisting of all received targets and a history of their movements.
+ * <p>
+ * Packets may be processed by several threads at a time. The track of each target is kept in primitive arrays and
+ * read through immutable {@link Target.Track} snapshots, which are not copied. By default every position report is
+ * kept. A tracker created with {@link #ScenarioTracker(double, long, TimeUnit)} simplifies the tracks as reports
+ * arrive, so the memory used by a track depends on the tolerance rather than on the number of reports.
  *
  * @author Thomas Borg Salling
  */
-@NotThreadSafe
+@ThreadSafe
 public class ScenarioTracker implements Tracker {
 
+    /** The number of dropped reports that may be checked against a new report when simplifying a track. */
+    static final int MAX_WINDOW = 64;
+
+    /** Meters per degree of latitude. */
+    private static final double METERS_PER_DEGREE = 6_371_000 * Math.PI / 180;
+
+    private static final NavigationalStatus[] NAVIGATIONAL_STATUSES = NavigationalStatus.values();
+
+    /** The maximum distance in meters of a dropped report from the simplified track, or -1 to keep every report. */
+    private final double tolerance;
+
+    /** The maximum time in milliseconds between two reports kept when simplifying. */
+    private final long maxInterval;
+
+    /**
+     * Creates a tracker keeping every position report.
+     */
+    public ScenarioTracker() {
+        this.tolerance = -1;
+        this.maxInterval = Long.MAX_VALUE;
+    }
+
+    /**
+     * Creates a tracker simplifying the tracks of the targets as reports arrive. A report is dropped if the track
+     * without it is within the tolerance of it, and of every report dropped since the previous report kept, at the
+     * time of the report. The position at a time is interpolated between the reports kept before and after the time,
+     * see {@link Target#getPositionReportAt(Date, int)}. Reports older than the newest report of a target are ignored.
+     *
+     * @param tolerance
+     *            the maximum distance in meters between a dropped report and the simplified track
+     * @param maxInterval
+     *            the maximum time between two reports kept
+     * @param unit
+     *            the unit of maxInterval
+     */
+    public ScenarioTracker(double tolerance, long maxInterval, TimeUnit unit) {
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("tolerance must not be negative, was " + tolerance);
+        } else if (maxInterval <= 0) {
+            throw new IllegalArgumentException("maxInterval must be positive, was " + maxInterval);
+        }
+        this.tolerance = tolerance;
+        this.maxInterval = unit.toMillis(maxInterval);
+    }
+
     @Override
     public Subscription readFromStream(AisPacketStream stream) {
         return stream.subscribe(new Consumer<AisPacket>() {
@@ -79,20 +136,14 @@ public class ScenarioTracker implements Tracker {
      * @return
      */
     public Date scenarioBegin() {
-        Date scenarioBegin = null;
-        Set<Map.Entry<Integer, Target>> entries = targets.entrySet();
-        Iterator<Map.Entry<Integer, Target>> i = entries.iterator();
-        while (i.hasNext()) {
-            Target target = i.next().getValue();
-            try {
-                Date targetFirstUpdate = target.positionReports.firstKey();
-                if (scenarioBegin == null || targetFirstUpdate.before(scenarioBegin)) {
-                    scenarioBegin = targetFirstUpdate;
-                }
-            } catch (NoSuchElementException e) {
+        long scenarioBegin = Long.MAX_VALUE;
+        for (Target target : targets.values()) {
+            Target.Track track = target.getTrack();
+            if (track.size() > 0) {
+                scenarioBegin = Math.min(scenarioBegin, track.getTimestamp(0));
             }
         }
-        return scenarioBegin;
+        return scenarioBegin == Long.MAX_VALUE ? null : new Date(scenarioBegin);
     }
 
     /**
@@ -100,20 +151,14 @@ public class ScenarioTracker implements Tracker {
      * @return
      */
     public Date scenarioEnd() {
-        Date scenarioEnd = null;
-        Set<Map.Entry<Integer, Target>> entries = targets.entrySet();
-        Iterator<Map.Entry<Integer, Target>> i = entries.iterator();
-        while (i.hasNext()) {
-            Target target = i.next().getValue();
-            try {
-                Date targetFirstUpdate = target.positionReports.lastKey();
-                if (scenarioEnd == null || targetFirstUpdate.after(scenarioEnd)) {
-                    scenarioEnd = targetFirstUpdate;
-                }
-            } catch (NoSuchElementException e) {
+        long scenarioEnd = Long.MIN_VALUE;
+        for (Target target : targets.values()) {
+            Target.Track track = target.getTrack();
+            if (track.size() > 0) {
+                scenarioEnd = Math.max(scenarioEnd, track.getTimestamp(track.size() - 1));
             }
         }
-        return scenarioEnd;
+        return scenarioEnd == Long.MIN_VALUE ? null : new Date(scenarioEnd);
     }
 
     /**
@@ -132,6 +177,15 @@ public class ScenarioTracker implements Tracker {
         return ImmutableSet.copyOf(targets.values());
     }
 
+    /**
+     * Return all targets involved in this scenario, ordered by MMSI number, without copying. The collection is a view
+     * of the targets, iterating it sees the targets added while iterating or not.
+     * @return
+     */
+    public Collection<Target> getTargetsView() {
+        return Collections.unmodifiableCollection(targets.values());
+    }
+
     /**
      * Return all targets involved in this scenario and with a known location (ie. located inside of the bounding box).
      * @return
@@ -150,12 +204,10 @@ public class ScenarioTracker implements Tracker {
         try {
             message = p.getAisMessage();
             int mmsi = message.getUserId();
-            Target target;
-            if (! targets.containsKey(mmsi)) {
-                target = new Target();
-                targets.put(mmsi, target);
-            } else {
-                target = targets.get(mmsi);
+            Target target = targets.get(mmsi);
+            if (target == null) {
+                Target existing = targets.putIfAbsent(mmsi, target = new Target());
+                target = existing == null ? target : existing;
             }
             if (message instanceof IVesselPositionMessage) {
                 updateBoundingBox((IVesselPositionMessage) message);
@@ -171,18 +223,23 @@ public class ScenarioTracker implements Tracker {
         targets.get(mmsi).setTag(tag);
     }
 
-    private final Map<Integer, Target> targets = new TreeMap<>();
+    private final ConcurrentSkipListMap<Integer, Target> targets = new ConcurrentSkipListMap<>();
 
-    private BoundingBox boundingBox;
+    private volatile BoundingBox boundingBox;
 
     private void updateBoundingBox(IVesselPositionMessage positionMessage) {
         if (positionMessage.isPositionValid()) {
             Position position = positionMessage.getValidPosition();
             if (position != null) {
-                if (boundingBox == null) {
-                    boundingBox = BoundingBox.create(position, position, CoordinateSystem.CARTESIAN);
-                } else {
-                    boundingBox = boundingBox.include(BoundingBox.create(position, position, CoordinateSystem.CARTESIAN));
+                BoundingBox b = boundingBox;
+                if (b == null || !b.contains(position)) {
+                    synchronized (this) {
+                        if (boundingBox == null) {
+                            boundingBox = BoundingBox.create(position, position, CoordinateSystem.CARTESIAN);
+                        } else {
+                            boundingBox = boundingBox.include(BoundingBox.create(position, position, CoordinateSystem.CARTESIAN));
+                        }
+                    }
                 }
             }
         }
@@ -192,7 +249,7 @@ public class ScenarioTracker implements Tracker {
         return aisString.replace('@',' ').trim();
     }
 
-    @NotThreadSafe
+    @ThreadSafe
     public final class Target implements Cloneable {
 
         public Target() {
@@ -217,10 +274,12 @@ public class ScenarioTracker implements Tracker {
         public ShipTypeCargo getShipTypeCargo() { return shipTypeCargo; }
 
         public String getCargoTypeAsString() {
+            ShipTypeCargo shipTypeCargo = this.shipTypeCargo;
             return shipTypeCargo == null ? null : shipTypeCargo.prettyCargo();
         }
 
         public String getShipTypeAsString() {
+            ShipTypeCargo shipTypeCargo = this.shipTypeCargo;
             return shipTypeCargo == null ? null : shipTypeCargo.prettyType();
         }
 
@@ -249,19 +308,37 @@ public class ScenarioTracker implements Tracker {
         }
 
         public boolean hasPosition() {
-            return positionReports.size() > 0;
+            return track.size() > 0;
+        }
+
+        /**
+         * Returns the current track of the target. The track is an immutable snapshot, later reports are not
+         * reflected in it.
+         *
+         * @return the current track of the target
+         */
+        public Track getTrack() {
+            return track;
         }
 
         public Set<PositionReport> getPositionReports() {
-            return ImmutableSet.copyOf(positionReports.values());
+            return ImmutableSet.copyOf(track);
         }
 
         public Date timeOfFirstPositionReport() {
-            return positionReports.firstKey();
+            Track track = this.track;
+            if (track.size() == 0) {
+                throw new NoSuchElementException();
+            }
+            return new Date(track.getTimestamp(0));
         }
 
         public Date timeOfLastPositionReport() {
-            return positionReports.lastKey();
+            Track track = this.track;
+            if (track.size() == 0) {
+                throw new NoSuchElementException();
+            }
+            return new Date(track.getTimestamp(track.size() - 1));
         }
 
         /**
@@ -274,16 +351,17 @@ public class ScenarioTracker implements Tracker {
          * @return An AIS-based or estimated position report.
          */
         public PositionReport getPositionReportAt(Date atTime, int maxAge) {
-            PositionReport positionReport = getPositionReportNear(atTime, maxAge);
+            Track track = this.track;
+            PositionReport positionReport = getPositionReportNear(track, atTime, maxAge);
             if (positionReport == null) {
                 /* no position report at desired time - will estimate using interpolation or dead reckoning */
-                Map.Entry<Date, PositionReport> entry1 = positionReports.lowerEntry(atTime);
-                if (entry1 != null) {
-                    PositionReport pr1 = entry1.getValue();
+                int lower = track.floor(atTime.getTime() - 1);
+                if (lower >= 0) {
+                    PositionReport pr1 = track.get(lower);
                     PositionReport pr2;
-                    Map.Entry<Date, PositionReport> higherEntry = positionReports.higherEntry(atTime);
-                    if (higherEntry != null) {
-                        pr2 = higherEntry.getValue();
+                    int higher = track.floor(atTime.getTime()) + 1;
+                    if (higher < track.size()) {
+                        pr2 = track.get(higher);
                         positionReport = new PositionReport(PositionTime.createInterpolated(pr1.getPositionTime(), pr2.getPositionTime(), atTime.getTime()), pr1.getCog(), pr1.getSog(), pr1.getHeading(), pr1.getNavigationalStatus(), true);
                     } else {
                         positionReport = new PositionReport(PositionTime.createExtrapolated(pr1.getPositionTime(), pr1.getCog(), pr1.getSog(), atTime.getTime()), pr1.getCog(), pr1.getSog(), pr1.getHeading(), pr1.getNavigationalStatus(), true);
@@ -302,16 +380,18 @@ public class ScenarioTracker implements Tracker {
          * @return a matching position report or null.
          */
         PositionReport getPositionReportNear(Date atTime, int deltaSeconds) {
-            Map.Entry<Date, PositionReport> positionReportEntry = positionReports.floorEntry(atTime);
-            if (positionReportEntry != null) {
-                if (positionReportEntry.getKey().getTime() < atTime.getTime() - deltaSeconds*1000) {
-                    positionReportEntry = null;
-                }
+            return getPositionReportNear(track, atTime, deltaSeconds);
+        }
+
+        private PositionReport getPositionReportNear(Track track, Date atTime, int deltaSeconds) {
+            int i = track.floor(atTime.getTime());
+            if (i >= 0 && track.getTimestamp(i) >= atTime.getTime() - deltaSeconds*1000) {
+                return track.get(i);
             }
-            return positionReportEntry == null ? null : positionReportEntry.getValue();
+            return null;
         }
 
-        private void update(AisPacket p) {
+        private synchronized void update(AisPacket p) {
             AisMessage message = p.tryGetAisMessage();
             checkOrSetMmsi(message);
             if (message instanceof AisPositionMessage) {
@@ -324,7 +404,7 @@ public class ScenarioTracker implements Tracker {
                     final float sog = positionMessage.getSog() / 10.0f;
                     final int nav = positionMessage.getNavStatus();
                     final long timestamp = p.getBestTimestamp();
-                    positionReports.put(new Date(timestamp), new PositionReport(timestamp, lat,lon, cog, sog, hdg, NavigationalStatus.get(nav), false));
+                    addPositionReport(new PositionReport(timestamp, lat,lon, cog, sog, hdg, NavigationalStatus.get(nav), false));
                 }
             } else if (message instanceof AisMessage5) {
                 AisMessage5 message5 = (AisMessage5) message;
@@ -339,6 +419,118 @@ public class ScenarioTracker implements Tracker {
             }
         }
 
+        /**
+         * Adds a report to the track. The newest report is kept as the last report of the track. When simplifying,
+         * it is checked whether the previous newest report can be dropped once the new report arrives.
+         */
+        @GuardedBy("this")
+        private void addPositionReport(PositionReport report) {
+            PositionReport last = track.last;
+            if (last == null) {
+                track = new Track(count, report);
+            } else if (report.getTimestamp() > last.getTimestamp()) {
+                if (tolerance >= 0 && count > 0 && canDrop(last, report)) {
+                    window[windowSize++] = last;
+                } else {
+                    append(last);
+                    windowSize = 0;
+                }
+                track = new Track(count, report);
+            } else if (tolerance < 0) {
+                if (report.getTimestamp() == last.getTimestamp()) {
+                    track = new Track(count, report);
+                } else {
+                    insert(report);
+                }
+            }
+        }
+
+        /**
+         * Returns whether or not the newest report can be dropped when the specified report arrives, because the
+         * simplified track from the last report kept to the specified report is within the tolerance of it and of all
+         * the reports dropped since the last report kept.
+         */
+        @GuardedBy("this")
+        private boolean canDrop(PositionReport last, PositionReport report) {
+            int anchor = count - 1;
+            long t0 = times[anchor];
+            if (report.getTimestamp() - t0 > maxInterval || windowSize == MAX_WINDOW) {
+                return false;
+            }
+            double toleranceSquared = tolerance * tolerance;
+            double lat0 = lats[anchor], lon0 = lons[anchor];
+            double dt = report.getTimestamp() - t0;
+            double dlat = report.getLatitude() - lat0, dlon = report.getLongitude() - lon0;
+            for (int i = -1; i < windowSize; i++) {
+                PositionReport r = i < 0 ? last : window[i];
+                double f = (r.getTimestamp() - t0) / dt;
+                double y = (r.getLatitude() - lat0 - f * dlat) * METERS_PER_DEGREE;
+                double x = (r.getLongitude() - lon0 - f * dlon) * METERS_PER_DEGREE
+                        * Math.cos(Math.toRadians(r.getLatitude()));
+                if (x * x + y * y > toleranceSquared) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Appends a report to the arrays, after the reports of all published tracks. */
+        @GuardedBy("this")
+        private void append(PositionReport r) {
+            if (count == times.length) {
+                grow(Math.max(4, count * 2));
+            }
+            set(count++, r);
+        }
+
+        /**
+         * Inserts a report older than the newest report in new arrays, leaving the arrays of published tracks as they
+         * are.
+         */
+        @GuardedBy("this")
+        private void insert(PositionReport r) {
+            int i = Arrays.binarySearch(times, 0, count, r.getTimestamp());
+            if (i >= 0) {
+                grow(times.length); // replace
+            } else {
+                i = -i - 1;
+                grow(count < times.length ? times.length : Math.max(4, count * 2));
+                System.arraycopy(times, i, times, i + 1, count - i);
+                System.arraycopy(lats, i, lats, i + 1, count - i);
+                System.arraycopy(lons, i, lons, i + 1, count - i);
+                System.arraycopy(cogs, i, cogs, i + 1, count - i);
+                System.arraycopy(sogs, i, sogs, i + 1, count - i);
+                System.arraycopy(headings, i, headings, i + 1, count - i);
+                System.arraycopy(navstats, i, navstats, i + 1, count - i);
+                count++;
+            }
+            set(i, r);
+            track = new Track(count, track.last);
+        }
+
+        @GuardedBy("this")
+        private void grow(int capacity) {
+            times = Arrays.copyOf(times, capacity);
+            lats = Arrays.copyOf(lats, capacity);
+            lons = Arrays.copyOf(lons, capacity);
+            cogs = Arrays.copyOf(cogs, capacity);
+            sogs = Arrays.copyOf(sogs, capacity);
+            headings = Arrays.copyOf(headings, capacity);
+            navstats = Arrays.copyOf(navstats, capacity);
+        }
+
+        @GuardedBy("this")
+        private void set(int i, PositionReport r) {
+            times[i] = r.getTimestamp();
+            lats[i] = (float) r.getLatitude();
+            lons[i] = (float) r.getLongitude();
+            cogs[i] = r.getCog();
+            sogs[i] = r.getSog();
+            headings[i] = (short) r.getHeading();
+            navstats[i] = (byte) r.getNavigationalStatus().ordinal();
+        }
+
+        @GuardedBy("this")
         private void checkOrSetMmsi(AisMessage message) {
             final int msgMmsi = message.getUserId();
             if (mmsi < 0) {
@@ -350,12 +542,131 @@ public class ScenarioTracker implements Tracker {
             }
         }
 
-        private String name, destination;
-        private int mmsi=-1, imo=-1, toBow=-1, toStern=-1, toPort=-1, toStarboard=-1;
-        private ShipTypeCargo shipTypeCargo;
+        private volatile String name, destination;
+        private volatile int mmsi=-1, imo=-1, toBow=-1, toStern=-1, toPort=-1, toStarboard=-1;
+        private volatile ShipTypeCargo shipTypeCargo;
+
+        private final Set<Object> tags = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
 
-        private final Set<Object> tags = new HashSet<>();
-        private final TreeMap<Date, PositionReport> positionReports = new TreeMap<>();
+        /**
+         * The columns of the reports kept before the newest report, ordered by time. Slots below count are never
+         * changed once published in a track, instead new arrays are made.
+         */
+        @GuardedBy("this")
+        private long[] times = new long[0];
+        @GuardedBy("this")
+        private float[] lats = new float[0], lons = new float[0], cogs = new float[0], sogs = new float[0];
+        @GuardedBy("this")
+        private short[] headings = new short[0];
+        @GuardedBy("this")
+        private byte[] navstats = new byte[0];
+        @GuardedBy("this")
+        private int count;
+
+        /** The reports dropped since the last report kept, when simplifying. */
+        @GuardedBy("this")
+        private final PositionReport[] window = new PositionReport[tolerance >= 0 ? MAX_WINDOW : 0];
+        @GuardedBy("this")
+        private int windowSize;
+
+        private volatile Track track = new Track(0, null);
+
+        /**
+         * An immutable snapshot of the track of a target, the reports kept followed by the newest report. Reports are
+         * created when read from the columns of the track.
+         */
+        @Immutable
+        public final class Track implements Iterable<PositionReport> {
+            private final long[] times = Target.this.times;
+            private final float[] lats = Target.this.lats, lons = Target.this.lons, cogs = Target.this.cogs,
+                    sogs = Target.this.sogs;
+            private final short[] headings = Target.this.headings;
+            private final byte[] navstats = Target.this.navstats;
+            private final int count;
+
+            /** The newest report, or null if the track is empty. */
+            private final PositionReport last;
+
+            @GuardedBy("Target.this")
+            private Track(int count, PositionReport last) {
+                this.count = count;
+                this.last = last;
+            }
+
+            /**
+             * Returns the number of reports of the track.
+             *
+             * @return the number of reports of the track
+             */
+            public int size() {
+                return last == null ? 0 : count + 1;
+            }
+
+            /**
+             * Returns the report at the specified index, the oldest first.
+             *
+             * @param i
+             *            the index of the report
+             * @return the report
+             */
+            public PositionReport get(int i) {
+                if (i == count && last != null) {
+                    return last;
+                } else if (i < 0 || i >= count) {
+                    throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+                }
+                return new PositionReport(times[i], lats[i], lons[i], cogs[i], sogs[i], headings[i],
+                        NAVIGATIONAL_STATUSES[navstats[i]], false);
+            }
+
+            /**
+             * Returns the timestamp of the report at the specified index, without creating the report.
+             *
+             * @param i
+             *            the index of the report
+             * @return the timestamp of the report
+             */
+            public long getTimestamp(int i) {
+                if (i == count && last != null) {
+                    return last.getTimestamp();
+                } else if (i < 0 || i >= count) {
+                    throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+                }
+                return times[i];
+            }
+
+            /** Returns the index of the last report at or before the specified time, or -1 if there is none. */
+            int floor(long time) {
+                if (last == null) {
+                    return -1;
+                } else if (last.getTimestamp() <= time) {
+                    return count;
+                }
+                int i = Arrays.binarySearch(times, 0, count, time);
+                return i >= 0 ? i : -i - 2;
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public Iterator<PositionReport> iterator() {
+                return new Iterator<PositionReport>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size();
+                    }
+
+                    @Override
+                    public PositionReport next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return get(next++);
+                    }
+                };
+            }
+        }
 
         @Immutable
         public final class PositionReport {
@@ -411,6 +722,24 @@ public class ScenarioTracker implements Tracker {
                 return estimated;
             }
 
+            @Override
+            public boolean equals(Object obj) {
+                if (obj == this) {
+                    return true;
+                } else if (!(obj instanceof PositionReport)) {
+                    return false;
+                }
+                PositionReport other = (PositionReport) obj;
+                return getTimestamp() == other.getTimestamp() && getLatitude() == other.getLatitude()
+                        && getLongitude() == other.getLongitude() && cog == other.cog && sog == other.sog
+                        && heading == other.heading && navstat == other.navstat && estimated == other.estimated;
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hash(getTimestamp(), getLatitude(), getLongitude(), cog, sog, heading, navstat, estimated);
+            }
+
             @Override
             public String toString() {
                 final StringBuffer sb = new StringBuffer("PositionReport{");
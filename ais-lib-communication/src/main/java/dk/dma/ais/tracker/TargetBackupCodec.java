@@ -0,0 +1,255 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.tracker;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.packet.AisPacketTags.SourceType;
+import dk.dma.enav.model.Country;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * The binary format of the backup files of {@link TargetTrackerFileBackupService}.
+ * <p>
+ * A file starts with a header of {@link #MAGIC} and {@link #VERSION}, followed by records. A target record holds the
+ * MMSI number of a target and all its reports, where a target without reports has been removed. Each distinct source
+ * is written in full once per stream and then referred to by its index.
+ */
+final class TargetBackupCodec {
+
+    /** The first bytes of every backup file. */
+    static final int MAGIC = 0x41495354; // AIST
+
+    /** The version of the format. */
+    static final int VERSION = 1;
+
+    /** Ends a stream of records. */
+    private static final byte END = 0;
+
+    /** Defines the next source. */
+    private static final byte SOURCE = 1;
+
+    /** The reports of a target. */
+    private static final byte TARGET = 2;
+
+    private static final AisTargetType[] TARGET_TYPES = AisTargetType.values();
+
+    private static final SourceType[] SOURCE_TYPES = SourceType.values();
+
+    private TargetBackupCodec() {}
+
+    static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    static void readHeader(DataInput in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("Not a backup file, magic was " + Integer.toHexString(magic));
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported backup format version " + version);
+        }
+    }
+
+    /** Writes records to a stream. Not thread safe. */
+    static final class Writer {
+        private final DataOutput out;
+
+        /** The index of each source written. */
+        private final Map<AisPacketSource, Integer> sources = new HashMap<>();
+
+        Writer(DataOutput out) {
+            this.out = out;
+        }
+
+        /**
+         * Writes the current reports of the specified target, or its removal if it is null or has no reports.
+         */
+        void writeTarget(int mmsi, Map<AisPacketSource, TargetInfo> target) throws IOException {
+            // Copy the reports, so the count written matches the reports written
+            List<Map.Entry<AisPacketSource, TargetInfo>> reports = target == null ? new ArrayList<>(0)
+                    : new ArrayList<>(target.entrySet());
+            for (Map.Entry<AisPacketSource, TargetInfo> e : reports) {
+                if (!sources.containsKey(e.getKey())) {
+                    writeSource(e.getKey());
+                    sources.put(e.getKey(), sources.size());
+                }
+            }
+            out.writeByte(TARGET);
+            out.writeInt(mmsi);
+            out.writeInt(reports.size());
+            for (Map.Entry<AisPacketSource, TargetInfo> e : reports) {
+                out.writeInt(sources.get(e.getKey()));
+                writeInfo(e.getValue());
+            }
+        }
+
+        void end() throws IOException {
+            out.writeByte(END);
+        }
+
+        private void writeSource(AisPacketSource s) throws IOException {
+            out.writeByte(SOURCE);
+            writeString(s.getSourceId());
+            out.writeInt(s.getSourceBaseStation());
+            writeString(s.getSourceCountry() == null ? null : s.getSourceCountry().getThreeLetter());
+            out.writeByte(s.getSourceType() == null ? -1 : s.getSourceType().ordinal());
+            writeString(s.getSourceRegion());
+        }
+
+        private void writeInfo(TargetInfo ti) throws IOException {
+            out.writeByte(ti.targetType.ordinal());
+            out.writeLong(ti.positionTimestamp);
+            out.writeDouble(ti.position == null ? Double.NaN : ti.position.getLatitude());
+            out.writeDouble(ti.position == null ? Double.NaN : ti.position.getLongitude());
+            out.writeShort(ti.heading);
+            out.writeFloat(ti.cog);
+            out.writeFloat(ti.sog);
+            out.writeByte(ti.navStatus);
+            writeBytes(ti.positionPacket);
+            out.writeLong(ti.staticTimestamp);
+            writeBytes(ti.staticData1);
+            writeBytes(ti.staticData2);
+            out.writeInt(ti.staticShipType);
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            if (bytes == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            out.writeBoolean(s != null);
+            if (s != null) {
+                out.writeUTF(s);
+            }
+        }
+    }
+
+    /** Receives the records read from a stream. */
+    interface Visitor {
+        /**
+         * Visits the reports of a target, which is empty if the target has been removed.
+         */
+        void target(int mmsi, Map<AisPacketSource, TargetInfo> reports);
+    }
+
+    /** Reads records from a stream. Not thread safe. */
+    static final class Reader {
+        private final DataInput in;
+
+        /** Shares equal sources between readers, so restored reports do not each have a copy of their source. */
+        private final ConcurrentHashMap<AisPacketSource, AisPacketSource> shared;
+
+        private final List<AisPacketSource> sources = new ArrayList<>();
+
+        Reader(DataInput in, ConcurrentHashMap<AisPacketSource, AisPacketSource> shared) {
+            this.in = in;
+            this.shared = shared;
+        }
+
+        /**
+         * Reads records until the end of the records, returning the number of targets read.
+         */
+        int read(Visitor visitor) throws IOException {
+            int targets = 0;
+            for (;;) {
+                byte tag = in.readByte();
+                if (tag == END) {
+                    return targets;
+                } else if (tag == SOURCE) {
+                    sources.add(readSource());
+                } else if (tag == TARGET) {
+                    int mmsi = in.readInt();
+                    int count = in.readInt();
+                    Map<AisPacketSource, TargetInfo> reports = new HashMap<>(Math.max(2, 2 * count));
+                    for (int i = 0; i < count; i++) {
+                        int source = in.readInt();
+                        if (source < 0 || source >= sources.size()) {
+                            throw new IOException("Undefined source " + source);
+                        }
+                        reports.put(sources.get(source), readInfo(mmsi));
+                    }
+                    visitor.target(mmsi, reports);
+                    targets++;
+                } else {
+                    throw new IOException("Unknown record " + tag);
+                }
+            }
+        }
+
+        private AisPacketSource readSource() throws IOException {
+            String id = readString();
+            int baseStation = in.readInt();
+            String country = readString();
+            byte type = in.readByte();
+            String region = readString();
+            AisPacketSource s = AisPacketSource.create(id, baseStation,
+                    country == null ? null : Country.getByCode(country), type < 0 ? null : SOURCE_TYPES[type],
+                    region);
+            AisPacketSource existing = shared.putIfAbsent(s, s);
+            return existing == null ? s : existing;
+        }
+
+        private TargetInfo readInfo(int mmsi) throws IOException {
+            AisTargetType targetType = TARGET_TYPES[in.readUnsignedByte()];
+            long positionTimestamp = in.readLong();
+            double lat = in.readDouble();
+            double lon = in.readDouble();
+            int heading = in.readShort();
+            float cog = in.readFloat();
+            float sog = in.readFloat();
+            byte navStatus = in.readByte();
+            byte[] positionPacket = readBytes();
+            long staticTimestamp = in.readLong();
+            byte[] staticData1 = readBytes();
+            byte[] staticData2 = readBytes();
+            int staticShipType = in.readInt();
+            Position p = Double.isNaN(lat) ? null : Position.create(lat, lon);
+            return new TargetInfo(mmsi, targetType, positionTimestamp, p, heading, cog, sog, navStatus,
+                    positionPacket, null, staticTimestamp, staticData1, staticData2, staticShipType);
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private String readString() throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+}
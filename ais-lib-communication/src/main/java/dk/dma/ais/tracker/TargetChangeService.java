@@ -0,0 +1,91 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.tracker;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractScheduledService;
+
+/**
+ * Pushes the changes of a {@link TargetTracker} to a consumer at a fixed interval, batching all changes made during an
+ * interval. The first batch is all the targets of the tracker, later batches only the targets that were updated or
+ * removed since the previous batch. Intervals without changes are skipped.
+ */
+public class TargetChangeService extends AbstractScheduledService {
+
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(TargetChangeService.class);
+
+    private final TargetTracker tracker;
+
+    private final long interval;
+
+    private final TimeUnit unit;
+
+    private final Consumer<? super TargetChanges> consumer;
+
+    /** The version of the last changes pushed, only accessed by the service thread. */
+    private long version;
+
+    /**
+     * Creates a new change service.
+     *
+     * @param tracker
+     *            the tracker to push the changes of
+     * @param interval
+     *            the interval between batches of changes
+     * @param unit
+     *            the unit of the interval
+     * @param consumer
+     *            the consumer of the changes
+     */
+    public TargetChangeService(TargetTracker tracker, long interval, TimeUnit unit,
+            Consumer<? super TargetChanges> consumer) {
+        this.tracker = requireNonNull(tracker);
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive, was " + interval);
+        }
+        this.interval = interval;
+        this.unit = requireNonNull(unit);
+        this.consumer = requireNonNull(consumer);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void runOneIteration() throws Exception {
+        TargetChanges changes = tracker.changesSince(version);
+        if (!changes.isEmpty()) {
+            try {
+                consumer.accept(changes);
+            } catch (RuntimeException e) {
+                // Keep pushing, the consumer gets the next changes on top of these
+                LOG.error("Failed to push target changes", e);
+            }
+        }
+        version = changes.getVersion();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected Scheduler scheduler() {
+        return Scheduler.newFixedDelaySchedule(0, interval, unit);
+    }
+}
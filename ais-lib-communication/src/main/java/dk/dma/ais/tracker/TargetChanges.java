@@ -0,0 +1,113 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.tracker;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * The targets of a {@link TargetTracker} that have been updated or removed between two versions, as returned by
+ * {@link TargetTracker#changesSince(long)}.
+ */
+@Immutable
+public final class TargetChanges {
+
+    private final long fromVersion;
+
+    private final long version;
+
+    private final boolean full;
+
+    private final Map<Integer, TargetInfo> updated;
+
+    private final Set<Integer> removed;
+
+    TargetChanges(long fromVersion, long version, boolean full, Map<Integer, TargetInfo> updated,
+            Set<Integer> removed) {
+        this.fromVersion = fromVersion;
+        this.version = version;
+        this.full = full;
+        this.updated = Collections.unmodifiableMap(requireNonNull(updated));
+        this.removed = Collections.unmodifiableSet(requireNonNull(removed));
+    }
+
+    /**
+     * Returns the version the changes were requested from.
+     *
+     * @return the version the changes were requested from
+     */
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    /**
+     * Returns the version of the tracker including these changes, to be used for requesting the next changes.
+     *
+     * @return the version of the tracker including these changes
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns whether or not these changes are all the targets of the tracker rather than the changes since the
+     * requested version. This is the case if the changes are requested from version 0, or if the removals since the
+     * requested version are no longer known. Targets not among the updated targets should then be considered removed.
+     *
+     * @return whether or not these changes are all the targets of the tracker
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Returns the newest info of the targets updated since the requested version.
+     *
+     * @return the newest info of the targets updated since the requested version
+     */
+    public Map<Integer, TargetInfo> getUpdated() {
+        return updated;
+    }
+
+    /**
+     * Returns the MMSI numbers of the targets removed since the requested version.
+     *
+     * @return the MMSI numbers of the targets removed since the requested version
+     */
+    public Set<Integer> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Returns whether or not there are no changes.
+     *
+     * @return whether or not there are no changes
+     */
+    public boolean isEmpty() {
+        return !full && updated.isEmpty() && removed.isEmpty();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "TargetChanges [fromVersion=" + fromVersion + ", version=" + version + ", full=" + full + ", updated="
+                + updated.size() + ", removed=" + removed.size() + "]";
+    }
+}
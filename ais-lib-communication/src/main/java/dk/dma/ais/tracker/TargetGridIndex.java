@@ -0,0 +1,224 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.tracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import net.jcip.annotations.ThreadSafe;
+import dk.dma.ais.tracker.TargetTracker.MmsiTarget;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * A spatial index of the targets of a {@link TargetTracker}, placing each target in a cell of a uniform grid of
+ * latitudes and longitudes by its newest position. Only cells containing targets are kept, so a query visits the cells
+ * overlapping the queried area, or all non-empty cells if there are fewer of them, and costs time in proportion to the
+ * number of targets found rather than to the number of targets tracked.
+ */
+@ThreadSafe
+final class TargetGridIndex {
+
+    /** The size of a cell in degrees. */
+    static final double CELL_DEGREES = 0.1;
+
+    static final int ROWS = (int) Math.round(180 / CELL_DEGREES);
+
+    static final int COLS = (int) Math.round(360 / CELL_DEGREES);
+
+    /** Marks a target that is not in the index. */
+    static final int NO_CELL = -1;
+
+    /** A lower bound of the radius of the earth in meters, for bounding the distance to a cell. */
+    private static final double MIN_EARTH_RADIUS = 6_350_000;
+
+    /**
+     * The targets of each non-empty cell by MMSI number. Targets are maps, so they are not kept in sets, where they
+     * would be compared by their content.
+     */
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, MmsiTarget>> cells = new ConcurrentHashMap<>();
+
+    static int row(double lat) {
+        return Math.min(ROWS - 1, Math.max(0, (int) Math.floor((lat + 90) / CELL_DEGREES)));
+    }
+
+    static int col(double lon) {
+        return Math.floorMod((int) Math.floor((lon + 180) / CELL_DEGREES), COLS);
+    }
+
+    /** Returns the cell of the specified position, or {@link #NO_CELL} if the position is null. */
+    static int cellOf(Position p) {
+        return p == null ? NO_CELL : row(p.getLatitude()) * COLS + col(p.getLongitude());
+    }
+
+    /**
+     * Moves the specified target from one cell to another. The caller must make sure a target is not moved
+     * concurrently.
+     */
+    void move(final MmsiTarget t, int from, int to) {
+        if (from != NO_CELL) {
+            cells.computeIfPresent(from, (k, s) -> {
+                if (s.get(t.mmsi) == t) {
+                    s.remove(t.mmsi);
+                }
+                return s.isEmpty() ? null : s;
+            });
+        }
+        if (to != NO_CELL) {
+            cells.compute(to, (k, s) -> {
+                ConcurrentHashMap<Integer, MmsiTarget> result = s == null ? new ConcurrentHashMap<>() : s;
+                result.put(t.mmsi, t);
+                return result;
+            });
+        }
+    }
+
+    /**
+     * Visits the targets of all cells overlapping the specified bounding box. A target may be visited even if its
+     * position is outside of the box.
+     */
+    void forEachWithin(double minLat, double maxLat, double minLon, double maxLon, Consumer<MmsiTarget> consumer) {
+        int r0 = row(minLat), r1 = row(maxLat);
+        int c0 = col(minLon);
+        int cols = maxLon - minLon >= 360 ? COLS : Math.floorMod(col(maxLon) - c0, COLS) + 1;
+        if ((long) (r1 - r0 + 1) * cols > cells.size()) {
+            for (Map.Entry<Integer, ConcurrentHashMap<Integer, MmsiTarget>> e : cells.entrySet()) {
+                int r = e.getKey() / COLS;
+                if (r >= r0 && r <= r1 && Math.floorMod(e.getKey() % COLS - c0, COLS) < cols) {
+                    e.getValue().values().forEach(consumer);
+                }
+            }
+        } else {
+            for (int r = r0; r <= r1; r++) {
+                for (int i = 0; i < cols; i++) {
+                    visit(r, c0 + i, consumer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the targets nearest to the specified position, visiting the cells in rings around the position until no
+     * closer target can be found.
+     *
+     * @param position
+     *            the position
+     * @param k
+     *            the maximum number of targets to find
+     * @param maxDistance
+     *            the maximum distance in meters
+     * @param newest
+     *            returns the newest info of a target
+     * @return the nearest targets, nearest first
+     */
+    List<TargetInfo> findNearest(final Position position, final int k, final double maxDistance,
+            final Function<MmsiTarget, TargetInfo> newest) {
+        if (k <= 0) {
+            return Collections.emptyList();
+        }
+        // The farthest of the targets found so far first
+        final PriorityQueue<Neighbour> found = new PriorityQueue<>(k, Comparator.comparingDouble(
+                (Neighbour n) -> n.distance).reversed());
+        final Set<Integer> visited = new HashSet<>();
+        Consumer<MmsiTarget> consumer = t -> {
+            if (visited.add(t.mmsi)) {
+                TargetInfo ti = newest.apply(t);
+                Position p = ti == null ? null : ti.getPosition();
+                if (p != null) {
+                    double d = position.rhumbLineDistanceTo(p);
+                    if (d <= maxDistance && (found.size() < k || d < found.peek().distance)) {
+                        found.add(new Neighbour(ti, d));
+                        if (found.size() > k) {
+                            found.poll();
+                        }
+                    }
+                }
+            }
+        };
+        int row0 = row(position.getLatitude()), col0 = col(position.getLongitude());
+        for (int r = 0;; r++) {
+            double limit = found.size() < k ? maxDistance : Math.min(maxDistance, found.peek().distance);
+            if (minDistance(position.getLatitude(), r) > limit) {
+                break;
+            } else if ((long) (2 * r + 1) * (2 * r + 1) > cells.size()) {
+                // Cheaper to visit the remaining non-empty cells than the rest of the rings
+                cells.values().forEach(s -> s.values().forEach(consumer));
+                break;
+            }
+            for (int c = col0 - r; c <= col0 + r; c++) {
+                visit(row0 - r, c, consumer);
+                if (r > 0) {
+                    visit(row0 + r, c, consumer);
+                }
+            }
+            for (int rr = row0 - r + 1; rr < row0 + r; rr++) {
+                visit(rr, col0 - r, consumer);
+                visit(rr, col0 + r, consumer);
+            }
+        }
+        List<Neighbour> neighbours = new ArrayList<>(found);
+        neighbours.sort(Comparator.comparingDouble(n -> n.distance));
+        List<TargetInfo> result = new ArrayList<>(neighbours.size());
+        for (Neighbour n : neighbours) {
+            result.add(n.target);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a lower bound of the distance in meters from a position at the specified latitude to any position in
+     * the cells of the ring at the specified distance in cells from the cell of the position.
+     */
+    private static double minDistance(double lat, int ring) {
+        if (ring <= 1) {
+            return 0;
+        }
+        // Positions in the ring differ by at least this angle in latitude or in longitude. A difference in
+        // longitude is the shorter distance, the more so the closer the positions are to a pole, so bound the
+        // haversine distance by the latitude of the ring closest to a pole. Rhumb lines are never shorter.
+        double angle = Math.toRadians((ring - 1) * CELL_DEGREES);
+        double maxLat = Math.min(90, Math.abs(lat) + (ring + 1) * CELL_DEGREES);
+        return 2 * MIN_EARTH_RADIUS * Math.asin(Math.cos(Math.toRadians(maxLat)) * Math.sin(angle / 2));
+    }
+
+    private void visit(int row, int col, Consumer<MmsiTarget> consumer) {
+        if (row >= 0 && row < ROWS) {
+            ConcurrentHashMap<Integer, MmsiTarget> s = cells.get(row * COLS + Math.floorMod(col, COLS));
+            if (s != null) {
+                s.values().forEach(consumer);
+            }
+        }
+    }
+
+    /** A target found by {@link #findNearest(Position, int, double, Function)}. */
+    static final class Neighbour {
+        final TargetInfo target;
+
+        final double distance;
+
+        Neighbour(TargetInfo target, double distance) {
+            this.target = target;
+            this.distance = distance;
+        }
+    }
+}
@@ -17,9 +17,9 @@ package dk.dma.ais.tracker;
 import static java.util.Objects.requireNonNull;
 
 import java.io.Serializable;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Map;
 
 import dk.dma.ais.data.AisTarget;
 import dk.dma.ais.message.AisMessage;
@@ -35,7 +35,7 @@ import dk.dma.enav.model.geometry.Position;
 
 /**
  * Immutable information about a target. Whenever we receive a new message from the target. We create a new TargetInfo
- * instance via {@link #updateTarget(TargetInfo, AisPacket, AisTargetType, long, AisPacketSource, Map)}.
+ * instance via {@link #updateTarget(TargetInfo, AisPacket, AisTargetType, long, AisPacketSource, Msg24PartCache)}.
  * 
  * @author Kasper Nielsen
  */
@@ -53,6 +53,8 @@ public final class TargetInfo implements Serializable {
     /** The latest positionPacket that was received. */
     final long positionTimestamp;
     final byte[] positionPacket;
+    /** The other fields of the latest position message, if the packet is rebuilt from the fields rather than kept. */
+    final PositionReport positionReport;
     final Position position;
 
     final float cog;
@@ -62,10 +64,12 @@ public final class TargetInfo implements Serializable {
     
     //Do not want serialization of mutable complex object
     transient AisTarget aisTarget;
-    //further caching
-    transient AisPacket positionAisPacket;
-    transient AisPacket staticAisPacket1;
-    transient AisPacket staticAisPacket2;
+    // The packets decoded on first use, softly referenced so they are released when memory is low. A packet is fully
+    // decoded before it is published, so the threads sharing it only read it. Decoding a packet twice when called
+    // concurrently is harmless.
+    private transient volatile SoftReference<AisPacket> positionAisPacket;
+    private transient volatile SoftReference<AisPacket> staticAisPacket1;
+    private transient volatile SoftReference<AisPacket> staticAisPacket2;
     
 
     // The latest static info
@@ -74,9 +78,9 @@ public final class TargetInfo implements Serializable {
     final byte[] staticData2;
     final int staticShipType;
 
-    private TargetInfo(int mmsi, AisTargetType targetType, long positionTimestamp, Position p, int heading, float cog,
-            float sog, byte navStatus, byte[] positionPacket, long staticTimestamp, byte[] staticData1,
-            byte[] staticData2, int staticShipType) {
+    TargetInfo(int mmsi, AisTargetType targetType, long positionTimestamp, Position p, int heading, float cog,
+            float sog, byte navStatus, byte[] positionPacket, PositionReport positionReport, long staticTimestamp,
+            byte[] staticData1, byte[] staticData2, int staticShipType) {
         this.mmsi = mmsi;
         this.targetType = requireNonNull(targetType);
 
@@ -88,6 +92,7 @@ public final class TargetInfo implements Serializable {
         this.sog = sog;
         this.navStatus = navStatus;
         this.positionPacket = positionPacket;
+        this.positionReport = positionReport;
 
         // Static Data
         this.staticTimestamp = staticTimestamp;
@@ -95,11 +100,6 @@ public final class TargetInfo implements Serializable {
         this.staticData2 = staticData2;
         this.staticShipType = staticShipType;
         
-        // Caching for AisPackets
-        //this.staticAisPacket1 = getStaticAisPacket1();
-        //this.staticAisPacket2 = getStaticAisPacket2();
-        //this.positionAisPacket = getPositionPacket();
-        
         // Caching for getAisTarget()
         //this.aisTarget = getAisTarget();
     }
@@ -160,12 +160,21 @@ public final class TargetInfo implements Serializable {
 
     /**
      * Returns the latest received position packet. Or <code>null</code> if no position has been received from the
-     * vessel.
+     * vessel. The packet is decoded once and shared by all callers, as long as memory permits. Targets of a
+     * {@link CompactTargetTracker} do not keep the packet, so it is rebuilt from the fields of the target.
      * 
      * @return the latest received position packet
      */
     public AisPacket getPositionPacket() {
-        return positionPacket == null ? null : (positionAisPacket == null ? AisPacket.fromByteArray(positionPacket) : positionAisPacket);
+        if (!hasPositionInfo()) {
+            return null;
+        }
+        AisPacket p = get(positionAisPacket);
+        if (p == null) {
+            p = decode(positionPacket != null ? positionPacket : positionReport.toByteArray(this));
+            positionAisPacket = new SoftReference<>(p);
+        }
+        return p;
     }
 
     /**
@@ -208,18 +217,42 @@ public final class TargetInfo implements Serializable {
     }
 
     public AisPacket getStaticAisPacket1() {
-        if (staticData1 != null && staticAisPacket1 == null) {
-            return AisPacket.fromByteArray(staticData1);
+        if (staticData1 == null) {
+            return null;
+        }
+        AisPacket p = get(staticAisPacket1);
+        if (p == null) {
+            staticAisPacket1 = new SoftReference<>(p = decode(staticData1));
         }
-        return staticAisPacket1; 
+        return p;
     }
-    
+
     public AisPacket getStaticAisPacket2() {
-        if (staticData2 != null && staticAisPacket2 == null) {
-            return AisPacket.fromByteArray(staticData2);
+        if (staticData2 == null) {
+            return null;
         }
-        return staticAisPacket2; 
-    }    
+        AisPacket p = get(staticAisPacket2);
+        if (p == null) {
+            staticAisPacket2 = new SoftReference<>(p = decode(staticData2));
+        }
+        return p;
+    }
+
+    private static AisPacket get(SoftReference<AisPacket> ref) {
+        return ref == null ? null : ref.get();
+    }
+
+    /**
+     * Returns the packet of the specified bytes with everything that the packet decodes lazily already decoded, as
+     * {@link AisPacket} is not thread safe.
+     */
+    private static AisPacket decode(byte[] data) {
+        AisPacket p = AisPacket.fromByteArray(data);
+        p.tryGetAisMessage();
+        p.getTags();
+        p.getBestTimestamp();
+        return p;
+    }
 
     /**
      * Returns true if we have positional information.
@@ -227,7 +260,7 @@ public final class TargetInfo implements Serializable {
      * @return true if we have positional information
      */
     public boolean hasPositionInfo() {
-        return positionPacket != null;
+        return positionPacket != null || positionReport != null;
     }
 
     /**
@@ -258,7 +291,8 @@ public final class TargetInfo implements Serializable {
      */
     private TargetInfo mergeWithStaticFrom(TargetInfo other) {
         return new TargetInfo(mmsi, targetType, positionTimestamp, position, heading, cog, sog, navStatus,
-                positionPacket, other.staticTimestamp, other.staticData1, other.staticData2, other.staticShipType);
+                positionPacket, positionReport, other.staticTimestamp, other.staticData1, other.staticData2,
+                other.staticShipType);
     }
 
     /**
@@ -274,12 +308,12 @@ public final class TargetInfo implements Serializable {
      *            the timestamp of the packet
      * @param source
      *            the source of the packet
-     * @param msg24Part0
-     *            a map of cached message type 24 static part 0 messages
+     * @param msg24Parts
+     *            the cache of message type 24 static part 0 messages
      * @return a new target info
      */
     static TargetInfo updateTarget(TargetInfo existing, AisPacket packet, AisTargetType targetType, long timestamp,
-            AisPacketSource source, Map<AisPacketSource, byte[]> msg24Part0) {
+            AisPacketSource source, Msg24PartCache msg24Parts) {
         AisMessage message = packet.tryGetAisMessage();// is non-null
         int mmsi = message.getUserId();
         // ATON and BS targets are easy to handle because they do not contain much other than a position
@@ -291,10 +325,10 @@ public final class TargetInfo implements Serializable {
             }
 
             return new TargetInfo(mmsi, targetType, timestamp, message.getValidPosition(), -1, -1, -1, (byte) -1,
-                    packet.toByteArray(), -1, null, null, -1);
+                    packet.toByteArray(), null, -1, null, null, -1);
         }
         TargetInfo result = updateTargetWithPosition(existing, packet, message, mmsi, targetType, timestamp, source);
-        return updateTargetWithStatic(packet, message, mmsi, targetType, timestamp, source, result, msg24Part0);
+        return updateTargetWithStatic(packet, message, mmsi, targetType, timestamp, source, result, msg24Parts);
     }
 
     static TargetInfo updateTargetWithPosition(TargetInfo existing, AisPacket packet, AisMessage message, int mmsi,
@@ -317,11 +351,11 @@ public final class TargetInfo implements Serializable {
 
                 if (existing == null) {
                     return new TargetInfo(mmsi, targetType, timestamp, p, heading, cog, sog, navStatus,
-                            packet.toByteArray(), -1, null, null, -1);
+                            packet.toByteArray(), null, -1, null, null, -1);
                 } else {
                     return new TargetInfo(mmsi, targetType, timestamp, p, heading, cog, sog, navStatus,
-                            packet.toByteArray(), existing.staticTimestamp, existing.staticData1, existing.staticData2,
-                            existing.staticShipType);
+                            packet.toByteArray(), null, existing.staticTimestamp, existing.staticData1,
+                            existing.staticData2, existing.staticShipType);
                 }
             }
         }
@@ -329,7 +363,7 @@ public final class TargetInfo implements Serializable {
     }
 
     static TargetInfo updateTargetWithStatic(AisPacket packet, AisMessage message, int mmsi, AisTargetType targetType,
-            long timestamp, AisPacketSource source, TargetInfo existing, Map<AisPacketSource, byte[]> msg24Part0) {
+            long timestamp, AisPacketSource source, TargetInfo existing, Msg24PartCache msg24Parts) {
         if (message instanceof AisStaticCommon) {
             // only update if never timestamp
             if (existing == null || timestamp >= existing.staticTimestamp) {
@@ -344,14 +378,14 @@ public final class TargetInfo implements Serializable {
                 byte[] static1 = null;
                 if (c instanceof AisMessage24) {
                     // AisMessage24 is split into 2 parts, if we get a part 0.
-                    // Save in a hash table, where we keep it until we receive part 1
+                    // Save in the cache, where we keep it until we receive part 1
                     if (((AisMessage24) c).getPartNumber() == 0) {
-                        msg24Part0.put(source, packet.toByteArray());
+                        msg24Parts.put(mmsi, source, timestamp, packet.toByteArray());
                         // we know that existing have not been updated by updateTargetWithPosition because
                         // AisMessage24 only contains static information, so existing=original
                         return existing; // the target is updated when we receive part 1
                     } else {
-                        static0 = msg24Part0.remove(source);
+                        static0 = msg24Parts.remove(mmsi, source, timestamp);
                         if (static0 == null) {
                             return existing;// We do not have the first part:(
                         }
@@ -362,12 +396,12 @@ public final class TargetInfo implements Serializable {
                 }
 
                 if (existing == null) {
-                    return new TargetInfo(mmsi, targetType, -1, null, -1, -1, -1, (byte) -1, null, timestamp, static0,
-                            static1, c.getShipType());
+                    return new TargetInfo(mmsi, targetType, -1, null, -1, -1, -1, (byte) -1, null, null, timestamp,
+                            static0, static1, c.getShipType());
                 } else {
                     return new TargetInfo(mmsi, existing.targetType, existing.positionTimestamp, existing.position,
                             existing.heading, existing.cog, existing.sog, existing.navStatus, existing.positionPacket,
-                            timestamp, static0, static1, c.getShipType());
+                            existing.positionReport, timestamp, static0, static1, c.getShipType());
                 }
             }
         }
@@ -16,15 +16,28 @@ package dk.dma.ais.tracker;
 
 import static java.util.Objects.requireNonNull;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
 import java.util.function.Consumer;
@@ -34,6 +47,8 @@ import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import net.jcip.annotations.GuardedBy;
+import dk.dma.ais.binary.SixbitException;
 import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.message.AisTargetType;
 import dk.dma.ais.packet.AisPacket;
@@ -41,8 +56,19 @@ import dk.dma.ais.packet.AisPacketSource;
 import dk.dma.ais.packet.AisPacketStream;
 import dk.dma.ais.packet.AisPacketStream.Subscription;
 import dk.dma.ais.reader.AisReaderGroup;
+import dk.dma.ais.sentence.Vdm;
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Position;
 
 /**
+ * Keeps the latest information of every target, per source, from the packets it is given.
+ * <p>
+ * By default targets are updated by the threads delivering packets. A tracker created with a number of shards instead
+ * routes each packet by MMSI number to a single writer thread, see {@link #TargetTracker(int)}.
+ * <p>
+ * Reports can be expired by target type, see {@link #setTimeToLive(AisTargetType, long, TimeUnit)} and
+ * {@link #expire(long)}.
  * 
  * @author Kasper Nielsen
  * @author Jens Tuxen
@@ -53,6 +79,86 @@ public class TargetTracker implements Tracker {
     /** All targets that we are currently monitoring. */
     final ConcurrentHashMap<Integer, MmsiTarget> targets = new ConcurrentHashMap<>();
 
+    /** The maximum number of removed targets remembered for {@link #changesSince(long)}. */
+    static final int MAX_REMOVED_CHANGES = 1 << 16;
+
+    /** The targets by their newest position. */
+    private final TargetGridIndex index = new TargetGridIndex();
+
+    /** The version of the last change. */
+    private final AtomicLong versions = new AtomicLong();
+
+    /** The targets by the version of their last change, removed targets are kept until pruned. */
+    private final ConcurrentSkipListMap<Long, MmsiTarget> changes = new ConcurrentSkipListMap<>();
+
+    /** Held shared while stamping a change, and exclusively to wait for changes being stamped. */
+    private final ReadWriteLock versionLock = new ReentrantReadWriteLock();
+
+    /** The number of removed targets in changes. */
+    private final AtomicInteger removedChanges = new AtomicInteger();
+
+    /** The newest version of the removed targets that have been pruned from changes. */
+    private volatile long removedHorizon;
+
+    /** The length of a tick of the expiry wheel in milliseconds. */
+    static final long EXPIRY_TICK_MILLIS = 1000;
+
+    /** The time to live of reports by target type in milliseconds, Long.MAX_VALUE if they do not expire. */
+    private final AtomicLongArray timeToLive = new AtomicLongArray(AisTargetType.values().length);
+
+    /** Whether or not a time to live has been set. */
+    private volatile boolean expiring;
+
+    /** The targets by the time their first report expires. */
+    private final ExpiryWheel<MmsiTarget> expiry = new ExpiryWheel<>(EXPIRY_TICK_MILLIS);
+
+    /** The number of reports expired by target type. */
+    private final AtomicLongArray evictions = new AtomicLongArray(AisTargetType.values().length);
+
+    /** AIS messages 24 part 0 waiting for part 1. */
+    private final Msg24PartCache msg24Parts = new Msg24PartCache(Msg24PartCache.DEFAULT_MAX_SIZE,
+            Msg24PartCache.DEFAULT_MAX_AGE);
+
+    /** The shards owning the targets, or null if targets are updated by the thread calling update. */
+    private final TargetTrackerShard[] shards;
+
+    /**
+     * Creates a new tracker that is updated by the threads delivering packets.
+     */
+    public TargetTracker() {
+        this.shards = null;
+        initTimeToLive();
+    }
+
+    /**
+     * Creates a new tracker where packets are routed by MMSI number to the specified number of shard threads. Each
+     * shard is the only thread updating the targets it owns, so updates need no retries, and updates of different
+     * targets run in parallel. Readers see the immutable {@link TargetInfo} of a target either before or after an
+     * update, without locking.
+     * <p>
+     * Packets are queued for the shards, so queries may not yet reflect the latest packets, see
+     * {@link #awaitUpdates()}. The shard threads are stopped by {@link #close()}.
+     *
+     * @param shards
+     *            the number of shard threads
+     */
+    public TargetTracker(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be positive, was " + shards);
+        }
+        this.shards = new TargetTrackerShard[shards];
+        initTimeToLive();
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new TargetTrackerShard("TargetTracker shard " + i, this::updateOwned);
+        }
+    }
+
+    private void initTimeToLive() {
+        for (int i = 0; i < timeToLive.length(); i++) {
+            timeToLive.set(i, Long.MAX_VALUE);
+        }
+    }
+
     public int countNumberOfReports(
             final BiPredicate<? super AisPacketSource, ? super TargetInfo> predicate) {
         requireNonNull(predicate);
@@ -229,12 +335,48 @@ public class TargetTracker implements Tracker {
     public void removeAll(
             final BiPredicate<? super AisPacketSource, ? super TargetInfo> predicate) {
         requireNonNull(predicate);
+        if (shards != null) {
+            // Let each shard remove its own targets, so removal does not race with updates
+            CountDownLatch latch = new CountDownLatch(shards.length);
+            for (int i = 0; i < shards.length; i++) {
+                final TargetTrackerShard shard = shards[i];
+                try {
+                    shard.execute(() -> {
+                        try {
+                            for (MmsiTarget t : targets.values()) {
+                                if (shardOf(t.mmsi) == shard) {
+                                    if (t.entrySet().removeIf(e -> predicate.test(e.getKey(), e.getValue()))) {
+                                        t.modified = true;
+                                        if (t.isEmpty()) {
+                                            targets.remove(t.mmsi, t);
+                                        }
+                                        changed(t);
+                                    }
+                                }
+                            }
+                        } finally {
+                            latch.countDown();
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
         targets.forEachValue(10, new java.util.function.Consumer<MmsiTarget>() {
             @Override
             public void accept(MmsiTarget t) {
+                boolean removed = false;
                 for (Map.Entry<AisPacketSource, TargetInfo> e : t.entrySet()) {
                     if (predicate.test(e.getKey(), e.getValue())) {
-                        t.remove(e.getKey(), e.getValue());
+                        removed |= t.remove(e.getKey(), e.getValue());
                     }
                 }
                 // if there are no more targets just remove it
@@ -243,10 +385,343 @@ public class TargetTracker implements Tracker {
                 if (t.isEmpty()) {
                     targets.remove(t.mmsi, t);
                 }
+                if (removed) {
+                    t.modified = true;
+                    changed(t);
+                }
             }
         });
     }
 
+    /**
+     * Publishes a change of the specified target. Moves the target to the cell of its newest position in the spatial
+     * index, or removes it from the index if it has no position or is no longer tracked. If the newest info of the
+     * target has changed, or a report has been changed as flagged by {@link MmsiTarget#modified}, the target is stamped
+     * with a new version. Is called after every change of the target, reading the target while holding its lock, so the
+     * last call reflects the last change.
+     * 
+     * @param t
+     *            the target
+     */
+    private void changed(MmsiTarget t) {
+        synchronized (t) {
+            // Clear the flag before reading the target, so a report changed after this is flagged again
+            boolean modified = t.modified;
+            t.modified = false;
+            boolean tracked = targets.get(t.mmsi) == t;
+            TargetInfo ti = tracked ? t.getNewest(PREDICATETRUE) : null;
+            if (tracked && expiring) {
+                scheduleExpiry(t);
+            }
+            int cell = TargetGridIndex.cellOf(ti == null ? null : ti.getPosition());
+            if (cell != t.cell) {
+                index.move(t, t.cell, cell);
+                t.cell = cell;
+            }
+            if (ti != t.newest || modified) {
+                versionLock.readLock().lock();
+                try {
+                    if (t.version != 0) {
+                        changes.remove(t.version);
+                    }
+                    t.version = versions.incrementAndGet();
+                    t.newest = ti;
+                    changes.put(t.version, t);
+                } finally {
+                    versionLock.readLock().unlock();
+                }
+                if (ti == null && removedChanges.incrementAndGet() > MAX_REMOVED_CHANGES) {
+                    pruneRemovedChanges();
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules the specified target to expire when its first report expires, unless it is already scheduled to
+     * expire before that. Targets are not rescheduled when their reports are updated, instead they are checked and
+     * scheduled again when they expire.
+     */
+    @GuardedBy("t")
+    private void scheduleExpiry(MmsiTarget t) {
+        long deadline = Long.MAX_VALUE;
+        for (TargetInfo ti : t.values()) {
+            deadline = Math.min(deadline, expiresAt(ti));
+        }
+        if (deadline < t.expiresAt) {
+            expiry.schedule(t, deadline);
+            t.expiresAt = deadline;
+        }
+    }
+
+    /** Returns the time the specified report expires, or Long.MAX_VALUE if it does not expire. */
+    private long expiresAt(TargetInfo ti) {
+        long ttl = timeToLive.get(ti.targetType.ordinal());
+        return ttl == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(ti.positionTimestamp, ti.staticTimestamp) + ttl;
+    }
+
+    /**
+     * Sets the time to live of targets of the specified type. A report of a target from a source is removed by
+     * {@link #expire(long)} when the specified time has passed since the newest position or static information of the
+     * report.
+     * 
+     * @param targetType
+     *            the target type
+     * @param ttl
+     *            the time to live, or 0 if reports of the type should not expire
+     * @param unit
+     *            the unit of the time to live
+     */
+    public void setTimeToLive(AisTargetType targetType, long ttl, TimeUnit unit) {
+        requireNonNull(targetType);
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl must not be negative, was " + ttl);
+        }
+        timeToLive.set(targetType.ordinal(), ttl == 0 ? Long.MAX_VALUE : unit.toMillis(ttl));
+        expiring = true;
+        // Targets already tracked may now expire earlier
+        for (MmsiTarget t : targets.values()) {
+            synchronized (t) {
+                if (targets.get(t.mmsi) == t) {
+                    scheduleExpiry(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the time to live of targets of the specified type.
+     * 
+     * @param targetType
+     *            the target type
+     * @param unit
+     *            the unit to return the time to live in
+     * @return the time to live, or 0 if reports of the type do not expire
+     */
+    public long getTimeToLive(AisTargetType targetType, TimeUnit unit) {
+        long ttl = timeToLive.get(targetType.ordinal());
+        return ttl == Long.MAX_VALUE ? 0 : unit.convert(ttl, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the reports of targets whose time to live has passed, see
+     * {@link #setTimeToLive(AisTargetType, long, TimeUnit)}, removing the targets that have no more reports. Only the
+     * targets scheduled to expire by now are examined.
+     * 
+     * @param now
+     *            the current time in milliseconds, comparable to the timestamps of the packets
+     * @return the number of reports removed
+     */
+    public int expire(long now) {
+        List<MmsiTarget> due = expiry.advance(now);
+        if (shards == null) {
+            int evicted = 0;
+            for (MmsiTarget t : due) {
+                evicted += expire(t, now);
+            }
+            return evicted;
+        }
+        // Let each shard expire its own targets, so expiry does not race with updates
+        final LongAdder evicted = new LongAdder();
+        List<List<MmsiTarget>> byShard = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (MmsiTarget t : due) {
+            byShard.get(shardIndex(t.mmsi)).add(t);
+        }
+        CountDownLatch latch = new CountDownLatch(shards.length);
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                List<MmsiTarget> l = byShard.get(i);
+                shards[i].execute(() -> {
+                    try {
+                        for (MmsiTarget t : l) {
+                            evicted.add(expire(t, now));
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return evicted.intValue();
+    }
+
+    /** Removes the expired reports of the specified target, and schedules it again if it has more reports. */
+    private int expire(MmsiTarget t, long now) {
+        synchronized (t) {
+            t.expiresAt = Long.MAX_VALUE; // the timer has been used
+        }
+        int evicted = 0;
+        for (Map.Entry<AisPacketSource, TargetInfo> e : t.entrySet()) {
+            TargetInfo ti = e.getValue();
+            if (expiresAt(ti) <= now && t.remove(e.getKey(), ti)) {
+                evictions.incrementAndGet(ti.targetType.ordinal());
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            t.modified = true;
+        }
+        if (t.isEmpty()) {
+            targets.remove(t.mmsi, t);
+        }
+        changed(t);
+        return evicted;
+    }
+
+    /**
+     * Returns the number of reports of targets of the specified type removed by {@link #expire(long)}.
+     * 
+     * @param targetType
+     *            the target type
+     * @return the number of reports removed
+     */
+    public long getEvictions(AisTargetType targetType) {
+        return evictions.get(targetType.ordinal());
+    }
+
+    /**
+     * Returns the number of reports removed by {@link #expire(long)}.
+     * 
+     * @return the number of reports removed
+     */
+    public long getEvictions() {
+        long total = 0;
+        for (int i = 0; i < evictions.length(); i++) {
+            total += evictions.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the cache of AIS messages 24 part 0 waiting for part 1, for monitoring how parts are paired.
+     *
+     * @return the cache of AIS messages 24 part 0
+     */
+    public Msg24PartCache getMsg24PartCache() {
+        return msg24Parts;
+    }
+
+    /** Forgets the oldest removed targets, until half of the maximum number of removed targets are remembered. */
+    private void pruneRemovedChanges() {
+        synchronized (removedChanges) {
+            Iterator<Entry<Long, MmsiTarget>> i = changes.entrySet().iterator();
+            while (removedChanges.get() > MAX_REMOVED_CHANGES / 2 && i.hasNext()) {
+                Entry<Long, MmsiTarget> e = i.next();
+                if (e.getValue().newest == null) {
+                    // Removed targets are never stamped again, raise the horizon before forgetting it
+                    removedHorizon = Math.max(removedHorizon, e.getKey());
+                    i.remove();
+                    removedChanges.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the current version of the tracker. The version is incremented whenever a report of a target changes
+     * or a target is removed.
+     * 
+     * @return the current version of the tracker
+     */
+    public long getVersion() {
+        return versions.get();
+    }
+
+    /**
+     * Returns the targets that have been updated or removed since the specified version. Only the changed targets are
+     * examined. If the specified version is 0, or the targets removed since the specified version are no longer known,
+     * all targets are returned as updated, see {@link TargetChanges#isFull()}.
+     * 
+     * @param version
+     *            the version returned by the previous changes, or 0 to get all targets
+     * @return the changes since the specified version
+     */
+    public TargetChanges changesSince(long version) {
+        long to;
+        // Wait for versions being stamped, so all versions up to and including to are in changes
+        versionLock.writeLock().lock();
+        try {
+            to = versions.get();
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+        TargetChanges result = changesBetween(version, to, version <= removedHorizon);
+        // Removals may have been forgotten while collecting the changes
+        return result.isFull() || version > removedHorizon ? result : changesBetween(version, to, true);
+    }
+
+    private TargetChanges changesBetween(long version, long to, boolean full) {
+        Map<Integer, TargetInfo> updated = new HashMap<>();
+        Set<Integer> removed = new HashSet<>();
+        // Ascending versions, so the newest change of an MMSI number wins
+        for (MmsiTarget t : changes.subMap(full ? 0 : version, false, to, true).values()) {
+            TargetInfo ti = t.newest;
+            if (ti != null) {
+                updated.put(t.mmsi, ti);
+                removed.remove(t.mmsi);
+            } else {
+                updated.remove(t.mmsi);
+                if (!full) {
+                    removed.add(t.mmsi);
+                }
+            }
+        }
+        return new TargetChanges(version, to, full, updated, removed);
+    }
+
+    /**
+     * Finds all targets whose newest position is within the specified area. Only the targets near the area are
+     * examined, so the time taken is in proportion to the number of targets found rather than to the number of targets
+     * tracked.
+     * 
+     * @param area
+     *            the area
+     * @return a map of the newest info of the targets within the area
+     */
+    public Map<Integer, TargetInfo> findTargetsWithin(final Area area) {
+        requireNonNull(area);
+        BoundingBox b;
+        try {
+            b = area.getBoundingBox();
+        } catch (RuntimeException e) {
+            b = null; // Not all areas can compute their bounding box
+        }
+        if (b == null) {
+            return findTargets(PREDICATETRUE, t -> t.getPosition() != null && area.contains(t.getPosition()));
+        }
+        final Map<Integer, TargetInfo> result = new HashMap<>();
+        index.forEachWithin(b.getMinLat(), b.getMaxLat(), b.getMinLon(), b.getMaxLon(), t -> {
+            TargetInfo ti = t.getNewest(PREDICATETRUE);
+            if (ti != null && ti.getPosition() != null && area.contains(ti.getPosition())) {
+                result.put(ti.mmsi, ti);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Finds the targets whose newest position is nearest to the specified position. Only the targets near the position
+     * are examined.
+     * 
+     * @param position
+     *            the position
+     * @param k
+     *            the maximum number of targets to return
+     * @param maxDistance
+     *            the maximum distance in meters (rhumb line) from the position
+     * @return the newest info of the nearest targets, nearest first
+     */
+    public List<TargetInfo> findNearest(Position position, int k, double maxDistance) {
+        requireNonNull(position);
+        return index.findNearest(position, k, maxDistance, t -> t.getNewest(PREDICATETRUE));
+    }
+
     /**
      * A little helper method that makes sure we do not get lost updates when
      * updating a target. While the MMSI target is being cleaned.
@@ -267,6 +742,7 @@ public class TargetTracker implements Tracker {
                         }
                     });
             c.accept(t);
+            changed(t);
 
             // We can get some very rare races with the cleanup method. So we
             // just need to check that the mmsi target we
@@ -284,6 +760,17 @@ public class TargetTracker implements Tracker {
      *            the packet to update the trigger with
      */
     void update(final AisPacket packet) {
+        if (shards != null) {
+            int mmsi = peekMmsi(packet);
+            if (mmsi >= 0) {
+                try {
+                    shardOf(mmsi).submit(packet);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return;
+        }
         AisMessage message = packet.tryGetAisMessage();
         final Date date = packet.getTimestamp();
         // We only want to handle messages containing targets data
@@ -295,25 +782,165 @@ public class TargetTracker implements Tracker {
             if (targetType != null) {
                 tryUpdate(message.getUserId(), new Consumer<MmsiTarget>() {
                     public void accept(final MmsiTarget t) {
+                        final TargetInfo[] previous = new TargetInfo[1];
                         // lazy compute the new target info
-                        t.compute(
+                        TargetInfo updated = t.compute(
                                 AisPacketSource.create(packet),
                                 new BiFunction<AisPacketSource, TargetInfo, TargetInfo>() {
                                     public TargetInfo apply(
                                             AisPacketSource source,
                                             TargetInfo existing) {
+                                        previous[0] = existing;
                                         return TargetInfo.updateTarget(
                                                 existing, packet, targetType,
                                                 date.getTime(), source,
-                                                t.msg24Part0);
+                                                msg24Parts);
                                     }
                                 });
+                        if (updated != previous[0]) {
+                            t.modified = true;
+                        }
                     }
                 });
             }
         }
     }
 
+    /**
+     * Updates the tracker with the specified packet on the shard thread owning the target of the packet, so there are
+     * no concurrent updates of the target.
+     *
+     * @param packet
+     *            the packet to update the tracker with
+     */
+    private void updateOwned(AisPacket packet) {
+        AisMessage message = packet.tryGetAisMessage();
+        Date date = packet.getTimestamp();
+        if (message != null && date != null) {
+            AisTargetType targetType = message.getTargetType();
+            if (targetType != null) {
+                int mmsi = message.getUserId();
+                MmsiTarget t = targets.get(mmsi);
+                if (t == null) {
+                    t = new MmsiTarget(mmsi);
+                    targets.put(mmsi, t);
+                }
+                AisPacketSource source = shardOf(mmsi).sourceOf(packet);
+                TargetInfo existing = t.get(source);
+                TargetInfo updated = TargetInfo.updateTarget(existing, packet, targetType, date.getTime(), source,
+                        msg24Parts);
+                if (updated != existing) {
+                    if (updated == null) {
+                        t.remove(source); // as compute would
+                    } else {
+                        t.put(source, updated);
+                    }
+                    t.modified = true;
+                }
+                changed(t);
+            }
+        }
+    }
+
+    /**
+     * Returns the MMSI number of the specified packet without decoding the message, or -1 if the packet cannot be
+     * parsed.
+     */
+    static int peekMmsi(AisPacket packet) {
+        Vdm vdm = packet.getVdm();
+        if (vdm == null || vdm.getBinArray() == null) {
+            return -1;
+        }
+        try {
+            return (int) vdm.getBinArray().getVal(8, 37);
+        } catch (SixbitException e) {
+            return -1;
+        }
+    }
+
+    private TargetTrackerShard shardOf(int mmsi) {
+        return shards[shardIndex(mmsi)];
+    }
+
+    private int shardIndex(int mmsi) {
+        int h = mmsi * 0x9E3779B9;
+        return ((h ^ h >>> 16) & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Waits until all packets given to the tracker before this method was called have been applied. Returns
+     * immediately if the tracker is not sharded.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void awaitUpdates() throws InterruptedException {
+        if (shards != null) {
+            CountDownLatch latch = new CountDownLatch(shards.length);
+            for (TargetTrackerShard s : shards) {
+                s.execute(latch::countDown);
+            }
+            latch.await();
+        }
+    }
+
+    /**
+     * Returns the number of packets waiting to be applied by the shards, 0 if the tracker is not sharded.
+     *
+     * @return the number of packets waiting to be applied
+     */
+    public int getNumberOfQueuedUpdates() {
+        int queued = 0;
+        if (shards != null) {
+            for (TargetTrackerShard s : shards) {
+                queued += s.getQueued();
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Stops the shard threads after they have applied the packets already given to the tracker. Does nothing if the
+     * tracker is not sharded.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void close() throws InterruptedException {
+        if (shards != null) {
+            for (TargetTrackerShard s : shards) {
+                s.stop();
+            }
+        }
+    }
+
+    /**
+     * Used by the backup routine to restore the removal of a target.
+     * 
+     * @param mmsi
+     *            the MMSI number of the target
+     */
+    void removeTarget(final int mmsi) {
+        if (shards != null) {
+            try {
+                shardOf(mmsi).execute(() -> {
+                    MmsiTarget t = targets.remove(mmsi);
+                    if (t != null) {
+                        changed(t);
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        // A concurrent update of the removed target retries, see tryUpdate
+        MmsiTarget t = targets.remove(mmsi);
+        if (t != null) {
+            changed(t);
+        }
+    }
+
     /**
      * Used by the backup routine to restore data.
      * 
@@ -323,6 +950,24 @@ public class TargetTracker implements Tracker {
      *            the target info
      */
     void update(final AisPacketSource sb, final TargetInfo ti) {
+        if (shards != null) {
+            try {
+                shardOf(ti.mmsi).execute(() -> {
+                    MmsiTarget t = targets.get(ti.mmsi);
+                    if (t == null) {
+                        t = new MmsiTarget(ti.mmsi);
+                        targets.put(ti.mmsi, t);
+                    }
+                    TargetInfo existing = t.get(sb);
+                    t.put(sb, existing == null ? ti : existing.merge(ti));
+                    t.modified = true;
+                    changed(t);
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
         tryUpdate(ti.mmsi, new Consumer<MmsiTarget>() {
             public void accept(MmsiTarget t) {
                 t.merge(sb, ti,
@@ -333,6 +978,7 @@ public class TargetTracker implements Tracker {
                                         .merge(newOne);
                             }
                         });
+                t.modified = true;
             }
         });
     }
@@ -347,8 +993,23 @@ public class TargetTracker implements Tracker {
         /** The MMSI number */
         final int mmsi;
 
-        /** A cache of AIS messages 24 part 0. */
-        final ConcurrentHashMap<AisPacketSource, byte[]> msg24Part0 = new ConcurrentHashMap<>();
+        /** The cell of the target in the spatial index. */
+        @GuardedBy("this")
+        int cell = TargetGridIndex.NO_CELL;
+
+        /** The time the target is scheduled to expire, or Long.MAX_VALUE if not scheduled. */
+        @GuardedBy("this")
+        long expiresAt = Long.MAX_VALUE;
+
+        /** The version of the last change of the target, or 0 if not yet stamped. */
+        @GuardedBy("this")
+        long version;
+
+        /** The newest info when the target was last stamped, or null if removed. */
+        volatile TargetInfo newest;
+
+        /** Whether or not a report has been changed since the target was last stamped. */
+        volatile boolean modified;
 
         //switch to implements and then
         //final Cache<AisPacketSource, TargetInfo> cache = CacheBuilder
@@ -18,23 +18,33 @@ import static java.util.Objects.requireNonNull;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -49,6 +59,14 @@ import dk.dma.commons.util.io.IoUtil;
 
 /**
  * Takes care of backing up and restoring in case of a crash.
+ * <p>
+ * A backup is a snapshot of all targets followed by a write-ahead log of the targets changed since the snapshot. The
+ * snapshot is split by MMSI number into a number of compressed shard files that are written and read in parallel, and
+ * is complete once its manifest file has been written. Every second the targets changed since the last backup, as
+ * found by {@link TargetTracker#changesSince(long)}, are appended to the log as a checksummed batch, and every 100
+ * seconds a new snapshot replaces the old backup. All files but the log are written to a temporary file first and then
+ * renamed, so the folder only contains complete files, and an incomplete last batch of the log is ignored on restore.
+ * See {@link TargetBackupCodec} for the format of the records.
  * 
  * @author Kasper Nielsen
  */
@@ -57,6 +75,18 @@ public class TargetTrackerFileBackupService extends AbstractScheduledService {
     /** The logger. */
     private static final Logger LOG = LoggerFactory.getLogger(TargetTrackerFileBackupService.class);
 
+    /** The suffix of snapshot manifests, shard files have a shard number appended. */
+    static final String SNAPSHOT = ".snapshot";
+
+    /** The suffix of write-ahead logs. */
+    static final String LOG_SUFFIX = ".log";
+
+    /** The size of the buffers of the shard files. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The maximum size of a batch of the log that is considered valid. */
+    private static final int MAX_BATCH_SIZE = 1 << 30;
+
     /** The folder to backup files to. */
     private final Path backupFolder;
 
@@ -69,12 +99,17 @@ public class TargetTrackerFileBackupService extends AbstractScheduledService {
     /** The tracker that we are make backups and restoring from. */
     private final TargetTracker tracker;
 
-    /** A list of those targets that have been backed up. */
-    private final Set<TargetInfo> backedUpTargets = Collections
-            .newSetFromMap(new IdentityHashMap<TargetInfo, Boolean>());
+    /** The number of shard files of a snapshot. */
+    private final int shards;
+
+    /** The version of the tracker that the backup is up to date with. */
+    private long version;
+
+    /** The write-ahead log of the current snapshot, or null if there is no current snapshot. */
+    private FileChannel log;
 
     /**
-     * Creates a new backup service.
+     * Creates a new backup service, writing snapshots in as many shards as there are processors.
      * 
      * @param tracker
      *            the target tracker that we are make backups and restoring from
@@ -82,11 +117,139 @@ public class TargetTrackerFileBackupService extends AbstractScheduledService {
      *            the folder to backup and restore from
      */
     public TargetTrackerFileBackupService(TargetTracker tracker, Path backupFolder) {
+        this(tracker, backupFolder, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new backup service.
+     * 
+     * @param tracker
+     *            the target tracker that we are make backups and restoring from
+     * @param backupFolder
+     *            the folder to backup and restore from
+     * @param shards
+     *            the number of shard files of a snapshot
+     */
+    public TargetTrackerFileBackupService(TargetTracker tracker, Path backupFolder, int shards) {
         this.tracker = requireNonNull(tracker);
         this.backupFolder = requireNonNull(backupFolder);
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be positive, was " + shards);
+        }
+        this.shards = shards;
+    }
+
+    void restoreBackupFiles() throws IOException, ClassNotFoundException, InterruptedException {
+        Path latest = null;
+        FileTime latestTime = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupFolder, "*" + SNAPSHOT)) {
+            for (Path path : stream) {
+                FileTime time = Files.getLastModifiedTime(path);
+                if (latest == null || time.compareTo(latestTime) > 0) {
+                    latest = path;
+                    latestTime = time;
+                }
+            }
+        }
+        if (latest == null) {
+            restoreLegacyBackupFiles();
+        } else {
+            restoreSnapshot(latest);
+        }
+        // Make sure a sharded tracker has applied the restored targets before they are backed up again
+        tracker.awaitUpdates();
+    }
+
+    private void restoreSnapshot(Path manifest) throws IOException {
+        LOG.info("Restoring snapshot " + manifest);
+        int count;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+            TargetBackupCodec.readHeader(in);
+            count = in.readInt();
+        }
+        String name = manifest.getFileName().toString();
+        String base = name.substring(0, name.length() - SNAPSHOT.length());
+        final ConcurrentHashMap<AisPacketSource, AisPacketSource> sources = new ConcurrentHashMap<>();
+        final LongAdder targets = new LongAdder();
+        try {
+            IntStream.range(0, count).parallel().forEach(i -> {
+                Path path = manifest.resolveSibling(BackupFile.shardName(name, i));
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                        Files.newInputStream(path), BUFFER_SIZE), BUFFER_SIZE))) {
+                    TargetBackupCodec.readHeader(in);
+                    targets.add(new TargetBackupCodec.Reader(in, sources).read((mmsi, reports) -> reports
+                            .forEach(tracker::update)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        LOG.info("Restored " + targets.sum() + " targets from " + count + " shards");
+
+        Path path = manifest.resolveSibling(base + LOG_SUFFIX);
+        if (Files.exists(path)) {
+            LOG.info("Restoring log " + path);
+            int batches = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                TargetBackupCodec.readHeader(in);
+                for (;;) {
+                    byte[] batch;
+                    try {
+                        batch = readBatch(in);
+                    } catch (EOFException e) {
+                        LOG.warn("Ignoring incomplete last batch of log " + path);
+                        break;
+                    }
+                    if (batch == null) {
+                        break;
+                    }
+                    DataInputStream bin = new DataInputStream(new ByteArrayInputStream(batch));
+                    // A batch has all current reports of a target, so it replaces the target rather than being merged
+                    // into it, which would bring back the reports removed since the snapshot
+                    new TargetBackupCodec.Reader(bin, sources).read((mmsi, reports) -> {
+                        tracker.removeTarget(mmsi);
+                        reports.forEach(tracker::update);
+                    });
+                    batches++;
+                }
+            }
+            LOG.info("Restored " + batches + " batches of changes");
+        }
+    }
+
+    /**
+     * Reads the next batch of the log, returning null at the end of the log or at a corrupt batch.
+     * 
+     * @throws EOFException
+     *             if the batch is incomplete
+     */
+    private static byte[] readBatch(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException ignore) {
+            return null; // no more batches
+        }
+        int checksum = in.readInt();
+        if (length < 0 || length > MAX_BATCH_SIZE) {
+            LOG.warn("Ignoring corrupt batch of length " + length);
+            return null;
+        }
+        byte[] batch = new byte[length];
+        in.readFully(batch);
+        CRC32 crc = new CRC32();
+        crc.update(batch);
+        if ((int) crc.getValue() != checksum) {
+            LOG.warn("Ignoring batch with invalid checksum");
+            return null;
+        }
+        return batch;
     }
 
-    void restoreBackupFiles() throws IOException, ClassNotFoundException {
+    /** Restores the backup files written with Java serialization by former versions. */
+    private void restoreLegacyBackupFiles() throws IOException, ClassNotFoundException {
         List<Path> paths = new ArrayList<>();
         for (Path path : Files.newDirectoryStream(backupFolder)) {
             if (path.getFileName().toString().endsWith("-00")) {
@@ -137,66 +300,162 @@ public class TargetTrackerFileBackupService extends AbstractScheduledService {
             }
             f = new BackupFile();
         }
-        Path p = f.toPath(backupFolder, prefix);
         try {
             if (f.isFull()) {
-                backedUpTargets.clear(); // clear all backed up files
+                writeSnapshot(f);
+            } else {
+                TargetChanges changes = tracker.changesSince(version);
+                if (changes.isFull()) {
+                    // The changes since the last backup are no longer known
+                    f = f.nextFull();
+                    writeSnapshot(f);
+                } else {
+                    appendToLog(changes);
+                }
             }
-            writeBackupFile(p);
             f = f.next();
         } catch (Exception e) {
-            LOG.error("Failed to write backup to " + p, e);
+            LOG.error("Failed to write backup " + f.toPath(backupFolder, prefix), e);
+            closeLog();
             f = f.nextFull();
         }
     }
 
+    /** {@inheritDoc} */
+    @Override
+    protected void shutDown() throws Exception {
+        closeLog();
+    }
+
     /** {@inheritDoc} */
     @Override
     protected Scheduler scheduler() {
         return Scheduler.newFixedRateSchedule(0, 1, TimeUnit.SECONDS);
     }
 
-    private void writeBackupFile(Path p) throws IOException {
-        // We write to a temporary file, to make sure we only have complete valid backup files in the folder
-        Path temporaryFile = Files.createTempFile(p.getFileName().toString(), ".tmp");
-        boolean isFullBackup = true;
-        // Serialize all sourceBundle->TargetInfo mappings
-        try (OutputStream fos = Files.newOutputStream(temporaryFile);
-                BufferedOutputStream bos = new BufferedOutputStream(fos);
-                GZIPOutputStream gos = new GZIPOutputStream(bos);
-                ObjectOutputStream oos = new ObjectOutputStream(gos)) {
-            for (MmsiTarget t : tracker.targets.values()) {
-                for (Entry<AisPacketSource, TargetInfo> e : t.entrySet()) {
-                    // Serialize it, if it is a full backup or if the backup flag has not yet been set
-                    if (backedUpTargets.add(e.getValue())) {
-                        oos.writeObject(e.getKey());
-                        oos.writeObject(e.getValue());
-                    } else {
-                        isFullBackup = false; // at least one file has already been backed up elsewhere
-                    }
+    /**
+     * Writes a snapshot of all targets, deletes all other backup files and starts a new log.
+     */
+    void writeSnapshot(BackupFile f) throws IOException {
+        // Changes after this version are in the log, changes made while writing may also be in the snapshot
+        long snapshotVersion = tracker.getVersion();
+        final List<List<MmsiTarget>> parts = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (MmsiTarget t : tracker.targets.values()) {
+            parts.get(Math.floorMod(t.mmsi, shards)).add(t);
+        }
+        final Path manifest = f.toPath(backupFolder, prefix);
+        try {
+            IntStream.range(0, shards).parallel().forEach(i -> {
+                try {
+                    writeShard(manifest.resolveSibling(BackupFile.shardName(manifest.getFileName().toString(), i)),
+                            parts.get(i));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // The snapshot is complete once the manifest is in place
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        TargetBackupCodec.writeHeader(out);
+        out.writeInt(shards);
+        writeFile(manifest, bytes.toByteArray());
+
+        // Delete all files but the snapshot we just wrote
+        closeLog();
+        String name = manifest.getFileName().toString();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupFolder)) {
+            for (Path path : stream) {
+                if (!path.getFileName().toString().startsWith(name)) {
+                    Files.delete(path);
                 }
             }
-            // Write footer, 2 nulls mean end of stream
-            oos.writeObject(null);
-            oos.writeObject(null);
         }
 
-        // move the temporary file to the correct spot
-        Files.move(temporaryFile, p);
+        // Start a new log
+        bytes.reset();
+        TargetBackupCodec.writeHeader(out);
+        Path logPath = f.toLogPath(backupFolder, prefix);
+        writeFile(logPath, bytes.toByteArray());
+        log = FileChannel.open(logPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        version = snapshotVersion;
+    }
 
-        // If this backup is a full backup, delete old backup files
-        if (isFullBackup) {
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupFolder)) {
-                for (Path path : stream) {
-                    if (!path.equals(p)) { // delete all files but the full backup we just wrote
-                        Files.delete(path);
-                    }
+    private void writeShard(Path p, List<MmsiTarget> targets) throws IOException {
+        Path temporaryFile = Files.createTempFile(backupFolder, p.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                    Files.newOutputStream(temporaryFile), BUFFER_SIZE), BUFFER_SIZE))) {
+                TargetBackupCodec.writeHeader(out);
+                TargetBackupCodec.Writer w = new TargetBackupCodec.Writer(out);
+                for (MmsiTarget t : targets) {
+                    w.writeTarget(t.mmsi, t);
                 }
+                w.end();
             }
+            Files.move(temporaryFile, p, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
         }
     }
 
-    /** Wrapping the versioning */
+    /** Writes a file via a temporary file, to make sure we only have complete valid backup files in the folder. */
+    private void writeFile(Path p, byte[] bytes) throws IOException {
+        Path temporaryFile = Files.createTempFile(backupFolder, p.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temporaryFile, bytes);
+            Files.move(temporaryFile, p, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * Appends the current reports of the changed targets to the log as a single batch, and forces it to disk.
+     */
+    void appendToLog(TargetChanges changes) throws IOException {
+        if (!changes.isEmpty()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            TargetBackupCodec.Writer w = new TargetBackupCodec.Writer(out);
+            for (int mmsi : changes.getUpdated().keySet()) {
+                w.writeTarget(mmsi, tracker.targets.get(mmsi));
+            }
+            for (int mmsi : changes.getRemoved()) {
+                w.writeTarget(mmsi, tracker.targets.get(mmsi));
+            }
+            w.end();
+            byte[] batch = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(batch);
+            ByteBuffer b = ByteBuffer.allocate(8 + batch.length);
+            b.putInt(batch.length).putInt((int) crc.getValue()).put(batch).flip();
+            while (b.hasRemaining()) {
+                log.write(b);
+            }
+            log.force(false);
+        }
+        version = changes.getVersion();
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                LOG.error("Failed to close backup log", e);
+            }
+            log = null;
+        }
+    }
+
+    /** Wrapping the versioning, the major version is the snapshot and the minor version the batch of its log. */
     static class BackupFile {
         final int majorBackupVersion;
         final int minorBackupVersion;
@@ -222,10 +481,23 @@ public class TargetTrackerFileBackupService extends AbstractScheduledService {
             return new BackupFile((majorBackupVersion + 1) % 100000, 0);
         }
 
+        /** Returns the path of the manifest of the snapshot. */
         Path toPath(Path directory, String prefix) {
-            return directory.resolve("aisviewer_backup-" + prefix + "-"
-                    + new DecimalFormat("00000").format(majorBackupVersion) + "-"
-                    + new DecimalFormat("00").format(minorBackupVersion));
+            return directory.resolve(baseName(prefix) + SNAPSHOT);
+        }
+
+        /** Returns the path of the log of the snapshot. */
+        Path toLogPath(Path directory, String prefix) {
+            return directory.resolve(baseName(prefix) + LOG_SUFFIX);
+        }
+
+        private String baseName(String prefix) {
+            return "aisviewer_backup-" + prefix + "-" + new DecimalFormat("00000").format(majorBackupVersion);
+        }
+
+        /** Returns the name of the specified shard file of the snapshot with the specified manifest. */
+        static String shardName(String manifest, int shard) {
+            return manifest + "-" + new DecimalFormat("000").format(shard);
         }
     }
 }
@@ -0,0 +1,139 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.tracker;
+
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketSource;
+
+/**
+ * A thread that is the only writer of the targets whose MMSI numbers are routed to it by a sharded
+ * {@link TargetTracker}. Packets and tasks are queued in the order they are submitted, so tasks such as restoring a
+ * target see all packets submitted before them.
+ */
+@ThreadSafe
+final class TargetTrackerShard {
+
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(TargetTrackerShard.class);
+
+    /** The maximum number of packets and tasks queued for a shard. */
+    static final int QUEUE_SIZE = 16 * 1024;
+
+    /** Packets and tasks ({@link Runnable}) to process. */
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    /** Updates the targets owned by this shard with a packet. */
+    private final Consumer<AisPacket> updater;
+
+    private final Thread thread;
+
+    /** The sources of the packets processed, so targets share one instance per source. Only used by the shard thread. */
+    private final HashMap<AisPacketSource, AisPacketSource> sources = new HashMap<>();
+
+    /** Only read and written by the shard thread. */
+    private boolean stopped;
+
+    TargetTrackerShard(String name, Consumer<AisPacket> updater) {
+        this.updater = updater;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the specified packet, blocking while the queue is full.
+     *
+     * @param packet
+     *            the packet
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    void submit(AisPacket packet) throws InterruptedException {
+        queue.put(packet);
+    }
+
+    /**
+     * Queues the specified task to run on the shard thread after the packets already queued, blocking while the queue
+     * is full.
+     *
+     * @param task
+     *            the task
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    void execute(Runnable task) throws InterruptedException {
+        queue.put(task);
+    }
+
+    /**
+     * Stops the shard thread once the packets and tasks already queued have been processed.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    void stop() throws InterruptedException {
+        execute(() -> stopped = true);
+        thread.join();
+    }
+
+    /**
+     * Returns the source of the specified packet, the same instance for all packets from a source. Must only be called
+     * by the shard thread.
+     *
+     * @param packet
+     *            the packet
+     * @return the source of the packet
+     */
+    AisPacketSource sourceOf(AisPacket packet) {
+        AisPacketSource source = AisPacketSource.create(packet);
+        AisPacketSource existing = sources.putIfAbsent(source, source);
+        return existing == null ? source : existing;
+    }
+
+    /** Returns the number of packets and tasks waiting to be processed. */
+    int getQueued() {
+        return queue.size();
+    }
+
+    private void run() {
+        while (!stopped) {
+            Object o;
+            try {
+                o = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (o instanceof AisPacket) {
+                    updater.accept((AisPacket) o);
+                } else {
+                    ((Runnable) o).run();
+                }
+            } catch (RuntimeException e) {
+                LOG.error("Failed to update tracker with " + o, e);
+            }
+        }
+    }
+}
@@ -22,6 +22,11 @@ import dk.dma.ais.packet.AisPacket;
 
 /**
  * Special kind of transformer that imposes a delay to replay an AIS stream given speedup, and the timing in the stream.
+ * <p>
+ * The transformer only paces the packets it is given, it does not select them. To replay part of a dump, read it with
+ * {@link dk.dma.ais.packet.AisPacketReader#createFromFile(java.nio.file.Path, long, long, boolean)} or give a
+ * {@link dk.dma.ais.bus.provider.RepeatingFileReaderProvider} an interval, which use the time index of the dump to
+ * skip to the start of the interval.
  */
 @ThreadSafe
 public class ReplayTransformer implements IAisPacketTransformer {
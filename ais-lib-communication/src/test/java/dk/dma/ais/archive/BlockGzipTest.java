@@ -0,0 +1,122 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketOutputSinks;
+import dk.dma.ais.packet.AisPacketReader;
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * Tests {@link BlockGzipOutputStream} and {@link BlockGzipInputStream}.
+ */
+public class BlockGzipTest {
+
+    static List<AisPacket> readPackets(AisPacketReader reader) throws IOException {
+        List<AisPacket> packets = new ArrayList<>();
+        try (AisPacketReader r = reader) {
+            for (AisPacket p = r.readPacket(); p != null; p = r.readPacket()) {
+                packets.add(p);
+            }
+        }
+        return packets;
+    }
+
+    static Path writeBlockGzip(List<AisPacket> packets, int blockSize) throws IOException {
+        Path file = Files.createTempDirectory("blockgzip").resolve("dump.txt.gz");
+        OutputStreamSink<AisPacket> sink = TimeIndexedOutput.indexingSink(AisPacketOutputSinks.OUTPUT_TO_TEXT);
+        try (BlockGzipOutputStream os = new BlockGzipOutputStream(file, blockSize, Deflater.DEFAULT_COMPRESSION)) {
+            sink.header(os);
+            long count = 0;
+            for (AisPacket p : packets) {
+                sink.process(os, p, ++count);
+            }
+            sink.footer(os, count);
+        }
+        return file;
+    }
+
+    static byte[] readAll(InputStream is) throws IOException {
+        try (InputStream in = is) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        List<AisPacket> packets = readPackets(AisPacketReader.createFromSystemResource("replay_dump.txt", true));
+        Path file = writeBlockGzip(packets, 512);
+
+        BlockGzipIndex index = BlockGzipIndex.readIndexOf(file);
+        assertTrue(index.getBlocks().size() > 1);
+
+        // Must be readable as a plain gzip file
+        byte[] plain = readAll(new GZIPInputStream(Files.newInputStream(file)));
+        assertEquals(index.getUncompressedSize(), plain.length);
+        assertArrayEquals(plain, readAll(new BlockGzipInputStream(file, index)));
+
+        List<AisPacket> read = readPackets(AisPacketReader.createFromFile(file, true));
+        assertEquals(packets.size(), read.size());
+        for (int i = 0; i < packets.size(); i++) {
+            assertEquals(packets.get(i).getStringMessage(), read.get(i).getStringMessage());
+        }
+    }
+
+    @Test
+    public void seekByTime() throws IOException {
+        List<AisPacket> packets = readPackets(AisPacketReader.createFromSystemResource("replay_dump.txt", true));
+        Path file = writeBlockGzip(packets, 256);
+        BlockGzipIndex index = BlockGzipIndex.readIndexOf(file);
+
+        long start = packets.get(packets.size() / 2).getBestTimestamp();
+        long end = start + 2000;
+        int expected = 0;
+        for (AisPacket p : packets) {
+            if (p.getBestTimestamp() >= start && p.getBestTimestamp() < end) {
+                expected++;
+            }
+        }
+        List<AisPacket> read = readPackets(new AisPacketReader(BlockGzipInputStream.open(file, index, start, end)));
+        assertTrue(read.size() < packets.size());
+        int found = 0;
+        for (AisPacket p : read) {
+            if (p.getBestTimestamp() >= start && p.getBestTimestamp() < end) {
+                found++;
+            }
+        }
+        assertEquals(expected, found);
+    }
+}
@@ -0,0 +1,157 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.IPositionMessage;
+import dk.dma.ais.message.IVesselPositionMessage;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketReader;
+
+/**
+ * Tests {@link ColumnarArchiveOutputSink} and {@link ColumnarArchiveReader}.
+ */
+public class ColumnarArchiveTest {
+
+    static byte[] write(List<AisPacket> packets, int blockSize) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ColumnarArchiveOutputSink sink = new ColumnarArchiveOutputSink(blockSize, Deflater.DEFAULT_COMPRESSION);
+        sink.header(bos);
+        long count = 0;
+        for (AisPacket p : packets) {
+            sink.process(bos, p, ++count);
+        }
+        sink.footer(bos, count);
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        List<AisPacket> packets = BlockGzipTest.readPackets(AisPacketReader.createFromSystemResource(
+                "replay_dump.txt", true));
+        byte[] archive = write(packets, 16);
+
+        List<AisPacket> read = new ArrayList<>();
+        try (ColumnarArchiveReader r = new ColumnarArchiveReader(new ByteArrayInputStream(archive))) {
+            for (AisPacket p = r.readPacket(); p != null; p = r.readPacket()) {
+                read.add(p);
+            }
+            assertTrue(r.getNumberOfBlocksRead() > 1);
+            assertNull(r.readPacket());
+        }
+        assertEquals(packets.size(), read.size());
+        for (int i = 0; i < packets.size(); i++) {
+            assertEquals(packets.get(i).getStringMessage(), read.get(i).getStringMessage());
+            assertEquals(packets.get(i).getBestTimestamp(), read.get(i).getBestTimestamp());
+        }
+    }
+
+    @Test
+    public void positions() throws IOException {
+        List<AisPacket> packets = BlockGzipTest.readPackets(AisPacketReader.createFromSystemResource(
+                "replay_dump.txt", true));
+        List<AisPacket> expected = new ArrayList<>();
+        for (AisPacket p : packets) {
+            AisMessage m = p.tryGetAisMessage();
+            if (m instanceof IPositionMessage && ((IPositionMessage) m).getPos().getGeoLocation() != null) {
+                expected.add(p);
+            }
+        }
+        assertTrue(expected.size() > 0);
+
+        List<ArchivedPosition> read = new ArrayList<>();
+        try (ColumnarArchiveReader r = new ColumnarArchiveReader(new ByteArrayInputStream(write(packets, 64)))) {
+            r.forEachPosition(read::add);
+        }
+        assertEquals(expected.size(), read.size());
+        for (int i = 0; i < expected.size(); i++) {
+            AisPacket p = expected.get(i);
+            AisMessage m = p.tryGetAisMessage();
+            ArchivedPosition a = read.get(i);
+            assertEquals(p.getBestTimestamp(), a.getTimestamp());
+            assertEquals(m.getUserId(), a.getMmsi());
+            assertEquals(m.getMsgId(), a.getMsgId());
+            assertEquals(((IPositionMessage) m).getPos().getLatitudeDouble(), a.getLatitude(), 1e-6);
+            assertEquals(((IPositionMessage) m).getPos().getLongitudeDouble(), a.getLongitude(), 1e-6);
+            if (m instanceof IVesselPositionMessage) {
+                assertEquals(((IVesselPositionMessage) m).getSog(), a.getSog());
+                assertEquals(((IVesselPositionMessage) m).getCog(), a.getCog());
+            } else {
+                assertEquals(-1, a.getSog());
+            }
+            assertEquals(p.getTags().getSourceId(), a.getSourceId());
+        }
+    }
+
+    @Test
+    public void skipBlocks() throws IOException {
+        List<AisPacket> packets = BlockGzipTest.readPackets(AisPacketReader.createFromSystemResource(
+                "replay_dump.txt", true));
+        long start = packets.get(packets.size() / 2).getBestTimestamp();
+        long end = start + 2000;
+
+        int expected = 0;
+        for (AisPacket p : packets) {
+            if (p.getBestTimestamp() >= start && p.getBestTimestamp() < end) {
+                expected++;
+            }
+        }
+        int found = 0;
+        try (ColumnarArchiveReader r = new ColumnarArchiveReader(new ByteArrayInputStream(write(packets, 32)),
+                ColumnarArchiveBlockStatistics.timeFilter(start, end))) {
+            for (AisPacket p = r.readPacket(); p != null; p = r.readPacket()) {
+                if (p.getBestTimestamp() >= start && p.getBestTimestamp() < end) {
+                    found++;
+                }
+            }
+            assertTrue(r.getNumberOfBlocksSkipped() > 0);
+        }
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void reuseAfterFooter() throws IOException {
+        List<AisPacket> packets = BlockGzipTest.readPackets(AisPacketReader.createFromSystemResource(
+                "replay_dump.txt", true));
+        ColumnarArchiveOutputSink sink = new ColumnarArchiveOutputSink(16, Deflater.DEFAULT_COMPRESSION);
+        byte[][] archives = new byte[2][];
+        for (int i = 0; i < archives.length; i++) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            sink.header(bos);
+            long count = 0;
+            for (AisPacket p : packets) {
+                sink.process(bos, p, ++count);
+            }
+            sink.footer(bos, count);
+            archives[i] = bos.toByteArray();
+        }
+        assertArrayEquals(write(packets, 16), archives[0]);
+        assertArrayEquals(archives[0], archives[1]);
+    }
+}
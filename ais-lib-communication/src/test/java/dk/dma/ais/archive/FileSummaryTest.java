@@ -0,0 +1,130 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketFilters;
+import dk.dma.ais.packet.AisPacketOutputSinks;
+import dk.dma.ais.packet.AisPacketReader;
+import dk.dma.ais.reader.AisDirectoryReader;
+import dk.dma.ais.reader.AisReaders;
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * Tests {@link FileSummary}.
+ */
+public class FileSummaryTest {
+
+    static FileSummary writeSummarized(Path file, List<AisPacket> packets) throws IOException {
+        FileSummary.Builder builder = new FileSummary.Builder();
+        OutputStreamSink<AisPacket> sink = FileSummary.summarizingSink(AisPacketOutputSinks.OUTPUT_TO_TEXT, builder);
+        try (OutputStream os = Files.newOutputStream(file)) {
+            sink.header(os);
+            long count = 0;
+            for (AisPacket p : packets) {
+                sink.process(os, p, ++count);
+            }
+            sink.footer(os, count);
+        }
+        FileSummary summary = builder.build(Files.size(file));
+        summary.write(FileSummary.summaryFileFor(file));
+        return summary;
+    }
+
+    @Test
+    public void summary() throws IOException {
+        List<AisPacket> packets = BlockGzipTest.readPackets(AisPacketReader.createFromSystemResource(
+                "replay_dump.txt", true));
+        Path file = Files.createTempDirectory("summary").resolve("dump.txt");
+        FileSummary written = writeSummarized(file, packets);
+        FileSummary read = FileSummary.readSummaryOf(file);
+        FileSummary built = FileSummary.build(file);
+
+        Set<Integer> mmsis = new HashSet<>();
+        for (AisPacket p : packets) {
+            AisMessage m = p.tryGetAisMessage();
+            if (m != null) {
+                mmsis.add(m.getUserId());
+                for (FileSummary s : new FileSummary[] { written, read, built }) {
+                    assertTrue(s.mayContainMmsi(m.getUserId()));
+                    assertTrue(s.mayContainMessageType(m.getMsgId()));
+                    assertTrue(s.mayContainTime(p.getBestTimestamp(), p.getBestTimestamp() + 1));
+                }
+            }
+        }
+        assertEquals(packets.size(), read.getNumberOfPackets());
+        assertEquals(written.getMinTimestamp(), built.getMinTimestamp());
+        assertEquals(written.getMaxTimestamp(), read.getMaxTimestamp());
+        assertFalse(read.mayContainTime(read.getMaxTimestamp() + 1, Long.MAX_VALUE));
+
+        // The false positive rate of the bloom filter should be about 1%
+        int falsePositives = 0;
+        for (int mmsi = 100000000; mmsi < 100010000; mmsi++) {
+            if (!mmsis.contains(mmsi) && read.mayContainMmsi(mmsi)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positives " + falsePositives, falsePositives < 500);
+
+        // A summary of a file that has changed is ignored
+        Files.write(file, new byte[] { '\n' }, StandardOpenOption.APPEND);
+        assertNull(FileSummary.readSummaryOf(file));
+    }
+
+    @Test
+    public void skipFiles() throws Exception {
+        List<AisPacket> packets = BlockGzipTest.readPackets(AisPacketReader.createFromSystemResource(
+                "replay_dump.txt", true));
+        int mmsi = packets.get(0).tryGetAisMessage().getUserId();
+        List<AisPacket> a = new ArrayList<>();
+        List<AisPacket> b = new ArrayList<>();
+        for (AisPacket p : packets) {
+            AisMessage m = p.tryGetAisMessage();
+            (m != null && m.getUserId() == mmsi ? a : b).add(p);
+        }
+        Path dir = Files.createTempDirectory("summary");
+        writeSummarized(dir.resolve("a.txt"), a);
+        assertFalse(writeSummarized(dir.resolve("b.txt"), b).mayContainMmsi(mmsi));
+
+        AisDirectoryReader reader = AisReaders.createDirectoryReader(dir.toString(), "*", false);
+        reader.setSummaryFilter(FileSummary.filterFor(AisPacketFilters.analyseExpressionFilter("m.mmsi = " + mmsi
+                + " & m.sog > 0")));
+        final AtomicInteger count = new AtomicInteger();
+        reader.registerPacketHandler(p -> count.incrementAndGet());
+        reader.start();
+        reader.join();
+        assertEquals(a.size(), count.get());
+        assertEquals(1, reader.getNumberOfFilesSkipped());
+    }
+}
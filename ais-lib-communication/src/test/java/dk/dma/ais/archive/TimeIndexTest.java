@@ -0,0 +1,95 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Test;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketOutputSinks;
+import dk.dma.ais.packet.AisPacketReader;
+import dk.dma.commons.util.io.OutputStreamSink;
+
+/**
+ * Tests {@link TimeIndex} and {@link TimeIndexOutputStream}.
+ */
+public class TimeIndexTest {
+
+    static Path writeIndexed(List<AisPacket> packets, long interval) throws IOException {
+        Path file = Files.createTempDirectory("timeindex").resolve("dump.txt");
+        OutputStreamSink<AisPacket> sink = TimeIndexedOutput.indexingSink(AisPacketOutputSinks.OUTPUT_TO_TEXT);
+        try (TimeIndexOutputStream os = new TimeIndexOutputStream(file, interval)) {
+            sink.header(os);
+            long count = 0;
+            for (AisPacket p : packets) {
+                sink.process(os, p, ++count);
+            }
+            sink.footer(os, count);
+        }
+        return file;
+    }
+
+    @Test
+    public void buildMatchesWrittenIndex() throws IOException {
+        List<AisPacket> packets = BlockGzipTest.readPackets(AisPacketReader.createFromSystemResource(
+                "replay_dump.txt", true));
+        Path file = writeIndexed(packets, 1000);
+        TimeIndex written = TimeIndex.readIndexOf(file);
+        TimeIndex built = TimeIndex.build(file, 1000);
+
+        assertTrue(written.getChunks().size() > 1);
+        assertEquals(Files.size(file), written.getLength());
+        assertEquals(written.getLength(), built.getLength());
+        assertEquals(written.getChunks().size(), built.getChunks().size());
+        for (int i = 0; i < written.getChunks().size(); i++) {
+            assertEquals(written.getChunks().get(i).getOffset(), built.getChunks().get(i).getOffset());
+            assertEquals(written.getChunks().get(i).getMinTimestamp(), built.getChunks().get(i).getMinTimestamp());
+            assertEquals(written.getChunks().get(i).getMaxTimestamp(), built.getChunks().get(i).getMaxTimestamp());
+        }
+    }
+
+    @Test
+    public void readInterval() throws IOException {
+        List<AisPacket> packets = BlockGzipTest.readPackets(AisPacketReader.createFromSystemResource(
+                "replay_dump.txt", true));
+        Path file = writeIndexed(packets, 1000);
+
+        long start = packets.get(packets.size() / 2).getBestTimestamp();
+        long end = start + 2000;
+        int expected = 0;
+        for (AisPacket p : packets) {
+            if (p.getBestTimestamp() >= start && p.getBestTimestamp() < end) {
+                expected++;
+            }
+        }
+
+        AisPacketReader reader = AisPacketReader.createFromFile(file, start, end, true);
+        List<AisPacket> read = BlockGzipTest.readPackets(reader);
+        assertEquals(expected, read.size());
+        assertTrue(reader.getNumberOfBytesRead() < Files.size(file));
+
+        // Without an index the whole file is read, with the same result
+        Files.delete(TimeIndex.indexFileFor(file));
+        assertEquals(expected, BlockGzipTest.readPackets(AisPacketReader.createFromFile(file, start, end, true))
+                .size());
+    }
+}
@@ -0,0 +1,211 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * Tests {@link PastTrackRingBuffer}.
+ */
+public class PastTrackRingBufferTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final long now = System.currentTimeMillis();
+
+    static AisVesselPosition position(long time, double lat, double lon, double cog, double sog) {
+        AisVesselPosition p = new AisVesselPosition();
+        p.setPos(Position.create(lat, lon));
+        p.setCog(cog);
+        p.setSog(sog);
+        p.setSourceTimestamp(new Date(time));
+        return p;
+    }
+
+    /** Adds the i'th point of a track of points 10 seconds and 0.01 degrees apart, ending 1000 seconds ago. */
+    private void add(PastTrackRingBuffer track, int i) {
+        track.addPosition(position(time(i), 55 + i * 0.01, 11, i % 360, i % 30), 0);
+    }
+
+    private long time(int i) {
+        return now - 1000_000 + i * 10_000;
+    }
+
+    /** Asserts that the track holds the points from first to last of {@link #add(PastTrackRingBuffer, int)}. */
+    private void assertPoints(PastTrackRingBuffer track, int first, int last) {
+        assertEquals(last - first + 1, track.size());
+        List<PastTrackPoint> points = track.getPoints();
+        PastTrackRingBuffer.Cursor c = track.cursor();
+        for (int i = first; i <= last; i++) {
+            PastTrackPoint p = points.get(i - first);
+            assertEquals(time(i), p.getTime());
+            assertEquals(55 + i * 0.01, p.getLat(), 1e-7);
+            assertEquals(i % 360, p.getCog(), 0);
+            assertTrue(c.next());
+            assertEquals(time(i), c.getTime());
+            assertEquals(55 + i * 0.01, c.getLat(), 1e-7);
+            assertEquals(11, c.getLon(), 1e-7);
+            assertEquals(i % 30, c.getSog(), 0);
+        }
+        assertFalse(c.next());
+    }
+
+    @Test
+    public void testWrapAround() {
+        PastTrackRingBuffer track = new PastTrackRingBuffer();
+        for (int i = 0; i < 16; i++) {
+            add(track, i);
+        }
+        // Points 0 to 7 are older than 925 seconds
+        track.cleanup(925);
+        assertPoints(track, 8, 15);
+        // The new points are written at the start of the arrays
+        for (int i = 16; i < 24; i++) {
+            add(track, i);
+        }
+        assertPoints(track, 8, 23);
+    }
+
+    @Test
+    public void testResizeWhileWrapped() {
+        PastTrackRingBuffer track = new PastTrackRingBuffer();
+        for (int i = 0; i < 16; i++) {
+            add(track, i);
+        }
+        track.cleanup(925);
+        for (int i = 16; i < 40; i++) {
+            add(track, i);
+        }
+        assertPoints(track, 8, 39);
+
+        // Halves the capacity of 64 when less than a quarter is used
+        for (int i = 40; i < 60; i++) {
+            add(track, i);
+        }
+        track.cleanup(455);
+        assertPoints(track, 55, 59);
+        for (int i = 60; i < 80; i++) {
+            add(track, i);
+        }
+        assertPoints(track, 55, 79);
+    }
+
+    @Test
+    public void testRebase() {
+        PastTrackRingBuffer track = new PastTrackRingBuffer();
+        long t0 = now - 60 * DAY;
+        for (long t : new long[] { t0, t0 + 10 * DAY, t0 + 20 * DAY }) {
+            track.addPosition(position(t, 55, 11, 0, 0), 0);
+        }
+        // Times are kept as ints relative to the oldest point, so points more than ~24.8 days older are dropped
+        track.addPosition(position(t0 + 26 * DAY, 55, 11, 0, 0), 0);
+        assertTimes(track, t0 + 10 * DAY, t0 + 20 * DAY, t0 + 26 * DAY);
+        track.addPosition(position(t0 + 50 * DAY, 55, 11, 0, 0), 0);
+        assertTimes(track, t0 + 26 * DAY, t0 + 50 * DAY);
+        track.addPosition(position(t0 + 51 * DAY, 55, 11, 0, 0), 0);
+        assertTimes(track, t0 + 50 * DAY, t0 + 51 * DAY);
+    }
+
+    private static void assertTimes(PastTrackRingBuffer track, long... times) {
+        List<Long> actual = new ArrayList<>();
+        for (PastTrackPoint p : track.getPoints()) {
+            actual.add(p.getTime());
+        }
+        List<Long> expected = new ArrayList<>();
+        for (long t : times) {
+            expected.add(t);
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testSameAsSortedSet() {
+        Random r = new Random(1);
+        for (int minDist : new int[] { 0, 50, 200 }) {
+            PastTrackRingBuffer track = new PastTrackRingBuffer();
+            PastTrackSortedSet expected = new PastTrackSortedSet();
+            long time = now - DAY;
+            int lat = 550000;
+            int lon = 110000;
+            for (int i = 0; i < 2000; i++) {
+                time += 1000 + r.nextInt(30_000);
+                lat += r.nextInt(21) - 10;
+                lon += r.nextInt(21) - 10;
+                AisVesselPosition p = position(time, lat / 10000.0, lon / 10000.0, r.nextInt(3600) / 10.0,
+                        r.nextInt(300) / 10.0);
+                track.addPosition(p, minDist);
+                expected.addPosition(p, minDist);
+            }
+            List<PastTrackPoint> e = expected.getPoints();
+            List<PastTrackPoint> a = track.getPoints();
+            assertEquals(e.size(), a.size());
+            for (int i = 0; i < e.size(); i++) {
+                assertEquals(e.get(i).getTime(), a.get(i).getTime());
+                assertEquals(e.get(i).getLat(), a.get(i).getLat(), 1e-7);
+                assertEquals(e.get(i).getLon(), a.get(i).getLon(), 1e-7);
+                assertEquals(e.get(i).getCog(), a.get(i).getCog(), 1e-9);
+                assertEquals(e.get(i).getSog(), a.get(i).getSog(), 1e-9);
+            }
+            if (minDist > 0) {
+                assertTrue(a.size() < 2000);
+            }
+        }
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testCursorAfterAdd() {
+        PastTrackRingBuffer track = new PastTrackRingBuffer();
+        add(track, 0);
+        add(track, 1);
+        PastTrackRingBuffer.Cursor c = track.cursor();
+        assertTrue(c.next());
+        add(track, 2);
+        c.next();
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testCursorAfterShrink() {
+        PastTrackRingBuffer track = new PastTrackRingBuffer();
+        track.addPosition(position(now - 1000_000, 56, 11, 0, 0), 0);
+        for (int i = 0; i < 16; i++) {
+            track.addPosition(position(now - 900_000 + i * 1000, 55, 11, 0, 0), 0);
+        }
+        // Removes the oldest point, so the points no longer start at the first slot
+        track.cleanup(950);
+        // Thins the 16 points at the same position to 2, without removing old points
+        track.addPosition(position(now - 800_000, 55, 11, 0, 0), 100);
+        assertEquals(2, track.size());
+
+        PastTrackRingBuffer.Cursor c = track.cursor();
+        assertTrue(c.next());
+        // Removes no points, but moves them to smaller arrays
+        track.cleanup(Integer.MAX_VALUE);
+        assertEquals(2, track.size());
+        c.next();
+    }
+}
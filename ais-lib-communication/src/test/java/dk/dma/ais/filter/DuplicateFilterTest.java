@@ -11,6 +11,7 @@ import org.junit.Test;
 
 import java.util.function.Consumer;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -71,4 +72,66 @@ public class DuplicateFilterTest {
         assertTrue(filter.rejectedByFilter(packet2));
     }
 
+    @Test
+    public void testWindow() {
+        DuplicateWindow window = new DuplicateWindow(10000, DuplicateWindow.DEFAULT_MAX_ENTRIES, false);
+        assertFalse(window.isDuplicate("a", 0));
+        assertFalse(window.isDuplicate("b", 1000));
+        assertTrue(window.isDuplicate("a", 9999));
+        assertFalse(window.isDuplicate("a", 10000));
+        assertTrue(window.isDuplicate("a", 19999));
+        // Turning the wheel several times expires everything
+        assertFalse(window.isDuplicate("c", 100000));
+        assertFalse(window.isDuplicate("a", 100001));
+        assertFalse(window.isDuplicate("b", 100002));
+        assertTrue(window.isDuplicate("c", 100003));
+    }
+
+    @Test
+    public void testWindowIsBounded() {
+        DuplicateWindow window = new DuplicateWindow(10000, 1024, true);
+        for (int i = 0; i < 100000; i++) {
+            assertFalse(window.isDuplicate("message" + i, i / 10));
+        }
+        assertTrue(window.size() <= 1024);
+        assertTrue(window.getOverflows() > 0);
+        assertEquals(0, new DuplicateWindow(10000, 1024, true).getOverflows());
+    }
+
+    @Test
+    public void testReplayFilterUsesPacketTime() throws Exception {
+        String msg = "\\si:AISW*2C\\\r\n"
+                   + "$PGHP,1,2014,11,1,13,18,12,315,219,,2190049,1,48*2B\r\n"
+                   + "!BSVDM,1,1,,B,155C1v0vif0r:s`OjGpM0b@F0<6R,0*48\r\n";
+
+        ReplayDuplicateFilter filter = new ReplayDuplicateFilter(10000, true);
+        assertFalse(filter.rejectedByFilter(AisPacket.readFromString(msg)));
+        assertTrue(filter.rejectedByFilter(AisPacket.readFromString(msg)));
+        // The packets remembered are kept when the window changes
+        filter.setWindowSize(1000);
+        assertTrue(filter.rejectedByFilter(AisPacket.readFromString(msg)));
+        assertEquals(1, filter.getNumberOfEntries());
+    }
+
+    @Test
+    public void testWindowResize() {
+        DuplicateWindow window = new DuplicateWindow(10000, DuplicateWindow.DEFAULT_MAX_ENTRIES, true);
+        assertFalse(window.isDuplicate("a", 0));
+        assertFalse(window.isDuplicate("b", 5000));
+        assertFalse(window.isDuplicate("c", 9000));
+        // Shrinking the window expires the entries older than the new window only
+        window.setWindowSize(3000);
+        assertTrue(window.isDuplicate("c", 9500));
+        assertFalse(window.isDuplicate("a", 9500));
+        assertFalse(window.isDuplicate("b", 9500));
+        assertEquals(3, window.size());
+        assertTrue(window.isDuplicate("c", 11999));
+        assertFalse(window.isDuplicate("c", 12000));
+        // Growing the window keeps the entries for longer
+        window.setWindowSize(20000);
+        assertTrue(window.isDuplicate("a", 29000));
+        assertTrue(window.isDuplicate("c", 31999));
+        assertFalse(window.isDuplicate("b", 29500));
+    }
+
 }
@@ -24,6 +24,8 @@ import dk.dma.enav.model.geometry.Position;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -104,4 +106,11 @@ public class GeoMaskFilterTest {
         assertFalse(geoMaskFilter.rejectedByFilter(pkgStatic));
     }
 
+    @Test
+    public void noBoundingBoxesRejectsNothing() {
+        GeoMaskFilter filter = new GeoMaskFilter(new ArrayList<>());
+        assertFalse(filter.rejectedByFilter(pkgInsideBBox1));
+        assertFalse(filter.rejectedByFilter(pkgStatic));
+    }
+
 }
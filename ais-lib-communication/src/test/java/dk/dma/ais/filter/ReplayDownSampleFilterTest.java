@@ -18,6 +18,11 @@ package dk.dma.ais.filter;
 import dk.dma.ais.packet.AisPacket;
 import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -147,6 +152,39 @@ public class ReplayDownSampleFilterTest {
         assertTrue(filter.rejectedByFilter(aisPacket22));
     }
 
+    @Test
+    public void testOldEntriesEvicted() {
+        SampleTimeMap map = new SampleTimeMap();
+        for (int mmsi = 0; mmsi < 10000; mmsi++) {
+            assertFalse(map.isSampled(mmsi, 0, 1000));
+        }
+        assertEquals(10000, map.size());
+        for (int mmsi = 10000; mmsi < 20000; mmsi++) {
+            assertFalse(map.isSampled(mmsi, 1000, 1000));
+        }
+        assertEquals(10000, map.size());
+        assertEquals(10000, map.getEvictions());
+        for (int mmsi = 10000; mmsi < 20000; mmsi++) {
+            assertTrue(map.isSampled(mmsi, 1999, 1000));
+        }
+    }
+
+    @Test
+    public void testSameAsMap() {
+        SampleTimeMap map = new SampleTimeMap();
+        Map<Integer, Long> expected = new HashMap<>();
+        Random r = new Random(1);
+        for (long now = 0; now < 200000; now += r.nextInt(3)) {
+            int mmsi = r.nextInt(5000);
+            Long last = expected.get(mmsi);
+            boolean sampled = last != null && now - last < 1000;
+            if (!sampled) {
+                expected.put(mmsi, now);
+            }
+            assertEquals(sampled, map.isSampled(mmsi, now, 1000));
+        }
+    }
+
 }
 
 /**
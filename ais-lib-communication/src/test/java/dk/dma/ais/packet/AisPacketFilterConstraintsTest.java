@@ -0,0 +1,133 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import static dk.dma.ais.packet.AisPacketFilters.analyseExpressionFilter;
+import static dk.dma.ais.packet.AisPacketFilters.parseExpressionFilter;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.sentence.SentenceException;
+
+/**
+ * Tests {@link AisPacketFilterConstraints}.
+ */
+public class AisPacketFilterConstraintsTest {
+
+    @Test
+    public void conjunction() {
+        AisPacketFilterConstraints c = analyseExpressionFilter("m.mmsi = 219000000 & m.id in (1,2,3)");
+        assertArrayEquals(new int[] { 219000000 }, c.getMmsi());
+        assertArrayEquals(new int[] { 1, 2, 3 }, c.getMessageIds());
+        assertTrue(c.isExact());
+
+        c = analyseExpressionFilter("m.mmsi in 219000000..219000002 & m.sog > 5");
+        assertArrayEquals(new int[] { 219000000, 219000001, 219000002 }, c.getMmsi());
+        assertFalse(c.isExact());
+
+        c = analyseExpressionFilter("s.id = (AISD, SAT) & (m.mmsi = 1 & m.mmsi = 2)");
+        assertArrayEquals(new String[] { "AISD", "SAT" }, c.getSourceIds());
+        assertTrue(c.isUnsatisfiable());
+    }
+
+    @Test
+    public void disjunction() {
+        AisPacketFilterConstraints c = analyseExpressionFilter("m.mmsi in (1,2) | m.mmsi = 3");
+        assertArrayEquals(new int[] { 1, 2, 3 }, c.getMmsi());
+        assertFalse(c.isExact());
+
+        c = analyseExpressionFilter("m.mmsi = 1 | m.sog > 5");
+        assertNull(c.getMmsi());
+
+        c = analyseExpressionFilter("m.pos within bbox(55, 10, 56, 11) | m.pos within bbox(57, 9, 58, 10)");
+        assertNotNull(c.getArea());
+        assertEquals(55, c.getArea().getMinLat(), 0.0001);
+        assertEquals(58, c.getArea().getMaxLat(), 0.0001);
+        assertEquals(9, c.getArea().getMinLon(), 0.0001);
+        assertEquals(11, c.getArea().getMaxLon(), 0.0001);
+    }
+
+    @Test
+    public void notAnalysed() {
+        AisPacketFilterConstraints c = analyseExpressionFilter("m.mmsi != 1 & m.id not in (1,2) & m.mmsi in 1..100000");
+        assertNull(c.getMmsi());
+        assertNull(c.getMessageIds());
+        assertFalse(c.isExact());
+    }
+
+    @Test
+    public void time() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2013, Calendar.JANUARY, 1);
+        long start = calendar.getTimeInMillis();
+        calendar.set(2015, Calendar.JANUARY, 1);
+        long end = calendar.getTimeInMillis();
+
+        AisPacketFilterConstraints c = analyseExpressionFilter("m.year >= 2013 & m.year in 2010..2014");
+        assertEquals(start, c.getStart());
+        assertEquals(end, c.getEnd());
+        assertFalse(c.isExact());
+    }
+
+    @Test
+    public void timeWithoutTimestamp() throws SentenceException {
+        // getBestTimestamp() is -1 for a packet without a timestamp, which is before the end of the interval
+        AisPacket p = AisPacket.readFromString("!BSVDM,1,1,,B,155C1v0vif0r:s`OjGpM0b@F0<6R,0*48");
+        assertNull(p.getTimestamp());
+        String expression = "m.year < 2000";
+        assertFalse(parseExpressionFilter(expression).test(p));
+        assertFalse(analyseExpressionFilter(expression).test(p));
+    }
+
+    @Test
+    public void equivalentToFilter() throws IOException {
+        List<AisPacket> packets = new ArrayList<>();
+        try (AisPacketReader r = AisPacketReader.createFromSystemResource("replay_dump.txt", true)) {
+            for (AisPacket p = r.readPacket(); p != null; p = r.readPacket()) {
+                packets.add(p);
+            }
+        }
+        AisMessage m = packets.get(0).tryGetAisMessage();
+        String[] expressions = { "m.mmsi = " + m.getUserId(), "m.id in (1,2,3) & m.sog > 1",
+                "m.mmsi = " + m.getUserId() + " | m.id = 5", "m.pos within bbox(55, 10, 56, 13) & m.id = 3",
+                "(m.id = 1 | m.id = 2) & m.year = 2013", "m.mmsi != " + m.getUserId() };
+        for (String expression : expressions) {
+            Predicate<AisPacket> filter = parseExpressionFilter(expression);
+            AisPacketFilterConstraints c = analyseExpressionFilter(expression);
+            Predicate<AisPacket> analysed = c.toPredicate();
+            for (AisPacket p : packets) {
+                boolean expected = filter.test(p);
+                assertEquals(expression, expected, analysed.test(p));
+                if (expected) {
+                    assertTrue(expression, c.test(p));
+                }
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@ package dk.dma.ais.packet;
 import dk.dma.ais.message.AisMessage1;
 import dk.dma.ais.message.AisMessage5;
 import dk.dma.ais.sentence.SentenceException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import org.junit.Before;
 import org.junit.Test;
@@ -704,6 +705,27 @@ public class AisPacketFiltersStatefulTest {
         assertFilterPredicate(false, parseExpressionFilter("t.cs like *"), pkgPosition1);
     }
 
+    @Test
+    public void stateIsUpdatedOncePerPacket() {
+        // Both terms must see the static information learned from the packet itself
+        Predicate<AisPacket> filter = parseExpressionFilter("t.imo > 0 & t.name like LANGELAND & t.type = 60");
+        assertFilterPredicate(false, filter, pkgPosition1);
+        assertFilterPredicate(true, filter, pkgStatic);
+        assertFilterPredicate(true, filter, pkgPosition2);
+    }
+
+    @Test
+    public void targetsAreEvicted() {
+        AisPacketFiltersStateful factory = new AisPacketFiltersStateful(1, TimeUnit.HOURS);
+        Predicate<AisPacket> filter = factory.filterOnTargetImo(CompareToOperator.GREATER_THAN, 0);
+        AisPacket old = AisTestPackets.p1(); // 2013, another target
+        filter.test(old);
+        assertEquals(1, factory.getNumberOfTargets());
+        filter.test(pkgStatic); // 2014
+        assertEquals(1, factory.getNumberOfTargets());
+        assertTrue(filter.test(pkgPosition2));
+    }
+
     // ---
 
     private static void assertFilterPredicate(boolean expectedResult, Predicate<AisPacket> filter, AisPacket aisPacket) {
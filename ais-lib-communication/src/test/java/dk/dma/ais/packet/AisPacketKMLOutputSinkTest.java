@@ -0,0 +1,138 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import dk.dma.ais.message.IVesselPositionMessage;
+
+public class AisPacketKMLOutputSinkTest {
+
+    private static void writeScenario(AisPacketKMLOutputSink sink, ByteArrayOutputStream out) throws Exception {
+        AisPacketReader reader = AisPacketReader.createFromFile(Paths.get("src/test/resources/replay_dump.txt"), true);
+        AisPacket packet;
+        long count = 0;
+        while ((packet = reader.readPacket()) != null) {
+            sink.process(out, packet, count++);
+        }
+        sink.footer(out, count);
+    }
+
+    private static Document parse(InputStream in) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(in);
+    }
+
+    /** Returns the names of the folders of the root folder. */
+    private static List<String> folderNames(Document document) {
+        List<String> names = new ArrayList<>();
+        NodeList folders = document.getElementsByTagNameNS(KmlWriter.NAMESPACE, "Folder");
+        for (int i = 0; i < folders.getLength(); i++) {
+            Element folder = (Element) folders.item(i);
+            if (folder.getParentNode().getParentNode().getLocalName().equals("Document")) {
+                names.add(folder.getElementsByTagNameNS(KmlWriter.NAMESPACE, "name").item(0).getTextContent());
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void testKml() throws Exception {
+        final boolean[] first = { true };
+        AisPacketKMLOutputSink sink = new AisPacketKMLOutputSink(e -> true, true, true, true,
+                e -> e.tryGetAisMessage() instanceof IVesselPositionMessage, e -> false, e -> {
+                    if (first[0] && e.tryGetAisMessage() instanceof IVesselPositionMessage) {
+                        first[0] = false;
+                        return true;
+                    }
+                    return false;
+                }, () -> "<b>Snapshot</b>", null, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeScenario(sink, out);
+
+        Document document = parse(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("kml", document.getDocumentElement().getLocalName());
+        assertEquals(KmlWriter.NAMESPACE, document.getDocumentElement().getNamespaceURI());
+        assertEquals("[Situation, Tracks, Movements, Icons]", folderNames(document).toString());
+        assertTrue(document.getElementsByTagNameNS(KmlWriter.NAMESPACE, "LineString").getLength() > 0);
+        // Descriptions are escaped, not written as markup
+        assertEquals(0, document.getElementsByTagNameNS(KmlWriter.NAMESPACE, "b").getLength());
+    }
+
+    @Test
+    public void testKeepEveryReport() throws Exception {
+        ByteArrayOutputStream simplified = new ByteArrayOutputStream();
+        writeScenario(new AisPacketKMLOutputSink(), simplified);
+        AisPacketKMLOutputSink sink = new AisPacketKMLOutputSink();
+        sink.setKeepEveryReport();
+        ByteArrayOutputStream every = new ByteArrayOutputStream();
+        writeScenario(sink, every);
+
+        // The movements have a placemark for each position report kept
+        int kept = parse(new ByteArrayInputStream(simplified.toByteArray())).getElementsByTagNameNS(
+                KmlWriter.NAMESPACE, "Placemark").getLength();
+        int all = parse(new ByteArrayInputStream(every.toByteArray())).getElementsByTagNameNS(KmlWriter.NAMESPACE,
+                "Placemark").getLength();
+        assertTrue(kept + " " + all, 0 < kept && kept < all);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testKeepEveryReportAfterPacket() throws Exception {
+        AisPacketKMLOutputSink sink = new AisPacketKMLOutputSink();
+        writeScenario(sink, new ByteArrayOutputStream());
+        sink.setKeepEveryReport();
+    }
+
+    @Test
+    public void testKmz() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeScenario(new AisPacketKMZOutputSink(), out);
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry = zip.getNextEntry();
+            assertEquals("doc.kml", entry.getName());
+            Document document = parse(new FilterInputStream(zip) {
+                @Override
+                public void close() {}
+            });
+            assertEquals("[Tracks, Movements, Icons]", folderNames(document).toString());
+            int icons = 0;
+            while ((entry = zip.getNextEntry()) != null) {
+                assertTrue(entry.getName().startsWith("icons/"));
+                icons++;
+            }
+            assertEquals(18, icons);
+        }
+    }
+}
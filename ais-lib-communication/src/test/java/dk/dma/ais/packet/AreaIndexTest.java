@@ -0,0 +1,75 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * Tests {@link AreaIndex}.
+ */
+public class AreaIndexTest {
+
+    @Test
+    public void empty() {
+        AreaIndex index = AreaIndex.create(Collections.<Area> emptyList());
+        assertFalse(index.test(Position.create(55, 10)));
+    }
+
+    @Test
+    public void sameAsLinearScan() {
+        Random r = new Random(42);
+        List<Area> areas = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            double lat = 50 + r.nextDouble() * 10;
+            double lon = r.nextDouble() * 20;
+            if (r.nextBoolean()) {
+                areas.add(BoundingBox.create(Position.create(lat, lon),
+                        Position.create(lat + r.nextDouble() * 0.2, lon + r.nextDouble() * 0.2),
+                        CoordinateSystem.CARTESIAN));
+            } else {
+                areas.add(new Circle(lat, lon, 1000 + r.nextDouble() * 10000, CoordinateSystem.GEODETIC));
+            }
+        }
+        Predicate<Position> other = p -> p.getLatitude() > 59.9;
+        AreaIndex index = AreaIndex.create(areas, Collections.singletonList(other));
+        int inside = 0;
+        for (int i = 0; i < 100000; i++) {
+            Position p = Position.create(49 + r.nextDouble() * 12, -1 + r.nextDouble() * 22);
+            boolean expected = other.test(p);
+            for (Area a : areas) {
+                expected |= a.contains(p);
+            }
+            assertEquals(p.toString(), expected, index.test(p));
+            inside += expected ? 1 : 0;
+        }
+        assertTrue(inside > 0);
+    }
+}
@@ -0,0 +1,94 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import static dk.dma.ais.packet.AisPacketFiltersExpressionFilterParser.parseExpressionFilter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+import dk.dma.ais.packet.AisPacketFiltersExpressionFilterParser.ExpressionFilterToPredicateVisitor;
+
+/**
+ * Tests {@link ExpressionFilterCompiler}.
+ */
+public class ExpressionFilterCompilerTest {
+
+    static Predicate<AisPacket> uncompiled(String expression) {
+        return ExpressionFilterParserBase.createFilterContext(expression).filterExpression()
+                .accept(new ExpressionFilterToPredicateVisitor());
+    }
+
+    @Test
+    public void costOrder() {
+        String s = parseExpressionFilter("m.pos within bbox(55, 10, 56, 13) & m.name ~ D* & m.sog > 1 & s.bs = 1")
+                .toString();
+        assertTrue(s, s.startsWith("(bs"));
+        assertTrue(s, s.indexOf("bs") < s.indexOf("sog"));
+        assertTrue(s, s.indexOf("sog") < s.indexOf("name"));
+        assertTrue(s, s.indexOf("name") < s.indexOf("position"));
+    }
+
+    @Test
+    public void folding() {
+        assertEquals("false", parseExpressionFilter("m.mmsi = 1 & m.sog > 1 & m.mmsi = 2").toString());
+        assertEquals("false", parseExpressionFilter("m.id in (1,2) & (m.id = 5 & s.bs = 1)").toString());
+        assertEquals(parseExpressionFilter("m.sog > 1").toString(),
+                parseExpressionFilter("m.sog > 1 | m.mmsi = 1 & m.mmsi = 2").toString());
+        assertEquals(parseExpressionFilter("m.sog > 1").toString(), parseExpressionFilter("m.sog > 1 & (m.sog > 1)")
+                .toString());
+    }
+
+    static boolean isStateful(String expression) {
+        return AisPacketFilters.isStatefulExpressionFilter(parseExpressionFilter(expression));
+    }
+
+    @Test
+    public void stateful() {
+        assertTrue(isStateful("t.sog > 1"));
+        assertTrue(isStateful("m.id = 5 | (t.type in (70, 71) & m.sog > 1)"));
+        assertFalse(isStateful("m.sog > 1 & s.bs = 1"));
+        // The target term is folded away
+        assertFalse(isStateful("m.id = 1 & m.id = 2 & t.sog > 1"));
+    }
+
+    @Test
+    public void equivalentToUncompiled() throws IOException {
+        List<AisPacket> packets = new ArrayList<>();
+        try (AisPacketReader r = AisPacketReader.createFromSystemResource("replay_dump.txt", true)) {
+            for (AisPacket p = r.readPacket(); p != null; p = r.readPacket()) {
+                packets.add(p);
+            }
+        }
+        String[] expressions = { "m.id in (1,2,3) & m.sog > 1 & m.pos within bbox(55, 10, 56, 13)",
+                "m.sog > 5 | m.id = 5 | m.year = 2013", "(m.id = 1 | m.id = 3) & (m.cog < 100 | m.hdg in 0..90)",
+                "m.id = 5 & m.name ~ *A* | m.mmsi != 219000000", "m.mmsi = 1 & m.mmsi = 2 | m.id not in (1,2)",
+                "s.bs != 1 & m.lat > 55 & m.lon < 12" };
+        for (String expression : expressions) {
+            Predicate<AisPacket> compiled = parseExpressionFilter(expression);
+            Predicate<AisPacket> uncompiled = uncompiled(expression);
+            for (AisPacket p : packets) {
+                assertEquals(expression, uncompiled.test(p), compiled.test(p));
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link GlobMatcher}.
+ */
+public class GlobMatcherTest {
+
+    static final String[] GLOBS = { "*", "**", "", "MAERSK", "MAERSK*", "*MAERSK", "*MAERSK*", "M*K", "M?ERSK*",
+            "*[A-C]*", "{MAERSK,SAGA}*", "A.B*", "*(1)", "*\\*", "[!M]*" };
+
+    static final String[] VALUES = { "", "MAERSK", "MAERSK LINE", "EMMA MAERSK", "SAGA MOON", "A.B C", "AXB C",
+            "FERRY (1)", "STAR*", "X" };
+
+    @Test
+    public void equivalentToRegex() {
+        for (String glob : GLOBS) {
+            GlobMatcher m = GlobMatcher.compile(glob);
+            String regex = AisPacketFiltersBase.convertGlobToRegex(glob);
+            for (String value : VALUES) {
+                assertEquals(glob + " " + value, value.matches(regex), m.matches(value));
+            }
+            assertFalse(m.matches(null));
+        }
+    }
+
+    @Test
+    public void perMmsiCache() {
+        GlobMatcher.PerMmsiCache cache = new GlobMatcher.PerMmsiCache(GlobMatcher.compile("*MAERSK*"));
+        assertTrue(cache.matches(219000000, "EMMA MAERSK@@@@"));
+        assertTrue(cache.matches(219000000, "EMMA MAERSK@@@@"));
+        assertFalse(cache.matches(219000000, "SAGA MOON@@@@@@"));
+        // Same slot in the cache
+        assertTrue(cache.matches(219000000 + GlobMatcher.PerMmsiCache.SIZE * 65536, "MAERSK"));
+        assertFalse(cache.matches(219000000, "SAGA MOON@@@@@@"));
+        assertFalse(cache.matches(219000000, null));
+    }
+}
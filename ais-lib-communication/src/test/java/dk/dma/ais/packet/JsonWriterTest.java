@@ -0,0 +1,68 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.packet;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import org.junit.Test;
+
+import dk.dma.ais.message.AisTargetType;
+
+public class JsonWriterTest {
+
+    @Test
+    public void testNumbers() {
+        JsonWriter w = new JsonWriter();
+        assertEquals("0", w.reset().append(0).toString());
+        assertEquals("-9223372036854775808", w.reset().append(Long.MIN_VALUE).toString());
+        assertEquals("1363598349499", w.reset().append(1363598349499L).toString());
+        assertEquals("12.31", w.reset().append(12.31, 5).toString());
+        assertEquals("-0.00005", w.reset().append(-0.00005, 5).toString());
+        assertEquals("56", w.reset().append(55.999999, 5).toString());
+        assertEquals("null", w.reset().append(Double.NaN, 5).toString());
+
+        // The same digits as DecimalFormat, including positions on a rounding tie
+        DecimalFormat df = new DecimalFormat("###.#####");
+        Random r = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            double v = (r.nextDouble() - 0.5) * 360;
+            if (i % 2 == 0) {
+                v = Math.round(v * 600000) / 600000.0;
+            }
+            assertEquals(df.format(v), w.reset().append(v, 5).toString());
+        }
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        JsonWriter w = new JsonWriter();
+        assertEquals("\"RUNAVIK \\\"GG 44\\\"\"", w.reset().appendText(" RUNAVIK \"GG 44\"@@@@").toString());
+        assertEquals("\"null\"", w.reset().appendText(null).toString());
+        assertEquals("\"a\\\\b\\u000a\\u00e6\"", w.reset().appendString("a\\b\næ").toString());
+        assertEquals("\"SART\"", w.reset().append(AisTargetType.SART).toString());
+        assertEquals("\"CARGO\",\"A\"", w.reset().appendShipType(71).append(',').appendCargoType(71)
+                .toString());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        w.reset().append(JsonWriter.ascii("{\"mmsi\":")).append(219001149).append('}');
+        w.writeTo(out);
+        assertEquals("{\"mmsi\":219001149}", out.toString("US-ASCII"));
+        assertEquals(0, w.size());
+    }
+}
@@ -17,18 +17,24 @@ package dk.dma.ais.tracker;
 
 import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.packet.AisPacketReader;
+import dk.dma.enav.model.geometry.Position;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by tbsalling on 07/04/14.
@@ -144,4 +150,74 @@ public class ScenarioTrackerTest {
         assertEquals(pr1, reportedPosition);
     }
 
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final List<AisPacket> packets = new ArrayList<>();
+        packetReader.forEachRemaining(packets::add);
+        for (AisPacket p : packets) {
+            scenarioTracker.update(p);
+        }
+        final ScenarioTracker concurrent = new ScenarioTracker();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread(() -> {
+                for (int j = offset; j < packets.size(); j += threads.length) {
+                    concurrent.update(packets.get(j));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(scenarioTracker.getTargets().size(), concurrent.getTargetsView().size());
+        Iterator<ScenarioTracker.Target> i = concurrent.getTargetsView().iterator();
+        for (ScenarioTracker.Target expected : scenarioTracker.getTargets()) {
+            ScenarioTracker.Target actual = i.next();
+            assertEquals(expected.getMmsi(), actual.getMmsi());
+            ScenarioTracker.Target.Track e = expected.getTrack(), a = actual.getTrack();
+            assertEquals(e.size(), a.size());
+            for (int j = 0; j < e.size(); j++) {
+                assertEquals(e.getTimestamp(j), a.getTimestamp(j));
+            }
+        }
+    }
+
+    @Test
+    public void testSimplification() throws Exception {
+        List<AisPacket> packets = new ArrayList<>();
+        packetReader.forEachRemaining(packets::add);
+        packets.sort(Comparator.comparingLong(AisPacket::getBestTimestamp));
+        double tolerance = 50;
+        ScenarioTracker simplified = new ScenarioTracker(tolerance, 10, TimeUnit.MINUTES);
+        for (AisPacket p : packets) {
+            scenarioTracker.update(p);
+            simplified.update(p);
+        }
+        int reports = 0, kept = 0;
+        for (ScenarioTracker.Target target : scenarioTracker.getTargetsHavingPositionUpdates()) {
+            ScenarioTracker.Target s = null;
+            for (ScenarioTracker.Target t : simplified.getTargetsView()) {
+                if (t.getMmsi().equals(target.getMmsi())) {
+                    s = t;
+                }
+            }
+            ScenarioTracker.Target.Track track = s.getTrack();
+            assertEquals(target.timeOfFirstPositionReport(), s.timeOfFirstPositionReport());
+            assertEquals(target.timeOfLastPositionReport(), s.timeOfLastPositionReport());
+            for (ScenarioTracker.Target.PositionReport r : target.getTrack()) {
+                ScenarioTracker.Target.PositionReport e = s.getPositionReportAt(new Date(r.getTimestamp()), 0);
+                if (e.isEstimated()) {
+                    Position p = Position.create(r.getLatitude(), r.getLongitude());
+                    assertTrue(p.rhumbLineDistanceTo(Position.create(e.getLatitude(), e.getLongitude())) < tolerance + 1);
+                }
+            }
+            reports += target.getTrack().size();
+            kept += track.size();
+        }
+        assertTrue(kept < reports);
+    }
+
 }
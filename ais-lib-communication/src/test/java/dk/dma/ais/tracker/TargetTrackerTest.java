@@ -15,22 +15,51 @@
 
 package dk.dma.ais.tracker;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import dk.dma.ais.data.AisTarget;
+import dk.dma.ais.data.AisVesselPosition;
 import dk.dma.ais.data.AisVesselTarget;
 import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisMessage24;
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketSource;
 import dk.dma.ais.reader.AisReader;
 import dk.dma.ais.reader.AisReaders;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
 import java.util.function.Consumer;
 
 
@@ -111,5 +140,457 @@ public class TargetTrackerTest {
 
     }
 
+    /**
+     * Test that a sharded tracker ends up with the same targets as a tracker updated by the delivering thread
+     */
+    @Test
+    public void testSharded() throws Exception {
+        List<AisPacket> packets = readPackets();
+        TargetTracker expected = new TargetTracker();
+        TargetTracker sharded = new TargetTracker(4);
+        for (AisPacket p : packets) {
+            AisMessage m = p.tryGetAisMessage();
+            if (m != null) {
+                assertEquals(m.getUserId(), TargetTracker.peekMmsi(p));
+            }
+            expected.update(p);
+            sharded.update(p);
+        }
+        sharded.awaitUpdates();
+        assertEquals(0, sharded.getNumberOfQueuedUpdates());
+
+        assertTrue(expected.size() > 0);
+        assertEquals(expected.size(), sharded.size());
+        for (int mmsi : expected.targets.keySet()) {
+            TargetInfo e = expected.getNewest(mmsi);
+            TargetInfo s = sharded.getNewest(mmsi);
+            if (e == null) {
+                assertNull(s);
+                continue;
+            }
+            assertEquals(e.getPositionTimestamp(), s.getPositionTimestamp());
+            assertEquals(e.getPosition(), s.getPosition());
+            assertEquals(e.getStaticTimestamp(), s.getStaticTimestamp());
+        }
+
+        // The targets of a shard share one instance per source
+        Map<AisPacketSource, Set<AisPacketSource>> instances = new HashMap<>();
+        int reports = 0;
+        for (int mmsi : sharded.targets.keySet()) {
+            for (AisPacketSource source : sharded.getAisPacketSources(mmsi)) {
+                instances.computeIfAbsent(source, k -> Collections.newSetFromMap(new IdentityHashMap<>())).add(source);
+                reports++;
+            }
+        }
+        assertTrue(instances.size() < reports);
+        for (Set<AisPacketSource> i : instances.values()) {
+            assertTrue(i.size() <= 4);
+        }
+        sharded.close();
+    }
+
+    /**
+     * Test that a compact tracker ends up with the same targets as the default tracker, using less memory
+     */
+    @Test
+    public void testCompact() throws Exception {
+        TargetTracker expected = new TargetTracker();
+        CompactTargetTracker compact = new CompactTargetTracker();
+        for (AisPacket p : readPackets()) {
+            expected.update(p);
+            compact.update(p);
+        }
+
+        int targets = 0;
+        for (int mmsi : expected.targets.keySet()) {
+            TargetInfo e = expected.getNewest(mmsi);
+            TargetInfo c = compact.getNewest(mmsi);
+            if (e == null) {
+                assertNull(c);
+                continue;
+            }
+            targets++;
+            assertEquals(e.getTargetType(), c.getTargetType());
+            assertEquals(e.getPositionTimestamp(), c.getPositionTimestamp());
+            assertEquals(e.getPosition(), c.getPosition());
+            assertEquals(e.getCog(), c.getCog(), 0);
+            assertEquals(e.getSog(), c.getSog(), 0);
+            assertEquals(e.getHeading(), c.getHeading());
+            assertEquals(e.getNavStatus(), c.getNavStatus());
+            assertEquals(e.hasPositionInfo(), c.hasPositionInfo());
+            assertEquals(e.getStaticTimestamp(), c.getStaticTimestamp());
+            assertEquals(e.getStaticShipType(), c.getStaticShipType());
+            assertEquals(e.getStaticCount(), c.getStaticCount());
+        }
+        assertTrue(targets > 0);
+        assertEquals(targets, compact.size());
+        assertEquals(expected.findTargets(e -> true, e -> true).size(), compact.findTargets(e -> true, e -> true)
+                .size());
+        assertTrue(compact.estimateMemoryUsage() / compact.size() < 200);
+
+        compact.removeAll((s, t) -> true);
+        assertEquals(0, compact.size());
+        assertEquals(0, compact.getNumberOfStaticEntries());
+    }
+
+    /**
+     * Test that the packets and AIS targets of a compact tracker are those of the default tracker
+     */
+    @Test
+    public void testCompactPackets() throws Exception {
+        TargetTracker expected = new TargetTracker();
+        CompactTargetTracker compact = new CompactTargetTracker();
+        for (AisPacket p : readPackets()) {
+            expected.update(p);
+            compact.update(p);
+        }
+
+        int positions = 0;
+        for (TargetInfo e : expected.findTargets(s -> true, t -> true).values()) {
+            TargetInfo c = compact.getNewest(e.getMmsi());
+            AisPacket[] packets = c.getPackets();
+            assertEquals(e.getPackets().length, packets.length);
+            for (AisPacket p : packets) {
+                assertNotNull(p);
+            }
+            if (e.hasPositionInfo()) {
+                positions++;
+                // The rebuilt message has the fields of the received one, and the timestamp to the second
+                AisMessage em = e.getPositionPacket().tryGetAisMessage();
+                AisMessage cm = c.getPositionPacket().tryGetAisMessage();
+                assertEquals(em.getMsgId(), cm.getMsgId());
+                assertEquals(em.getUserId(), cm.getUserId());
+                assertEquals(em.getValidPosition(), cm.getValidPosition());
+                assertEquals(PositionReport.fields(em), PositionReport.fields(cm));
+                assertEquals(PositionReport.name(em), PositionReport.name(cm));
+                assertEquals(e.getPositionTimestamp() / 1000, c.getPositionPacket().getBestTimestamp() / 1000);
+            }
+
+            AisTarget a = e.getAisTarget();
+            AisTarget b = c.getAisTarget();
+            assertEquals(a == null ? null : a.getClass(), b == null ? null : b.getClass());
+            if (a instanceof AisVesselTarget && ((AisVesselTarget) a).getVesselPosition() != null) {
+                AisVesselPosition ap = ((AisVesselTarget) a).getVesselPosition();
+                AisVesselPosition bp = ((AisVesselTarget) b).getVesselPosition();
+                assertEquals(ap.getPos(), bp.getPos());
+                assertEquals(ap.getSog(), bp.getSog());
+                assertEquals(ap.getCog(), bp.getCog());
+                assertEquals(ap.getHeading(), bp.getHeading());
+            }
+        }
+        assertTrue(positions > 0);
+    }
+
+    /**
+     * Test that the spatial queries find the same targets as scanning all targets
+     */
+    @Test
+    public void testSpatialQueries() throws Exception {
+        TargetTracker tracker = new TargetTracker();
+        for (AisPacket p : readPackets()) {
+            tracker.update(p);
+        }
+        Collection<TargetInfo> all = tracker.findTargets(e -> true, e -> e.getPosition() != null).values();
+        assertTrue(all.size() > 100);
+
+        Random r = new Random(1);
+        for (TargetInfo center : new ArrayList<>(all).subList(0, 20)) {
+            Position c = center.getPosition();
+            double d = r.nextDouble() * 2;
+            BoundingBox box = BoundingBox.create(Position.create(Math.max(-90, c.getLatitude() - d), c.getLongitude()
+                    - d), Position.create(Math.min(90, c.getLatitude() + d), c.getLongitude() + d),
+                    CoordinateSystem.CARTESIAN);
+            Set<Integer> expected = new HashSet<>();
+            for (TargetInfo ti : all) {
+                if (box.contains(ti.getPosition())) {
+                    expected.add(ti.getMmsi());
+                }
+            }
+            assertEquals(expected, tracker.findTargetsWithin(box).keySet());
+
+            int k = 1 + r.nextInt(10);
+            double maxDistance = r.nextDouble() * 100_000;
+            List<TargetInfo> byDistance = new ArrayList<>(all);
+            byDistance.removeIf(ti -> c.rhumbLineDistanceTo(ti.getPosition()) > maxDistance);
+            byDistance.sort(Comparator.comparingDouble(ti -> c.rhumbLineDistanceTo(ti.getPosition())));
+            List<TargetInfo> nearest = tracker.findNearest(c, k, maxDistance);
+            assertEquals(Math.min(k, byDistance.size()), nearest.size());
+            for (int i = 0; i < nearest.size(); i++) {
+                assertEquals(c.rhumbLineDistanceTo(byDistance.get(i).getPosition()),
+                        c.rhumbLineDistanceTo(nearest.get(i).getPosition()), 0);
+            }
+        }
+
+        tracker.removeAll((s, t) -> true);
+        assertTrue(tracker.findNearest(Position.create(56, 11), 10, Double.MAX_VALUE).isEmpty());
+    }
+
+    /**
+     * Test that applying the changes since a version to the targets at that version gives the current targets
+     */
+    @Test
+    public void testChangesSince() throws Exception {
+        List<AisPacket> packets = readPackets();
+        TargetTracker tracker = new TargetTracker();
+        for (AisPacket p : packets.subList(0, packets.size() / 2)) {
+            tracker.update(p);
+        }
+        TargetChanges first = tracker.changesSince(0);
+        assertTrue(first.isFull());
+        Map<Integer, TargetInfo> client = new HashMap<>(first.getUpdated());
+        assertSameTargets(tracker.findTargets(e -> true, e -> true), client);
+
+        for (AisPacket p : packets.subList(packets.size() / 2, packets.size())) {
+            tracker.update(p);
+        }
+        TargetChanges second = tracker.changesSince(first.getVersion());
+        assertFalse(second.isFull());
+        assertTrue(second.getUpdated().size() < tracker.size());
+        client.putAll(second.getUpdated());
+        assertSameTargets(tracker.findTargets(e -> true, e -> true), client);
+
+        tracker.removeAll((s, t) -> t.getMmsi() % 2 == 0);
+        TargetChanges third = tracker.changesSince(second.getVersion());
+        assertFalse(third.getRemoved().isEmpty());
+        assertTrue(third.getUpdated().isEmpty());
+        client.keySet().removeAll(third.getRemoved());
+        assertSameTargets(tracker.findTargets(e -> true, e -> true), client);
+
+        assertTrue(tracker.changesSince(third.getVersion()).isEmpty());
+
+        final BlockingQueue<TargetChanges> pushed = new LinkedBlockingQueue<>();
+        TargetChangeService service = new TargetChangeService(tracker, 10, TimeUnit.MILLISECONDS, pushed::add);
+        service.startAsync().awaitRunning();
+        TargetChanges all = pushed.poll(10, TimeUnit.SECONDS);
+        assertTrue(all.isFull());
+        assertSameTargets(client, all.getUpdated());
+        service.stopAsync().awaitTerminated();
+    }
+
+    /**
+     * Test that expiring targets removes the same reports as removing them by their timestamps
+     */
+    @Test
+    public void testExpire() throws Exception {
+        List<AisPacket> packets = readPackets();
+        TargetTracker tracker = new TargetTracker();
+        tracker.setTimeToLive(AisTargetType.A, 10, TimeUnit.MINUTES);
+        tracker.setTimeToLive(AisTargetType.B, 5, TimeUnit.MINUTES);
+        tracker.setTimeToLive(AisTargetType.BS, 30, TimeUnit.MINUTES);
+        tracker.setTimeToLive(AisTargetType.ATON, 1, TimeUnit.HOURS);
+        TargetTracker expected = new TargetTracker();
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (AisPacket p : packets) {
+            tracker.update(p);
+            expected.update(p);
+            if (p.getTimestamp() != null) {
+                first = Math.min(first, p.getTimestamp().getTime());
+                last = Math.max(last, p.getTimestamp().getTime());
+            }
+        }
+        int reports = expected.countNumberOfReports((s, t) -> true);
+        for (long now = first; now < last + TimeUnit.HOURS.toMillis(2); now += TimeUnit.MINUTES.toMillis(1)) {
+            final long time = now;
+            tracker.expire(now);
+            expected.removeAll((s, t) -> {
+                long ttl = tracker.getTimeToLive(t.getTargetType(), TimeUnit.MILLISECONDS);
+                return ttl > 0 && Math.max(t.getPositionTimestamp(), t.getStaticTimestamp()) + ttl <= time;
+            });
+            assertSameTargets(expected.findTargets(e -> true, e -> true), tracker.findTargets(e -> true, e -> true));
+        }
+        for (TargetInfo ti : tracker.findTargets(e -> true, e -> true).values()) {
+            assertEquals(AisTargetType.SART, ti.getTargetType()); // the only type that does not expire
+        }
+        assertEquals(reports - expected.countNumberOfReports((s, t) -> true), tracker.getEvictions());
+        assertTrue(tracker.getEvictions(AisTargetType.A) > 0);
+    }
+
+    /**
+     * Test that the expiry wheel expires items in the tick of their deadline
+     */
+    @Test
+    public void testExpiryWheel() {
+        ExpiryWheel<Long> wheel = new ExpiryWheel<>(10);
+        Random r = new Random(1);
+        long now = 1_000_000;
+        Set<Long> scheduled = new HashSet<>();
+        for (int i = 0; i < 10_000; i++) {
+            long span = 10L << r.nextInt(30);
+            long deadline = now + (long) (r.nextDouble() * span);
+            if (scheduled.add(deadline)) {
+                wheel.schedule(deadline, deadline);
+            }
+            if (r.nextInt(10) == 0) {
+                now += r.nextInt(r.nextBoolean() ? 100 : 100_000);
+                for (long d : wheel.advance(now)) {
+                    assertTrue(d / 10 <= now / 10);
+                    assertTrue(scheduled.remove(d));
+                }
+                for (long d : scheduled) {
+                    assertTrue(d / 10 > now / 10);
+                }
+            }
+        }
+        assertEquals(scheduled.size(), wheel.size());
+        now += 10L << 31;
+        assertEquals(scheduled.size(), wheel.advance(now).size());
+        assertEquals(0, wheel.size());
+    }
+
+    private static void assertSameTargets(Map<Integer, TargetInfo> expected, Map<Integer, TargetInfo> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<Integer, TargetInfo> e : expected.entrySet()) {
+            TargetInfo a = actual.get(e.getKey());
+            assertEquals(e.getValue().getPositionTimestamp(), a.getPositionTimestamp());
+            assertEquals(e.getValue().getStaticTimestamp(), a.getStaticTimestamp());
+        }
+    }
+
+    @Test
+    public void testBackup() throws Exception {
+        List<AisPacket> packets = readPackets();
+        Path folder = Files.createTempDirectory("backup");
+        TargetTracker tracker = new TargetTracker();
+        TargetTrackerFileBackupService backup = new TargetTrackerFileBackupService(tracker, folder, 3);
+        for (AisPacket p : packets.subList(0, packets.size() / 2)) {
+            tracker.update(p);
+        }
+        backup.runOneIteration(); // snapshot
+        for (AisPacket p : packets.subList(packets.size() / 2, packets.size())) {
+            tracker.update(p);
+        }
+        backup.runOneIteration(); // log
+        tracker.removeAll((s, t) -> t.getTargetType() == AisTargetType.ATON);
+        backup.runOneIteration(); // log
+        backup.stopAsync().awaitTerminated();
+
+        // An incomplete last batch is ignored
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*.log")) {
+            for (Path log : stream) {
+                Files.write(log, new byte[] { 0, 0, 1, 0, 42 }, StandardOpenOption.APPEND);
+            }
+        }
+
+        TargetTracker restored = new TargetTracker(2);
+        try {
+            new TargetTrackerFileBackupService(restored, folder).restoreBackupFiles();
+            assertSameTargets(tracker.findTargets(e -> true, e -> true), restored.findTargets(e -> true, e -> true));
+            assertEquals(tracker.countNumberOfReports((s, t) -> true), restored.countNumberOfReports((s, t) -> true));
+        } finally {
+            restored.close();
+        }
+    }
+
+    /**
+     * Test that a report removed after the snapshot stays removed when the log is replayed
+     */
+    @Test
+    public void testBackupRemovedReport() throws Exception {
+        Path folder = Files.createTempDirectory("backup");
+        TargetTracker tracker = new TargetTracker();
+        TargetTrackerFileBackupService backup = new TargetTrackerFileBackupService(tracker, folder, 3);
+        for (AisPacket p : readPackets()) {
+            tracker.update(p);
+        }
+        int mmsi = -1;
+        for (int m : tracker.targets.keySet()) {
+            if (tracker.getAisPacketSources(m).size() > 1) {
+                mmsi = m;
+                break;
+            }
+        }
+        assertTrue(mmsi >= 0);
+        backup.runOneIteration(); // snapshot
+        final int target = mmsi;
+        final AisPacketSource source = tracker.getAisPacketSources(mmsi).iterator().next();
+        tracker.removeAll((s, t) -> t.getMmsi() == target && s.equals(source));
+        backup.runOneIteration(); // log
+        backup.stopAsync().awaitTerminated();
+
+        TargetTracker restored = new TargetTracker();
+        new TargetTrackerFileBackupService(restored, folder).restoreBackupFiles();
+        assertFalse(restored.getAisPacketSources(mmsi).contains(source));
+        assertEquals(tracker.getAisPacketSources(mmsi), restored.getAisPacketSources(mmsi));
+        assertEquals(tracker.countNumberOfReports((s, t) -> true), restored.countNumberOfReports((s, t) -> true));
+    }
+
+    @Test
+    public void testDecodedPackets() throws Exception {
+        TargetTracker tt = new TargetTracker();
+        for (AisPacket p : readPackets()) {
+            tt.update(p);
+        }
+        int static2 = 0;
+        for (TargetInfo ti : tt.findTargets(e -> true, e -> true).values()) {
+            if (ti.getPositionPacket() != null) {
+                assertSame(ti.getPositionPacket(), ti.getPositionPacket());
+                assertSame(ti.getPositionPacket().tryGetAisMessage(), ti.getPositionPacket().tryGetAisMessage());
+            }
+            if (ti.getStaticCount() == 2) {
+                assertSame(ti.getStaticAisPacket2(), ti.getStaticPackets()[1]);
+                static2++;
+            }
+            if (ti.hasStaticInfo()) {
+                assertSame(ti.getStaticAisPacket1(), ti.getStaticPackets()[0]);
+            } else {
+                assertNull(ti.getStaticAisPacket1());
+            }
+        }
+        assertTrue(static2 > 0);
+    }
+
+    @Test
+    public void testMsg24PartCache() throws Exception {
+        List<AisPacket> packets = readPackets();
+        TargetTracker tt = new TargetTracker();
+        int parts1 = 0;
+        for (AisPacket p : packets) {
+            tt.update(p);
+            AisMessage m = p.tryGetAisMessage();
+            if (m instanceof AisMessage24 && ((AisMessage24) m).getPartNumber() == 1) {
+                parts1++;
+            }
+        }
+        Msg24PartCache c = tt.getMsg24PartCache();
+        assertTrue(c.getHits() > 0);
+        // Parts older than the static data of the target are not paired
+        assertTrue(c.getHits() + c.getMisses() + c.getExpirations() <= parts1);
+
+        AisPacketSource source = AisPacketSource.create(packets.get(0));
+        byte[] part = new byte[] { 1 };
+        c = new Msg24PartCache(2, 1000);
+        c.put(1, source, 0, part);
+        assertTrue(part == c.remove(1, source, 1000));
+        assertNull(c.remove(1, source, 1000));
+        c.put(1, source, 0, part);
+        assertNull(c.remove(1, source, 1001));
+        c.put(1, source, 0, part);
+        c.put(2, source, 500, part);
+        c.put(3, source, 600, part);
+        assertEquals(2, c.size());
+        c.put(4, source, 1700, part);
+        assertEquals(2, c.size());
+        // Part A is not expired by newer parts of other targets, only when paired
+        assertNull(c.remove(3, source, 1700));
+        assertTrue(part == c.remove(4, source, 1700));
+        assertEquals(2, c.getHits());
+        assertEquals(1, c.getMisses());
+        assertEquals(2, c.getExpirations());
+        assertEquals(2, c.getEvictions());
+    }
+
+    private static List<AisPacket> readPackets() throws Exception {
+        final List<AisPacket> packets = new ArrayList<>();
+        AisReader reader = AisReaders.createDirectoryReader("src/test/resources/", "*.txt", true);
+        reader.registerPacketHandler(new Consumer<AisPacket>() {
+            @Override
+            public void accept(AisPacket p) {
+                packets.add(p);
+            }
+        });
+        reader.start();
+        reader.join();
+        return packets;
+    }
 
 }
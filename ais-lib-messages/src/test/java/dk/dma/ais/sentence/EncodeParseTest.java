@@ -23,6 +23,7 @@ import org.junit.Test;
 import dk.dma.ais.binary.SixbitException;
 import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.message.AisMessage12;
+import dk.dma.ais.message.AisMessage21;
 import dk.dma.ais.message.AisMessage6;
 import dk.dma.ais.message.AisMessage8;
 import dk.dma.ais.message.AisMessageException;
@@ -192,4 +193,33 @@ public class EncodeParseTest {
         Assert.assertEquals(16, routeInformation.getWaypointCount());
     }
 
+    @Test
+    public void testMsg21EncodeParse() throws SentenceException, SixbitException, AisMessageException {
+        Vdm vdm = new Vdm();
+        Assert.assertEquals(1, vdm.parse("!BSVDM,2,1,5,A,E>jHC:RQWa9RcPV6@64ST:47baRwl<>l?g=E`10888c0000000000000,0*56"));
+        Assert.assertEquals(0, vdm.parse("!BSVDM,2,2,5,A,0000,0*0A"));
+        AisMessage21 msg21 = (AisMessage21) AisMessage.getInstance(vdm);
+        Assert.assertNotNull(msg21.getNameExt());
+
+        // Encode and parse again
+        String[] sentences = Vdm.createSentences(msg21, 5);
+        vdm = new Vdm();
+        for (int i = 0; i < sentences.length; i++) {
+            Assert.assertEquals(i < sentences.length - 1 ? 1 : 0, vdm.parse(sentences[i]));
+        }
+        AisMessage21 parsed = (AisMessage21) AisMessage.getInstance(vdm);
+        Assert.assertEquals(msg21.getUserId(), parsed.getUserId());
+        Assert.assertEquals(msg21.getAtonType(), parsed.getAtonType());
+        Assert.assertEquals(msg21.getName(), parsed.getName());
+        Assert.assertEquals(msg21.getNameExt(), parsed.getNameExt());
+        Assert.assertEquals(msg21.getPos(), parsed.getPos());
+        Assert.assertEquals(msg21.getDimBow(), parsed.getDimBow());
+        Assert.assertEquals(msg21.getDimStarboard(), parsed.getDimStarboard());
+        Assert.assertEquals(msg21.getPosType(), parsed.getPosType());
+        Assert.assertEquals(msg21.getOffPosition(), parsed.getOffPosition());
+        Assert.assertEquals(msg21.getVirtual(), parsed.getVirtual());
+        Assert.assertEquals(msg21.getAssigned(), parsed.getAssigned());
+        Assert.assertEquals(msg21.getEncoded().encode(), parsed.getEncoded().encode());
+    }
+
 }
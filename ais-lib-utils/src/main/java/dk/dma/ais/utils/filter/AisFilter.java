@@ -35,8 +35,10 @@ import org.apache.commons.lang.StringUtils;
 import com.beust.jcommander.Parameter;
 import com.google.inject.Injector;
 
+import dk.dma.ais.archive.FileSummary;
 import dk.dma.ais.binary.SixbitException;
 import dk.dma.ais.filter.ExpressionFilter;
+import dk.dma.ais.filter.GeoMaskFilter;
 import dk.dma.ais.filter.IPacketFilter;
 import dk.dma.ais.filter.LocationFilter;
 import dk.dma.ais.filter.ReplayDownSampleFilter;
@@ -45,8 +47,10 @@ import dk.dma.ais.message.AisBinaryMessage;
 import dk.dma.ais.message.AisMessage;
 import dk.dma.ais.message.binary.AisApplicationMessage;
 import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketFilters;
 import dk.dma.ais.proprietary.IProprietarySourceTag;
 import dk.dma.ais.proprietary.IProprietaryTag;
+import dk.dma.ais.reader.AisDirectoryReader;
 import dk.dma.ais.reader.AisReader;
 import dk.dma.ais.reader.AisReader.Status;
 import dk.dma.ais.reader.AisReaders;
@@ -124,7 +128,11 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
     @Parameter(names = "-z", description = "Compress output files")
     boolean compress;
 
-    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z");
+    @Parameter(names = "-threads", description = "Number of filter threads, output order is kept. Default 0, filter on the reader thread")
+    int threads;
+
+    private final ThreadLocal<SimpleDateFormat> timestampFormat = ThreadLocal
+            .withInitial(() -> new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z"));
 
     private PrintStream out;
 
@@ -146,6 +154,9 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
 
     private int currentFileBytes;
 
+    /** The pipeline filtering on worker threads, or null if filtering on the reader thread. */
+    private volatile FilterPipeline pipeline;
+
     public AisFilter() {
         super("AisFilter");
     }
@@ -166,7 +177,13 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
             rrAisReader.setTimeout(timeout);
             aisReader = rrAisReader;
         } else {
-            aisReader = AisReaders.createDirectoryReader(dir, name, recursive);
+            AisDirectoryReader directoryReader = AisReaders.createDirectoryReader(dir, name, recursive);
+            if (expression != null) {
+                // Skip files whose summary shows that they cannot contain packets matching the expression
+                directoryReader.setSummaryFilter(FileSummary.filterFor(AisPacketFilters
+                        .analyseExpressionFilter(expression)));
+            }
+            aisReader = directoryReader;
         }
 
         runtime *= 1000;
@@ -202,11 +219,14 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
         }
         if (geometry != null) {
             LocationFilter locationFilter = new LocationFilter();
-            Area a = getGeometry(geometry);
-            locationFilter.addFilterGeometry(e -> a.contains(e));
+            locationFilter.addFilterGeometry(getGeometry(geometry));
             filters.add(locationFilter);
         }
 
+        if (threads > 0) {
+            pipeline = new FilterPipeline(this, threads);
+        }
+
         // Register handler
         aisReader.registerPacketHandler(this);
 
@@ -216,6 +236,10 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
 
         while (true) {
             Thread.sleep(500);
+            if (pipeline != null) {
+                // Do not hold back packets of a slow stream until a batch is full
+                pipeline.flush();
+            }
             if (aisReader.getStatus() == Status.DISCONNECTED) {
                 break;
             }
@@ -225,6 +249,9 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
                 break;
             }
         }
+        if (pipeline != null) {
+            pipeline.close();
+        }
     }
 
     private PrintStream getNextOutputStram() {
@@ -258,19 +285,40 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
 
     @Override
     public void accept(AisPacket packet) {
-        if (out == null) {
-            // Open new output stream
-            out = getNextOutputStram();
-        }
-
         end = System.currentTimeMillis();
         if (start == 0) {
             start = end;
         }
 
-        for (IPacketFilter filter : filters) {
-            if (filter.rejectedByFilter(packet)) {
-                return;
+        FilterPipeline pipeline = this.pipeline;
+        if (pipeline != null) {
+            pipeline.accept(packet);
+        } else {
+            output(select(packet, null), filters);
+        }
+    }
+
+    /**
+     * Does the part of filtering a packet that does not depend on the packets before it, and formats the output if
+     * the filters are evaluated. This may be done on any thread.
+     *
+     * @param packet
+     *            the packet
+     * @param filters
+     *            the filters of which the stateless ones are evaluated, or null to leave all filters to
+     *            {@link #output(Selection, List)}
+     * @return the selection to output
+     */
+    Selection select(AisPacket packet, List<IPacketFilter> filters) {
+        Selection s = new Selection(packet);
+        if (filters != null) {
+            s.rejectedAt = filters.size();
+            for (int i = 0; i < filters.size(); i++) {
+                IPacketFilter f = filters.get(i);
+                if (isStateless(f) && f.rejectedByFilter(packet)) {
+                    s.rejectedAt = i;
+                    return s;
+                }
             }
         }
 
@@ -280,7 +328,7 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
 
         Vdm vdm = packet.getVdm();
         if (vdm == null) {
-            return;
+            return s;
         }
 
         // Get source tag properties
@@ -302,79 +350,89 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
         Date timestamp = vdm.getTimestamp();
         if (filter.getStartDate() != null && timestamp != null) {
             if (timestamp.before(filter.getStartDate())) {
-                return;
+                return s;
             }
         }
 
         // Maybe check for end date
         if (filter.getEndDate() != null && timestamp != null) {
             if (timestamp.after(filter.getEndDate())) {
-                System.exit(0);
+                s.end = true;
+                return s;
             }
         }
 
         // Maybe check for base station MMSI
         if (filter.getBaseStations().size() > 0) {
             if (!filter.getBaseStations().contains(baseMMSI)) {
-                return;
+                return s;
             }
         }
 
         // Maybe check for country
         if (filter.getCountries().size() > 0) {
             if (!filter.getCountries().contains(country)) {
-                return;
+                return s;
             }
         }
 
         // Maybe check for region
         if (filter.getRegions().size() > 0) {
             if (!filter.getRegions().contains(region)) {
+                return s;
+            }
+        }
+
+        s.vdm = vdm;
+        s.timestamp = timestamp;
+        if (filters != null) {
+            s.text = format(s);
+        }
+        return s;
+    }
+
+    /**
+     * Evaluates the filters not evaluated by {@link #select(AisPacket, List)} and writes the packet if accepted. Must
+     * be called in the order the packets are read.
+     *
+     * @param s
+     *            the selection
+     * @param filters
+     *            the filters given to {@link #select(AisPacket, List)}
+     */
+    void output(Selection s, List<IPacketFilter> filters) {
+        if (out == null) {
+            // Open new output stream
+            out = getNextOutputStram();
+        }
+
+        for (int i = 0; i < filters.size(); i++) {
+            if (i == s.rejectedAt) {
+                return;
+            }
+            IPacketFilter f = filters.get(i);
+            if ((s.rejectedAt < 0 || !isStateless(f)) && f.rejectedByFilter(s.packet)) {
                 return;
             }
         }
 
-        if (stop) {
+        if (s.end) {
+            System.exit(0);
+        }
+
+        if (s.vdm == null || stop) {
             return;
         }
 
         // Count message
         msgCount++;
 
-        // Print tag line packet
-        out.print(packet.getStringMessage() + "\r\n");
+        // Print tag line packet, and maybe parsed
+        out.print(s.text != null ? s.text : format(s));
 
         // Count bytes
-        bytes += packet.getStringMessage().length() + 2;
-        currentFileBytes += packet.getStringMessage().length() + 2;
-
-        // Maybe print parsed
-        if (dumpParsed) {
-            if (timestamp != null) {
-                out.println("+ timetamp " + timestampFormat.format(timestamp));
-            }
-            if (vdm.getTags() != null) {
-                for (IProprietaryTag tag : vdm.getTags()) {
-                    out.println("+ " + tag.toString());
-                }
-            }
-            AisMessage aisMessage = packet.tryGetAisMessage();
-            if (aisMessage != null) {
-                out.println("+ " + aisMessage.toString());
-            } else {
-                out.println("+ AIS message could not be parsed");
-            }
-
-            // Check for binary message
-            if (aisMessage instanceof AisBinaryMessage) {
-                AisBinaryMessage binaryMessage = (AisBinaryMessage) aisMessage;
-                try {
-                    AisApplicationMessage appMessage = binaryMessage.getApplicationMessage();
-                    out.println(appMessage);
-                } catch (SixbitException e) {}
-            }
-            out.println("---------------------------");
-        }
+        bytes += s.packet.getStringMessage().length() + 2;
+        currentFileBytes += s.packet.getStringMessage().length() + 2;
 
         // Maybe time for new outfile
         if (splitSize != null && currentFileBytes >= splitSize) {
@@ -385,6 +443,47 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
 
     }
 
+    /** Returns the output of an accepted packet. */
+    private String format(Selection s) {
+        AisPacket packet = s.packet;
+        StringBuilder sb = new StringBuilder(packet.getStringMessage()).append("\r\n");
+        if (!dumpParsed) {
+            return sb.toString();
+        }
+        String nl = System.lineSeparator();
+        if (s.timestamp != null) {
+            sb.append("+ timetamp ").append(timestampFormat.get().format(s.timestamp)).append(nl);
+        }
+        if (s.vdm.getTags() != null) {
+            for (IProprietaryTag tag : s.vdm.getTags()) {
+                sb.append("+ ").append(tag.toString()).append(nl);
+            }
+        }
+        AisMessage aisMessage = packet.tryGetAisMessage();
+        if (aisMessage != null) {
+            sb.append("+ ").append(aisMessage.toString()).append(nl);
+        } else {
+            sb.append("+ AIS message could not be parsed").append(nl);
+        }
+
+        // Check for binary message
+        if (aisMessage instanceof AisBinaryMessage) {
+            AisBinaryMessage binaryMessage = (AisBinaryMessage) aisMessage;
+            try {
+                AisApplicationMessage appMessage = binaryMessage.getApplicationMessage();
+                sb.append(appMessage).append(nl);
+            } catch (SixbitException e) {}
+        }
+        sb.append("---------------------------").append(nl);
+        return sb.toString();
+    }
+
+    /** Returns whether or not the filter gives the same result for a packet no matter the packets before it. */
+    static boolean isStateless(IPacketFilter filter) {
+        return filter instanceof ExpressionFilter && !((ExpressionFilter) filter).isStateful()
+                || filter instanceof GeoMaskFilter;
+    }
+
     public List<IPacketFilter> getFilters() {
         return filters;
     }
@@ -413,6 +512,10 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
         System.out.println("KBytes   : " + kbytes);
         System.out.println("KB/s     : " + String.format(Locale.US, "%.2f", kbytes / elapsedSecs));
         System.out.println("Kbps     : " + String.format(Locale.US, "%.2f", kbytes * 8.0 / elapsedSecs));
+        FilterPipeline pipeline = this.pipeline;
+        if (pipeline != null) {
+            pipeline.printStats(elapsedSecs);
+        }
     }
 
     @Override
@@ -465,9 +568,34 @@ public class AisFilter extends AbstractCommandLineTool implements Consumer<AisPa
         System.out.println("\t-exp      Filter by expression. See ExpressionFilter.g4");
         System.out
         .println("\t-geo      Filter by geometry. Circle: 'circle,lat,lon,radius' Bounding box: 'bb,lat1,lon1,lat2,lon2' ");
+        System.out.println("\t-threads  Number of filter threads, output order is kept (default 0, filter on the reader thread)");
         System.out.println("\t-help     Show this help");
     }
 
+    /** A packet with the result of {@link AisFilter#select(AisPacket, List)}. */
+    static final class Selection {
+
+        final AisPacket packet;
+
+        /** The index of the stateless filter rejecting the packet, or -1 if the filters have not been evaluated. */
+        int rejectedAt = -1;
+
+        /** The sentence of the packet, or null if rejected by the filter settings. */
+        Vdm vdm;
+
+        Date timestamp;
+
+        /** Whether or not the packet is after the end time. */
+        boolean end;
+
+        /** The output if formatted ahead of time. */
+        String text;
+
+        Selection(AisPacket packet) {
+            this.packet = packet;
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         Thread.setDefaultUncaughtExceptionHandler(new UncaughtExceptionHandler() {
             @Override
@@ -0,0 +1,213 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.utils.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import dk.dma.ais.filter.IPacketFilter;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.utils.filter.AisFilter.Selection;
+
+/**
+ * Filters the packets of {@link AisFilter} on a number of worker threads.
+ * <p>
+ * The reader thread hands batches of packets to the workers, which decode the packets, evaluate the stateless filters
+ * and the filter settings, and format the output. A sequencer thread takes the batches in the order they were read,
+ * evaluates the filters that depend on the packets before them, such as down sampling and doublet filtering, and
+ * writes the output. The output is therefore the same as when filtering on the reader thread.
+ * <p>
+ * The number of batches in flight is bounded, so a slow output blocks the reader rather than buffering the input.
+ */
+@ThreadSafe
+final class FilterPipeline {
+
+    /** The number of packets in a batch. */
+    static final int BATCH_SIZE = 1000;
+
+    /** The number of batches in flight per worker. */
+    private static final int BATCHES_PER_WORKER = 4;
+
+    /** Marks the end of the batches. */
+    private static final Future<Selection[]> END = CompletableFuture.completedFuture(null);
+
+    private final AisFilter aisFilter;
+
+    /** The filters when the pipeline was created. */
+    private final List<IPacketFilter> filters;
+
+    private final int threads;
+
+    private final ExecutorService workers;
+
+    /** The batches in the order they were read. */
+    private final BlockingQueue<Future<Selection[]>> batches;
+
+    private final Thread sequencer;
+
+    @GuardedBy("this")
+    private AisPacket[] batch = new AisPacket[BATCH_SIZE];
+
+    @GuardedBy("this")
+    private int batchSize;
+
+    private final LongAdder packets = new LongAdder();
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /** Time the reader has been blocked on a full pipeline. */
+    private final AtomicLong readerBlockedNanos = new AtomicLong();
+
+    /** Time the workers have been busy. */
+    private final AtomicLong workerNanos = new AtomicLong();
+
+    /** Time the sequencer has been waiting for the next batch. */
+    private final AtomicLong sequencerWaitNanos = new AtomicLong();
+
+    /** Time the sequencer has been busy. */
+    private final AtomicLong sequencerNanos = new AtomicLong();
+
+    FilterPipeline(AisFilter aisFilter, int threads) {
+        this.aisFilter = aisFilter;
+        this.filters = Collections.unmodifiableList(new ArrayList<>(aisFilter.getFilters()));
+        this.threads = threads;
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "AisFilter worker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.batches = new ArrayBlockingQueue<>(threads * BATCHES_PER_WORKER);
+        this.sequencer = new Thread(this::sequence, "AisFilter sequencer");
+        sequencer.start();
+    }
+
+    /**
+     * Adds a packet to the current batch, handing the batch to the workers when full. Blocks if the pipeline is full.
+     *
+     * @param packet
+     *            the packet
+     */
+    synchronized void accept(AisPacket packet) {
+        batch[batchSize++] = packet;
+        packets.increment();
+        if (batchSize == BATCH_SIZE) {
+            submit();
+        }
+    }
+
+    /** Hands the current batch to the workers, even if it is not full. */
+    synchronized void flush() {
+        if (batchSize > 0) {
+            submit();
+        }
+    }
+
+    /**
+     * Flushes the current batch and waits for all batches to be written.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    void close() throws InterruptedException {
+        flush();
+        batches.put(END);
+        sequencer.join();
+        workers.shutdown();
+    }
+
+    @GuardedBy("this")
+    private void submit() {
+        final AisPacket[] b = Arrays.copyOf(batch, batchSize);
+        batchSize = 0;
+        Future<Selection[]> f = workers.submit(() -> {
+            long start = System.nanoTime();
+            Selection[] selections = new Selection[b.length];
+            for (int i = 0; i < b.length; i++) {
+                selections[i] = aisFilter.select(b[i], filters);
+            }
+            workerNanos.addAndGet(System.nanoTime() - start);
+            return selections;
+        });
+        long start = System.nanoTime();
+        try {
+            batches.put(f);
+        } catch (InterruptedException e) {
+            f.cancel(false);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        readerBlockedNanos.addAndGet(System.nanoTime() - start);
+        batchCount.incrementAndGet();
+    }
+
+    /** Writes the batches in the order they were read, run by the sequencer thread. */
+    private void sequence() {
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                Selection[] selections = batches.take().get();
+                long ready = System.nanoTime();
+                sequencerWaitNanos.addAndGet(ready - start);
+                if (selections == null) {
+                    return;
+                }
+                for (Selection s : selections) {
+                    aisFilter.output(s, filters);
+                }
+                sequencerNanos.addAndGet(System.nanoTime() - ready);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to filter packets", e.getCause());
+        }
+    }
+
+    /**
+     * Prints statistics on the stages of the pipeline.
+     *
+     * @param elapsedSecs
+     *            the time the pipeline has been running
+     */
+    void printStats(double elapsedSecs) {
+        System.out.println("Threads  : " + threads);
+        System.out.println("Batches  : " + batchCount.get() + " of up to " + BATCH_SIZE + " packets");
+        System.out.println("Read     : " + packets.sum() + " packets, blocked " + seconds(readerBlockedNanos) + " s");
+        double utilization = elapsedSecs > 0 ? workerNanos.get() / 1e9 / elapsedSecs / threads * 100 : 0;
+        System.out.println("Filter   : busy " + seconds(workerNanos) + " s, "
+                + String.format(Locale.US, "%.2f", utilization) + "% of " + threads + " threads");
+        System.out.println("Output   : busy " + seconds(sequencerNanos) + " s, waiting " + seconds(sequencerWaitNanos)
+                + " s");
+    }
+
+    private static String seconds(AtomicLong nanos) {
+        return String.format(Locale.US, "%.2f", nanos.get() / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+}